@@ -0,0 +1,195 @@
+package com.ulyssecarion.pdb.distances.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.biojava.bio.structure.AminoAcidImpl;
+import org.biojava.bio.structure.Atom;
+import org.biojava.bio.structure.AtomImpl;
+import org.biojava.bio.structure.Element;
+import org.biojava.bio.structure.Group;
+import org.biojava.bio.structure.HetatomImpl;
+
+import com.ulyssecarion.pdb.distances.DistanceDataTree;
+import com.ulyssecarion.pdb.distances.DistanceQuery;
+import com.ulyssecarion.pdb.distances.DistanceQuery.DistanceQueryBuilder;
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.precalculations.DistanceDataTreeBuilderDriver;
+import com.ulyssecarion.pdb.distances.precalculations.SyntheticDistanceDataGenerator;
+
+/**
+ * Builds the data the benchmarks run on. Everything here is generated from a
+ * fixed seed, so two runs of the same benchmark (on two different commits, for
+ * instance) always see exactly the same data.
+ */
+public class BenchmarkFixtures {
+	public static final long SEED = 20130801L;
+
+	private static final String[] LIGANDS = { "HEM", "NAG", "SO4", "GOL",
+			"ZN", "ATP", "IOD" };
+	private static final String[][] LIGAND_ATOMS = {
+			{ "FE", "NA", "NB", "NC", "ND", "C1A", "C2A", "O1A" },
+			{ "C1", "C2", "N2", "O3", "O4", "O5", "O6", "O7" },
+			{ "S", "O1", "O2", "O3", "O4" }, { "C1", "O1", "C2", "O2", "C3" },
+			{ "ZN" }, { "PG", "O1G", "PB", "O1B", "PA", "N1", "N6", "C8" },
+			{ "I" } };
+	private static final Element[][] LIGAND_ELEMENTS = {
+			{ Element.Fe, Element.N, Element.N, Element.N, Element.N,
+					Element.C, Element.C, Element.O },
+			{ Element.C, Element.C, Element.N, Element.O, Element.O,
+					Element.O, Element.O, Element.O },
+			{ Element.S, Element.O, Element.O, Element.O, Element.O },
+			{ Element.C, Element.O, Element.C, Element.O, Element.C },
+			{ Element.Zn },
+			{ Element.P, Element.O, Element.P, Element.O, Element.P,
+					Element.N, Element.N, Element.C }, { Element.I } };
+
+	private static final String[] RESIDUES = { "ALA", "HIS", "ASP", "SER",
+			"CYS", "LYS" };
+	private static final String[] RESIDUE_ATOMS = { "N", "CA", "C", "O", "CB",
+			"OG" };
+	private static final Element[] RESIDUE_ELEMENTS = { Element.N, Element.C,
+			Element.C, Element.O, Element.C, Element.O };
+
+	/**
+	 * A fully-bound query that is guaranteed to have results in the data
+	 * returned by {@link #makeTree(int)}.
+	 */
+	public static final DistanceQuery BOUND_QUERY = new DistanceQueryBuilder()
+			.originGroup("HEM").originElement(Element.Fe).originAtom("FE")
+			.targetGroup("HIS").targetElement(Element.N).targetAtom("N")
+			.build();
+
+	/**
+	 * A query binding only the origin group; it has to read every leaf under
+	 * that group.
+	 */
+	public static final DistanceQuery WILDCARD_QUERY = new DistanceQueryBuilder()
+			.originGroup("HEM").maxDistance(4.0).build();
+
+	/**
+	 * Makes a DistanceDataTree with <code>entries</code> synthetic PDB
+	 * entries; see {@link SyntheticDistanceDataGenerator} for what they look
+	 * like.
+	 */
+	public static DistanceDataTree makeTree(int entries) {
+		DistanceDataTree dataTree = new SyntheticDistanceDataGenerator(SEED)
+				.generateTree(0, entries);
+
+		dataTree.add("HEM", Element.Fe, "FE", "HIS", Element.N, "N",
+				new DistanceResult(SyntheticDistanceDataGenerator.getPdbID(0), 2.1, 1, 2));
+
+		return dataTree;
+	}
+
+	/**
+	 * Writes a DistanceDataTree out to a new temporary directory structure.
+	 * 
+	 * @return the root of the directory structure
+	 */
+	public static File makeStore(DistanceDataTree dataTree) throws IOException {
+		File root = Files.createTempDirectory("pdbdistances-bench").toFile();
+		DistanceDataTreeBuilderDriver.buildDirFor(dataTree,
+				root.getAbsolutePath() + File.separator, "benchmark");
+		return root;
+	}
+
+	/**
+	 * Makes the serialized form of <code>count</code> distance results.
+	 */
+	public static String[] makeSerializedResults(int count) {
+		Random random = new Random(SEED);
+		String[] lines = new String[count];
+
+		for (int i = 0; i < count; i++) {
+			lines[i] = new DistanceResult(SyntheticDistanceDataGenerator.getPdbID(random.nextInt(100000)),
+					5.0 * random.nextDouble(), random.nextInt(20000),
+					random.nextInt(20000)).toSerializedForm();
+		}
+
+		return lines;
+	}
+
+	/**
+	 * Makes a protein-like cloud of atoms: <code>residues</code> residues,
+	 * <code>ligands</code> ligands and <code>waters</code> water molecules
+	 * scattered at roughly the atom density of a real protein.
+	 */
+	public static Structureish makeAtoms(int residues, int ligands, int waters) {
+		Random random = new Random(SEED);
+		Structureish s = new Structureish();
+
+		int totalAtoms = residues * RESIDUE_ATOMS.length + ligands * 8 + waters;
+		// About one heavy atom per 12 cubic angstroms, like a folded protein.
+		double side = Math.cbrt(totalAtoms * 12.0);
+		int serial = 1;
+
+		for (int r = 0; r < residues; r++) {
+			Group g = new AminoAcidImpl();
+			g.setPDBName(RESIDUES[r % RESIDUES.length]);
+			for (int a = 0; a < RESIDUE_ATOMS.length; a++) {
+				s.atoms.add(makeAtom(g, RESIDUE_ATOMS[a], RESIDUE_ELEMENTS[a],
+						serial++, random, side));
+			}
+		}
+
+		for (int l = 0; l < ligands; l++) {
+			int ligand = l % LIGANDS.length;
+			Group g = new HetatomImpl();
+			g.setPDBName(LIGANDS[ligand]);
+			for (int a = 0; a < LIGAND_ATOMS[ligand].length; a++) {
+				s.atoms.add(makeAtom(g, LIGAND_ATOMS[ligand][a],
+						LIGAND_ELEMENTS[ligand][a], serial++, random, side));
+			}
+			s.ligands.add(g);
+		}
+
+		for (int w = 0; w < waters; w++) {
+			Group g = new HetatomImpl();
+			g.setPDBName("HOH");
+			s.atoms.add(makeAtom(g, "O", Element.O, serial++, random, side));
+		}
+
+		return s;
+	}
+
+	/**
+	 * The atoms and ligands of a fake structure, in the form
+	 * {@link com.ulyssecarion.pdb.distances.precalculations.LigandDistanceDataTreeBuilder#addContacts}
+	 * takes them.
+	 */
+	public static class Structureish {
+		public final List<Atom> atoms = new ArrayList<>();
+		public final List<Group> ligands = new ArrayList<>();
+	}
+
+	/**
+	 * Deletes a directory and everything in it.
+	 */
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+
+	private static Atom makeAtom(Group g, String name, Element element,
+			int serial, Random random, double side) {
+		Atom atom = new AtomImpl();
+		atom.setName(name);
+		atom.setFullName(" " + name + " ");
+		atom.setElement(element);
+		atom.setPDBserial(serial);
+		atom.setX(side * random.nextDouble());
+		atom.setY(side * random.nextDouble());
+		atom.setZ(side * random.nextDouble());
+		g.addAtom(atom);
+		atom.setGroup(g);
+		return atom;
+	}
+}
@@ -0,0 +1,93 @@
+package com.ulyssecarion.pdb.distances.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ulyssecarion.pdb.distances.DistanceDataTree;
+import com.ulyssecarion.pdb.distances.serialization.DistanceBlockCodec;
+
+/**
+ * Saves and loads a block of entries with Java serialization and with
+ * {@link DistanceBlockCodec}, which is what the precalculations spend their
+ * time on between building blocks and writing out the directory structure.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlockCodecBenchmark {
+	@Param({ "java", "block" })
+	public String codec;
+
+	@Param({ "200" })
+	public int entries;
+
+	private DistanceDataTree dataTree;
+	private File saved;
+	private File scratch;
+
+	@Setup
+	public void setUp() throws IOException {
+		dataTree = BenchmarkFixtures.makeTree(entries);
+		saved = File.createTempFile("block-benchmark", ".saved");
+		scratch = File.createTempFile("block-benchmark", ".scratch");
+		save(dataTree, saved);
+	}
+
+	@TearDown
+	public void tearDown() {
+		saved.delete();
+		scratch.delete();
+	}
+
+	@Benchmark
+	public long write() throws IOException {
+		save(dataTree, scratch);
+		return scratch.length();
+	}
+
+	@Benchmark
+	public DistanceDataTree read() throws IOException, ClassNotFoundException {
+		if ("block".equals(codec))
+			return DistanceBlockCodec.read(saved);
+
+		try (ObjectInputStream in = new ObjectInputStream(
+				new BufferedInputStream(new FileInputStream(saved)))) {
+			return (DistanceDataTree) in.readObject();
+		}
+	}
+
+	private void save(DistanceDataTree tree, File file) throws IOException {
+		if ("block".equals(codec)) {
+			DistanceBlockCodec.write(tree, file);
+			return;
+		}
+
+		try (ObjectOutputStream out = new ObjectOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeObject(tree);
+		}
+	}
+}
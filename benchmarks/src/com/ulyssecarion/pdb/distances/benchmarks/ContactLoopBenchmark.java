@@ -0,0 +1,86 @@
+package com.ulyssecarion.pdb.distances.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.biojava.bio.structure.Atom;
+import org.biojava.bio.structure.Calc;
+import org.biojava.bio.structure.Group;
+import org.biojava.bio.structure.StructureException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ulyssecarion.pdb.distances.DistanceDataTree;
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.benchmarks.BenchmarkFixtures.Structureish;
+import com.ulyssecarion.pdb.distances.precalculations.ContactKernel;
+import com.ulyssecarion.pdb.distances.precalculations.LigandDistanceDataTreeBuilder;
+
+/**
+ * Measures the ligand contact loop of {@link LigandDistanceDataTreeBuilder}
+ * on a fake structure, without any of the cost of loading a real one.
+ * <p>
+ * {@link #objectLoop()} is the loop the builder used before
+ * {@link ContactKernel}, which compared every pair of BioJava atoms with
+ * {@link Calc#getDistance(Atom, Atom)}; it is kept as a baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContactLoopBenchmark {
+	@Param({ "300", "3000" })
+	public int residues;
+
+	private Structureish structure;
+
+	@Setup
+	public void setUp() {
+		structure = BenchmarkFixtures.makeAtoms(residues, residues / 50 + 1,
+				residues);
+	}
+
+	@Benchmark
+	public DistanceDataTree addContacts() {
+		DistanceDataTree dataTree = new DistanceDataTree();
+		LigandDistanceDataTreeBuilder.addContacts(dataTree, "1BEN",
+				structure.atoms, structure.ligands);
+		return dataTree;
+	}
+
+	@Benchmark
+	public DistanceDataTree objectLoop() throws StructureException {
+		DistanceDataTree dataTree = new DistanceDataTree();
+		List<Atom> atoms = structure.atoms;
+		List<Group> ligands = structure.ligands;
+
+		for (Atom a : atoms) {
+			if (ligands.contains(a.getGroup())) {
+				for (Atom b : atoms) {
+					double distance = Calc.getDistance(a, b);
+
+					if (a.getGroup() != b.getGroup()
+							&& !b.getGroup().isWater()
+							&& distance < LigandDistanceDataTreeBuilder.MAX_DISTANCE) {
+						dataTree.add(a, b, new DistanceResult("1BEN", distance,
+								a, b));
+					}
+				}
+			}
+		}
+
+		return dataTree;
+	}
+}
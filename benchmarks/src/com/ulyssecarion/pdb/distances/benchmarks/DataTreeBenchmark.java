@@ -0,0 +1,70 @@
+package com.ulyssecarion.pdb.distances.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.biojava.bio.structure.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ulyssecarion.pdb.distances.DistanceDataTree;
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.precalculations.SyntheticDistanceDataGenerator;
+
+/**
+ * Measures {@link DistanceDataTree#add} into an already-populated tree, and
+ * {@link DistanceDataTree#join} of two trees the size of a builder block.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DataTreeBenchmark {
+	private DistanceDataTree populated;
+	private DistanceResult result;
+
+	@Setup
+	public void setUp() {
+		populated = BenchmarkFixtures.makeTree(500);
+		result = new DistanceResult("1STP", 3.2, 10, 20);
+	}
+
+	@Benchmark
+	public DistanceDataTree add() {
+		populated.add("HEM", Element.Fe, "FE", "HIS", Element.N, "N", result);
+		return populated;
+	}
+
+	/**
+	 * Two fresh trees for every join, since joining mutates the receiver.
+	 */
+	@State(Scope.Thread)
+	public static class JoinState {
+		private DistanceDataTree left;
+		private DistanceDataTree right;
+
+		@Setup(Level.Invocation)
+		public void setUp() {
+			left = BenchmarkFixtures.makeTree(20);
+			right = new SyntheticDistanceDataGenerator(BenchmarkFixtures.SEED)
+					.generateTree(20, 20);
+		}
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public DistanceDataTree join(JoinState state) {
+		state.left.join(state.right);
+		return state.left;
+	}
+}
@@ -0,0 +1,81 @@
+package com.ulyssecarion.pdb.distances.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.biojava.bio.structure.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ulyssecarion.pdb.morgan.graph.GraphDriver.Atom;
+import com.ulyssecarion.pdb.morgan.graph.GraphDriver.Bond;
+import com.ulyssecarion.pdb.morgan.graph.Morgan;
+import com.ulyssecarion.pdb.morgan.graph.MorganGraph;
+
+/**
+ * Measures {@link Morgan#morganify(List)}, which flattens its atoms into a
+ * {@link MorganGraph} every time, against running a {@link MorganGraph} that
+ * was already built. The molecule is a random tree with a few extra bonds to
+ * close rings.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MorganBenchmark {
+	private static final Element[] ELEMENTS = { Element.C, Element.C,
+			Element.C, Element.N, Element.O, Element.S };
+
+	@Param({ "20", "150" })
+	public int atoms;
+
+	private List<Atom> graph;
+	private MorganGraph morganGraph;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(BenchmarkFixtures.SEED);
+		graph = new ArrayList<Atom>();
+
+		for (int i = 0; i < atoms; i++) {
+			graph.add(new Atom(ELEMENTS[random.nextInt(ELEMENTS.length)]));
+			if (i > 0)
+				new Bond(graph.get(i), graph.get(random.nextInt(i)),
+						1 + random.nextInt(2)).addSelfToAtoms();
+		}
+
+		for (int i = 0; i < atoms / 6; i++) {
+			int a = random.nextInt(atoms);
+			int b = random.nextInt(atoms);
+			if (a != b)
+				new Bond(graph.get(a), graph.get(b), 1).addSelfToAtoms();
+		}
+
+		morganGraph = MorganGraph.of(graph);
+	}
+
+	@Benchmark
+	public List<Atom> morganifyAtoms() {
+		Morgan.morganify(graph);
+		return graph;
+	}
+
+	@Benchmark
+	public MorganGraph morganifyGraph() {
+		morganGraph.morganify();
+		return morganGraph;
+	}
+}
@@ -0,0 +1,46 @@
+package com.ulyssecarion.pdb.distances.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.ulyssecarion.pdb.distances.DistanceResult;
+
+/**
+ * Measures {@link DistanceResult#parseSerializedResult(String)}, which runs
+ * once for every line of every leaf a directory search reads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+	private static final int LINES = 4096;
+
+	private String[] lines;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		lines = BenchmarkFixtures.makeSerializedResults(LINES);
+		next = 0;
+	}
+
+	@Benchmark
+	public void parseSerializedResult(Blackhole bh) {
+		bh.consume(DistanceResult.parseSerializedResult(lines[next]));
+		next = (next + 1) & (LINES - 1);
+	}
+}
@@ -0,0 +1,127 @@
+package com.ulyssecarion.pdb.distances.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two JMH result files (written with <code>-rf csv</code>) and exits
+ * with status 1 if any benchmark got slower by more than a threshold. Use it
+ * to gate a deploy on the benchmarks:
+ * 
+ * <pre>
+ * java -jar target/benchmarks.jar -rf csv -rff current.csv
+ * java -cp target/benchmarks.jar com.ulyssecarion.pdb.distances.benchmarks.RegressionGate baseline.csv current.csv 0.10
+ * </pre>
+ * 
+ * Benchmarks are matched by name and parameters. For throughput modes a lower
+ * score is a regression; for every other mode a higher score is.
+ */
+public class RegressionGate {
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: RegressionGate baseline.csv current.csv "
+					+ "[threshold, default 0.10]");
+			System.exit(2);
+		}
+
+		double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 0.10;
+
+		Map<String, double[]> baseline = readScores(args[0]);
+		Map<String, double[]> current = readScores(args[1]);
+
+		int regressions = 0;
+		for (Map.Entry<String, double[]> entry : current.entrySet()) {
+			double[] before = baseline.get(entry.getKey());
+			if (before == null) {
+				System.out.println("NEW        " + entry.getKey());
+				continue;
+			}
+
+			double[] after = entry.getValue();
+			boolean higherIsBetter = after[1] > 0;
+			double change = (after[0] - before[0]) / before[0];
+			double slowdown = higherIsBetter ? -change : change;
+
+			String status = slowdown > threshold ? "REGRESSION" : "ok        ";
+			if (slowdown > threshold)
+				regressions++;
+
+			System.out.println(String.format("%s %s: %.3f -> %.3f (%+.1f%%)",
+					status, entry.getKey(), before[0], after[0], change * 100));
+		}
+
+		if (regressions > 0) {
+			System.out.println(regressions + " benchmark(s) regressed by more "
+					+ "than " + (threshold * 100) + "%.");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Reads a JMH CSV result file into a map from "benchmark [params]" to
+	 * {score, 1 if higher is better else 0}.
+	 */
+	private static Map<String, double[]> readScores(String path)
+			throws IOException {
+		Map<String, double[]> scores = new LinkedHashMap<>();
+		BufferedReader br = new BufferedReader(new FileReader(path));
+
+		List<String> header = splitCsv(br.readLine());
+		int benchmark = header.indexOf("Benchmark");
+		int mode = header.indexOf("Mode");
+		int score = header.indexOf("Score");
+
+		String line;
+		while ((line = br.readLine()) != null) {
+			List<String> fields = splitCsv(line);
+
+			StringBuilder key = new StringBuilder(fields.get(benchmark));
+			for (int i = 0; i < header.size(); i++) {
+				if (header.get(i).startsWith("Param: ")
+						&& !fields.get(i).isEmpty()) {
+					key.append(' ').append(header.get(i).substring(7))
+							.append('=').append(fields.get(i));
+				}
+			}
+
+			boolean higherIsBetter = "thrpt".equals(fields.get(mode));
+			scores.put(key.toString(), new double[] {
+					Double.parseDouble(fields.get(score)),
+					higherIsBetter ? 1 : 0 });
+		}
+
+		br.close();
+		return scores;
+	}
+
+	private static List<String> splitCsv(String line) {
+		List<String> fields = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else {
+					quoted = !quoted;
+				}
+			} else if (c == ',' && !quoted) {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+
+		fields.add(field.toString());
+		return fields;
+	}
+}
@@ -0,0 +1,71 @@
+package com.ulyssecarion.pdb.distances.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ulyssecarion.pdb.distances.DistanceDataTree;
+import com.ulyssecarion.pdb.distances.DistanceDataTreeDirSearcher;
+import com.ulyssecarion.pdb.distances.DistanceDataTreeSearcher;
+import com.ulyssecarion.pdb.distances.DistanceQuery;
+import com.ulyssecarion.pdb.distances.DistanceResult;
+
+/**
+ * Measures {@link DistanceDataTreeSearcher#search} and
+ * {@link DistanceDataTreeDirSearcher#search} for a fully-bound query (one leaf)
+ * and a query binding only the origin group (many leaves).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+	@Param({ "bound", "wildcard" })
+	public String shape;
+
+	@Param({ "200" })
+	public int entries;
+
+	private DistanceDataTree dataTree;
+	private File store;
+	private DistanceQuery query;
+
+	@Setup
+	public void setUp() throws IOException {
+		dataTree = BenchmarkFixtures.makeTree(entries);
+		store = BenchmarkFixtures.makeStore(dataTree);
+		query = "bound".equals(shape) ? BenchmarkFixtures.BOUND_QUERY
+				: BenchmarkFixtures.WILDCARD_QUERY;
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkFixtures.delete(store);
+	}
+
+	@Benchmark
+	public List<DistanceResult> treeSearch() {
+		return DistanceDataTreeSearcher.search(dataTree, query);
+	}
+
+	@Benchmark
+	public List<DistanceResult> dirSearch() {
+		return DistanceDataTreeDirSearcher.search(store, query);
+	}
+}
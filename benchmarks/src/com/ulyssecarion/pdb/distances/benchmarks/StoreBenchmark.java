@@ -0,0 +1,91 @@
+package com.ulyssecarion.pdb.distances.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ulyssecarion.pdb.distances.DistanceQuery;
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.store.DistanceStore;
+import com.ulyssecarion.pdb.distances.store.DistanceStores;
+import com.ulyssecarion.pdb.distances.store.PackedSegmentWriter;
+import com.ulyssecarion.pdb.distances.store.QueryExecutor;
+
+/**
+ * Runs the same queries against every {@link DistanceStore} backend, all
+ * holding the same rows, so that their costs can be compared directly.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StoreBenchmark {
+	@Param({ "dir", "packed", "mmap", "memory" })
+	public String backend;
+
+	@Param({ "bound", "wildcard" })
+	public String shape;
+
+	@Param({ "200" })
+	public int entries;
+
+	private File dir;
+	private File segment;
+	private DistanceStore store;
+	private DistanceQuery query;
+
+	@Setup
+	public void setUp() throws IOException {
+		dir = BenchmarkFixtures.makeStore(BenchmarkFixtures.makeTree(entries));
+		segment = File.createTempFile("store-benchmark", ".seg");
+
+		try (DistanceStore source = DistanceStores.open(dir.getPath())) {
+			PackedSegmentWriter.write(source, segment);
+		}
+
+		switch (backend) {
+		case "packed":
+			store = DistanceStores.open("packed:" + segment.getPath());
+			break;
+		case "mmap":
+			store = DistanceStores.open("mmap:" + segment.getPath());
+			break;
+		case "memory":
+			store = DistanceStores.open("memory:" + dir.getPath());
+			break;
+		default:
+			store = DistanceStores.open(dir.getPath());
+		}
+
+		query = "bound".equals(shape) ? BenchmarkFixtures.BOUND_QUERY
+				: BenchmarkFixtures.WILDCARD_QUERY;
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		store.close();
+		BenchmarkFixtures.delete(dir);
+		segment.delete();
+	}
+
+	@Benchmark
+	public List<DistanceResult> search() {
+		return QueryExecutor.search(store, query);
+	}
+}
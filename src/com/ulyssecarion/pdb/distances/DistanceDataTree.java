@@ -12,6 +12,9 @@ import java.util.concurrent.ConcurrentHashMap;
 import org.biojava.bio.structure.Atom;
 import org.biojava.bio.structure.Element;
 
+import com.ulyssecarion.pdb.distances.serialization.NameInterners;
+import com.ulyssecarion.pdb.distances.serialization.StringDictionary;
+
 // This lets you go in the following order:
 // Origin Element -->
 // Origin Atom Name -->
@@ -56,10 +59,21 @@ public class DistanceDataTree implements Serializable {
 		return DistanceDataTreeSearcher.search(this, query);
 	}
 
+	/**
+	 * Adds a result under the names of its atoms. The names are interned in
+	 * the {@link NameInterners}, so that every tree shares one instance of
+	 * each.
+	 */
 	public void add(Atom origin, Atom target, DistanceResult dr) {
-		add(origin.getGroup().getPDBName().trim(), origin.getElement(), origin
-				.getName().trim(), target.getGroup().getPDBName().trim(),
-				target.getElement(), target.getName().trim(), dr);
+		StringDictionary components = NameInterners.getComponents();
+		StringDictionary atomNames = NameInterners.getAtomNames();
+
+		add(components.intern(origin.getGroup().getPDBName().trim()),
+				origin.getElement(),
+				atomNames.intern(origin.getName().trim()),
+				components.intern(target.getGroup().getPDBName().trim()),
+				target.getElement(), atomNames.intern(target.getName().trim()),
+				dr);
 	}
 
 	public void add(String originGroup, Element originElement,
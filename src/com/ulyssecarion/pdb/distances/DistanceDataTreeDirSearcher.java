@@ -1,13 +1,30 @@
 package com.ulyssecarion.pdb.distances;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.biojava.bio.structure.Element;
 
 import com.ulyssecarion.pdb.distances.DistanceQuery.DistanceQueryBuilder;
+import com.ulyssecarion.pdb.distances.bitmap.EntryBitmap;
+import com.ulyssecarion.pdb.distances.metrics.QueryMetrics;
+import com.ulyssecarion.pdb.distances.metrics.QueryStatistics;
 import com.ulyssecarion.pdb.distances.serialization.DistanceDataTreeSerializer;
+import com.ulyssecarion.pdb.distances.serialization.EntryIndex;
+import com.ulyssecarion.pdb.distances.serialization.LeafBitmaps;
+import com.ulyssecarion.pdb.distances.serialization.LeafCache;
+import com.ulyssecarion.pdb.distances.serialization.LeafSummaries;
+import com.ulyssecarion.pdb.distances.serialization.StringDictionary;
+import com.ulyssecarion.pdb.distances.store.DirectoryStore;
+import com.ulyssecarion.pdb.distances.store.DistanceStore;
+import com.ulyssecarion.pdb.distances.store.DistanceStores;
+import com.ulyssecarion.pdb.distances.store.QueryExecutor;
+import com.ulyssecarion.pdb.distances.summary.ApproximateAnswer;
 
 /**
  * Use this class to search through a directory structure for getting results
@@ -37,15 +54,51 @@ import com.ulyssecarion.pdb.distances.serialization.DistanceDataTreeSerializer;
  * 					TargetElement /
  * 						TargetAtomName.ser
  * </pre>
-
+ * 
+ * If the distance query is restricted to a single PDB entry, the per-entry
+ * index (see {@link EntryIndex}) is used to go straight to the few leaves that
+ * entry has results in. If it is restricted to a set of entries, leaves whose
+ * entry bitmap (see {@link LeafBitmaps}) has none of those entries are skipped
+ * without being opened.
+ * <p>
+ * The searching itself is done by the {@link QueryExecutor} on a
+ * {@link DirectoryStore}; this class is kept as a shortcut for the common
+ * case of searching a directory. One store is kept for each directory
+ * structure searched, so what it finds out about the directory structure
+ * when it is made (which indexes it has) is only found out once. To search
+ * other kinds of stores, use those classes directly.
  * 
  * @author Ulysse Carion
  */
 public class DistanceDataTreeDirSearcher {
+	private static final ConcurrentMap<File, DirectoryStore> stores = new ConcurrentHashMap<>();
+
+	/**
+	 * Sets the cache that parsed leaves are kept in between searches. There is
+	 * no cache by default.
+	 * 
+	 * @param cache
+	 *            the cache to use, or null to always read leaves from disk
+	 * @see DistanceStores#setLeafCache(LeafCache)
+	 */
+	public static void setLeafCache(LeafCache cache) {
+		DistanceStores.setLeafCache(cache);
+	}
+
+	/**
+	 * @return the cache that parsed leaves are kept in, or null if there is
+	 *         none
+	 */
+	public static LeafCache getLeafCache() {
+		return DistanceStores.getLeafCache();
+	}
+
 	/**
 	 * Searches through the directory structure for distance results matching a
 	 * distance query. Searching is done starting from
-	 * {@link DistanceDataTreeSerializer#DIR_OUTPUT_FOLDER}.
+	 * {@link DistanceStores#getDefaultRoot()}, which is
+	 * {@link DistanceDataTreeSerializer#DIR_OUTPUT_FOLDER} unless configured
+	 * otherwise.
 	 * <p>
 	 * See the javadocs for this class for implementation details.
 	 * 
@@ -54,51 +107,170 @@ public class DistanceDataTreeDirSearcher {
 	 * @return a list of all matching distance results
 	 */
 	public static List<DistanceResult> search(DistanceQuery q) {
-		List<DistanceResult> results = new ArrayList<>();
+		return search(DistanceStores.getDefaultRoot(), q);
+	}
+
+	/**
+	 * Works like {@link #search(DistanceQuery)}, but searches through the
+	 * directory structure rooted at <code>basefile</code> instead.
+	 * 
+	 * @param basefile
+	 *            the root of the directory structure
+	 * @param q
+	 *            the distance query to find matches for
+	 * @return a list of all matching distance results
+	 */
+	public static List<DistanceResult> search(File basefile, DistanceQuery q) {
+		return search(basefile, q, (QueryStatistics) null);
+	}
+
+	/**
+	 * Works like {@link #search(File, DistanceQuery)}, but also fills in
+	 * execution statistics for the query.
+	 * 
+	 * @param basefile
+	 *            the root of the directory structure
+	 * @param q
+	 *            the distance query to find matches for
+	 * @param stats
+	 *            filled in with what the query had to read
+	 * @return a list of all matching distance results
+	 */
+	public static List<DistanceResult> search(File basefile, DistanceQuery q,
+			QueryStatistics stats) {
+		return QueryExecutor.search(getStore(basefile), q, stats);
+	}
+
+	/**
+	 * Searches through the directory structure rooted at <code>basefile</code>
+	 * and passes every matching distance result to <code>listener</code> as
+	 * soon as the file it is in has been read. Nothing is collected in memory,
+	 * so this is the method to use for queries with very many results.
+	 * 
+	 * @param basefile
+	 *            the root of the directory structure
+	 * @param q
+	 *            the distance query to find matches for
+	 * @param listener
+	 *            receives every matching distance result
+	 */
+	public static void search(File basefile, DistanceQuery q,
+			DistanceResultListener listener) {
+		search(basefile, q, listener, null);
+	}
+
+	/**
+	 * Works like
+	 * {@link #search(File, DistanceQuery, DistanceResultListener)}, but also
+	 * fills in execution statistics for the query. Whether or not statistics
+	 * are asked for, they are added to the JVM-wide {@link QueryMetrics}.
+	 * 
+	 * @param basefile
+	 *            the root of the directory structure
+	 * @param q
+	 *            the distance query to find matches for
+	 * @param listener
+	 *            receives every matching distance result
+	 * @param stats
+	 *            filled in with what the query had to read, or null
+	 */
+	public static void search(File basefile, DistanceQuery q,
+			DistanceResultListener listener, QueryStatistics stats) {
+		QueryExecutor.search(getStore(basefile), q, listener, stats);
+	}
+
+	/**
+	 * Finds the PDB entries that have at least one distance result matching a
+	 * distance query, as a bitmap of dictionary indexes. Entry sets found this
+	 * way can be combined with {@link EntryBitmap#and(EntryBitmap)},
+	 * {@link EntryBitmap#or(EntryBitmap)} and
+	 * {@link EntryBitmap#andNot(EntryBitmap)} to answer questions like
+	 * "entries with contact A but not contact B", and passed back into
+	 * {@link DistanceQueryBuilder#entries(EntryBitmap)}.
+	 * <p>
+	 * If the query does not restrict distances any more than the builder did,
+	 * this is answered from the leaf bitmaps alone without reading a single
+	 * distance result. Otherwise, matching leaves are read as usual.
+	 * 
+	 * @param basefile
+	 *            the root of the directory structure
+	 * @param q
+	 *            the distance query to find matching entries for
+	 * @return the dictionary indexes of the matching entries
+	 */
+	public static EntryBitmap searchEntries(File basefile, DistanceQuery q) {
+		return QueryExecutor.searchEntries(getStore(basefile), q);
+	}
+
+	/**
+	 * Works out about how many results match a distance query and how many
+	 * distinct entries they come from, along with a histogram of their
+	 * distances, from the summaries of the leaves of the directory structure
+	 * (see {@link LeafSummaries}) instead of their results. This is much
+	 * quicker than searching for queries that match many results.
+	 * 
+	 * @param basefile
+	 *            the root of the directory structure
+	 * @param q
+	 *            the distance query to answer
+	 * @return the approximate answer, with bounds on each number
+	 * @see QueryExecutor#approximate(DistanceStore, DistanceQuery,
+	 *      QueryStatistics)
+	 */
+	public static ApproximateAnswer approximate(File basefile, DistanceQuery q) {
+		return QueryExecutor.approximate(getStore(basefile), q, null);
+	}
 
-		File basefile = new File(DistanceDataTreeSerializer.DIR_OUTPUT_FOLDER);
-
-		File[] originGroups = getCandidates(basefile, q.getOriginGroupName());
-
-		for (File originGroup : originGroups) {
-			// System.out.println(originGroup);
-			File[] originElems = getCandidates(originGroup,
-					q.getOriginElement());
-
-			for (File originElem : originElems) {
-				// System.out.println(originElem);
-				File[] originAtoms = getCandidates(originElem,
-						q.getOriginAtomName());
-
-				for (File originAtom : originAtoms) {
-					// System.out.println(originAtom);
-					File[] targetGroups = getCandidates(originAtom,
-							q.getTargetGroupName());
-
-					for (File targetGroup : targetGroups) {
-						// System.out.println(targetGroup);
-						File[] targetElems = getCandidates(targetGroup,
-								q.getTargetElement());
-
-						for (File targetElem : targetElems) {
-							// System.out.println(targetElem);
-							List<DistanceResult> candidates = getDistanceResults(
-									targetElem, q.getTargetAtomName());
-
-							for (DistanceResult dr : candidates) {
-								if (dr.getDistance() >= q.getMinDistance()
-										&& dr.getDistance() <= q
-												.getMaxDistance()) {
-									results.add(dr);
-								}
-							}
-						}
-					}
-				}
-			}
+	/**
+	 * Converts PDB IDs into a bitmap of their indexes in the PDB ID dictionary
+	 * of a directory structure, for use with
+	 * {@link DistanceQueryBuilder#entries(EntryBitmap)}. PDB IDs that have no
+	 * results at all in the directory structure are left out. The bitmap is
+	 * tied to that dictionary (see {@link EntryBitmap#getDictionary()}).
+	 * 
+	 * @param basefile
+	 *            the root of the directory structure
+	 * @param pdbIDs
+	 *            the PDB IDs to convert
+	 * @return a bitmap of the PDB IDs' dictionary indexes
+	 */
+	public static EntryBitmap getEntryBitmap(File basefile,
+			Collection<String> pdbIDs) {
+		StringDictionary dictionary = getStore(basefile).getPdbIDs();
+		EntryBitmap bitmap = new EntryBitmap().withDictionary(dictionary);
+
+		for (String pdbID : pdbIDs) {
+			int index = dictionary.indexOf(pdbID);
+			if (index != -1)
+				bitmap.add(index);
 		}
 
-		return results;
+		return bitmap;
+	}
+
+	/**
+	 * The reverse of {@link #getEntryBitmap(File, Collection)}. A bitmap tied
+	 * to a dictionary is read with that dictionary, whatever
+	 * <code>basefile</code> is.
+	 * 
+	 * @param basefile
+	 *            the root of the directory structure
+	 * @param entries
+	 *            a bitmap of dictionary indexes
+	 * @return the PDB IDs in the bitmap
+	 */
+	public static List<String> getPdbIDs(File basefile, EntryBitmap entries) {
+		StringDictionary dictionary = entries.getDictionary() != null ? entries
+				.getDictionary() : getStore(basefile).getPdbIDs();
+		List<String> pdbIDs = new ArrayList<>();
+
+		for (int index : entries.toArray()) {
+			// a build still running may not have saved its newest IDs yet
+			if (index < dictionary.size())
+				pdbIDs.add(dictionary.get(index));
+		}
+
+		return pdbIDs;
 	}
 
 	public static void main(String[] args) {
@@ -107,8 +279,10 @@ public class DistanceDataTreeDirSearcher {
 				.build();
 		System.out.println(q);
 
+		QueryStatistics stats = new QueryStatistics();
 		long start = System.nanoTime();
-		List<DistanceResult> r = search(q);
+		List<DistanceResult> r = search(DistanceStores.getDefaultRoot(), q,
+				stats);
 		long stop = System.nanoTime();
 
 		for (DistanceResult dr : r)
@@ -123,6 +297,7 @@ public class DistanceDataTreeDirSearcher {
 		System.out.println("Results: " + r.size());
 		System.out.println("PDB IDs: " + pdbIds.size());
 		System.out.println("Found in: " + (stop - start) / 1_000_000_000.0);
+		System.out.println(stats);
 	}
 
 	/**
@@ -133,6 +308,9 @@ public class DistanceDataTreeDirSearcher {
 	 * <p>
 	 * This method takes an Object because it needs to work for both Strings and
 	 * Elements.
+	 * <p>
+	 * Hidden files (whose names start with a '.') are never returned, because
+	 * that is where indexes are kept.
 	 * 
 	 * @param file
 	 *            the current file
@@ -140,17 +318,24 @@ public class DistanceDataTreeDirSearcher {
 	 *            the distance query parameter that decides where to search to
 	 *            next
 	 * @return the list of subfiles to search through next
+	 * @deprecated searches walk a {@link DistanceStore} instead; use
+	 *             {@link DirectoryStore#getKeys(String[])} and
+	 *             {@link DirectoryStore#hasKey(String[], String)}
 	 */
+	@Deprecated
 	public static File[] getCandidates(File file, Object parameter) {
+		DirectoryStore store = new DirectoryStore(file, null);
+		String[] here = new String[0];
+
 		if (parameter == null) {
-			return file.listFiles();
+			List<File> files = new ArrayList<>();
+			for (String key : store.getKeys(here))
+				files.add(new File(file, key));
+			return files.toArray(new File[files.size()]);
 		}
 
-		File specificTarget = new File(file.getAbsolutePath() + File.separator
-				+ parameter.toString());
-
-		if (specificTarget.exists())
-			return new File[] { specificTarget };
+		if (store.hasKey(here, parameter.toString()))
+			return new File[] { new File(file, parameter.toString()) };
 
 		return new File[] {};
 	}
@@ -164,20 +349,51 @@ public class DistanceDataTreeDirSearcher {
 	 *            the name of the target atom, or null if you want to match any
 	 *            target atom name
 	 * @return a list of distance results for your query
+	 * @deprecated searches read leaves through a {@link DistanceStore}
+	 *             instead; use {@link QueryExecutor} or
+	 *             {@link DirectoryStore#getResults(String[], QueryStatistics)}
 	 */
+	@Deprecated
 	public static List<DistanceResult> getDistanceResults(File file,
 			String parameter) {
 		if (parameter != null)
 			parameter += DistanceDataTreeSerializer.EXTENSION;
 
 		List<DistanceResult> results = new ArrayList<>();
-		File[] candidateFileLocations = getCandidates(file, parameter);
 
-		for (File candidateLocation : candidateFileLocations) {
+		for (File candidate : getCandidates(file, parameter))
 			results.addAll(DistanceDataTreeSerializer
-					.deserializeResults(candidateLocation));
-		}
+					.deserializeResults(candidate));
 
 		return results;
 	}
+
+	/**
+	 * Gets the store of a directory structure, making it the first time the
+	 * directory structure is searched or after the leaf cache was changed.
+	 */
+	private static DistanceStore getStore(File basefile) {
+		File root = getCanonicalFile(basefile);
+		LeafCache cache = DistanceStores.getLeafCache();
+		DirectoryStore store = stores.get(root);
+
+		if (store != null && store.getLeafCache() == cache)
+			return store;
+
+		DirectoryStore created = new DirectoryStore(root, cache);
+
+		if (store == null ? stores.putIfAbsent(root, created) != null
+				: !stores.replace(root, store, created))
+			return stores.get(root);
+
+		return created;
+	}
+
+	private static File getCanonicalFile(File file) {
+		try {
+			return file.getCanonicalFile();
+		} catch (IOException e) {
+			return file.getAbsoluteFile();
+		}
+	}
 }
@@ -1,13 +1,9 @@
 package com.ulyssecarion.pdb.distances;
 
-import java.util.ArrayList;
 import java.util.List;
 
-import com.ulyssecarion.pdb.distances.DistanceDataTree.OriginAtomNameTree;
-import com.ulyssecarion.pdb.distances.DistanceDataTree.OriginElementTree;
-import com.ulyssecarion.pdb.distances.DistanceDataTree.OriginGroupTree;
-import com.ulyssecarion.pdb.distances.DistanceDataTree.TargetElementTree;
-import com.ulyssecarion.pdb.distances.DistanceDataTree.TargetGroupTree;
+import com.ulyssecarion.pdb.distances.store.InMemoryStore;
+import com.ulyssecarion.pdb.distances.store.QueryExecutor;
 
 public class DistanceDataTreeSearcher {
 	/**
@@ -18,6 +14,9 @@ public class DistanceDataTreeSearcher {
 	 * test to see if a DistanceDataTree was created correctly. Use
 	 * {@link DistanceDataTreeDirSearcher} instead; it searches through
 	 * directory-stored distance data.
+	 * <p>
+	 * This is a shortcut for searching an {@link InMemoryStore} wrapping the
+	 * tree with the {@link QueryExecutor}.
 	 * 
 	 * @param dataTree
 	 *            the DistanceDataTree to search through.
@@ -27,32 +26,6 @@ public class DistanceDataTreeSearcher {
 	 */
 	public static List<DistanceResult> search(DistanceDataTree dataTree,
 			DistanceQuery query) {
-		List<DistanceResult> candidates = new ArrayList<>();
-
-		for (OriginGroupTree originGroup : dataTree.get(query
-				.getOriginGroupName())) {
-			for (OriginElementTree originElem : originGroup.get(query
-					.getOriginElement())) {
-				for (OriginAtomNameTree originAtom : originElem.get(query
-						.getOriginAtomName())) {
-					for (TargetGroupTree targetGroup : originAtom.get(query
-							.getTargetGroupName())) {
-						for (TargetElementTree targetElem : targetGroup
-								.get(query.getTargetElement())) {
-							for (DistanceResult dr : targetElem.get(query
-									.getTargetAtomName())) {
-								if (dr.getDistance() >= query.getMinDistance()
-										&& dr.getDistance() <= query
-												.getMaxDistance()) {
-									candidates.add(dr);
-								}
-							}
-						}
-					}
-				}
-			}
-		}
-
-		return candidates;
+		return QueryExecutor.search(new InMemoryStore(dataTree), query);
 	}
 }
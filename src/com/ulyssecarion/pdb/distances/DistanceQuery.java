@@ -1,7 +1,13 @@
 package com.ulyssecarion.pdb.distances;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
 import org.biojava.bio.structure.Element;
 
+import com.ulyssecarion.pdb.distances.bitmap.EntryBitmap;
+
 /**
  * Use this class to specify what kind of distance interaction you're interested
  * in. See
@@ -22,6 +28,9 @@ public class DistanceQuery {
 	private double minDistance;
 	private double maxDistance;
 
+	private String pdbID;
+	private EntryBitmap entries;
+
 	/**
 	 * Constructs a DistanceQuery with the given parameters.<br />
 	 * <b>Note: any argument that is passed as 'null' is considered a wildcard
@@ -48,6 +57,43 @@ public class DistanceQuery {
 			String originAtomName, String targetGroupName,
 			Element targetElement, String targetAtomName, double minDistance,
 			double maxDistance) {
+		this(originGroupName, originElement, originAtomName, targetGroupName,
+				targetElement, targetAtomName, minDistance, maxDistance, null);
+	}
+
+	/**
+	 * Works like
+	 * {@link #DistanceQuery(String, Element, String, String, Element, String, double, double)}
+	 * , but additionally restricts results to a single PDB entry.
+	 * 
+	 * @param pdbID
+	 *            the PDB ID results must come from, or null to match results
+	 *            from any entry
+	 */
+	public DistanceQuery(String originGroupName, Element originElement,
+			String originAtomName, String targetGroupName,
+			Element targetElement, String targetAtomName, double minDistance,
+			double maxDistance, String pdbID) {
+		this(originGroupName, originElement, originAtomName, targetGroupName,
+				targetElement, targetAtomName, minDistance, maxDistance, pdbID,
+				null);
+	}
+
+	/**
+	 * Works like
+	 * {@link #DistanceQuery(String, Element, String, String, Element, String, double, double, String)}
+	 * , but additionally restricts results to a set of PDB entries.
+	 * 
+	 * @param entries
+	 *            the dictionary indexes of the PDB entries results must come
+	 *            from (see
+	 *            {@link DistanceDataTreeDirSearcher#getEntryBitmap(java.io.File, java.util.Collection)}
+	 *            ), or null to match results from any entry
+	 */
+	public DistanceQuery(String originGroupName, Element originElement,
+			String originAtomName, String targetGroupName,
+			Element targetElement, String targetAtomName, double minDistance,
+			double maxDistance, String pdbID, EntryBitmap entries) {
 		this.originGroupName = originGroupName;
 		this.originElement = originElement;
 		this.originAtomName = originAtomName;
@@ -56,6 +102,8 @@ public class DistanceQuery {
 		this.targetAtomName = targetAtomName;
 		this.minDistance = minDistance;
 		this.maxDistance = maxDistance;
+		this.pdbID = pdbID;
+		this.entries = entries;
 	}
 
 	public String getOriginGroupName() {
@@ -90,11 +138,172 @@ public class DistanceQuery {
 		return maxDistance;
 	}
 
+	/**
+	 * @return the PDB ID results must come from, or null if this query is not
+	 *         restricted to a single entry
+	 */
+	public String getPdbID() {
+		return pdbID;
+	}
+
+	/**
+	 * Entry subsets are only understood by directory searches, since they
+	 * refer to the PDB ID dictionary of a directory structure.
+	 * 
+	 * @return the dictionary indexes of the PDB entries results must come
+	 *         from, or null if this query is not restricted to a set of
+	 *         entries
+	 */
+	public EntryBitmap getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Describes which parameters of this query are bound, but not what they
+	 * are bound to. Each of the six levels is shown as a letter if it is bound
+	 * and as '*' if it is a wildcard, origin first, so a query for
+	 * "IOD/I/*&#47;ALA/C/CA" has the shape <code>GE*>GEA</code>. Restrictions
+	 * to entries are added at the end (<code>+pdb</code>,
+	 * <code>+entries</code>).
+	 * <p>
+	 * Queries of the same shape do about the same amount of work, so this is
+	 * what query metrics are grouped by.
+	 * 
+	 * @return the shape of this query
+	 */
+	public String getShape() {
+		return "" + (originGroupName == null ? '*' : 'G')
+				+ (originElement == null ? '*' : 'E')
+				+ (originAtomName == null ? '*' : 'A') + '>'
+				+ (targetGroupName == null ? '*' : 'G')
+				+ (targetElement == null ? '*' : 'E')
+				+ (targetAtomName == null ? '*' : 'A')
+				+ (pdbID == null ? "" : "+pdb")
+				+ (entries == null ? "" : "+entries");
+	}
+
 	public String toString() {
 		return originGroupName + " " + originElement + " " + originAtomName
 				+ " -> " + targetGroupName + " " + targetElement + " "
 				+ targetAtomName + " (" + minDistance + " - " + maxDistance
-				+ ")";
+				+ ")" + (pdbID == null ? "" : " in " + pdbID)
+				+ (entries == null ? "" : " in " + entries.getCardinality()
+						+ " entries");
+	}
+
+	/**
+	 * Converts this query into a URL query string, like
+	 * <code>originGroup=IOD&amp;targetGroup=ALA&amp;maxDistance=4.0</code>.
+	 * Wildcard parameters are left out. You can convert this string back into
+	 * a distance query with {@link #fromQueryString(String)}.
+	 * 
+	 * @return a query-string representation of this distance query
+	 */
+	public String toQueryString() {
+		StringBuilder sb = new StringBuilder();
+
+		appendParameter(sb, "originGroup", originGroupName);
+		appendParameter(sb, "originElement", originElement);
+		appendParameter(sb, "originAtom", originAtomName);
+		appendParameter(sb, "targetGroup", targetGroupName);
+		appendParameter(sb, "targetElement", targetElement);
+		appendParameter(sb, "targetAtom", targetAtomName);
+		appendParameter(sb, "minDistance", minDistance);
+		appendParameter(sb, "maxDistance", maxDistance);
+		appendParameter(sb, "pdbId", pdbID);
+
+		return sb.toString();
+	}
+
+	private static void appendParameter(StringBuilder sb, String name,
+			Object value) {
+		if (value == null)
+			return;
+
+		if (sb.length() > 0)
+			sb.append('&');
+
+		try {
+			sb.append(name).append('=')
+					.append(URLEncoder.encode(value.toString(), "UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Parses a URL query string into a distance query. Parameter names are the
+	 * same as the methods of {@link DistanceQueryBuilder}; any parameter that
+	 * is left out is a wildcard (or, for distances, the builder's default).
+	 * 
+	 * @param queryString
+	 *            the query string, without the leading '?'. May be null or
+	 *            empty.
+	 * @return the distance query described by the query string
+	 * @throws IllegalArgumentException
+	 *             if a parameter is unknown or has an invalid value
+	 * @see #toQueryString()
+	 */
+	public static DistanceQuery fromQueryString(String queryString) {
+		DistanceQueryBuilder builder = new DistanceQueryBuilder();
+
+		if (queryString == null || queryString.isEmpty())
+			return builder.build();
+
+		for (String pair : queryString.split("&")) {
+			if (pair.isEmpty())
+				continue;
+
+			int eq = pair.indexOf('=');
+			String name = eq == -1 ? pair : pair.substring(0, eq);
+			String value = eq == -1 ? "" : decode(pair.substring(eq + 1));
+
+			if (value.isEmpty())
+				continue;
+
+			switch (name) {
+			case "originGroup":
+				builder.originGroup(value);
+				break;
+			case "originElement":
+				builder.originElement(Element.valueOfIgnoreCase(value));
+				break;
+			case "originAtom":
+				builder.originAtom(value);
+				break;
+			case "targetGroup":
+				builder.targetGroup(value);
+				break;
+			case "targetElement":
+				builder.targetElement(Element.valueOfIgnoreCase(value));
+				break;
+			case "targetAtom":
+				builder.targetAtom(value);
+				break;
+			case "minDistance":
+				builder.minDistance(Double.parseDouble(value));
+				break;
+			case "maxDistance":
+				builder.maxDistance(Double.parseDouble(value));
+				break;
+			case "pdbId":
+				builder.pdbID(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown query parameter: "
+						+ name);
+			}
+		}
+
+		return builder.build();
+	}
+
+	private static String decode(String s) {
+		try {
+			return URLDecoder.decode(s, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
 	}
 
 	/**
@@ -115,11 +324,16 @@ public class DistanceQuery {
 		private double minDistance;
 		private double maxDistance;
 
+		private String pdbID;
+		private EntryBitmap entries;
+
 		public DistanceQueryBuilder() {
 			originGroupName = originAtomName = targetGroupName = targetAtomName = null;
 			originElement = targetElement = null;
 			minDistance = 0;
 			maxDistance = 10;
+			pdbID = null;
+			entries = null;
 		}
 
 		public DistanceQueryBuilder originGroup(String originGroupName) {
@@ -162,10 +376,20 @@ public class DistanceQuery {
 			return this;
 		}
 
+		public DistanceQueryBuilder pdbID(String pdbID) {
+			this.pdbID = pdbID;
+			return this;
+		}
+
+		public DistanceQueryBuilder entries(EntryBitmap entries) {
+			this.entries = entries;
+			return this;
+		}
+
 		public DistanceQuery build() {
 			return new DistanceQuery(originGroupName, originElement,
 					originAtomName, targetGroupName, targetElement,
-					targetAtomName, minDistance, maxDistance);
+					targetAtomName, minDistance, maxDistance, pdbID, entries);
 		}
 	}
 }
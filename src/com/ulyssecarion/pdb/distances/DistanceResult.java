@@ -4,9 +4,18 @@ import java.io.Serializable;
 
 import org.biojava.bio.structure.Atom;
 
+import com.ulyssecarion.pdb.distances.serialization.StringDictionary;
+
 /**
  * Reports a match between two atoms, and provides information for finding the
  * origin and target atoms again.
+ * <p>
+ * Results built from an asymmetric unit and its symmetry operators (see
+ * {@link com.ulyssecarion.pdb.distances.precalculations.LigandDistanceDataTreeBuilder#buildSymmetricTreeFor(DistanceDataTree, String, com.ulyssecarion.pdb.distances.metrics.EntryStatistics)}
+ * ) stand for several contacts at once: the result is found once, and its
+ * multiplicity says how many copies of the origin's ligand have it in the
+ * biological assembly. Such results also name the operator that places the
+ * target atom. Other results have a multiplicity of 1 and no operator.
  * 
  * @author Ulysse Carion
  */
@@ -16,6 +25,8 @@ public class DistanceResult implements Serializable {
 	private double distance;
 	private int origin;
 	private int target;
+	private int multiplicity = 1;
+	private String operator;
 
 	public DistanceResult(String pdbID, double distance, int origin, int target) {
 		this.pdbID = pdbID;
@@ -24,6 +35,19 @@ public class DistanceResult implements Serializable {
 		this.target = target;
 	}
 
+	/**
+	 * @param multiplicity
+	 *            how many symmetry copies of the contact there are
+	 * @param operator
+	 *            the ID of the operator applied to the target atom, or null
+	 */
+	public DistanceResult(String pdbID, double distance, int origin,
+			int target, int multiplicity, String operator) {
+		this(pdbID, distance, origin, target);
+		this.multiplicity = multiplicity;
+		this.operator = operator;
+	}
+
 	public DistanceResult(String pdbID, double distance, Atom origin,
 			Atom target) {
 		this(pdbID, distance, origin.getPDBserial(), target.getPDBserial());
@@ -45,23 +69,61 @@ public class DistanceResult implements Serializable {
 		return target;
 	}
 
+	/**
+	 * @return how many symmetry copies of this contact there are; 1 unless the
+	 *         result was built with symmetry operators
+	 */
+	public int getMultiplicity() {
+		return multiplicity;
+	}
+
+	/**
+	 * @return the ID of the symmetry operator applied to the target atom, or
+	 *         null if there is none
+	 */
+	public String getOperator() {
+		return operator;
+	}
+
+	/**
+	 * @return whether this result carries a multiplicity or an operator
+	 */
+	public boolean isTagged() {
+		return multiplicity != 1 || operator != null;
+	}
+
 	@Override
 	public String toString() {
-		return origin + " -> " + target + " @ " + distance + "A (" + pdbID
+		String s = origin + " -> " + target + " @ " + distance + "A (" + pdbID
 				+ ")";
+
+		if (isTagged())
+			s += " x" + multiplicity + (operator == null ? "" : " [" + operator
+					+ "]");
+
+		return s;
 	}
 
 	/**
 	 * Converts this distance result into a string format for saving into a
 	 * file. You can convert this string back into a distance result with
 	 * {@link #parseSerializedResult(String)}.
+	 * <p>
+	 * The multiplicity and operator are only written if the result is
+	 * {@link #isTagged() tagged}, so untagged results look the same as they
+	 * always have.
 	 * 
 	 * @return a string representation of this distance result.
 	 */
 	public String toSerializedForm() {
 		int dist = (int) (distance * 10);
 
-		return pdbID + "~" + dist + "~" + origin + "~" + target;
+		String s = pdbID + "~" + dist + "~" + origin + "~" + target;
+
+		if (isTagged())
+			s += "~" + multiplicity + "~" + (operator == null ? "" : operator);
+
+		return s;
 	}
 
 	/**
@@ -72,13 +134,38 @@ public class DistanceResult implements Serializable {
 	 * @return a distance result from the string passed.
 	 */
 	public static DistanceResult parseSerializedResult(String serializedForm) {
+		return parseSerializedResult(serializedForm, null);
+	}
+
+	/**
+	 * Works like {@link #parseSerializedResult(String)}, but gives the result
+	 * a dictionary's instance of its PDB ID if it has one, so that the results
+	 * of many leaves share their PDB ID strings.
+	 * 
+	 * @param serializedForm
+	 *            the serialized form of the distance result
+	 * @param pdbIDs
+	 *            the PDB ID dictionary of the store the result is read from,
+	 *            which is left alone; or null
+	 * @return a distance result from the string passed.
+	 */
+	public static DistanceResult parseSerializedResult(String serializedForm,
+			StringDictionary pdbIDs) {
 		String[] parts = serializedForm.split("~");
 
-		String pdbID = parts[0];
+		String pdbID = pdbIDs == null ? parts[0] : pdbIDs.canonical(parts[0]);
 		double distance = Integer.parseInt(parts[1]) / 10.0;
 		int origin = Integer.parseInt(parts[2]);
 		int target = Integer.parseInt(parts[3]);
 
+		if (parts.length > 4) {
+			int multiplicity = Integer.parseInt(parts[4]);
+			String operator = parts.length > 5 ? parts[5] : null;
+
+			return new DistanceResult(pdbID, distance, origin, target,
+					multiplicity, operator);
+		}
+
 		return new DistanceResult(pdbID, distance, origin, target);
 	}
 }
@@ -0,0 +1,37 @@
+package com.ulyssecarion.pdb.distances;
+
+import org.biojava.bio.structure.Element;
+
+/**
+ * Receives distance results one at a time as a search finds them, instead of
+ * having them collected into a list. This lets callers stream results out
+ * (over the network, for instance) while the rest of the search is still
+ * running.
+ * <p>
+ * Along with the result itself, the listener is told which of the six levels
+ * of the {@link DistanceDataTree} the result was found under; this matters
+ * when the query that found it had wildcards in it.
+ */
+public interface DistanceResultListener {
+	/**
+	 * Called once for every distance result matching the query being run.
+	 * 
+	 * @param originGroup
+	 *            the group name of the origin atom
+	 * @param originElement
+	 *            the element of the origin atom
+	 * @param originAtomName
+	 *            the name of the origin atom
+	 * @param targetGroup
+	 *            the group name of the target atom
+	 * @param targetElement
+	 *            the element of the target atom
+	 * @param targetAtomName
+	 *            the name of the target atom
+	 * @param dr
+	 *            the matching distance result
+	 */
+	public void resultFound(String originGroup, Element originElement,
+			String originAtomName, String targetGroup, Element targetElement,
+			String targetAtomName, DistanceResult dr);
+}
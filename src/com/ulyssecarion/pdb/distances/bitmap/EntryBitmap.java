@@ -0,0 +1,657 @@
+package com.ulyssecarion.pdb.distances.bitmap;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.ulyssecarion.pdb.distances.serialization.StringDictionary;
+
+/**
+ * A compressed set of non-negative ints, used to store sets of PDB entries by
+ * their index in a
+ * {@link com.ulyssecarion.pdb.distances.serialization.StringDictionary}.
+ * <p>
+ * This follows the layout of "roaring" bitmaps: ints are grouped by their
+ * upper 16 bits, and each group of up to 65536 values is stored in a
+ * container. Sparse containers (4096 values or fewer) are sorted arrays of
+ * the lower 16 bits; dense containers are plain 65536-bit bitsets. So a leaf
+ * holding results from 12 entries takes a few dozen bytes, while a leaf
+ * holding results from most of the PDB takes about 8 KB per 65536 entries.
+ * <p>
+ * Bitmaps can be combined with {@link #and(EntryBitmap)},
+ * {@link #or(EntryBitmap)} and {@link #andNot(EntryBitmap)}, which all return
+ * new bitmaps and leave their arguments alone. Only {@link #add(int)} changes
+ * a bitmap in place. This class is not thread-safe.
+ * <p>
+ * The same entry has a different index in the dictionary of each store, so a
+ * bitmap can be tied to the dictionary its values index into with
+ * {@link #withDictionary(StringDictionary)}; the bitmaps searches give out
+ * always are. A tied bitmap can be moved to another store's dictionary with
+ * {@link #translate(StringDictionary)}, and bitmaps tied to different
+ * dictionaries cannot be combined.
+ */
+public class EntryBitmap {
+	private static final int ARRAY_MAX = 4096;
+	private static final int WORDS = 1024;
+
+	private char[] keys;
+	private Container[] containers;
+	private int size;
+	private StringDictionary dictionary;
+
+	public EntryBitmap() {
+		keys = new char[4];
+		containers = new Container[4];
+		size = 0;
+	}
+
+	/**
+	 * Makes a bitmap holding the given values.
+	 * 
+	 * @param values
+	 *            the values to add, in any order
+	 * @return a new bitmap
+	 */
+	public static EntryBitmap of(int... values) {
+		EntryBitmap bitmap = new EntryBitmap();
+		for (int value : values)
+			bitmap.add(value);
+		return bitmap;
+	}
+
+	/**
+	 * Adds a value to this bitmap.
+	 * 
+	 * @param value
+	 *            the value to add; must not be negative
+	 */
+	public void add(int value) {
+		if (value < 0)
+			throw new IllegalArgumentException("Negative value: " + value);
+
+		char high = (char) (value >>> 16);
+		char low = (char) value;
+		int i = indexOfKey(high);
+
+		if (i >= 0) {
+			containers[i] = containers[i].add(low);
+		} else {
+			i = -i - 1;
+			insert(i, high, new ArrayContainer().add(low));
+		}
+	}
+
+	/**
+	 * @param value
+	 *            the value to look for
+	 * @return true if this bitmap holds the value
+	 */
+	public boolean contains(int value) {
+		if (value < 0)
+			return false;
+
+		int i = indexOfKey((char) (value >>> 16));
+		return i >= 0 && containers[i].contains((char) value);
+	}
+
+	/**
+	 * @return the number of values in this bitmap
+	 */
+	public int getCardinality() {
+		int cardinality = 0;
+		for (int i = 0; i < size; i++)
+			cardinality += containers[i].cardinality();
+		return cardinality;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @param other
+	 *            another bitmap
+	 * @return a new bitmap holding the values that are in both bitmaps
+	 */
+	public EntryBitmap and(EntryBitmap other) {
+		EntryBitmap result = new EntryBitmap()
+				.withDictionary(getCommonDictionary(other));
+		int i = 0, j = 0;
+
+		while (i < size && j < other.size) {
+			if (keys[i] < other.keys[j]) {
+				i++;
+			} else if (keys[i] > other.keys[j]) {
+				j++;
+			} else {
+				Container c = containers[i].and(other.containers[j]);
+				if (c.cardinality() > 0)
+					result.append(keys[i], c);
+				i++;
+				j++;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @param other
+	 *            another bitmap
+	 * @return a new bitmap holding the values that are in either bitmap
+	 */
+	public EntryBitmap or(EntryBitmap other) {
+		EntryBitmap result = new EntryBitmap()
+				.withDictionary(getCommonDictionary(other));
+		int i = 0, j = 0;
+
+		while (i < size || j < other.size) {
+			if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+				result.append(keys[i], containers[i].copy());
+				i++;
+			} else if (i == size || keys[i] > other.keys[j]) {
+				result.append(other.keys[j], other.containers[j].copy());
+				j++;
+			} else {
+				result.append(keys[i], containers[i].or(other.containers[j]));
+				i++;
+				j++;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @param other
+	 *            another bitmap
+	 * @return a new bitmap holding the values that are in this bitmap but not
+	 *         in the other one
+	 */
+	public EntryBitmap andNot(EntryBitmap other) {
+		EntryBitmap result = new EntryBitmap()
+				.withDictionary(getCommonDictionary(other));
+		int j = 0;
+
+		for (int i = 0; i < size; i++) {
+			while (j < other.size && other.keys[j] < keys[i])
+				j++;
+
+			if (j < other.size && other.keys[j] == keys[i]) {
+				Container c = containers[i].andNot(other.containers[j]);
+				if (c.cardinality() > 0)
+					result.append(keys[i], c);
+			} else {
+				result.append(keys[i], containers[i].copy());
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Checks whether two bitmaps have any value in common. This is much
+	 * cheaper than <code>and(other).isEmpty()</code> because it stops at the
+	 * first common value and never builds a new bitmap.
+	 * 
+	 * @param other
+	 *            another bitmap
+	 * @return true if at least one value is in both bitmaps
+	 */
+	public boolean intersects(EntryBitmap other) {
+		int i = 0, j = 0;
+
+		while (i < size && j < other.size) {
+			if (keys[i] < other.keys[j]) {
+				i++;
+			} else if (keys[i] > other.keys[j]) {
+				j++;
+			} else {
+				if (containers[i].intersects(other.containers[j]))
+					return true;
+				i++;
+				j++;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the values in this bitmap, in increasing order
+	 */
+	public int[] toArray() {
+		int[] values = new int[getCardinality()];
+		int pos = 0;
+
+		for (int i = 0; i < size; i++)
+			pos = containers[i].fill(keys[i] << 16, values, pos);
+
+		return values;
+	}
+
+	/**
+	 * Writes this bitmap out in a compact binary form that can be read back
+	 * with {@link #read(DataInput)}.
+	 * 
+	 * @param out
+	 *            where to write to
+	 * @throws IOException
+	 *             if writing fails
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(size);
+
+		for (int i = 0; i < size; i++) {
+			out.writeChar(keys[i]);
+			containers[i].write(out);
+		}
+	}
+
+	/**
+	 * Reads in a bitmap written with {@link #write(DataOutput)}.
+	 * 
+	 * @param in
+	 *            where to read from
+	 * @return the bitmap read
+	 * @throws IOException
+	 *             if reading fails
+	 */
+	public static EntryBitmap read(DataInput in) throws IOException {
+		EntryBitmap bitmap = new EntryBitmap();
+		int count = in.readInt();
+
+		for (int i = 0; i < count; i++) {
+			char key = in.readChar();
+			bitmap.append(key, Container.read(in));
+		}
+
+		return bitmap;
+	}
+
+	/**
+	 * Ties this bitmap to the dictionary its values are indexes in.
+	 * 
+	 * @param dictionary
+	 *            the dictionary, or null if it is not known
+	 * @return this bitmap
+	 */
+	public EntryBitmap withDictionary(StringDictionary dictionary) {
+		this.dictionary = dictionary;
+		return this;
+	}
+
+	/**
+	 * @return the dictionary this bitmap's values are indexes in, or null if
+	 *         it is not known
+	 */
+	public StringDictionary getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * Gets the entries of this bitmap as indexes in another dictionary.
+	 * Entries that dictionary does not have are left out. A bitmap that is not
+	 * tied to any dictionary is assumed to already use the other one.
+	 * 
+	 * @param other
+	 *            the dictionary to use
+	 * @return this bitmap if it already uses the other dictionary, or else a
+	 *         new bitmap tied to it
+	 */
+	public EntryBitmap translate(StringDictionary other) {
+		if (dictionary == null || dictionary == other)
+			return this;
+
+		EntryBitmap result = new EntryBitmap().withDictionary(other);
+
+		for (int value : toArray()) {
+			int index = other.indexOf(dictionary.get(value));
+			if (index != -1)
+				result.add(index);
+		}
+
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof EntryBitmap))
+			return false;
+
+		return Arrays.equals(toArray(), ((EntryBitmap) o).toArray());
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(toArray());
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+
+	private StringDictionary getCommonDictionary(EntryBitmap other) {
+		if (dictionary == null)
+			return other.dictionary;
+
+		if (other.dictionary != null && other.dictionary != dictionary)
+			throw new IllegalArgumentException(
+					"Bitmaps of different dictionaries cannot be combined.");
+
+		return dictionary;
+	}
+
+	private int indexOfKey(char key) {
+		return Arrays.binarySearch(keys, 0, size, key);
+	}
+
+	private void insert(int i, char key, Container container) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			containers = Arrays.copyOf(containers, size * 2);
+		}
+
+		System.arraycopy(keys, i, keys, i + 1, size - i);
+		System.arraycopy(containers, i, containers, i + 1, size - i);
+		keys[i] = key;
+		containers[i] = container;
+		size++;
+	}
+
+	private void append(char key, Container container) {
+		insert(size, key, container);
+	}
+
+	/**
+	 * Holds the lower 16 bits of the values sharing the same upper 16 bits.
+	 */
+	private static abstract class Container {
+		public abstract int cardinality();
+
+		public abstract boolean contains(char value);
+
+		public abstract Container add(char value);
+
+		public abstract Container copy();
+
+		public abstract int fill(int high, int[] dest, int pos);
+
+		public abstract void write(DataOutput out) throws IOException;
+
+		public static Container read(DataInput in) throws IOException {
+			int cardinality = in.readUnsignedShort() + 1;
+
+			if (cardinality <= ARRAY_MAX) {
+				char[] values = new char[cardinality];
+				for (int i = 0; i < cardinality; i++)
+					values[i] = in.readChar();
+				return new ArrayContainer(values, cardinality);
+			}
+
+			long[] words = new long[WORDS];
+			for (int i = 0; i < WORDS; i++)
+				words[i] = in.readLong();
+			return new BitmapContainer(words, cardinality);
+		}
+
+		public Container and(Container other) {
+			if (this instanceof ArrayContainer)
+				return ((ArrayContainer) this).filter(other, true);
+			if (other instanceof ArrayContainer)
+				return ((ArrayContainer) other).filter(this, true);
+
+			return ((BitmapContainer) this).combine((BitmapContainer) other,
+					BitmapContainer.AND);
+		}
+
+		public Container or(Container other) {
+			if (this instanceof ArrayContainer
+					&& other instanceof ArrayContainer)
+				return ((ArrayContainer) this).union((ArrayContainer) other);
+
+			return toBitmap().combine(other.toBitmap(), BitmapContainer.OR);
+		}
+
+		public Container andNot(Container other) {
+			if (this instanceof ArrayContainer)
+				return ((ArrayContainer) this).filter(other, false);
+
+			return ((BitmapContainer) this).combine(other.toBitmap(),
+					BitmapContainer.AND_NOT);
+		}
+
+		public boolean intersects(Container other) {
+			if (this instanceof BitmapContainer
+					&& other instanceof BitmapContainer) {
+				long[] a = ((BitmapContainer) this).words;
+				long[] b = ((BitmapContainer) other).words;
+				for (int i = 0; i < WORDS; i++)
+					if ((a[i] & b[i]) != 0)
+						return true;
+				return false;
+			}
+
+			ArrayContainer array = (ArrayContainer) (this instanceof ArrayContainer ? this
+					: other);
+			Container rest = array == this ? other : this;
+			for (int i = 0; i < array.cardinality; i++)
+				if (rest.contains(array.values[i]))
+					return true;
+			return false;
+		}
+
+		public abstract BitmapContainer toBitmap();
+	}
+
+	private static class ArrayContainer extends Container {
+		private char[] values;
+		private int cardinality;
+
+		public ArrayContainer() {
+			this(new char[4], 0);
+		}
+
+		public ArrayContainer(char[] values, int cardinality) {
+			this.values = values;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		public int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		public boolean contains(char value) {
+			return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+		}
+
+		@Override
+		public Container add(char value) {
+			int i = Arrays.binarySearch(values, 0, cardinality, value);
+			if (i >= 0)
+				return this;
+
+			if (cardinality == ARRAY_MAX)
+				return toBitmap().add(value);
+
+			i = -i - 1;
+			if (cardinality == values.length)
+				values = Arrays.copyOf(values,
+						Math.min(ARRAY_MAX, cardinality * 2));
+
+			System.arraycopy(values, i, values, i + 1, cardinality - i);
+			values[i] = value;
+			cardinality++;
+			return this;
+		}
+
+		@Override
+		public Container copy() {
+			return new ArrayContainer(Arrays.copyOf(values, cardinality),
+					cardinality);
+		}
+
+		@Override
+		public int fill(int high, int[] dest, int pos) {
+			for (int i = 0; i < cardinality; i++)
+				dest[pos++] = high | values[i];
+			return pos;
+		}
+
+		@Override
+		public void write(DataOutput out) throws IOException {
+			out.writeShort(cardinality - 1);
+			for (int i = 0; i < cardinality; i++)
+				out.writeChar(values[i]);
+		}
+
+		/**
+		 * Keeps the values that are (or, if <code>keep</code> is false, are
+		 * not) in another container.
+		 */
+		public ArrayContainer filter(Container other, boolean keep) {
+			char[] result = new char[cardinality];
+			int n = 0;
+
+			for (int i = 0; i < cardinality; i++)
+				if (other.contains(values[i]) == keep)
+					result[n++] = values[i];
+
+			return new ArrayContainer(result, n);
+		}
+
+		public Container union(ArrayContainer other) {
+			char[] result = new char[cardinality + other.cardinality];
+			int i = 0, j = 0, n = 0;
+
+			while (i < cardinality || j < other.cardinality) {
+				if (j == other.cardinality
+						|| (i < cardinality && values[i] < other.values[j])) {
+					result[n++] = values[i++];
+				} else if (i == cardinality || values[i] > other.values[j]) {
+					result[n++] = other.values[j++];
+				} else {
+					result[n++] = values[i++];
+					j++;
+				}
+			}
+
+			if (n > ARRAY_MAX)
+				return new ArrayContainer(result, n).toBitmap();
+			return new ArrayContainer(result, n);
+		}
+
+		@Override
+		public BitmapContainer toBitmap() {
+			long[] words = new long[WORDS];
+			for (int i = 0; i < cardinality; i++)
+				words[values[i] >>> 6] |= 1L << values[i];
+			return new BitmapContainer(words, cardinality);
+		}
+	}
+
+	private static class BitmapContainer extends Container {
+		private static final int AND = 0;
+		private static final int OR = 1;
+		private static final int AND_NOT = 2;
+
+		private final long[] words;
+		private int cardinality;
+
+		public BitmapContainer(long[] words, int cardinality) {
+			this.words = words;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		public int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		public boolean contains(char value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		@Override
+		public Container add(char value) {
+			long before = words[value >>> 6];
+			words[value >>> 6] = before | (1L << value);
+			if (before != words[value >>> 6])
+				cardinality++;
+			return this;
+		}
+
+		@Override
+		public Container copy() {
+			return new BitmapContainer(words.clone(), cardinality);
+		}
+
+		@Override
+		public int fill(int high, int[] dest, int pos) {
+			for (int i = 0; i < WORDS; i++) {
+				long word = words[i];
+				while (word != 0) {
+					dest[pos++] = high | (i << 6)
+							| Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+				}
+			}
+			return pos;
+		}
+
+		@Override
+		public void write(DataOutput out) throws IOException {
+			out.writeShort(cardinality - 1);
+			for (int i = 0; i < WORDS; i++)
+				out.writeLong(words[i]);
+		}
+
+		public Container combine(BitmapContainer other, int operation) {
+			long[] result = new long[WORDS];
+			int n = 0;
+
+			for (int i = 0; i < WORDS; i++) {
+				switch (operation) {
+				case AND:
+					result[i] = words[i] & other.words[i];
+					break;
+				case OR:
+					result[i] = words[i] | other.words[i];
+					break;
+				default:
+					result[i] = words[i] & ~other.words[i];
+				}
+				n += Long.bitCount(result[i]);
+			}
+
+			BitmapContainer bitmap = new BitmapContainer(result, n);
+			return n > ARRAY_MAX ? bitmap : bitmap.toArrayContainer();
+		}
+
+		private ArrayContainer toArrayContainer() {
+			char[] values = new char[cardinality];
+			int n = 0;
+
+			for (int i = 0; i < WORDS; i++) {
+				long word = words[i];
+				while (word != 0) {
+					values[n++] = (char) ((i << 6) | Long
+							.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+
+			return new ArrayContainer(values, n);
+		}
+
+		@Override
+		public BitmapContainer toBitmap() {
+			return this;
+		}
+	}
+}
@@ -0,0 +1,295 @@
+package com.ulyssecarion.pdb.distances.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Aggregates the {@link EntryStatistics} of every entry precalculated in this
+ * JVM, along with the state of the worker pool doing the precalculating, and
+ * exposes them over JMX as
+ * <code>com.ulyssecarion.pdb.distances:type=BuildMetrics</code>.
+ * <p>
+ * The {@link #SLOWEST_KEPT} slowest entries are remembered, since a handful of
+ * very large structures tend to dominate rebuild time.
+ * <p>
+ * All methods are thread-safe.
+ */
+public class BuildMetrics implements BuildMetricsMXBean {
+	public static final String OBJECT_NAME = "com.ulyssecarion.pdb.distances:type=BuildMetrics";
+
+	/**
+	 * How many of the slowest entries to remember.
+	 */
+	public static final int SLOWEST_KEPT = 20;
+
+	private static final Comparator<EntryStatistics> BY_TOTAL_TIME = new Comparator<EntryStatistics>() {
+		@Override
+		public int compare(EntryStatistics a, EntryStatistics b) {
+			return Long.compare(a.getTotalNanos(), b.getTotalNanos());
+		}
+	};
+
+	private static BuildMetrics instance;
+
+	private final AtomicLong entriesBuilt = new AtomicLong();
+	private final AtomicLong entriesFailed = new AtomicLong();
+	private final AtomicLong atoms = new AtomicLong();
+	private final AtomicLong pairEvaluations = new AtomicLong();
+	private final AtomicLong contactsEmitted = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong busyNanos = new AtomicLong();
+	private final AtomicLong readerBlockedNanos = new AtomicLong();
+	private final LatencyHistogram parseLatencies = new LatencyHistogram();
+	private final LatencyHistogram queueLatencies = new LatencyHistogram();
+	private final LatencyHistogram contactLatencies = new LatencyHistogram();
+	private final PriorityQueue<EntryStatistics> slowest = new PriorityQueue<>(
+			SLOWEST_KEPT + 1, BY_TOTAL_TIME);
+
+	private volatile ThreadPoolExecutor pool;
+	private volatile long poolStart;
+
+	/**
+	 * Gets the metrics shared by every build in this JVM, registering them
+	 * with the platform MBean server the first time.
+	 *
+	 * @return the shared build metrics
+	 */
+	public static synchronized BuildMetrics getInstance() {
+		if (instance == null) {
+			instance = new BuildMetrics();
+
+			try {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				ObjectName name = new ObjectName(OBJECT_NAME);
+				if (!server.isRegistered(name))
+					server.registerMBean(instance, name);
+			} catch (JMException e) {
+				e.printStackTrace();
+			}
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Adds the statistics of an entry that has been processed.
+	 *
+	 * @param stats
+	 *            the statistics of the entry
+	 */
+	public void record(EntryStatistics stats) {
+		if (stats.isFailed())
+			entriesFailed.incrementAndGet();
+		else
+			entriesBuilt.incrementAndGet();
+
+		atoms.addAndGet(stats.getAtomCount());
+		pairEvaluations.addAndGet(stats.getPairEvaluations());
+		contactsEmitted.addAndGet(stats.getContactsEmitted());
+		busyNanos.addAndGet(stats.getContactNanos());
+		parseLatencies.record(stats.getParseNanos());
+		queueLatencies.record(stats.getQueueNanos());
+		contactLatencies.record(stats.getContactNanos());
+
+		synchronized (slowest) {
+			slowest.add(stats);
+			if (slowest.size() > SLOWEST_KEPT)
+				slowest.poll();
+		}
+	}
+
+	/**
+	 * Adds to the number of bytes written out to disk.
+	 *
+	 * @param bytes
+	 *            how many more bytes were written
+	 */
+	public void addBytesWritten(long bytes) {
+		bytesWritten.addAndGet(bytes);
+	}
+
+	/**
+	 * Adds to the time loading threads spent waiting for room in a full
+	 * buffer of loaded structures.
+	 *
+	 * @param nanos
+	 *            how much longer they waited
+	 */
+	public void addReaderBlockedNanos(long nanos) {
+		readerBlockedNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Starts reporting the queue depth and utilization of a worker pool. Work
+	 * recorded from then on is counted against this pool's capacity.
+	 *
+	 * @param pool
+	 *            the pool processing entries
+	 */
+	public void monitor(ThreadPoolExecutor pool) {
+		busyNanos.set(0);
+		poolStart = System.nanoTime();
+		this.pool = pool;
+	}
+
+	@Override
+	public long getEntriesBuilt() {
+		return entriesBuilt.get();
+	}
+
+	@Override
+	public long getEntriesFailed() {
+		return entriesFailed.get();
+	}
+
+	@Override
+	public long getAtoms() {
+		return atoms.get();
+	}
+
+	@Override
+	public long getPairEvaluations() {
+		return pairEvaluations.get();
+	}
+
+	@Override
+	public long getContactsEmitted() {
+		return contactsEmitted.get();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	@Override
+	public double getMeanParseMillis() {
+		return parseLatencies.getMean() / 1_000_000.0;
+	}
+
+	@Override
+	public double getP99ParseMillis() {
+		return parseLatencies.getPercentile(0.99) / 1_000_000.0;
+	}
+
+	@Override
+	public double getMeanQueueMillis() {
+		return queueLatencies.getMean() / 1_000_000.0;
+	}
+
+	@Override
+	public double getP99QueueMillis() {
+		return queueLatencies.getPercentile(0.99) / 1_000_000.0;
+	}
+
+	@Override
+	public double getReaderBlockedMillis() {
+		return readerBlockedNanos.get() / 1_000_000.0;
+	}
+
+	@Override
+	public double getMeanContactMillis() {
+		return contactLatencies.getMean() / 1_000_000.0;
+	}
+
+	@Override
+	public double getP99ContactMillis() {
+		return contactLatencies.getPercentile(0.99) / 1_000_000.0;
+	}
+
+	@Override
+	public int getQueueDepth() {
+		ThreadPoolExecutor p = pool;
+		return p == null ? 0 : p.getQueue().size();
+	}
+
+	@Override
+	public int getActiveWorkers() {
+		ThreadPoolExecutor p = pool;
+		return p == null ? 0 : p.getActiveCount();
+	}
+
+	@Override
+	public int getWorkerCount() {
+		ThreadPoolExecutor p = pool;
+		return p == null ? 0 : p.getMaximumPoolSize();
+	}
+
+	@Override
+	public double getWorkerUtilization() {
+		ThreadPoolExecutor p = pool;
+		if (p == null)
+			return 0;
+
+		long capacity = (System.nanoTime() - poolStart)
+				* p.getMaximumPoolSize();
+		return capacity == 0 ? 0 : Math.min(1.0, busyNanos.get()
+				/ (double) capacity);
+	}
+
+	@Override
+	public List<String> getSlowestEntries() {
+		List<EntryStatistics> entries;
+		synchronized (slowest) {
+			entries = new ArrayList<>(slowest);
+		}
+		Collections.sort(entries, Collections.reverseOrder(BY_TOTAL_TIME));
+
+		List<String> descriptions = new ArrayList<>();
+		for (EntryStatistics entry : entries)
+			descriptions.add(entry.toString());
+		return descriptions;
+	}
+
+	@Override
+	public void reset() {
+		entriesBuilt.set(0);
+		entriesFailed.set(0);
+		atoms.set(0);
+		pairEvaluations.set(0);
+		contactsEmitted.set(0);
+		bytesWritten.set(0);
+		busyNanos.set(0);
+		readerBlockedNanos.set(0);
+		parseLatencies.reset();
+		queueLatencies.reset();
+		contactLatencies.reset();
+		poolStart = System.nanoTime();
+
+		synchronized (slowest) {
+			slowest.clear();
+		}
+	}
+
+	/**
+	 * @return a summary of these metrics as a JSON object
+	 */
+	public String toJson() {
+		return String.format(Locale.ROOT, "{\"entriesBuilt\":%d,"
+				+ "\"entriesFailed\":%d,\"atoms\":%d,\"pairEvaluations\":%d,"
+				+ "\"contactsEmitted\":%d,\"bytesWritten\":%d,"
+				+ "\"meanParseMillis\":%.3f,\"p99ParseMillis\":%.3f,"
+				+ "\"meanQueueMillis\":%.3f,\"p99QueueMillis\":%.3f,"
+				+ "\"readerBlockedMillis\":%.3f,"
+				+ "\"meanContactMillis\":%.3f,\"p99ContactMillis\":%.3f,"
+				+ "\"queueDepth\":%d,\"activeWorkers\":%d,\"workers\":%d,"
+				+ "\"utilization\":%.3f}", getEntriesBuilt(),
+				getEntriesFailed(), getAtoms(), getPairEvaluations(),
+				getContactsEmitted(), getBytesWritten(), getMeanParseMillis(),
+				getP99ParseMillis(), getMeanQueueMillis(), getP99QueueMillis(),
+				getReaderBlockedMillis(), getMeanContactMillis(),
+				getP99ContactMillis(), getQueueDepth(), getActiveWorkers(),
+				getWorkerCount(), getWorkerUtilization());
+	}
+}
@@ -0,0 +1,66 @@
+package com.ulyssecarion.pdb.distances.metrics;
+
+import java.util.List;
+
+/**
+ * The JMX view of {@link BuildMetrics}.
+ */
+public interface BuildMetricsMXBean {
+	public long getEntriesBuilt();
+
+	public long getEntriesFailed();
+
+	public long getAtoms();
+
+	public long getPairEvaluations();
+
+	public long getContactsEmitted();
+
+	public long getBytesWritten();
+
+	public double getMeanParseMillis();
+
+	public double getP99ParseMillis();
+
+	/**
+	 * @return how long loaded structures waited for a worker, on average
+	 */
+	public double getMeanQueueMillis();
+
+	public double getP99QueueMillis();
+
+	/**
+	 * @return how long, in total, loading threads waited for room to put
+	 *         loaded structures in
+	 */
+	public double getReaderBlockedMillis();
+
+	public double getMeanContactMillis();
+
+	public double getP99ContactMillis();
+
+	/**
+	 * @return how many entries are waiting for a worker
+	 */
+	public int getQueueDepth();
+
+	public int getActiveWorkers();
+
+	public int getWorkerCount();
+
+	/**
+	 * @return the fraction of the worker pool's time spent processing entries
+	 *         since it was started, between 0 and 1
+	 */
+	public double getWorkerUtilization();
+
+	/**
+	 * @return the entries that took the longest to process, slowest first
+	 */
+	public List<String> getSlowestEntries();
+
+	/**
+	 * Forgets everything recorded so far.
+	 */
+	public void reset();
+}
@@ -0,0 +1,70 @@
+package com.ulyssecarion.pdb.distances.metrics;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * A machine-readable log of a precalculation run. Every line is a JSON object
+ * with a <code>time</code> (milliseconds since the epoch) and an
+ * <code>event</code>:
+ * <ul>
+ * <li><code>entry</code>: one PDB entry was processed; the rest of the line is
+ * its {@link EntryStatistics}.</li>
+ * <li><code>block</code>: a block of entries was saved; the line has the
+ * block's name, entry count and duration, and a snapshot of
+ * {@link BuildMetrics}.</li>
+ * <li><code>done</code>: the run finished, with a final snapshot of
+ * {@link BuildMetrics}.</li>
+ * </ul>
+ * The log is appended to and flushed after every line, so it can be followed
+ * while a run is going and survives the run being killed.
+ * <p>
+ * All methods are thread-safe.
+ */
+public class BuildProgressLog {
+	private final PrintWriter out;
+
+	/**
+	 * Opens a progress log, appending to it if it already exists.
+	 *
+	 * @param file
+	 *            the file to log to
+	 * @throws IOException
+	 */
+	public BuildProgressLog(File file) throws IOException {
+		out = new PrintWriter(new BufferedWriter(new FileWriter(file, true)));
+	}
+
+	public void logEntry(EntryStatistics stats) {
+		log("entry", stats.toJson());
+	}
+
+	public void logBlock(String name, int entries, long millis,
+			BuildMetrics metrics) {
+		log("block", "{\"block\":\"" + name + "\",\"entries\":" + entries
+				+ ",\"millis\":" + millis + ",\"metrics\":" + metrics.toJson()
+				+ "}");
+	}
+
+	public void logDone(BuildMetrics metrics) {
+		log("done", "{\"metrics\":" + metrics.toJson() + "}");
+	}
+
+	public synchronized void close() {
+		out.close();
+	}
+
+	/**
+	 * Writes a line made of a JSON object with <code>time</code> and
+	 * <code>event</code> fields prepended.
+	 */
+	private synchronized void log(String event, String json) {
+		String fields = json.substring(1);
+		out.println("{\"time\":" + System.currentTimeMillis() + ",\"event\":\""
+				+ event + "\"" + (fields.equals("}") ? "" : ",") + fields);
+		out.flush();
+	}
+}
@@ -0,0 +1,149 @@
+package com.ulyssecarion.pdb.distances.metrics;
+
+import java.util.Locale;
+
+/**
+ * What it cost to precalculate the distances of a single PDB entry: how long
+ * the structure took to load, how big it was, and how much work finding its
+ * contacts took.
+ * <p>
+ * Pass an instance of this class to
+ * {@link com.ulyssecarion.pdb.distances.precalculations.LigandDistanceDataTreeBuilder}
+ * to have it filled in. It is not thread-safe; use one per entry.
+ */
+public class EntryStatistics {
+	private final String pdbID;
+	private long parseNanos;
+	private long contactNanos;
+	private long queueNanos;
+	private int atomCount;
+	private int ligandCount;
+	private long pairEvaluations;
+	private long contactsEmitted;
+	private boolean failed;
+
+	public EntryStatistics(String pdbID) {
+		this.pdbID = pdbID;
+	}
+
+	public String getPdbID() {
+		return pdbID;
+	}
+
+	/**
+	 * @return how long it took to fetch and parse the structure, in
+	 *         nanoseconds
+	 */
+	public long getParseNanos() {
+		return parseNanos;
+	}
+
+	public void setParseNanos(long parseNanos) {
+		this.parseNanos = parseNanos;
+	}
+
+	/**
+	 * @return how long it took to find the contacts of the structure once it
+	 *         was loaded, in nanoseconds
+	 */
+	public long getContactNanos() {
+		return contactNanos;
+	}
+
+	public void setContactNanos(long contactNanos) {
+		this.contactNanos = contactNanos;
+	}
+
+	/**
+	 * @return how long the loaded structure waited for a thread to find its
+	 *         contacts, in nanoseconds; 0 unless it was loaded ahead of time
+	 *         by a {@link com.ulyssecarion.pdb.distances.precalculations.StagedEntryPipeline}
+	 */
+	public long getQueueNanos() {
+		return queueNanos;
+	}
+
+	public void setQueueNanos(long queueNanos) {
+		this.queueNanos = queueNanos;
+	}
+
+	/**
+	 * @return the total time spent on this entry, in nanoseconds
+	 */
+	public long getTotalNanos() {
+		return parseNanos + contactNanos;
+	}
+
+	public int getAtomCount() {
+		return atomCount;
+	}
+
+	public void setAtomCount(int atomCount) {
+		this.atomCount = atomCount;
+	}
+
+	public int getLigandCount() {
+		return ligandCount;
+	}
+
+	public void setLigandCount(int ligandCount) {
+		this.ligandCount = ligandCount;
+	}
+
+	/**
+	 * @return how many atom pairs had their distance computed
+	 */
+	public long getPairEvaluations() {
+		return pairEvaluations;
+	}
+
+	public void addPairEvaluations(long pairs) {
+		pairEvaluations += pairs;
+	}
+
+	/**
+	 * @return how many distance results were added to the tree
+	 */
+	public long getContactsEmitted() {
+		return contactsEmitted;
+	}
+
+	public void addContactEmitted() {
+		contactsEmitted++;
+	}
+
+	/**
+	 * @return whether the structure could not be loaded or processed
+	 */
+	public boolean isFailed() {
+		return failed;
+	}
+
+	public void setFailed(boolean failed) {
+		this.failed = failed;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "%s: parse %.1f ms, queued %.1f ms, "
+				+ "contacts %.1f ms, %d atoms, %d ligands, %d pairs, "
+				+ "%d contacts%s", pdbID, parseNanos / 1_000_000.0,
+				queueNanos / 1_000_000.0, contactNanos / 1_000_000.0,
+				atomCount, ligandCount, pairEvaluations, contactsEmitted,
+				failed ? " (failed)" : "");
+	}
+
+	/**
+	 * @return these statistics as a JSON object
+	 */
+	public String toJson() {
+		return String.format(Locale.ROOT, "{\"pdbId\":\"%s\","
+				+ "\"parseMillis\":%.3f,\"queueMillis\":%.3f,"
+				+ "\"contactMillis\":%.3f,\"atoms\":%d,\"ligands\":%d,"
+				+ "\"pairEvaluations\":%d,\"contactsEmitted\":%d,"
+				+ "\"failed\":%b}", pdbID, parseNanos / 1_000_000.0,
+				queueNanos / 1_000_000.0, contactNanos / 1_000_000.0,
+				atomCount, ligandCount, pairEvaluations, contactsEmitted,
+				failed);
+	}
+}
@@ -0,0 +1,153 @@
+package com.ulyssecarion.pdb.distances.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies, in nanoseconds, that can report
+ * percentiles like p50 or p99.
+ * <p>
+ * Values are counted in buckets: every power of two is split into 16 buckets
+ * of equal width, so any reported percentile is at most about 6% larger than
+ * the true value. This keeps the histogram at a fixed size (under 8 KB) no
+ * matter how many values are recorded, which is what lets it be shared by
+ * many threads and updated on every query.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts;
+	private final AtomicLong count;
+	private final AtomicLong sum;
+	private final AtomicLong max;
+
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		count = new AtomicLong();
+		sum = new AtomicLong();
+		max = new AtomicLong();
+	}
+
+	/**
+	 * Records a single latency.
+	 * 
+	 * @param nanos
+	 *            the latency, in nanoseconds. Negative values are counted as
+	 *            zero.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+
+		counts.incrementAndGet(getBucket(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+
+		long prevMax;
+		while (nanos > (prevMax = max.get())) {
+			if (max.compareAndSet(prevMax, nanos))
+				break;
+		}
+	}
+
+	/**
+	 * Adds all values recorded in another histogram to this one.
+	 * 
+	 * @param other
+	 *            the histogram to add from
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long c = other.counts.get(i);
+			if (c != 0)
+				counts.addAndGet(i, c);
+		}
+
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+
+		long otherMax = other.max.get();
+		long prevMax;
+		while (otherMax > (prevMax = max.get())) {
+			if (max.compareAndSet(prevMax, otherMax))
+				break;
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return the mean of all recorded values, or 0 if nothing was recorded
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Gets the value below which a given fraction of the recorded values lie.
+	 * 
+	 * @param fraction
+	 *            the fraction, between 0 and 1 (0.99 for p99)
+	 * @return the (upper bound of the bucket containing the) percentile, or 0
+	 *         if nothing was recorded
+	 */
+	public long getPercentile(double fraction) {
+		long n = count.get();
+		if (n == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(fraction * n);
+		if (rank < 1)
+			rank = 1;
+
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(getUpperBound(i), max.get());
+		}
+
+		return max.get();
+	}
+
+	/**
+	 * Clears all recorded values.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	private static int getBucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long getUpperBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+
+		int shift = bucket / SUB_BUCKETS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+
+		return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,157 @@
+package com.ulyssecarion.pdb.distances.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Aggregates the {@link QueryStatistics} of every query run in this JVM, by
+ * query shape, and exposes them over JMX as
+ * <code>com.ulyssecarion.pdb.distances:type=QueryMetrics</code>. Every shape
+ * gets its own latency histogram, so p50/p99/p999 can be compared between,
+ * say, fully-bound queries and queries binding only the ligand.
+ * <p>
+ * All methods are thread-safe.
+ */
+public class QueryMetrics implements QueryMetricsMXBean {
+	public static final String OBJECT_NAME = "com.ulyssecarion.pdb.distances:type=QueryMetrics";
+
+	private static QueryMetrics instance;
+
+	private final ConcurrentHashMap<String, ShapeAccumulator> shapes;
+
+	public QueryMetrics() {
+		shapes = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Gets the metrics shared by every search in this JVM, registering them
+	 * with the platform MBean server the first time.
+	 * 
+	 * @return the shared query metrics
+	 */
+	public static synchronized QueryMetrics getInstance() {
+		if (instance == null) {
+			instance = new QueryMetrics();
+
+			try {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				ObjectName name = new ObjectName(OBJECT_NAME);
+				if (!server.isRegistered(name))
+					server.registerMBean(instance, name);
+			} catch (JMException e) {
+				e.printStackTrace();
+			}
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Adds the statistics of a finished query.
+	 * 
+	 * @param stats
+	 *            the statistics of the query, with its shape and elapsed time
+	 *            filled in
+	 */
+	public void record(QueryStatistics stats) {
+		ShapeAccumulator accumulator = shapes.get(stats.getShape());
+
+		if (accumulator == null) {
+			accumulator = new ShapeAccumulator();
+			ShapeAccumulator prev = shapes.putIfAbsent(stats.getShape(),
+					accumulator);
+			if (prev != null)
+				accumulator = prev;
+		}
+
+		accumulator.record(stats);
+	}
+
+	@Override
+	public long getQueryCount() {
+		long total = 0;
+		for (ShapeAccumulator accumulator : shapes.values())
+			total += accumulator.latencies.getCount();
+		return total;
+	}
+
+	@Override
+	public long getLeavesOpened() {
+		long total = 0;
+		for (ShapeAccumulator accumulator : shapes.values())
+			total += accumulator.leavesOpened.get();
+		return total;
+	}
+
+	@Override
+	public long getBytesRead() {
+		long total = 0;
+		for (ShapeAccumulator accumulator : shapes.values())
+			total += accumulator.bytesRead.get();
+		return total;
+	}
+
+	@Override
+	public long getRowsScanned() {
+		long total = 0;
+		for (ShapeAccumulator accumulator : shapes.values())
+			total += accumulator.rowsScanned.get();
+		return total;
+	}
+
+	@Override
+	public long getRowsReturned() {
+		long total = 0;
+		for (ShapeAccumulator accumulator : shapes.values())
+			total += accumulator.rowsReturned.get();
+		return total;
+	}
+
+	@Override
+	public List<QueryShapeMetrics> getShapes() {
+		List<QueryShapeMetrics> snapshot = new ArrayList<>();
+
+		for (Map.Entry<String, ShapeAccumulator> entry : shapes.entrySet()) {
+			ShapeAccumulator a = entry.getValue();
+			snapshot.add(new QueryShapeMetrics(entry.getKey(), a.latencies
+					.getCount(), a.latencies.getMean() / 1_000_000.0,
+					a.latencies.getPercentile(0.50) / 1_000_000.0, a.latencies
+							.getPercentile(0.99) / 1_000_000.0, a.latencies
+							.getPercentile(0.999) / 1_000_000.0, a.latencies
+							.getMax() / 1_000_000.0, a.leavesOpened.get(),
+					a.bytesRead.get(), a.rowsScanned.get(), a.rowsReturned
+							.get()));
+		}
+
+		return snapshot;
+	}
+
+	@Override
+	public void reset() {
+		shapes.clear();
+	}
+
+	private static class ShapeAccumulator {
+		private final LatencyHistogram latencies = new LatencyHistogram();
+		private final AtomicLong leavesOpened = new AtomicLong();
+		private final AtomicLong bytesRead = new AtomicLong();
+		private final AtomicLong rowsScanned = new AtomicLong();
+		private final AtomicLong rowsReturned = new AtomicLong();
+
+		public void record(QueryStatistics stats) {
+			latencies.record(stats.getElapsedNanos());
+			leavesOpened.addAndGet(stats.getLeavesOpened());
+			bytesRead.addAndGet(stats.getBytesRead());
+			rowsScanned.addAndGet(stats.getRowsScanned());
+			rowsReturned.addAndGet(stats.getRowsReturned());
+		}
+	}
+}
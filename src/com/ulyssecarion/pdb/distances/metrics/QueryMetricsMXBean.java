@@ -0,0 +1,29 @@
+package com.ulyssecarion.pdb.distances.metrics;
+
+import java.util.List;
+
+/**
+ * The JMX view of {@link QueryMetrics}.
+ */
+public interface QueryMetricsMXBean {
+	public long getQueryCount();
+
+	public long getLeavesOpened();
+
+	public long getBytesRead();
+
+	public long getRowsScanned();
+
+	public long getRowsReturned();
+
+	/**
+	 * @return latency percentiles and I/O totals for every query shape seen so
+	 *         far
+	 */
+	public List<QueryShapeMetrics> getShapes();
+
+	/**
+	 * Forgets everything recorded so far.
+	 */
+	public void reset();
+}
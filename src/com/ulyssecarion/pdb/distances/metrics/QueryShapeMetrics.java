@@ -0,0 +1,107 @@
+package com.ulyssecarion.pdb.distances.metrics;
+
+import java.beans.ConstructorProperties;
+import java.util.Locale;
+
+/**
+ * A snapshot of the metrics of every query of a given shape (see
+ * {@link com.ulyssecarion.pdb.distances.DistanceQuery#getShape()}).
+ */
+public class QueryShapeMetrics {
+	private final String shape;
+	private final long count;
+	private final double meanMillis;
+	private final double p50Millis;
+	private final double p99Millis;
+	private final double p999Millis;
+	private final double maxMillis;
+	private final long leavesOpened;
+	private final long bytesRead;
+	private final long rowsScanned;
+	private final long rowsReturned;
+
+	@ConstructorProperties({ "shape", "count", "meanMillis", "p50Millis",
+			"p99Millis", "p999Millis", "maxMillis", "leavesOpened",
+			"bytesRead", "rowsScanned", "rowsReturned" })
+	public QueryShapeMetrics(String shape, long count, double meanMillis,
+			double p50Millis, double p99Millis, double p999Millis,
+			double maxMillis, long leavesOpened, long bytesRead,
+			long rowsScanned, long rowsReturned) {
+		this.shape = shape;
+		this.count = count;
+		this.meanMillis = meanMillis;
+		this.p50Millis = p50Millis;
+		this.p99Millis = p99Millis;
+		this.p999Millis = p999Millis;
+		this.maxMillis = maxMillis;
+		this.leavesOpened = leavesOpened;
+		this.bytesRead = bytesRead;
+		this.rowsScanned = rowsScanned;
+		this.rowsReturned = rowsReturned;
+	}
+
+	public String getShape() {
+		return shape;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMeanMillis() {
+		return meanMillis;
+	}
+
+	public double getP50Millis() {
+		return p50Millis;
+	}
+
+	public double getP99Millis() {
+		return p99Millis;
+	}
+
+	public double getP999Millis() {
+		return p999Millis;
+	}
+
+	public double getMaxMillis() {
+		return maxMillis;
+	}
+
+	public long getLeavesOpened() {
+		return leavesOpened;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public long getRowsScanned() {
+		return rowsScanned;
+	}
+
+	public long getRowsReturned() {
+		return rowsReturned;
+	}
+
+	/**
+	 * @return rows scanned per row returned, over all queries of this shape
+	 */
+	public double getReadAmplification() {
+		return rowsReturned == 0 ? rowsScanned : (double) rowsScanned
+				/ rowsReturned;
+	}
+
+	/**
+	 * @return these metrics as a JSON object
+	 */
+	public String toJson() {
+		return String.format(Locale.ROOT, "{\"shape\":\"%s\",\"count\":%d,"
+				+ "\"latencyMillis\":{\"mean\":%.3f,\"p50\":%.3f,"
+				+ "\"p99\":%.3f,\"p999\":%.3f,\"max\":%.3f},"
+				+ "\"leavesOpened\":%d,\"bytesRead\":%d,"
+				+ "\"rowsScanned\":%d,\"rowsReturned\":%d}", shape, count,
+				meanMillis, p50Millis, p99Millis, p999Millis, maxMillis,
+				leavesOpened, bytesRead, rowsScanned, rowsReturned);
+	}
+}
@@ -0,0 +1,188 @@
+package com.ulyssecarion.pdb.distances.metrics;
+
+import java.util.Locale;
+
+/**
+ * Execution statistics for a single distance query: how much of the store it
+ * had to touch, and how much of what it read it actually returned. A query
+ * that scans many rows to return a few, or lists many directories to open a
+ * few leaves, is one whose I/O could be cut down with a better index.
+ * <p>
+ * Pass an instance of this class to a search to have it filled in. It is not
+ * thread-safe; use one per query.
+ */
+public class QueryStatistics {
+	private String shape;
+	private long directoriesListed;
+	private long filesProbed;
+	private long leavesOpened;
+	private long leavesSkipped;
+	private long leavesCached;
+	private long bytesRead;
+	private long rowsScanned;
+	private long rowsReturned;
+	private long elapsedNanos;
+
+	/**
+	 * @return the shape of the query, as given by
+	 *         {@link com.ulyssecarion.pdb.distances.DistanceQuery#getShape()}
+	 */
+	public String getShape() {
+		return shape;
+	}
+
+	public void setShape(String shape) {
+		this.shape = shape;
+	}
+
+	/**
+	 * @return how many directories were listed because of a wildcard
+	 */
+	public long getDirectoriesListed() {
+		return directoriesListed;
+	}
+
+	public void addDirectoryListed() {
+		directoriesListed++;
+	}
+
+	/**
+	 * @return how many files or directories were checked for existence
+	 *         because of a bound parameter
+	 */
+	public long getFilesProbed() {
+		return filesProbed;
+	}
+
+	public void addFileProbed() {
+		filesProbed++;
+	}
+
+	/**
+	 * @return how many leaves were read
+	 */
+	public long getLeavesOpened() {
+		return leavesOpened;
+	}
+
+	/**
+	 * @return how many leaves were skipped without being read, thanks to an
+	 *         index
+	 */
+	public long getLeavesSkipped() {
+		return leavesSkipped;
+	}
+
+	public void addLeafSkipped() {
+		leavesSkipped++;
+	}
+
+	/**
+	 * Call this once for every leaf read.
+	 * 
+	 * @param bytes
+	 *            the number of bytes read from the leaf
+	 * @param rows
+	 *            the number of rows the leaf held
+	 */
+	public void addLeafOpened(long bytes, long rows) {
+		leavesOpened++;
+		bytesRead += bytes;
+		rowsScanned += rows;
+	}
+
+	/**
+	 * Call this once for every range of an index read instead of leaves.
+	 * 
+	 * @param bytes
+	 *            the number of bytes read from the index
+	 * @param rows
+	 *            the number of rows in the range
+	 */
+	public void addRangeScanned(long bytes, long rows) {
+		bytesRead += bytes;
+		rowsScanned += rows;
+	}
+
+	/**
+	 * @return how many leaves were served from a leaf cache instead of being
+	 *         read
+	 */
+	public long getLeavesCached() {
+		return leavesCached;
+	}
+
+	/**
+	 * Call this once for every leaf served from a cache.
+	 * 
+	 * @param rows
+	 *            the number of rows the leaf held
+	 */
+	public void addLeafCached(long rows) {
+		leavesCached++;
+		rowsScanned += rows;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * @return how many rows were parsed
+	 */
+	public long getRowsScanned() {
+		return rowsScanned;
+	}
+
+	/**
+	 * @return how many rows matched the query and were returned
+	 */
+	public long getRowsReturned() {
+		return rowsReturned;
+	}
+
+	public void addRowReturned() {
+		rowsReturned++;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	public void setElapsedNanos(long elapsedNanos) {
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * @return how many rows were scanned for every row returned, or the number
+	 *         of rows scanned if none were returned
+	 */
+	public double getReadAmplification() {
+		return rowsReturned == 0 ? rowsScanned : (double) rowsScanned
+				/ rowsReturned;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "%s: %d dirs listed, %d probes, "
+				+ "%d leaves opened (%d skipped, %d cached), %d bytes, "
+				+ "%d rows scanned, %d returned, %.3f ms", shape,
+				directoriesListed, filesProbed, leavesOpened, leavesSkipped,
+				leavesCached, bytesRead, rowsScanned, rowsReturned,
+				elapsedNanos / 1_000_000.0);
+	}
+
+	/**
+	 * @return these statistics as a single JSON object
+	 */
+	public String toJson() {
+		return String.format(Locale.ROOT, "{\"shape\":\"%s\","
+				+ "\"directoriesListed\":%d,\"filesProbed\":%d,"
+				+ "\"leavesOpened\":%d,\"leavesSkipped\":%d,"
+				+ "\"leavesCached\":%d,\"bytesRead\":%d,\"rowsScanned\":%d,"
+				+ "\"rowsReturned\":%d,\"elapsedMillis\":%.3f}", shape,
+				directoriesListed, filesProbed, leavesOpened, leavesSkipped,
+				leavesCached, bytesRead, rowsScanned, rowsReturned,
+				elapsedNanos / 1_000_000.0);
+	}
+}
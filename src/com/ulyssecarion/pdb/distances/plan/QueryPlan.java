@@ -0,0 +1,309 @@
+package com.ulyssecarion.pdb.distances.plan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.biojava.bio.structure.Element;
+
+import com.ulyssecarion.pdb.distances.DistanceQuery;
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.DistanceResultListener;
+import com.ulyssecarion.pdb.distances.metrics.QueryStatistics;
+import com.ulyssecarion.pdb.distances.store.DistanceStore;
+import com.ulyssecarion.pdb.distances.store.QueryExecutor;
+import com.ulyssecarion.pdb.distances.store.StoreException;
+
+/**
+ * A set of distance queries that are run together, each one tagged with the
+ * component and atom name it is for. Adding a query that is already in the
+ * plan does nothing, so however many ways a plan arrives at the same query, it
+ * is only run once. The queries of a plan are run in parallel, since a plan
+ * for one atom of a molecule can hold dozens of them.
+ * <p>
+ * Plans are usually made by {@link SmilesQueryPlanner}.
+ */
+public class QueryPlan {
+	private final Map<String, PlannedQuery> queries = new LinkedHashMap<>();
+	private int duplicates;
+
+	/**
+	 * Adds a query to the plan, unless an identical one is already in it.
+	 *
+	 * @param component
+	 *            the component the query is for
+	 * @param atomName
+	 *            the atom name the query is for
+	 * @param query
+	 *            the query
+	 * @return true if the query was added, false if it was a duplicate
+	 */
+	public boolean add(String component, String atomName, DistanceQuery query) {
+		String key = query.toQueryString();
+
+		if (queries.containsKey(key)) {
+			duplicates++;
+			return false;
+		}
+
+		queries.put(key, new PlannedQuery(component, atomName, query));
+		return true;
+	}
+
+	/**
+	 * @return the queries of this plan, in the order they were added
+	 */
+	public List<DistanceQuery> getQueries() {
+		List<DistanceQuery> result = new ArrayList<>(queries.size());
+		for (PlannedQuery planned : queries.values())
+			result.add(planned.query);
+		return result;
+	}
+
+	public int size() {
+		return queries.size();
+	}
+
+	/**
+	 * @return how many queries were not added because they were already in
+	 *         the plan
+	 */
+	public int getDuplicates() {
+		return duplicates;
+	}
+
+	public boolean isEmpty() {
+		return queries.isEmpty();
+	}
+
+	/**
+	 * Runs every query of the plan against a store, with as many queries at
+	 * a time as there are processors.
+	 *
+	 * @param store
+	 *            the store to search through
+	 * @return the results, grouped by component and atom name
+	 */
+	public PlanResults execute(DistanceStore store) {
+		return execute(store, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Runs every query of the plan against a store, several at a time. The
+	 * results are the same, and in the same order, as if the queries had
+	 * been run one after the other in plan order.
+	 *
+	 * @param store
+	 *            the store to search through
+	 * @param threads
+	 *            how many queries to run at a time
+	 * @return the results, grouped by component and atom name
+	 */
+	public PlanResults execute(final DistanceStore store, int threads) {
+		PlanResults results = new PlanResults();
+		long start = System.nanoTime();
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+				Math.min(threads, queries.size())));
+		List<Future<PlannedSearch>> searches = new ArrayList<>(
+				queries.size());
+
+		try {
+			for (final PlannedQuery planned : queries.values()) {
+				searches.add(executor.submit(new Callable<PlannedSearch>() {
+					@Override
+					public PlannedSearch call() {
+						return new PlannedSearch(store, planned);
+					}
+				}));
+			}
+
+			for (Future<PlannedSearch> future : searches) {
+				PlannedSearch search = getQuietly(future);
+				results.getOrCreate(search.planned.component,
+						search.planned.atomName).addAll(search.found);
+				results.statistics.add(search.stats);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		results.elapsedNanos = System.nanoTime() - start;
+		return results;
+	}
+
+	/**
+	 * Waits for a search, rethrowing whatever it failed with (such as a
+	 * {@link StoreException}) as is.
+	 */
+	private static PlannedSearch getQuietly(Future<PlannedSearch> future) {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while running a plan",
+					e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (PlannedQuery planned : queries.values())
+			sb.append(planned.component).append('\t')
+					.append(planned.atomName).append('\t')
+					.append(planned.query.toQueryString()).append('\n');
+		return sb.toString();
+	}
+
+	private static class PlannedQuery {
+		private final String component;
+		private final String atomName;
+		private final DistanceQuery query;
+
+		public PlannedQuery(String component, String atomName,
+				DistanceQuery query) {
+			this.component = component;
+			this.atomName = atomName;
+			this.query = query;
+		}
+	}
+
+	/**
+	 * One query of a plan, run to completion.
+	 */
+	private static class PlannedSearch implements DistanceResultListener {
+		private final PlannedQuery planned;
+		private final List<DistanceResult> found = new ArrayList<>();
+		private final QueryStatistics stats = new QueryStatistics();
+
+		public PlannedSearch(DistanceStore store, PlannedQuery planned) {
+			this.planned = planned;
+			QueryExecutor.search(store, planned.query, this, stats);
+		}
+
+		@Override
+		public void resultFound(String originGroup, Element originElement,
+				String originAtomName, String targetGroup,
+				Element targetElement, String targetAtomName, DistanceResult dr) {
+			found.add(dr);
+		}
+	}
+
+	/**
+	 * The results of a {@link QueryPlan}, grouped by component and then by
+	 * atom name.
+	 */
+	public static class PlanResults {
+		private final Map<String, Map<String, List<DistanceResult>>> results = new LinkedHashMap<>();
+		private final List<QueryStatistics> statistics = new ArrayList<>();
+		private long elapsedNanos;
+
+		private List<DistanceResult> getOrCreate(String component,
+				String atomName) {
+			Map<String, List<DistanceResult>> byAtom = results.get(component);
+			if (byAtom == null) {
+				byAtom = new LinkedHashMap<>();
+				results.put(component, byAtom);
+			}
+
+			List<DistanceResult> list = byAtom.get(atomName);
+			if (list == null) {
+				list = new ArrayList<>();
+				byAtom.put(atomName, list);
+			}
+
+			return list;
+		}
+
+		/**
+		 * @return the components that were searched, in plan order
+		 */
+		public List<String> getComponents() {
+			return new ArrayList<>(results.keySet());
+		}
+
+		/**
+		 * @return the atom names that were searched for in a component
+		 */
+		public List<String> getAtomNames(String component) {
+			Map<String, List<DistanceResult>> byAtom = results.get(component);
+			return byAtom == null ? Collections.<String> emptyList()
+					: new ArrayList<>(byAtom.keySet());
+		}
+
+		/**
+		 * @return every result for a component, whatever its atom name
+		 */
+		public List<DistanceResult> getResults(String component) {
+			List<DistanceResult> all = new ArrayList<>();
+			Map<String, List<DistanceResult>> byAtom = results.get(component);
+
+			if (byAtom != null)
+				for (List<DistanceResult> list : byAtom.values())
+					all.addAll(list);
+
+			return all;
+		}
+
+		/**
+		 * @return the results for one atom name of a component
+		 */
+		public List<DistanceResult> getResults(String component, String atomName) {
+			Map<String, List<DistanceResult>> byAtom = results.get(component);
+			List<DistanceResult> list = byAtom == null ? null : byAtom
+					.get(atomName);
+			return list == null ? Collections.<DistanceResult> emptyList()
+					: Collections.unmodifiableList(list);
+		}
+
+		/**
+		 * @return the number of results across every component
+		 */
+		public int size() {
+			int size = 0;
+			for (Map<String, List<DistanceResult>> byAtom : results.values())
+				for (List<DistanceResult> list : byAtom.values())
+					size += list.size();
+			return size;
+		}
+
+		/**
+		 * @return the execution statistics of each query, in plan order
+		 */
+		public List<QueryStatistics> getStatistics() {
+			return Collections.unmodifiableList(statistics);
+		}
+
+		/**
+		 * @return the number of leaves the whole plan read
+		 */
+		public long getLeavesOpened() {
+			long leaves = 0;
+			for (QueryStatistics stats : statistics)
+				leaves += stats.getLeavesOpened() + stats.getLeavesCached();
+			return leaves;
+		}
+
+		/**
+		 * @return how long the whole plan took to run
+		 */
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+	}
+}
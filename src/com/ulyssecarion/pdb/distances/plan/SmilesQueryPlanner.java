@@ -0,0 +1,197 @@
+package com.ulyssecarion.pdb.distances.plan;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+import chemaxon.formats.MolImporter;
+import chemaxon.struc.MolAtom;
+import chemaxon.struc.Molecule;
+
+import com.ulyssecarion.pdb.distances.DistanceQuery;
+import com.ulyssecarion.pdb.distances.DistanceQuery.DistanceQueryBuilder;
+import com.ulyssecarion.pdb.distances.plan.QueryPlan.PlanResults;
+import com.ulyssecarion.pdb.distances.store.DistanceStore;
+import com.ulyssecarion.pdb.distances.store.DistanceStores;
+import com.ulyssecarion.pdb.morgan.graph.ChemAxonGraphMaker;
+import com.ulyssecarion.pdb.morgan.graph.GraphDriver.ChemAxonAtom;
+import com.ulyssecarion.pdb.morgan.graph.MorganGraph;
+import com.ulyssecarion.pdb.morgan.index.MorganIndex;
+import com.ulyssecarion.pdb.morgan.index.MorganIndex.Component;
+
+/**
+ * Turns "this atom of this SMILES string, near that kind of target" into a
+ * {@link QueryPlan}.
+ * <p>
+ * The molecule is matched against a {@link MorganIndex}: every component with
+ * the same Morgan connectivities as the molecule is a match, and every atom
+ * of a match with the same connectivity as the chosen atom is a candidate.
+ * Each candidate becomes one distance query, with the component, element and
+ * atom name as its origin and everything else taken from the target query.
+ * Symmetric atoms and duplicate components lead to the same query more than
+ * once; the plan keeps only one of each.
+ * <p>
+ * Only whole molecules are matched. A SMILES string for a fragment, such as
+ * the adenine of ATP, matches none of the components that contain it,
+ * because an atom's Morgan connectivity depends on every atom of its
+ * molecule and so changes as soon as anything is attached to the fragment.
+ * For the same reason, passing the components to consider explicitly does not
+ * help: the chosen atom is looked for by connectivity in them too.
+ */
+public class SmilesQueryPlanner {
+	private final MorganIndex index;
+
+	/**
+	 * @param index
+	 *            the index to look components up in
+	 */
+	public SmilesQueryPlanner(MorganIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Plans the queries for one atom of a SMILES string.
+	 *
+	 * @param smiles
+	 *            the molecule
+	 * @param atomIndex
+	 *            the index of the atom, counting from 0 in the order the
+	 *            SMILES string lists them
+	 * @param target
+	 *            what to look for around the atom; its origin is ignored
+	 * @return the plan, which is empty if no component matches
+	 * @throws IOException
+	 *             if the SMILES string could not be read
+	 */
+	public QueryPlan plan(String smiles, int atomIndex, DistanceQuery target)
+			throws IOException {
+		return plan(smiles, atomIndex, target, null);
+	}
+
+	/**
+	 * Works like {@link #plan(String, int, DistanceQuery)}, but only
+	 * considers the given components.
+	 *
+	 * @param components
+	 *            the IDs of the components to consider, or null to find every
+	 *            component that matches
+	 */
+	public QueryPlan plan(String smiles, int atomIndex, DistanceQuery target,
+			Collection<String> components) throws IOException {
+		ChemAxonGraphMaker.initializeLicense();
+
+		Molecule m = MolImporter.importMol(smiles, "smiles");
+		if (m == null)
+			throw new IOException("Could not read SMILES: " + smiles);
+		if (atomIndex < 0 || atomIndex >= m.getAtomCount())
+			throw new IllegalArgumentException("The molecule has no atom "
+					+ atomIndex + ".");
+
+		return plan(ChemAxonGraphMaker.getGraph(m), m.getAtom(atomIndex),
+				target, components);
+	}
+
+	/**
+	 * Plans the queries for one atom of a graph made by
+	 * {@link ChemAxonGraphMaker}.
+	 *
+	 * @param graph
+	 *            the molecule
+	 * @param atom
+	 *            the atom to search around
+	 * @param target
+	 *            what to look for around the atom; its origin is ignored
+	 * @param components
+	 *            the IDs of the components to consider, or null to find every
+	 *            component that matches
+	 * @return the plan
+	 */
+	public QueryPlan plan(List<ChemAxonAtom> graph, MolAtom atom,
+			DistanceQuery target, Collection<String> components) {
+		MorganGraph morganGraph = MorganGraph.of(graph);
+		morganGraph.morganify();
+
+		int chosen = -1;
+		for (int i = 0; i < graph.size(); i++) {
+			if (graph.get(i).getMolAtom() == atom) {
+				chosen = i;
+				break;
+			}
+		}
+
+		if (chosen == -1)
+			throw new IllegalArgumentException(
+					"The chosen atom is not a heavy atom of the molecule.");
+
+		int connectivity = morganGraph.getConnectivity(chosen);
+		QueryPlan plan = new QueryPlan();
+
+		if (components == null) {
+			for (Component component : index.getComponentsLike(morganGraph))
+				addQueries(plan, component, connectivity, target);
+		} else {
+			for (String id : components) {
+				Component component = index.get(id);
+				if (component != null)
+					addQueries(plan, component, connectivity, target);
+			}
+		}
+
+		return plan;
+	}
+
+	private static void addQueries(QueryPlan plan, Component component,
+			int connectivity, DistanceQuery target) {
+		for (int i = 0; i < component.getAtomCount(); i++) {
+			if (component.getConnectivity(i) != connectivity)
+				continue;
+
+			DistanceQuery query = new DistanceQueryBuilder()
+					.originGroup(component.getId())
+					.originElement(component.getElement(i))
+					.originAtom(component.getAtomName(i))
+					.targetGroup(target.getTargetGroupName())
+					.targetElement(target.getTargetElement())
+					.targetAtom(target.getTargetAtomName())
+					.minDistance(target.getMinDistance())
+					.maxDistance(target.getMaxDistance())
+					.pdbID(target.getPdbID()).entries(target.getEntries())
+					.build();
+
+			plan.add(component.getId(), component.getAtomName(i), query);
+		}
+	}
+
+	/**
+	 * Plans and runs the queries for one atom of a SMILES string. Arguments:
+	 * the store (see {@link DistanceStores#open(String)}), the SMILES string,
+	 * the atom index, then optionally the target as a query string (see
+	 * {@link DistanceQuery#fromQueryString(String)}). The Morgan index is
+	 * {@link MorganIndex#getDefault()}.
+	 */
+	public static void main(String[] args) throws IOException {
+		DistanceQuery target = DistanceQuery
+				.fromQueryString(args.length > 3 ? args[3] : null);
+
+		QueryPlan plan = new SmilesQueryPlanner(MorganIndex.getDefault())
+				.plan(args[1], Integer.parseInt(args[2]), target);
+		System.out.print(plan);
+		System.out.println(plan.size() + " queries (" + plan.getDuplicates()
+				+ " duplicates removed).");
+
+		try (DistanceStore store = DistanceStores.open(args[0])) {
+			PlanResults results = plan.execute(store);
+
+			for (String component : results.getComponents()) {
+				System.out.println(component + ": "
+						+ results.getResults(component).size() + " results");
+			}
+
+			System.out.println(String.format(Locale.ROOT,
+					"%d results from %d leaves in %.1f ms.", results.size(),
+					results.getLeavesOpened(),
+					results.getElapsedNanos() / 1e6));
+		}
+	}
+}
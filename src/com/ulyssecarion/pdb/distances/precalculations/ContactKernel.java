@@ -0,0 +1,168 @@
+package com.ulyssecarion.pdb.distances.precalculations;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.biojava.bio.structure.Atom;
+import org.biojava.bio.structure.Group;
+
+import com.ulyssecarion.pdb.distances.DistanceDataTree;
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.metrics.EntryStatistics;
+import com.ulyssecarion.pdb.distances.serialization.NameInterners;
+import com.ulyssecarion.pdb.distances.serialization.StringDictionary;
+
+/**
+ * Finds the contacts of ligand atoms with every other atom, working on flat
+ * arrays instead of BioJava objects.
+ * <p>
+ * The coordinates of every atom are copied once into three
+ * <code>double[]</code>s, along with a group number and a water flag for each
+ * atom. Each ligand atom is then compared to every atom in two passes: the
+ * first only computes squared distances into a scratch array, which is a
+ * plain loop over arrays that the JIT can unroll and vectorize; the second
+ * looks for squared distances under the cutoff, and only for those checks
+ * the groups, takes the square root and builds a result.
+ * <p>
+ * The component and atom name of every atom are looked up once, in the
+ * {@link NameInterners}, so contacts are added to the tree under the
+ * dictionaries' instances of those names without trimming or hashing any
+ * string again.
+ * <p>
+ * The contacts found, and the order they are added in, are the same as those
+ * of comparing the atoms with <code>Calc.getDistance</code>.
+ */
+public class ContactKernel {
+	private static final double MAX_DISTANCE = LigandDistanceDataTreeBuilder.MAX_DISTANCE;
+	private static final double MAX_DISTANCE_SQUARED = MAX_DISTANCE
+			* MAX_DISTANCE;
+
+	private final List<Atom> atoms;
+	private final double[] x;
+	private final double[] y;
+	private final double[] z;
+	private final int[] groups;
+	private final boolean[] water;
+	private final boolean[] ligand;
+	private final int[] componentIDs;
+	private final int[] atomNameIDs;
+	private final double[] squared;
+	private final StringDictionary components = NameInterners
+			.getComponents();
+	private final StringDictionary atomNames = NameInterners
+			.getAtomNames();
+
+	/**
+	 * Copies the atoms of a structure into arrays.
+	 *
+	 * @param atoms
+	 *            every atom of the structure
+	 * @param ligands
+	 *            the ligand groups of the structure
+	 */
+	public ContactKernel(List<Atom> atoms, List<Group> ligands) {
+		int n = atoms.size();
+		this.atoms = atoms;
+		this.x = new double[n];
+		this.y = new double[n];
+		this.z = new double[n];
+		this.groups = new int[n];
+		this.water = new boolean[n];
+		this.ligand = new boolean[n];
+		this.componentIDs = new int[n];
+		this.atomNameIDs = new int[n];
+		this.squared = new double[n];
+
+		Set<Group> ligandGroups = Collections
+				.newSetFromMap(new IdentityHashMap<Group, Boolean>());
+		ligandGroups.addAll(ligands);
+
+		Map<Group, Integer> groupIDs = new IdentityHashMap<>();
+		Map<Group, Integer> groupComponents = new IdentityHashMap<>();
+
+		for (int i = 0; i < n; i++) {
+			Atom atom = atoms.get(i);
+			Group group = atom.getGroup();
+			Integer groupID = groupIDs.get(group);
+
+			if (groupID == null) {
+				groupID = groupIDs.size();
+				groupIDs.put(group, groupID);
+				groupComponents.put(group,
+						components.getOrAdd(group.getPDBName().trim()));
+			}
+
+			x[i] = atom.getX();
+			y[i] = atom.getY();
+			z[i] = atom.getZ();
+			groups[i] = groupID;
+			water[i] = group.isWater();
+			ligand[i] = ligandGroups.contains(group);
+			componentIDs[i] = groupComponents.get(group);
+			atomNameIDs[i] = atomNames.getOrAdd(atom.getName().trim());
+		}
+	}
+
+	/**
+	 * Adds every contact between a ligand atom and any other non-water atom
+	 * that is closer than {@link LigandDistanceDataTreeBuilder#MAX_DISTANCE}
+	 * to a DistanceDataTree.
+	 *
+	 * @param dataTree
+	 *            the DistanceDataTree to add to
+	 * @param pdbID
+	 *            the PDB ID of the structure the atoms are from
+	 * @param stats
+	 *            receives the pair and contact counts
+	 */
+	public void addContacts(DistanceDataTree dataTree, String pdbID,
+			EntryStatistics stats) {
+		int n = x.length;
+
+		for (int i = 0; i < n; i++) {
+			if (!ligand[i])
+				continue;
+
+			stats.addPairEvaluations(n);
+			computeSquaredDistances(x[i], y[i], z[i]);
+
+			int group = groups[i];
+			for (int j = 0; j < n; j++) {
+				if (squared[j] < MAX_DISTANCE_SQUARED && groups[j] != group
+						&& !water[j]) {
+					double distance = Math.sqrt(squared[j]);
+
+					// the square root may round up to exactly the cutoff
+					if (distance < MAX_DISTANCE) {
+						Atom a = atoms.get(i);
+						Atom b = atoms.get(j);
+
+						dataTree.add(components.get(componentIDs[i]),
+								a.getElement(), atomNames.get(atomNameIDs[i]),
+								components.get(componentIDs[j]),
+								b.getElement(), atomNames.get(atomNameIDs[j]),
+								new DistanceResult(pdbID, distance, a, b));
+						stats.addContactEmitted();
+					}
+				}
+			}
+		}
+	}
+
+	private void computeSquaredDistances(double ax, double ay, double az) {
+		double[] x = this.x;
+		double[] y = this.y;
+		double[] z = this.z;
+		double[] squared = this.squared;
+
+		for (int j = 0; j < squared.length; j++) {
+			double dx = ax - x[j];
+			double dy = ay - y[j];
+			double dz = az - z[j];
+			squared[j] = dx * dx + dy * dy + dz * dz;
+		}
+	}
+}
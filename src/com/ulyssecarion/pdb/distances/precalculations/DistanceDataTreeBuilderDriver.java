@@ -3,8 +3,13 @@ package com.ulyssecarion.pdb.distances.precalculations;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.biojava.bio.structure.Element;
 
@@ -15,7 +20,27 @@ import com.ulyssecarion.pdb.distances.DistanceDataTree.OriginGroupTree;
 import com.ulyssecarion.pdb.distances.DistanceDataTree.TargetElementTree;
 import com.ulyssecarion.pdb.distances.DistanceDataTree.TargetGroupTree;
 import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.bitmap.EntryBitmap;
+import com.ulyssecarion.pdb.distances.metrics.BuildMetrics;
+import com.ulyssecarion.pdb.distances.metrics.BuildProgressLog;
+import com.ulyssecarion.pdb.distances.serialization.CompressedLeaves;
+import com.ulyssecarion.pdb.distances.serialization.DistanceBlockCodec;
+import com.ulyssecarion.pdb.distances.serialization.DistanceBlockCodec.LeafVisitor;
 import com.ulyssecarion.pdb.distances.serialization.DistanceDataTreeSerializer;
+import com.ulyssecarion.pdb.distances.serialization.EntryIndex;
+import com.ulyssecarion.pdb.distances.serialization.LeafBitmaps;
+import com.ulyssecarion.pdb.distances.serialization.LeafSidecars;
+import com.ulyssecarion.pdb.distances.serialization.LeafSummaries;
+import com.ulyssecarion.pdb.distances.serialization.NameInterners;
+import com.ulyssecarion.pdb.distances.serialization.StringDictionary;
+import com.ulyssecarion.pdb.distances.store.DirectoryStore;
+import com.ulyssecarion.pdb.distances.store.DistanceIndex;
+import com.ulyssecarion.pdb.distances.store.DistanceIndexWriter;
+import com.ulyssecarion.pdb.distances.store.DistanceStore;
+import com.ulyssecarion.pdb.distances.store.DistanceStores;
+import com.ulyssecarion.pdb.distances.store.PackedSegmentStore;
+import com.ulyssecarion.pdb.distances.store.PackedSegmentWriter;
+import com.ulyssecarion.pdb.distances.summary.LeafSummary;
 
 /**
  * This class takes care of going from a list of PDB IDs to a gigantic directory
@@ -27,18 +52,47 @@ import com.ulyssecarion.pdb.distances.serialization.DistanceDataTreeSerializer;
  * entire PDB is far too large to be stored in DistanceDataTrees in memory all
  * at once.
  * <p>
- * To go from PDB IDs to serialized (using the default Java serialization API)
+ * To go from PDB IDs to saved (see {@link DistanceBlockCodec})
  * DistanceDataTrees, use buildAndSaveDataTrees(). This method will read in PDB
  * IDs and make DistanceDataTrees for them. Because doing them all at once would
  * be impossible, it instead creates a DistanceDataTree for each group of 1000
  * PDB IDs. This value of 1000 is determined by the static constant SAVE_EVERY.
+ * The entries of each block are loaded and processed in parallel, by a
+ * {@link StagedEntryPipeline}; their timings and sizes can be watched over JMX
+ * (see {@link BuildMetrics}) or in the progress log (see
+ * {@link BuildProgressLog}). To read structures from a local PDB mirror, set
+ * the {@link LigandDistanceDataTreeBuilder#PDB_DIRECTORY_PROPERTY} system
+ * property.
+ * Setting the {@link LigandDistanceDataTreeBuilder#SYMMETRY_PROPERTY} system
+ * property to "true" builds entries from their asymmetric unit and symmetry
+ * operators instead of their biological assembly.
+ * The PDB IDs, component names and atom names seen are interned in the
+ * {@link NameInterners}, so each is only kept in memory once.
  * For testing purposes, you can use START_AT and STOP_AT to only serialize a
  * portion of the PDB. The current values (0 and a million, respectively) have
  * no effect on the program and if you were to run this method right now, it
  * would serialize the whole PDB.
  * <p>
  * To go from serialized DistanceDataTrees to the directory structure, use the
- * aptly-named buildDirectoryFromSavedDataTrees(), which will do just that.
+ * aptly-named buildDirectoryFromSavedDataTrees(), which will do just that. The
+ * directory structure is written to {@link DistanceStores#getDefaultRoot()},
+ * so set the <code>pdb.distances.root</code> system property to build it
+ * somewhere else.
+ * Blocks are read a leaf at a time, so no block is ever fully in memory.
+ * Along with the leaves, this writes a per-entry index (see {@link EntryIndex})
+ * so that searches restricted to one PDB entry only need to open that entry's
+ * leaves, a bitmap of the entries in each leaf (see {@link LeafBitmaps}), and
+ * a summary of each leaf (see {@link LeafSummaries}) for approximate answers.
+ * <p>
+ * Alternatively, buildSegment() goes from PDB IDs straight to a packed segment
+ * (see {@link PackedSegmentWriter}) in one run, without serializing any
+ * DistanceDataTrees: the rows of each entry are sorted on disk by an
+ * {@link ExternalContactSorter}, then merged into the segment. Run the driver
+ * with the segment file as its argument to do this.
+ * <p>
+ * Either way, once the store is built, its shortest rows are indexed by
+ * distance (see {@link DistanceIndex}), so that queries for every contact
+ * under some small distance do not have to read the whole store.
  * <p>
  * 
  * The directory structure looks like this:
@@ -59,28 +113,41 @@ public class DistanceDataTreeBuilderDriver {
 	private static final int SAVE_EVERY = 1000;
 	private static final int START_AT = 0;
 	private static final int STOP_AT = 1_000_000_000;
+	private static final int WORKERS = Runtime.getRuntime()
+			.availableProcessors();
+	private static final int READERS = Math.max(2, WORKERS / 2);
+	private static final int BUFFERED = WORKERS * 2;
+	private static final String PROGRESS_LOG = "build-progress.ndjson";
+	private static final boolean SYMMETRIC = Boolean
+			.getBoolean(LigandDistanceDataTreeBuilder.SYMMETRY_PROPERTY);
 
 	public static void main(String[] args) throws Exception {
-		buildDirectoryFromSavedDataTrees();
+		if (args.length > 0) {
+			buildSegment(new File(args[0]));
+		} else {
+			buildDirectoryFromSavedDataTrees();
+		}
 	}
 
 	/**
 	 * Builds a DistanceDataTree for every 1000 PDB IDs in the database. They
 	 * can later be deserialized, joined, and used to find entries by distances.
+	 * <p>
+	 * The entries of a block are loaded by {@link #READERS} threads, which
+	 * stay up to {@link #BUFFERED} structures ahead of the {@link #WORKERS}
+	 * threads finding their contacts. What each entry cost, and how busy the
+	 * workers are, is exposed through {@link BuildMetrics} and logged to
+	 * {@link #PROGRESS_LOG}.
 	 * 
 	 * @throws Exception
 	 */
 	private static void buildAndSaveDataTrees() throws Exception {
-		BufferedReader br = new BufferedReader(new FileReader("pdbids.txt"));
+		List<String> pdbIDs = readPdbIDs();
 
-		List<String> pdbIDs = new ArrayList<>();
-		String line;
-		while ((line = br.readLine()) != null) {
-			pdbIDs.add(line);
-		}
-
-		System.out.println("There are " + pdbIDs.size()
-				+ " PDB IDs to work on.");
+		BuildMetrics metrics = BuildMetrics.getInstance();
+		BuildProgressLog log = new BuildProgressLog(new File(PROGRESS_LOG));
+		StagedEntryPipeline pipeline = new StagedEntryPipeline(READERS,
+				WORKERS, BUFFERED, SYMMETRIC, metrics, log);
 
 		for (int i = START_AT; i < pdbIDs.size() && i < STOP_AT; i += SAVE_EVERY) {
 			DistanceDataTree dataTree = new DistanceDataTree();
@@ -89,38 +156,130 @@ public class DistanceDataTreeBuilderDriver {
 					+ pdbIDs.get(i));
 
 			long start = System.currentTimeMillis();
-			for (int j = i; j < i + SAVE_EVERY && j < pdbIDs.size(); j++) {
-				System.out.println("Generating table for: " + pdbIDs.get(j)
-						+ " (" + j + ")");
-				LigandDistanceDataTreeBuilder.buildTreeFor(dataTree,
-						pdbIDs.get(j));
-			}
-			long stop = System.currentTimeMillis();
-			System.out.println("That section took " + (stop - start) + " ms.");
+			List<String> entries = pdbIDs.subList(i,
+					Math.min(i + SAVE_EVERY, pdbIDs.size()));
+			pipeline.build(entries, dataTree);
 
 			DistanceDataTreeSerializer.serializeDataTree(dataTree,
 					pdbIDs.get(i));
+			metrics.addBytesWritten(DistanceDataTreeSerializer.getBlockFile(
+					pdbIDs.get(i)).length());
+
+			long stop = System.currentTimeMillis();
+			System.out.println("That section took " + (stop - start) + " ms.");
+			log.logBlock(pdbIDs.get(i), entries.size(), stop - start, metrics);
 		}
 
-		br.close();
+		pipeline.close();
+		log.logDone(metrics);
+		log.close();
+
+		System.out.println("Slowest entries:");
+		for (String entry : metrics.getSlowestEntries()) {
+			System.out.println("\t" + entry);
+		}
 	}
 
 	/**
-	 * Reads in from {@link DistanceDataTreeSerializer.DDT_OUTPUT_FILE} and
+	 * Builds the rows of every PDB ID in the database straight into a packed
+	 * segment. Entries are processed in blocks of {@link #SAVE_EVERY} just like
+	 * in {@link #buildAndSaveDataTrees()}, but each entry's rows are handed to
+	 * an {@link ExternalContactSorter} instead of joined into a tree, and the
+	 * sorted runs are merged into the segment once every entry is done.
+	 * 
+	 * @param segment
+	 *            the segment file to write
+	 * @throws Exception
+	 */
+	private static void buildSegment(File segment) throws Exception {
+		List<String> pdbIDs = readPdbIDs();
+
+		BuildMetrics metrics = BuildMetrics.getInstance();
+		BuildProgressLog log = new BuildProgressLog(new File(PROGRESS_LOG));
+
+		try (ExternalContactSorter sorter = new ExternalContactSorter();
+				StagedEntryPipeline pipeline = new StagedEntryPipeline(READERS,
+						WORKERS, BUFFERED, SYMMETRIC, metrics, log)) {
+			for (int i = START_AT; i < pdbIDs.size() && i < STOP_AT; i += SAVE_EVERY) {
+				System.out.println("Working on block starting with: "
+						+ pdbIDs.get(i));
+
+				long start = System.currentTimeMillis();
+				List<String> entries = pdbIDs.subList(i,
+						Math.min(i + SAVE_EVERY, pdbIDs.size()));
+				pipeline.build(entries, sorter);
+
+				long stop = System.currentTimeMillis();
+				System.out.println("That section took " + (stop - start)
+						+ " ms.");
+				log.logBlock(pdbIDs.get(i), entries.size(), stop - start,
+						metrics);
+			}
+
+			long start = System.currentTimeMillis();
+			long rows;
+			try (PackedSegmentWriter writer = new PackedSegmentWriter(segment)) {
+				rows = sorter.merge(writer);
+			}
+			metrics.addBytesWritten(segment.length());
+			long stop = System.currentTimeMillis();
+
+			System.out.println("Merged " + rows + " rows from "
+					+ sorter.getRunCount() + " runs into " + segment + " in "
+					+ (stop - start) + " ms.");
+		}
+
+		try (DistanceStore store = new PackedSegmentStore(segment)) {
+			buildDistanceIndex(store, DistanceIndex.getFile(segment));
+		}
+
+		log.logDone(metrics);
+		log.close();
+	}
+
+	private static List<String> readPdbIDs() throws IOException {
+		List<String> pdbIDs = new ArrayList<>();
+
+		try (BufferedReader br = new BufferedReader(new FileReader(
+				"pdbids.txt"))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				pdbIDs.add(line);
+			}
+		}
+
+		System.out.println("There are " + pdbIDs.size()
+				+ " PDB IDs to work on.");
+		return pdbIDs;
+	}
+
+	/**
+	 * Reads in from {@link DistanceDataTreeSerializer#DDT_OUTPUT_FILE} and
 	 * outputs directory versions of those DistanceDataTrees at
-	 * {@link DistanceDataTreeSerializer.DIR_OUTPUT_FOLDER}.
+	 * {@link DistanceStores#getDefaultRoot()}, which is where searchers look
+	 * for them unless told otherwise.
 	 */
 	private static void buildDirectoryFromSavedDataTrees() {
 		final String path = DistanceDataTreeSerializer.DDT_OUTPUT_FILE;
 		File savedDataTrees = new File(path);
+		File root = DistanceStores.getDefaultRoot();
+		String outputFolder = root.getPath() + File.separator;
 
 		System.out.println("Reading from " + path);
-		System.out.println("Outputting to: "
-				+ DistanceDataTreeSerializer.DIR_OUTPUT_FOLDER);
+		System.out.println("Outputting to: " + outputFolder);
 
 		for (final String dataTreeName : savedDataTrees.list()) {
 			System.out.println(dataTreeName);
 
+			if (dataTreeName
+					.endsWith(DistanceDataTreeSerializer.BLOCK_EXTENSION)) {
+				long start = System.currentTimeMillis();
+				buildDirFromBlock(dataTreeName, outputFolder);
+				long stop = System.currentTimeMillis();
+				System.out.println("(took " + ((stop - start) / 1000.0) + ")");
+				continue;
+			}
+
 			// new Thread(new Runnable() {
 			// @Override
 			// public void run() {
@@ -130,83 +289,257 @@ public class DistanceDataTreeBuilderDriver {
 					.deserializeDataTree(dataTreeName);
 			long stopSer = System.currentTimeMillis();
 			System.out.println("SER took " + ((stopSer - startSer) / 1000.0));
-			buildDirFor(dataTree, path, dataTreeName);
+			buildDirFor(dataTree, outputFolder, dataTreeName);
 			// }
 			// }).start();
 		}
+
+		buildDistanceIndex(new DirectoryStore(root, null),
+				DistanceIndex.getFile(root));
+	}
+
+	/**
+	 * Writes the distance index (see {@link DistanceIndex}) of a store that is
+	 * done being built.
+	 */
+	private static void buildDistanceIndex(DistanceStore store, File index) {
+		long start = System.currentTimeMillis();
+
+		try {
+			long records = DistanceIndexWriter.write(store, index);
+			BuildMetrics.getInstance().addBytesWritten(index.length());
+
+			long stop = System.currentTimeMillis();
+			System.out.println("Indexed " + records + " rows up to "
+					+ DistanceIndexWriter.DEFAULT_MAX_DISTANCE + " A in "
+					+ index + " in " + (stop - start) + " ms.");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
-	private static void buildDirFor(DistanceDataTree dataTree, String path,
-			String dataTreeName) {
+	/**
+	 * Writes out a DistanceDataTree into a directory structure, appending to
+	 * any leaves that already exist there. The per-entry index (see
+	 * {@link EntryIndex}), the leaf bitmaps (see {@link LeafBitmaps}) and the
+	 * leaf summaries (see {@link LeafSummaries}) are updated along the way;
+	 * the distance index (see {@link DistanceIndex}) is deleted, and has to be
+	 * written again once the directory structure is done.
+	 * 
+	 * @param dataTree
+	 *            the DistanceDataTree to write out
+	 * @param outputFolder
+	 *            the root of the directory structure, ending with a separator
+	 * @param dataTreeName
+	 *            a name for the data tree, used only for logging
+	 */
+	public static void buildDirFor(DistanceDataTree dataTree,
+			String outputFolder, String dataTreeName) {
+		DirectoryState state = new DirectoryState(outputFolder);
+
 		for (String originGroup : dataTree.getOriginGroupNames()) {
 			long start = System.currentTimeMillis();
 			System.out.print("\t" + originGroup + " (" + dataTreeName + ") ");
-			buildDirFor(dataTree.get(originGroup).get(0),
-					DistanceDataTreeSerializer.DIR_OUTPUT_FOLDER + originGroup
-							+ File.separator);
+			buildDirFor(dataTree.get(originGroup).get(0), originGroup
+					+ File.separator, state);
 			long stop = System.currentTimeMillis();
 			System.out.println("(took " + ((stop - start) / 1000.0) + ")");
 		}
+
+		File root = new File(outputFolder);
+		state.writeSidecars();
+		EntryIndex.addLeafPaths(root, state.leavesByEntry);
+		state.pdbIDs.save(LeafBitmaps.getDictionaryFile(root));
+		LeafSummaries.markSummarized(root);
 	}
 
-	private static void buildDirFor(OriginGroupTree originGroup, String path) {
-		// new File(path).mkdir()();
+	/**
+	 * Works like {@link #buildDirFor(DistanceDataTree, String, String)}, but
+	 * reads the leaves of a block saved by
+	 * {@link DistanceDataTreeSerializer#serializeDataTree(DistanceDataTree, String)}
+	 * one at a time instead of deserializing the whole tree first.
+	 * 
+	 * @param blockName
+	 *            the name the block was saved under
+	 * @param outputFolder
+	 *            the root of the directory structure, ending with a separator
+	 */
+	public static void buildDirFromBlock(String blockName, String outputFolder) {
+		final DirectoryState state = new DirectoryState(outputFolder);
+
+		DistanceDataTreeSerializer.visitDataTree(blockName, new LeafVisitor() {
+			private String previousDir;
+
+			@Override
+			public void visitLeaf(String[] leaf, List<DistanceResult> results) {
+				String dir = leaf[0] + File.separator + leaf[1]
+						+ File.separator + leaf[2] + File.separator + leaf[3]
+						+ File.separator + leaf[4] + File.separator;
+
+				if (!dir.equals(previousDir)) {
+					new File(state.root + dir).mkdirs();
+					previousDir = dir;
+				}
+
+				buildDirFor(results, dir + leaf[5]
+						+ DistanceDataTreeSerializer.EXTENSION, state);
+			}
+		});
+
+		File root = new File(outputFolder);
+		state.writeSidecars();
+		EntryIndex.addLeafPaths(root, state.leavesByEntry);
+		state.pdbIDs.save(LeafBitmaps.getDictionaryFile(root));
+		LeafSummaries.markSummarized(root);
+	}
 
+	private static void buildDirFor(OriginGroupTree originGroup, String path,
+			DirectoryState state) {
 		for (Element originElem : originGroup.getKeys()) {
 			buildDirFor(originGroup.get(originElem).get(0), path + originElem
-					+ File.separator);
+					+ File.separator, state);
 		}
 	}
 
-	private static void buildDirFor(OriginElementTree originElem, String path) {
-		// new File(path).mkdir()();
-
+	private static void buildDirFor(OriginElementTree originElem, String path,
+			DirectoryState state) {
 		for (String originAtomName : originElem.getKeys()) {
 			buildDirFor(originElem.get(originAtomName).get(0), path
-					+ originAtomName + File.separator);
+					+ originAtomName + File.separator, state);
 		}
 	}
 
-	private static void buildDirFor(OriginAtomNameTree originAtom, String path) {
-		// new File(path).mkdir()();
-
+	private static void buildDirFor(OriginAtomNameTree originAtom, String path,
+			DirectoryState state) {
 		for (String targetGroup : originAtom.getKeys()) {
 			buildDirFor(originAtom.get(targetGroup).get(0), path + targetGroup
-					+ File.separator);
+					+ File.separator, state);
 		}
 	}
 
-	private static void buildDirFor(TargetGroupTree targetGroup, String path) {
-		// new File(path).mkdir()();
-
+	private static void buildDirFor(TargetGroupTree targetGroup, String path,
+			DirectoryState state) {
 		for (Element targetElem : targetGroup.getKeys()) {
 			buildDirFor(targetGroup.get(targetElem).get(0), path + targetElem
-					+ File.separator);
+					+ File.separator, state);
 		}
 	}
 
-	private static void buildDirFor(TargetElementTree targetElem, String path) {
-		new File(path).mkdirs();
+	private static void buildDirFor(TargetElementTree targetElem, String path,
+			DirectoryState state) {
+		new File(state.root + path).mkdirs();
 
 		for (String targetAtom : targetElem.getKeys()) {
 			buildDirFor(targetElem.get(targetAtom), path + targetAtom
-					+ DistanceDataTreeSerializer.EXTENSION);
+					+ DistanceDataTreeSerializer.EXTENSION, state);
 		}
 	}
 
-	private static void buildDirFor(List<DistanceResult> results, String path) {
-		// if (new File(path).exists()) {
-		// List<DistanceResult> prev = DistanceDataTreeSerializer
-		// .deserializeResults(path);
-		// prev.addAll(results);
-		// DistanceDataTreeSerializer.serializeResult(prev, path);
-		// } else {
-		// DistanceDataTreeSerializer.serializeResult(results, path);
-		// }
+	private static void buildDirFor(List<DistanceResult> results, String path,
+			DirectoryState state) {
+		File leaf = new File(state.root + path);
+		long lengthBefore = leaf.length();
+		LeafSidecars sidecars = state.getSidecars(leaf.getParentFile());
+		String name = LeafSidecars.getLeafName(leaf);
+		EntryBitmap bitmap = sidecars.getBitmap(name);
+		if (bitmap == null)
+			bitmap = new EntryBitmap();
+
+		// leaves written before summaries existed are summarized from scratch
+		LeafSummary summary = sidecars.getSummary(name);
+		boolean summarized = summary != null || lengthBefore == 0;
+		if (summary == null)
+			summary = new LeafSummary();
+
+		// compressed leaves get the new rows as blocks of their own
+		boolean compressed = CompressedLeaves.isCompressed(leaf);
+		if (compressed) {
+			try {
+				CompressedLeaves.append(leaf, results);
+			} catch (IOException e) {
+				// the leaf still has only its old rows, so its bitmap and
+				// summary are left alone too
+				e.printStackTrace();
+				return;
+			}
+		}
 
 		for (DistanceResult dr : results) {
-			// System.out.println(path + rand);
-			DistanceDataTreeSerializer.serializeOneResult(dr, path);
+			if (!compressed)
+				DistanceDataTreeSerializer.serializeOneResult(dr, state.root
+						+ path);
+
+			bitmap.add(state.pdbIDs.getOrAdd(dr.getPdbID()));
+
+			// leaves only keep tenths of an Angstrom, so summarize the row as
+			// it will be read back
+			summary.add(dr.getPdbID(), (int) (dr.getDistance() * 10));
+
+			Set<String> leaves = state.leavesByEntry.get(dr.getPdbID());
+			if (leaves == null) {
+				leaves = new HashSet<>();
+				state.leavesByEntry.put(dr.getPdbID(), leaves);
+			}
+			leaves.add(path);
+		}
+
+		if (!summarized)
+			summary = LeafSummary.of(DistanceDataTreeSerializer
+					.deserializeResults(leaf));
+
+		sidecars.setBitmap(name, bitmap);
+		sidecars.setSummary(name, summary);
+		BuildMetrics.getInstance().addBytesWritten(
+				leaf.length() - lengthBefore);
+	}
+
+	/**
+	 * What needs to be kept track of while writing out one DistanceDataTree.
+	 * Starting to write one deletes the distance index of the directory
+	 * structure, which would no longer hold the rows about to be appended.
+	 * The sidecars (see {@link LeafSidecars}) of the folder being written are
+	 * kept in memory until the writer moves on to another folder.
+	 */
+	private static class DirectoryState {
+		private final String root;
+		private final Map<String, Set<String>> leavesByEntry;
+		private final StringDictionary pdbIDs;
+		private File folder;
+		private LeafSidecars sidecars;
+
+		public DirectoryState(String root) {
+			this.root = root;
+			this.leavesByEntry = new HashMap<>();
+			this.pdbIDs = LeafBitmaps.getDictionary(new File(root));
+
+			File index = DistanceIndex.getFile(new File(root));
+			if (index.exists() && !index.delete())
+				System.err.println("Could not delete the stale index " + index);
+		}
+
+		/**
+		 * Gets the sidecars of a folder, writing out those of the previous
+		 * folder first if it is a different one.
+		 */
+		public LeafSidecars getSidecars(File folder) {
+			if (!folder.equals(this.folder)) {
+				writeSidecars();
+				this.folder = folder;
+				this.sidecars = LeafSidecars.read(folder);
+			}
+
+			return sidecars;
+		}
+
+		/**
+		 * Writes out the sidecars of the last folder written to.
+		 */
+		public void writeSidecars() {
+			if (sidecars != null)
+				sidecars.write(folder);
+
+			folder = null;
+			sidecars = null;
 		}
 	}
 }
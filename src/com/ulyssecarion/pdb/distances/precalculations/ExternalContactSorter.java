@@ -0,0 +1,383 @@
+package com.ulyssecarion.pdb.distances.precalculations;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.ulyssecarion.pdb.distances.DistanceDataTree;
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.metrics.QueryStatistics;
+import com.ulyssecarion.pdb.distances.store.DistanceStores;
+import com.ulyssecarion.pdb.distances.store.InMemoryStore;
+import com.ulyssecarion.pdb.distances.store.PackedSegmentWriter;
+
+/**
+ * Sorts the contacts of any number of entries on disk, so that they can be
+ * written straight into a packed segment (see {@link PackedSegmentWriter})
+ * without ever holding them all in memory or serializing a
+ * {@link DistanceDataTree}.
+ * <p>
+ * Rows are buffered in memory as entries are added. Whenever the buffer
+ * fills up, it is sorted by the six keys of each row's leaf, then by distance,
+ * and spilled to a temporary run file. The thread whose entry filled the
+ * buffer does the sorting and writing, after swapping in an empty buffer, so
+ * that other threads can keep adding entries meanwhile; there are at most as
+ * many full buffers in memory as there are threads adding entries.
+ * <p>
+ * Once every entry is in, {@link #merge(PackedSegmentWriter)} reads all the
+ * runs at once, always taking the smallest row, so that rows come out leaf
+ * after leaf, depth-first and sorted by distance, which is exactly the order
+ * a segment is written in.
+ * <p>
+ * In a run, each row only repeats the keys that differ from those of the row
+ * before it, which is usually none of them.
+ * <p>
+ * A sorter should be closed once done with, to delete its runs.
+ */
+public class ExternalContactSorter implements Closeable {
+	public static final int DEFAULT_RUN_ROWS = 1 << 21;
+
+	private static final Comparator<Row> ROW_ORDER = new Comparator<Row>() {
+		@Override
+		public int compare(Row a, Row b) {
+			for (int i = 0; i < a.keys.length; i++) {
+				if (a.keys[i] != b.keys[i]) {
+					int c = a.keys[i].compareTo(b.keys[i]);
+					if (c != 0)
+						return c;
+				}
+			}
+
+			DistanceResult x = a.result;
+			DistanceResult y = b.result;
+
+			int c = Double.compare(x.getDistance(), y.getDistance());
+			if (c == 0)
+				c = x.getPdbID().compareTo(y.getPdbID());
+			if (c == 0)
+				c = Integer.compare(x.getOrigin(), y.getOrigin());
+			if (c == 0)
+				c = Integer.compare(x.getTarget(), y.getTarget());
+			return c;
+		}
+	};
+
+	private final File directory;
+	private final int runRows;
+	private List<Row> buffer = new ArrayList<>();
+	private final List<File> runs = new ArrayList<>();
+	private long rowCount;
+	private int spilling;
+	private boolean failed;
+	private boolean closed;
+
+	/**
+	 * Creates a sorter that spills runs of {@link #DEFAULT_RUN_ROWS} rows to
+	 * the default temporary directory.
+	 */
+	public ExternalContactSorter() {
+		this(new File(System.getProperty("java.io.tmpdir")), DEFAULT_RUN_ROWS);
+	}
+
+	/**
+	 * @param directory
+	 *            where to write runs
+	 * @param runRows
+	 *            how many rows to buffer before spilling them to a run
+	 */
+	public ExternalContactSorter(File directory, int runRows) {
+		this.directory = directory;
+		this.runRows = runRows;
+	}
+
+	/**
+	 * Adds every row of a tree, typically that of a single entry.
+	 *
+	 * @param tree
+	 *            the tree to add the rows of
+	 * @throws IOException
+	 *             if the buffer had to be spilled and could not be; the rows
+	 *             in it are lost, so {@link #merge(PackedSegmentWriter)}
+	 *             fails too
+	 */
+	public void addAll(DistanceDataTree tree) throws IOException {
+		InMemoryStore store = new InMemoryStore(tree);
+		QueryStatistics stats = new QueryStatistics();
+		List<Row> rows = new ArrayList<>();
+
+		for (String[] leaf : DistanceStores.getLeaves(store)) {
+			for (DistanceResult dr : store.getResults(leaf, stats))
+				rows.add(new Row(leaf, dr));
+		}
+
+		List<Row> full = null;
+
+		synchronized (this) {
+			buffer.addAll(rows);
+
+			if (buffer.size() >= runRows) {
+				full = buffer;
+				buffer = new ArrayList<>();
+				rowCount += full.size();
+				spilling++;
+			}
+		}
+
+		if (full != null)
+			spill(full);
+	}
+
+	/**
+	 * @return the number of runs spilled so far
+	 */
+	public synchronized int getRunCount() {
+		return runs.size();
+	}
+
+	/**
+	 * @return the number of rows added so far
+	 */
+	public synchronized long getRowCount() {
+		return rowCount + buffer.size();
+	}
+
+	/**
+	 * Merges every row added so far into a segment, leaf after leaf, once
+	 * the runs being spilled by other threads are written. The writer is not
+	 * closed.
+	 *
+	 * @param writer
+	 *            the segment to write to
+	 * @return the number of rows written
+	 * @throws IOException
+	 *             if a run could not be written or read
+	 */
+	public synchronized long merge(PackedSegmentWriter writer)
+			throws IOException {
+		while (spilling > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"Interrupted while waiting for runs to be spilled");
+			}
+		}
+
+		if (failed)
+			throw new IOException("Some rows could not be spilled to a run.");
+
+		if (!buffer.isEmpty()) {
+			List<Row> rest = buffer;
+			buffer = new ArrayList<>();
+			rowCount += rest.size();
+			runs.add(writeRun(rest));
+		}
+
+		PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1,
+				runs.size()), new Comparator<RunReader>() {
+			@Override
+			public int compare(RunReader a, RunReader b) {
+				return ROW_ORDER.compare(a.row, b.row);
+			}
+		});
+
+		List<RunReader> readers = new ArrayList<>();
+		try {
+			for (File run : runs) {
+				RunReader reader = new RunReader(run);
+				readers.add(reader);
+
+				if (reader.next())
+					queue.add(reader);
+			}
+
+			String[] leaf = null;
+			List<DistanceResult> rows = new ArrayList<>();
+			long written = 0;
+
+			while (!queue.isEmpty()) {
+				RunReader reader = queue.poll();
+				Row row = reader.row;
+
+				if (leaf == null || !Arrays.equals(leaf, row.keys)) {
+					if (leaf != null)
+						writer.writeLeaf(leaf, rows);
+
+					written += rows.size();
+					leaf = row.keys;
+					rows.clear();
+				}
+
+				rows.add(row.result);
+
+				if (reader.next())
+					queue.add(reader);
+			}
+
+			if (leaf != null)
+				writer.writeLeaf(leaf, rows);
+
+			return written + rows.size();
+		} finally {
+			for (RunReader reader : readers)
+				reader.close();
+		}
+	}
+
+	/**
+	 * Deletes every run, including those still being spilled once they are
+	 * written.
+	 */
+	@Override
+	public synchronized void close() {
+		for (File run : runs)
+			run.delete();
+
+		runs.clear();
+		buffer.clear();
+		closed = true;
+	}
+
+	/**
+	 * Writes a full buffer out as a run, without holding the lock.
+	 */
+	private void spill(List<Row> rows) throws IOException {
+		File run = null;
+
+		try {
+			run = writeRun(rows);
+		} finally {
+			synchronized (this) {
+				if (run == null)
+					failed = true;
+				else if (closed)
+					run.delete();
+				else
+					runs.add(run);
+
+				spilling--;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Sorts rows and writes them to a new run file.
+	 *
+	 * @return the run file
+	 */
+	private File writeRun(List<Row> rows) throws IOException {
+		Collections.sort(rows, ROW_ORDER);
+
+		File run = File.createTempFile("contacts", ".run", directory);
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+			String[] previous = null;
+
+			for (Row row : rows) {
+				int shared = 0;
+				if (previous != null) {
+					while (shared < row.keys.length
+							&& previous[shared].equals(row.keys[shared]))
+						shared++;
+				}
+
+				out.writeByte(shared);
+				for (int i = shared; i < row.keys.length; i++)
+					out.writeUTF(row.keys[i]);
+
+				DistanceResult dr = row.result;
+				out.writeUTF(dr.getPdbID());
+				out.writeDouble(dr.getDistance());
+				out.writeInt(dr.getOrigin());
+				out.writeInt(dr.getTarget());
+				out.writeInt(dr.getMultiplicity());
+				out.writeUTF(dr.getOperator() == null ? "" : dr.getOperator());
+
+				previous = row.keys;
+			}
+		} catch (IOException | RuntimeException e) {
+			run.delete();
+			throw e;
+		}
+
+		return run;
+	}
+
+	/**
+	 * A row along with the keys of the leaf it is in.
+	 */
+	private static class Row {
+		private final String[] keys;
+		private final DistanceResult result;
+
+		public Row(String[] keys, DistanceResult result) {
+			this.keys = keys;
+			this.result = result;
+		}
+	}
+
+	/**
+	 * Reads the rows of a run one at a time. Rows in the same leaf share the
+	 * same keys array.
+	 */
+	private static class RunReader implements Closeable {
+		private final DataInputStream in;
+		private String[] keys;
+		private Row row;
+
+		public RunReader(File run) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(run), 1 << 16));
+		}
+
+		/**
+		 * Moves on to the next row.
+		 *
+		 * @return false if there are no rows left
+		 */
+		public boolean next() throws IOException {
+			int shared = in.read();
+			if (shared == -1)
+				return false;
+
+			if (keys == null || shared < keys.length) {
+				String[] next = keys == null ? new String[6] : keys.clone();
+				for (int i = shared; i < next.length; i++)
+					next[i] = in.readUTF();
+				keys = next;
+			}
+
+			String pdbID = in.readUTF();
+			double distance = in.readDouble();
+			int origin = in.readInt();
+			int target = in.readInt();
+			int multiplicity = in.readInt();
+			String operator = in.readUTF();
+
+			row = new Row(keys, new DistanceResult(pdbID, distance, origin,
+					target, multiplicity, operator.isEmpty() ? null : operator));
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -2,20 +2,28 @@ package com.ulyssecarion.pdb.distances.precalculations;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.biojava.bio.structure.Atom;
-import org.biojava.bio.structure.Calc;
 import org.biojava.bio.structure.Chain;
 import org.biojava.bio.structure.Group;
 import org.biojava.bio.structure.Structure;
 import org.biojava.bio.structure.StructureException;
 import org.biojava.bio.structure.align.util.AtomCache;
 import org.biojava.bio.structure.io.FileParsingParameters;
+import org.biojava.bio.structure.quaternary.ModelTransformationMatrix;
 import org.biojava3.structure.StructureIO;
 
 import com.ulyssecarion.pdb.distances.DistanceDataTree;
 import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.metrics.EntryStatistics;
+import com.ulyssecarion.pdb.distances.serialization.NameInterners;
 
 /**
  * Creates a data tree for a single PDB entry, but limiting origin groups to
@@ -23,6 +31,10 @@ import com.ulyssecarion.pdb.distances.DistanceResult;
  * <p>
  * If you want to create more data than just stuff about ligand-based
  * interactions, then you should create a modified version of this class.
+ * <p>
+ * Entries can also be built from their asymmetric unit and the symmetry
+ * operators of their biological assembly, without building the assembly
+ * itself; see {@link #buildSymmetricTreeFor(DistanceDataTree, String, EntryStatistics)}.
  * 
  * @author Ulysse Carion
  */
@@ -31,12 +43,48 @@ public class LigandDistanceDataTreeBuilder {
 	 * If a ligand atom is any further from a potential target atom, it is not
 	 * recorded.
 	 */
-	private static final double MAX_DISTANCE = 5.0;
+	public static final double MAX_DISTANCE = 5.0;
+
+	/**
+	 * Structures with more atoms than this have their contacts found with a
+	 * {@link TiledContactFinder}, so that they fit in a fixed amount of memory.
+	 */
+	public static final int TILED_ATOM_THRESHOLD = 250000;
+
+	/**
+	 * If this system property is "true", the
+	 * {@link DistanceDataTreeBuilderDriver} builds entries with
+	 * {@link #buildSymmetricTreeFor(DistanceDataTree, String, EntryStatistics)}
+	 * .
+	 */
+	public static final String SYMMETRY_PROPERTY = "pdb.distances.symmetry";
+
+	/**
+	 * Assemblies with more operators than this are not checked for symmetry,
+	 * and are built copy by copy.
+	 */
+	private static final int MAX_CHECKED_OPERATORS = 120;
+
+	/**
+	 * Points whose images tell two operators apart.
+	 */
+	private static final double[][] PROBES = { { 0, 0, 0 }, { 10, 0, 0 },
+			{ 0, 10, 0 }, { 0, 0, 10 } };
+	private static final double PROBE_TOLERANCE = 1e-3;
+
+	/**
+	 * If this system property is set, structures are read from the local PDB
+	 * mirror in that directory (laid out in two-letter subdirectories, as
+	 * rsync mirrors are) instead of the default AtomCache location.
+	 */
+	public static final String PDB_DIRECTORY_PROPERTY = "pdb.directory";
 
 	private static AtomCache cache;
 
 	static {
-		cache = new AtomCache();
+		String directory = System.getProperty(PDB_DIRECTORY_PROPERTY);
+		cache = directory == null ? new AtomCache() : new AtomCache(directory,
+				true);
 		FileParsingParameters params = cache.getFileParsingParams();
 		params.setStoreEmptySeqRes(true);
 		params.setAlignSeqRes(true);
@@ -57,43 +105,453 @@ public class LigandDistanceDataTreeBuilder {
 	 *            the PDB ID of the structure to add information about
 	 */
 	public static void buildTreeFor(DistanceDataTree dataTree, String pdbID) {
+		buildTreeFor(dataTree, pdbID, new EntryStatistics(pdbID));
+	}
+
+	/**
+	 * Works like {@link #buildTreeFor(DistanceDataTree, String)}, but also
+	 * records how long loading the structure and finding its contacts took,
+	 * and how much work the latter was.
+	 * 
+	 * @param dataTree
+	 *            the DistanceDataTree to add to
+	 * @param pdbID
+	 *            the PDB ID of the structure to add information about
+	 * @param stats
+	 *            filled in with what it cost to process this entry
+	 */
+	public static void buildTreeFor(DistanceDataTree dataTree, String pdbID,
+			EntryStatistics stats) {
+		Structure structure = loadStructure(pdbID, stats);
+
+		if (structure != null)
+			buildTreeFrom(dataTree, pdbID, structure, stats);
+	}
+
+	/**
+	 * Loads the first biological assembly of a PDB entry, or its asymmetric
+	 * unit if it has none. This is the first half of
+	 * {@link #buildTreeFor(DistanceDataTree, String, EntryStatistics)}.
+	 * 
+	 * @param pdbID
+	 *            the PDB ID of the structure to load
+	 * @param stats
+	 *            receives how long loading took, and whether it failed
+	 * @return the structure, or null if it could not be loaded
+	 */
+	public static Structure loadStructure(String pdbID, EntryStatistics stats) {
 		StructureIO.setAtomCache(cache);
 
-		int bioAssemblyCount = StructureIO.getNrBiologicalAssemblies(pdbID);
-		int bioAssemblyId = bioAssemblyCount > 0 ? 1 : 0;
+		long start = System.nanoTime();
 
-		Structure structure = null;
 		try {
-			structure = StructureIO.getBiologicalAssembly(pdbID, bioAssemblyId);
+			int bioAssemblyCount = StructureIO.getNrBiologicalAssemblies(pdbID);
+			int bioAssemblyId = bioAssemblyCount > 0 ? 1 : 0;
+
+			return StructureIO.getBiologicalAssembly(pdbID, bioAssemblyId);
 		} catch (IOException | StructureException e) {
 			e.printStackTrace();
+			stats.setFailed(true);
+			return null;
+		} finally {
+			stats.setParseNanos(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Adds the contacts of a structure loaded by
+	 * {@link #loadStructure(String, EntryStatistics)} to a DistanceDataTree.
+	 * This is the second half of
+	 * {@link #buildTreeFor(DistanceDataTree, String, EntryStatistics)}.
+	 * 
+	 * @param dataTree
+	 *            the DistanceDataTree to add to
+	 * @param pdbID
+	 *            the PDB ID of the structure
+	 * @param structure
+	 *            the structure
+	 * @param stats
+	 *            receives how long finding the contacts took, and how much
+	 *            work it was
+	 */
+	public static void buildTreeFrom(DistanceDataTree dataTree, String pdbID,
+			Structure structure, EntryStatistics stats) {
+		long start = System.nanoTime();
+		pdbID = NameInterners.getPdbIDs().intern(pdbID);
+
+		if (countAtoms(structure) > TILED_ATOM_THRESHOLD) {
+			addContactsTiled(dataTree, pdbID, structure, stats);
+			stats.setContactNanos(System.nanoTime() - start);
 			return;
 		}
 
 		List<Atom> atoms = getAtoms(structure);
 		List<Group> ligands = getLigands(structure);
+		stats.setAtomCount(atoms.size());
+		stats.setLigandCount(ligands.size());
+
+		addContacts(dataTree, pdbID, atoms, ligands, stats);
+		stats.setContactNanos(System.nanoTime() - start);
+	}
+
+	/**
+	 * Adds every contact between a ligand atom and any other non-water atom
+	 * that is closer than {@link #MAX_DISTANCE} to a DistanceDataTree. This is
+	 * the part of {@link #buildTreeFor(DistanceDataTree, String)} that runs
+	 * after the structure has been loaded.
+	 * 
+	 * @param dataTree
+	 *            the DistanceDataTree to add to
+	 * @param pdbID
+	 *            the PDB ID of the structure the atoms are from
+	 * @param atoms
+	 *            every atom of the structure
+	 * @param ligands
+	 *            the ligand groups of the structure
+	 */
+	public static void addContacts(DistanceDataTree dataTree, String pdbID,
+			List<Atom> atoms, List<Group> ligands) {
+		addContacts(dataTree, pdbID, atoms, ligands, new EntryStatistics(pdbID));
+	}
+
+	/**
+	 * Works like {@link #addContacts(DistanceDataTree, String, List, List)},
+	 * but also counts the atom pairs evaluated and the contacts emitted.
+	 * <p>
+	 * The atoms are compared by a {@link ContactKernel}.
+	 * 
+	 * @param dataTree
+	 *            the DistanceDataTree to add to
+	 * @param pdbID
+	 *            the PDB ID of the structure the atoms are from
+	 * @param atoms
+	 *            every atom of the structure
+	 * @param ligands
+	 *            the ligand groups of the structure
+	 * @param stats
+	 *            receives the pair and contact counts
+	 */
+	public static void addContacts(DistanceDataTree dataTree, String pdbID,
+			List<Atom> atoms, List<Group> ligands, EntryStatistics stats) {
+		try {
+			new ContactKernel(atoms, ligands).addContacts(dataTree, pdbID,
+					stats);
+		} catch (Exception e) {
+			e.printStackTrace();
+			stats.setFailed(true);
+		}
+	}
+
+	/**
+	 * Works like {@link #addContacts(DistanceDataTree, String, List, List)},
+	 * but goes through a {@link TiledContactFinder} instead of comparing every
+	 * ligand atom to every atom in memory. The contacts found are the same,
+	 * though they may be added in a different order.
+	 * 
+	 * @param dataTree
+	 *            the DistanceDataTree to add to
+	 * @param pdbID
+	 *            the PDB ID of the structure
+	 * @param structure
+	 *            the structure to find the contacts of
+	 * @param stats
+	 *            receives the atom, ligand, pair and contact counts
+	 */
+	public static void addContactsTiled(DistanceDataTree dataTree,
+			String pdbID, Structure structure, EntryStatistics stats) {
+		try (TiledContactFinder finder = new TiledContactFinder()) {
+			for (Chain chain : structure.getModel(0)) {
+				Set<Group> ligands = Collections
+						.newSetFromMap(new IdentityHashMap<Group, Boolean>());
+				ligands.addAll(chain.getAtomLigands());
+
+				for (Group group : chain.getAtomGroups()) {
+					finder.add(group, ligands.contains(group));
+				}
+			}
+
+			stats.setAtomCount(finder.getAtomCount());
+			stats.setLigandCount(finder.getLigandCount());
+			finder.findContacts(dataTree, pdbID, stats);
+		} catch (IOException e) {
+			e.printStackTrace();
+			stats.setFailed(true);
+		}
+	}
+
+	/**
+	 * Works like {@link #buildTreeFor(DistanceDataTree, String, EntryStatistics)}
+	 * , but loads the asymmetric unit and applies the operators of the
+	 * biological assembly to it as contacts are found, instead of loading the
+	 * whole assembly.
+	 * <p>
+	 * If every chain of the assembly is copied by the same operators, and
+	 * those operators form a group, then every copy of a ligand has the same
+	 * surroundings. Only the first copy of each ligand then has its contacts
+	 * found; each one is added once, with the number of copies as its
+	 * multiplicity and the ID of the operator that placed its target atom
+	 * (see {@link DistanceResult#getMultiplicity()}). Otherwise, every copy is
+	 * searched and the results are the same as those of
+	 * {@link #buildTreeFor(DistanceDataTree, String, EntryStatistics)}.
+	 * 
+	 * @param dataTree
+	 *            the DistanceDataTree to add to
+	 * @param pdbID
+	 *            the PDB ID of the structure to add information about
+	 * @param stats
+	 *            filled in with what it cost to process this entry
+	 */
+	public static void buildSymmetricTreeFor(DistanceDataTree dataTree,
+			String pdbID, EntryStatistics stats) {
+		Structure structure = loadAsymmetricUnit(pdbID, stats);
+
+		if (structure != null)
+			buildSymmetricTreeFrom(dataTree, pdbID, structure, stats);
+	}
+
+	/**
+	 * Loads the asymmetric unit of a PDB entry. This is the first half of
+	 * {@link #buildSymmetricTreeFor(DistanceDataTree, String, EntryStatistics)}
+	 * .
+	 * 
+	 * @param pdbID
+	 *            the PDB ID of the structure to load
+	 * @param stats
+	 *            receives how long loading took, and whether it failed
+	 * @return the asymmetric unit, or null if it could not be loaded
+	 */
+	public static Structure loadAsymmetricUnit(String pdbID,
+			EntryStatistics stats) {
+		StructureIO.setAtomCache(cache);
+
+		long start = System.nanoTime();
 
 		try {
-			for (Atom a : atoms) {
-				if (ligands.contains(a.getGroup())) {
-					for (Atom b : atoms) {
-						double distance = Calc.getDistance(a, b);
-
-						if (a.getGroup() != b.getGroup()
-								&& !b.getGroup().isWater()
-								&& distance < MAX_DISTANCE) {
-							DistanceResult dr = new DistanceResult(pdbID,
-									distance, a, b);
-							dataTree.add(a, b, dr);
+			return StructureIO.getStructure(pdbID);
+		} catch (IOException | StructureException e) {
+			e.printStackTrace();
+			stats.setFailed(true);
+			return null;
+		} finally {
+			stats.setParseNanos(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Adds the contacts of the first biological assembly of an asymmetric
+	 * unit loaded by {@link #loadAsymmetricUnit(String, EntryStatistics)} to a
+	 * DistanceDataTree. This is the second half of
+	 * {@link #buildSymmetricTreeFor(DistanceDataTree, String, EntryStatistics)}
+	 * .
+	 * 
+	 * @param dataTree
+	 *            the DistanceDataTree to add to
+	 * @param pdbID
+	 *            the PDB ID of the structure
+	 * @param asymmetricUnit
+	 *            the asymmetric unit
+	 * @param stats
+	 *            receives how long finding the contacts took, and how much
+	 *            work it was
+	 */
+	public static void buildSymmetricTreeFrom(DistanceDataTree dataTree,
+			String pdbID, Structure asymmetricUnit, EntryStatistics stats) {
+		long start = System.nanoTime();
+		pdbID = NameInterners.getPdbIDs().intern(pdbID);
+		addSymmetricContacts(dataTree, pdbID, asymmetricUnit,
+				getOperators(asymmetricUnit, 1), stats);
+		stats.setContactNanos(System.nanoTime() - start);
+	}
+
+	/**
+	 * Adds the contacts of an asymmetric unit copied by a set of operators to
+	 * a DistanceDataTree. This is the part of
+	 * {@link #buildSymmetricTreeFor(DistanceDataTree, String, EntryStatistics)}
+	 * that runs after the structure has been loaded.
+	 * 
+	 * @param dataTree
+	 *            the DistanceDataTree to add to
+	 * @param pdbID
+	 *            the PDB ID of the structure
+	 * @param structure
+	 *            the asymmetric unit
+	 * @param operators
+	 *            the operators that copy each chain into the assembly, by
+	 *            chain ID; chains without operators are left out. If null,
+	 *            the asymmetric unit is used as it is.
+	 * @param stats
+	 *            receives the atom, ligand, pair and contact counts
+	 */
+	public static void addSymmetricContacts(DistanceDataTree dataTree,
+			String pdbID, Structure structure,
+			Map<String, List<ModelTransformationMatrix>> operators,
+			EntryStatistics stats) {
+		boolean symmetric = operators != null && isSymmetric(operators);
+		double[] point = new double[3];
+		double[] image = new double[3];
+
+		try (TiledContactFinder finder = new TiledContactFinder()) {
+			for (Chain chain : structure.getModel(0)) {
+				List<ModelTransformationMatrix> copies = null;
+
+				if (operators != null) {
+					copies = operators.get(chain.getChainID());
+					if (copies == null)
+						continue;
+				}
+
+				Set<Group> ligands = Collections
+						.newSetFromMap(new IdentityHashMap<Group, Boolean>());
+				ligands.addAll(chain.getAtomLigands());
+
+				int copyCount = copies == null ? 1 : copies.size();
+				for (int copy = 0; copy < copyCount; copy++) {
+					ModelTransformationMatrix operator = copies == null ? null
+							: copies.get(copy);
+					String tag = symmetric ? operator.getId() : null;
+					int multiplicity = symmetric ? copyCount : 1;
+
+					for (Group group : chain.getAtomGroups()) {
+						// if the assembly is symmetric, the other copies of a
+						// ligand would only find the same contacts again
+						boolean ligand = ligands.contains(group)
+								&& (copy == 0 || !symmetric);
+						int groupID = finder.nextGroupID(ligand);
+
+						for (Atom atom : group.getAtoms()) {
+							point[0] = atom.getX();
+							point[1] = atom.getY();
+							point[2] = atom.getZ();
+
+							if (operator == null) {
+								System.arraycopy(point, 0, image, 0, 3);
+							} else {
+								operator.transformPoint(point, image);
+							}
+
+							finder.add(atom, groupID, group.isWater(), ligand,
+									tag, multiplicity, image[0], image[1],
+									image[2]);
 						}
 					}
 				}
 			}
-		} catch (Exception e) {
+
+			stats.setAtomCount(finder.getAtomCount());
+			stats.setLigandCount(finder.getLigandCount());
+			finder.findContacts(dataTree, pdbID, stats);
+		} catch (IOException e) {
 			e.printStackTrace();
+			stats.setFailed(true);
 		}
 	}
 
+	/**
+	 * Gets the operators of a biological assembly, by the ID of the chain
+	 * they copy.
+	 * 
+	 * @return the operators, or null if the structure has no such assembly
+	 */
+	private static Map<String, List<ModelTransformationMatrix>> getOperators(
+			Structure structure, int bioAssemblyId) {
+		Map<Integer, List<ModelTransformationMatrix>> assemblies = structure
+				.getPDBHeader().getBioUnitTranformationMap();
+		if (assemblies == null
+				|| assemblies.get(bioAssemblyId) == null)
+			return null;
+
+		Map<String, List<ModelTransformationMatrix>> operators = new HashMap<>();
+		for (ModelTransformationMatrix operator : assemblies.get(bioAssemblyId)) {
+			List<ModelTransformationMatrix> chainOperators = operators
+					.get(operator.getNdbChainId());
+
+			if (chainOperators == null) {
+				chainOperators = new ArrayList<>();
+				operators.put(operator.getNdbChainId(), chainOperators);
+			}
+
+			chainOperators.add(operator);
+		}
+
+		return operators;
+	}
+
+	/**
+	 * Checks that every chain is copied by the same operators, and that
+	 * composing any two of those operators gives a third.
+	 */
+	private static boolean isSymmetric(
+			Map<String, List<ModelTransformationMatrix>> operators) {
+		List<ModelTransformationMatrix> first = null;
+		Set<String> ids = null;
+
+		for (List<ModelTransformationMatrix> chainOperators : operators
+				.values()) {
+			Set<String> chainIDs = new HashSet<>();
+			for (ModelTransformationMatrix operator : chainOperators)
+				chainIDs.add(operator.getId());
+
+			if (first == null) {
+				first = chainOperators;
+				ids = chainIDs;
+			} else if (!ids.equals(chainIDs)
+					|| chainIDs.size() != chainOperators.size()) {
+				return false;
+			}
+		}
+
+		if (first == null || first.size() > MAX_CHECKED_OPERATORS
+				|| ids.size() != first.size())
+			return false;
+
+		double[][][] images = new double[first.size()][][];
+		for (int i = 0; i < images.length; i++)
+			images[i] = transform(first.get(i), PROBES);
+
+		for (int i = 0; i < images.length; i++) {
+			for (int j = 0; j < images.length; j++) {
+				double[][] composed = transform(first.get(j), images[i]);
+				boolean found = false;
+
+				for (int k = 0; k < images.length && !found; k++)
+					found = isSame(composed, images[k]);
+
+				if (!found)
+					return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static double[][] transform(ModelTransformationMatrix operator,
+			double[][] points) {
+		double[][] images = new double[points.length][3];
+		for (int i = 0; i < points.length; i++)
+			operator.transformPoint(points[i], images[i]);
+		return images;
+	}
+
+	private static boolean isSame(double[][] a, double[][] b) {
+		for (int i = 0; i < a.length; i++)
+			for (int j = 0; j < 3; j++)
+				if (Math.abs(a[i][j] - b[i][j]) > PROBE_TOLERANCE)
+					return false;
+		return true;
+	}
+
+	private static int countAtoms(Structure s) {
+		int count = 0;
+
+		for (Chain chain : s.getModel(0)) {
+			for (Group group : chain.getAtomGroups()) {
+				count += group.getAtoms().size();
+			}
+		}
+
+		return count;
+	}
+
 	private static List<Atom> getAtoms(Structure s) {
 		List<Atom> atoms = new ArrayList<>();
 
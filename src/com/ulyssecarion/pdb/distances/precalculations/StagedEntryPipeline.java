@@ -0,0 +1,232 @@
+package com.ulyssecarion.pdb.distances.precalculations;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.biojava.bio.structure.Structure;
+
+import com.ulyssecarion.pdb.distances.DistanceDataTree;
+import com.ulyssecarion.pdb.distances.metrics.BuildMetrics;
+import com.ulyssecarion.pdb.distances.metrics.BuildProgressLog;
+import com.ulyssecarion.pdb.distances.metrics.EntryStatistics;
+import com.ulyssecarion.pdb.util.BlockWhenFull;
+
+/**
+ * Builds the trees of PDB entries in two stages, so that reading structures
+ * off disk and finding their contacts happen at the same time instead of
+ * taking turns.
+ * <p>
+ * Reader threads load structures (see
+ * {@link LigandDistanceDataTreeBuilder#loadStructure(String, EntryStatistics)}
+ * ) as far ahead as they can, and hand each one to a pool of compute threads
+ * that find its contacts. The pool's queue is the buffer between the two
+ * stages: once it holds as many loaded structures as it can, readers wait for
+ * room, so no more than that many structures (plus one per thread) are ever
+ * in memory at once.
+ * <p>
+ * How long each entry took to load, waited in the buffer, and took to
+ * process is recorded in its {@link EntryStatistics}; these, along with how
+ * long readers were held up by a full buffer, are aggregated by
+ * {@link BuildMetrics}.
+ * <p>
+ * A pipeline should be closed when no longer needed, to stop its threads.
+ */
+public class StagedEntryPipeline implements Closeable {
+	private final ExecutorService readers;
+	private final ThreadPoolExecutor workers;
+	private final boolean symmetric;
+	private final BuildMetrics metrics;
+	private final BuildProgressLog log;
+
+	/**
+	 * @param readers
+	 *            the number of threads loading structures
+	 * @param workers
+	 *            the number of threads finding contacts
+	 * @param buffered
+	 *            the most loaded structures to keep waiting for a worker
+	 * @param symmetric
+	 *            whether to build entries from their asymmetric unit (see
+	 *            {@link LigandDistanceDataTreeBuilder#buildSymmetricTreeFor(DistanceDataTree, String, EntryStatistics)}
+	 *            )
+	 * @param metrics
+	 *            where to record what each entry cost
+	 * @param log
+	 *            where to log each entry
+	 */
+	public StagedEntryPipeline(int readers, int workers, int buffered,
+			boolean symmetric, BuildMetrics metrics, BuildProgressLog log) {
+		this.readers = Executors.newFixedThreadPool(readers);
+		this.workers = new ThreadPoolExecutor(workers, workers, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						buffered), new BlockWhenFull());
+		this.symmetric = symmetric;
+		this.metrics = metrics;
+		this.log = log;
+
+		metrics.monitor(this.workers);
+	}
+
+	/**
+	 * Builds the tree of every entry in a list, joining them all into one
+	 * tree. Returns once every entry is done.
+	 *
+	 * @param pdbIDs
+	 *            the entries to build
+	 * @param blockTree
+	 *            the tree to join each entry's tree into
+	 * @throws InterruptedException
+	 */
+	public void build(List<String> pdbIDs, final DistanceDataTree blockTree)
+			throws InterruptedException {
+		build(pdbIDs, new EntryOutput() {
+			@Override
+			public void add(DistanceDataTree entryTree) {
+				synchronized (blockTree) {
+					blockTree.join(entryTree);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Builds the tree of every entry in a list, adding the rows of each to a
+	 * sorter instead of joining them into a tree. Returns once every entry is
+	 * done.
+	 *
+	 * @param pdbIDs
+	 *            the entries to build
+	 * @param sorter
+	 *            the sorter to add each entry's rows to
+	 * @throws InterruptedException
+	 */
+	public void build(List<String> pdbIDs, final ExternalContactSorter sorter)
+			throws InterruptedException {
+		build(pdbIDs, new EntryOutput() {
+			@Override
+			public void add(DistanceDataTree entryTree) throws IOException {
+				sorter.addAll(entryTree);
+			}
+		});
+	}
+
+	private void build(List<String> pdbIDs, EntryOutput output)
+			throws InterruptedException {
+		List<Future<Future<?>>> loads = new ArrayList<>();
+		for (String pdbID : pdbIDs) {
+			loads.add(readers.submit(new LoadTask(output, pdbID)));
+		}
+
+		try {
+			for (Future<Future<?>> load : loads) {
+				load.get().get();
+			}
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Stops the pipeline's threads once the entries already given to it are
+	 * done.
+	 */
+	@Override
+	public void close() {
+		readers.shutdown();
+		workers.shutdown();
+	}
+
+	/**
+	 * Loads a single PDB entry, then hands it to the workers, waiting for
+	 * room in their queue if need be.
+	 */
+	private class LoadTask implements Callable<Future<?>> {
+		private final EntryOutput output;
+		private final String pdbID;
+
+		public LoadTask(EntryOutput output, String pdbID) {
+			this.output = output;
+			this.pdbID = pdbID;
+		}
+
+		@Override
+		public Future<?> call() {
+			EntryStatistics stats = new EntryStatistics(pdbID);
+			Structure structure = symmetric ? LigandDistanceDataTreeBuilder
+					.loadAsymmetricUnit(pdbID, stats)
+					: LigandDistanceDataTreeBuilder.loadStructure(pdbID, stats);
+
+			long start = System.nanoTime();
+			Future<?> entry = workers.submit(new EntryTask(output, pdbID,
+					structure, stats));
+			metrics.addReaderBlockedNanos(System.nanoTime() - start);
+
+			return entry;
+		}
+	}
+
+	/**
+	 * Finds the contacts of a loaded PDB entry into its own tree, then hands
+	 * that to the pipeline's output. Entries only contend with each other for
+	 * the output, which is cheap next to finding contacts.
+	 */
+	private class EntryTask implements Runnable {
+		private final EntryOutput output;
+		private final String pdbID;
+		private final Structure structure;
+		private final EntryStatistics stats;
+		private final long loadedAt;
+
+		public EntryTask(EntryOutput output, String pdbID,
+				Structure structure, EntryStatistics stats) {
+			this.output = output;
+			this.pdbID = pdbID;
+			this.structure = structure;
+			this.stats = stats;
+			this.loadedAt = System.nanoTime();
+		}
+
+		@Override
+		public void run() {
+			stats.setQueueNanos(System.nanoTime() - loadedAt);
+
+			if (structure != null) {
+				DistanceDataTree entryTree = new DistanceDataTree();
+
+				if (symmetric) {
+					LigandDistanceDataTreeBuilder.buildSymmetricTreeFrom(
+							entryTree, pdbID, structure, stats);
+				} else {
+					LigandDistanceDataTreeBuilder.buildTreeFrom(entryTree,
+							pdbID, structure, stats);
+				}
+
+				try {
+					output.add(entryTree);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+			metrics.record(stats);
+			log.logEntry(stats);
+		}
+	}
+
+	/**
+	 * Where the tree of each finished entry goes.
+	 */
+	private interface EntryOutput {
+		void add(DistanceDataTree entryTree) throws IOException;
+	}
+}
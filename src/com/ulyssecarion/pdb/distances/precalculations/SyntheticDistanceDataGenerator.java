@@ -0,0 +1,510 @@
+package com.ulyssecarion.pdb.distances.precalculations;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.biojava.bio.structure.Element;
+
+import com.ulyssecarion.pdb.distances.DistanceDataTree;
+import com.ulyssecarion.pdb.distances.DistanceResult;
+
+/**
+ * Generates fake but statistically realistic ligand contact data, so that
+ * stores of any size can be built and benchmarked without the PDB, a network
+ * connection or hours of structure loading.
+ * <p>
+ * The data is modeled on what {@link LigandDistanceDataTreeBuilder} gets out of
+ * the real PDB:
+ * <ul>
+ * <li>Ligand types follow a Zipf distribution: a few dozen real, common
+ * ligands (SO4, GOL, ZN, NAG, HEM, ...) make up most contacts, followed by a
+ * long tail of thousands of rare, made-up ligands with made-up atom names.</li>
+ * <li>Most entries have one to three ligands, but a few have dozens.</li>
+ * <li>Each ligand atom has 8 to 24 neighbors, mostly atoms of the 20 amino
+ * acids (in their usual abundances), some nucleotide atoms, and some atoms of
+ * other ligands.</li>
+ * <li>Distances are a mixture of metal coordination and covalent contacts
+ * (around 2.1 &Aring;), hydrogen bonds (around 2.9 &Aring;) and van der Waals
+ * contacts, whose density grows with the square of the distance up to
+ * {@link LigandDistanceDataTreeBuilder#MAX_DISTANCE}.</li>
+ * </ul>
+ * Every entry is generated from its own random number generator, seeded from
+ * the generator seed and the entry's index. So the same seed always gives the
+ * same data, and any block of entries can be regenerated on its own. The two
+ * are mixed together the way SplitMix64 does, because the first numbers drawn
+ * by <code>java.util.Random</code> barely change between seeds that are close
+ * together: seeded with consecutive numbers, neighbouring entries would get
+ * nearly the same ligand counts.
+ * <p>
+ * Entries are given real-looking PDB IDs (<code>1A00</code>, <code>1A01</code>,
+ * ...). Once the 419,904 four-character IDs run out, extended IDs like
+ * <code>pdb_00012345</code> are used, so stores with billions of rows can be
+ * made.
+ */
+public class SyntheticDistanceDataGenerator {
+	/**
+	 * Common ligands, most common first. Each atom is written as its name,
+	 * followed by "=Element" if its element is not the first letter of its
+	 * name.
+	 */
+	private static final String[][] COMMON_LIGANDS = {
+			{ "SO4", "S", "O1", "O2", "O3", "O4" },
+			{ "GOL", "C1", "O1", "C2", "O2", "C3", "O3" },
+			{ "EDO", "C1", "O1", "C2", "O2" },
+			{ "ZN", "ZN=Zn" },
+			{ "MG", "MG=Mg" },
+			{ "CL", "CL=Cl" },
+			{ "NAG", "C1", "C2", "C3", "C4", "C5", "C6", "C7", "C8", "N2",
+					"O1", "O3", "O4", "O5", "O6", "O7" },
+			{ "CA", "CA=Ca" },
+			{ "HEM", "FE=Fe", "NA", "NB", "NC", "ND", "C1A", "C2A", "C3A",
+					"C4A", "CMA", "CAA", "CBA", "CGA", "O1A", "O2A", "C1B",
+					"C2B", "C3B", "C4B", "CMB", "CAB", "CBB", "C1C", "C2C",
+					"C3C", "C4C", "CMC", "CAC", "CBC", "C1D", "C2D", "C3D",
+					"C4D", "CMD", "CAD", "CBD", "CGD", "O1D", "O2D", "CHA",
+					"CHB", "CHC", "CHD" },
+			{ "ACT", "C", "O", "OXT", "CH3" },
+			{ "PEG", "C1", "O1", "C2", "C3", "O2", "C4", "O4" },
+			{ "NA", "NA=Na" },
+			{ "PO4", "P", "O1", "O2", "O3", "O4" },
+			{ "FMT", "C", "O1", "O2" },
+			{ "K", "K" },
+			{ "MN", "MN=Mn" },
+			{ "IOD", "I" },
+			{ "DMS", "S", "O", "C1", "C2" },
+			{ "ADP", "PB", "O1B", "O2B", "O3B", "PA", "O1A", "O2A", "O3A",
+					"O5'", "C5'", "C4'", "O4'", "C3'", "O3'", "C2'", "O2'",
+					"C1'", "N9", "C8", "N7", "C5", "C6", "N6", "N1", "C2",
+					"N3", "C4" },
+			{ "ATP", "PG", "O1G", "O2G", "O3G", "PB", "O1B", "O2B", "O3B",
+					"PA", "O1A", "O2A", "O3A", "O5'", "C5'", "C4'", "O4'",
+					"C3'", "O3'", "C2'", "O2'", "C1'", "N9", "C8", "N7", "C5",
+					"C6", "N6", "N1", "C2", "N3", "C4" },
+			{ "MPD", "C1", "C2", "O2", "CM", "C3", "C4", "O4", "C5" },
+			{ "TRS", "C", "C1", "C2", "C3", "N", "O1", "O2", "O3" },
+			{ "EPE", "N1", "C2", "C3", "N4", "C5", "C6", "C7", "C8", "O8",
+					"C9", "C10", "S", "O1S", "O2S", "O3S" },
+			{ "BME", "C1", "C2", "O1", "S2" },
+			{ "MES", "O1", "C2", "C3", "N4", "C5", "C6", "C7", "C8", "S",
+					"O1S", "O2S", "O3S" },
+			{ "FE", "FE=Fe" }, { "CU", "CU=Cu" }, { "NI", "NI=Ni" },
+			{ "CD", "CD=Cd" }, { "HG", "HG=Hg" }, { "BR", "BR=Br" } };
+
+	/**
+	 * The 20 amino acids with their heavy atoms, and how common each is (in
+	 * percent of residues).
+	 */
+	private static final String[][] AMINO_ACIDS = {
+			{ "LEU", "N", "CA", "C", "O", "CB", "CG", "CD1", "CD2" },
+			{ "ALA", "N", "CA", "C", "O", "CB" },
+			{ "GLY", "N", "CA", "C", "O" },
+			{ "VAL", "N", "CA", "C", "O", "CB", "CG1", "CG2" },
+			{ "GLU", "N", "CA", "C", "O", "CB", "CG", "CD", "OE1", "OE2" },
+			{ "SER", "N", "CA", "C", "O", "CB", "OG" },
+			{ "ILE", "N", "CA", "C", "O", "CB", "CG1", "CG2", "CD1" },
+			{ "LYS", "N", "CA", "C", "O", "CB", "CG", "CD", "CE", "NZ" },
+			{ "ARG", "N", "CA", "C", "O", "CB", "CG", "CD", "NE", "CZ", "NH1",
+					"NH2" },
+			{ "ASP", "N", "CA", "C", "O", "CB", "CG", "OD1", "OD2" },
+			{ "THR", "N", "CA", "C", "O", "CB", "OG1", "CG2" },
+			{ "PRO", "N", "CA", "C", "O", "CB", "CG", "CD" },
+			{ "ASN", "N", "CA", "C", "O", "CB", "CG", "OD1", "ND2" },
+			{ "GLN", "N", "CA", "C", "O", "CB", "CG", "CD", "OE1", "NE2" },
+			{ "PHE", "N", "CA", "C", "O", "CB", "CG", "CD1", "CD2", "CE1",
+					"CE2", "CZ" },
+			{ "TYR", "N", "CA", "C", "O", "CB", "CG", "CD1", "CD2", "CE1",
+					"CE2", "CZ", "OH" },
+			{ "MET", "N", "CA", "C", "O", "CB", "CG", "SD", "CE" },
+			{ "HIS", "N", "CA", "C", "O", "CB", "CG", "ND1", "CD2", "CE1",
+					"NE2" },
+			{ "CYS", "N", "CA", "C", "O", "CB", "SG" },
+			{ "TRP", "N", "CA", "C", "O", "CB", "CG", "CD1", "CD2", "NE1",
+					"CE2", "CE3", "CZ2", "CZ3", "CH2" } };
+	private static final double[] AMINO_ACID_WEIGHTS = { 9.9, 8.3, 7.1, 6.9,
+			6.8, 6.6, 5.9, 5.8, 5.5, 5.5, 5.3, 4.7, 4.1, 3.9, 3.9, 2.9, 2.4,
+			2.3, 1.4, 1.1 };
+
+	private static final String[][] NUCLEOTIDES = {
+			{ "DA", "P", "OP1", "OP2", "O5'", "C5'", "C4'", "O4'", "C3'",
+					"O3'", "C2'", "C1'", "N9", "C8", "N7", "C5", "C6", "N6",
+					"N1", "C2", "N3", "C4" },
+			{ "DC", "P", "OP1", "OP2", "O5'", "C5'", "C4'", "O4'", "C3'",
+					"O3'", "C2'", "C1'", "N1", "C2", "O2", "N3", "C4", "N4",
+					"C5", "C6" },
+			{ "DG", "P", "OP1", "OP2", "O5'", "C5'", "C4'", "O4'", "C3'",
+					"O3'", "C2'", "C1'", "N9", "C8", "N7", "C5", "C6", "O6",
+					"N1", "C2", "N2", "N3", "C4" },
+			{ "DT", "P", "OP1", "OP2", "O5'", "C5'", "C4'", "O4'", "C3'",
+					"O3'", "C2'", "C1'", "N1", "C2", "O2", "N3", "C4", "O4",
+					"C5", "C7", "C6" },
+			{ "A", "P", "OP1", "OP2", "O5'", "C5'", "C4'", "O4'", "C3'", "O3'",
+					"C2'", "O2'", "C1'", "N9", "C8", "N7", "C5", "C6", "N6",
+					"N1", "C2", "N3", "C4" },
+			{ "G", "P", "OP1", "OP2", "O5'", "C5'", "C4'", "O4'", "C3'", "O3'",
+					"C2'", "O2'", "C1'", "N9", "C8", "N7", "C5", "C6", "O6",
+					"N1", "C2", "N2", "N3", "C4" } };
+
+	/**
+	 * The elements made-up ligands are built from, and how common each is.
+	 */
+	private static final Element[] TAIL_ELEMENTS = { Element.C, Element.O,
+			Element.N, Element.S, Element.P, Element.Cl, Element.F };
+	private static final double[] TAIL_ELEMENT_WEIGHTS = { 64, 20, 11, 2, 1.5,
+			1, 0.5 };
+
+	private static final int FOUR_CHARACTER_IDS = 9 * 36 * 36 * 36;
+	private static final String ID_CHARACTERS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+	private final long seed;
+	private final Group[] ligands;
+	private final Group[] aminoAcids;
+	private final Group[] nucleotides;
+
+	private final Picker ligandPicker;
+	private final Picker aminoAcidPicker;
+
+	/**
+	 * Creates a generator with 5000 ligand types.
+	 * 
+	 * @param seed
+	 *            the seed all generated data is derived from
+	 */
+	public SyntheticDistanceDataGenerator(long seed) {
+		this(seed, 5000);
+	}
+
+	/**
+	 * @param seed
+	 *            the seed all generated data is derived from
+	 * @param ligandTypes
+	 *            how many distinct ligands to use; the real PDB has about
+	 *            25,000
+	 */
+	public SyntheticDistanceDataGenerator(long seed, int ligandTypes) {
+		this.seed = seed;
+
+		ligandTypes = Math.max(ligandTypes, COMMON_LIGANDS.length);
+		ligands = new Group[ligandTypes];
+		for (int i = 0; i < COMMON_LIGANDS.length; i++)
+			ligands[i] = new Group(COMMON_LIGANDS[i]);
+
+		Random tailRandom = new Random(seed);
+		Picker elementPicker = new Picker(TAIL_ELEMENT_WEIGHTS);
+		for (int i = COMMON_LIGANDS.length; i < ligandTypes; i++)
+			ligands[i] = makeTailLigand(i, tailRandom, elementPicker);
+
+		aminoAcids = new Group[AMINO_ACIDS.length];
+		for (int i = 0; i < AMINO_ACIDS.length; i++)
+			aminoAcids[i] = new Group(AMINO_ACIDS[i]);
+
+		nucleotides = new Group[NUCLEOTIDES.length];
+		for (int i = 0; i < NUCLEOTIDES.length; i++)
+			nucleotides[i] = new Group(NUCLEOTIDES[i]);
+
+		double[] zipf = new double[ligandTypes];
+		for (int i = 0; i < ligandTypes; i++)
+			zipf[i] = 1.0 / (i + 1);
+		ligandPicker = new Picker(zipf);
+		aminoAcidPicker = new Picker(AMINO_ACID_WEIGHTS);
+	}
+
+	/**
+	 * Writes a synthetic directory store of the given size, a block of entries
+	 * at a time so that memory use does not depend on the size of the store.
+	 * 
+	 * @param args
+	 *            the output folder, the number of entries, and optionally the
+	 *            seed and the number of entries per block
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: SyntheticDistanceDataGenerator "
+					+ "outputFolder entries [seed] [entriesPerBlock]");
+			System.exit(2);
+		}
+
+		String outputFolder = args[0];
+		if (!outputFolder.endsWith(File.separator))
+			outputFolder += File.separator;
+
+		long entries = Long.parseLong(args[1]);
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 0;
+		int entriesPerBlock = args.length > 3 ? Integer.parseInt(args[3])
+				: 1000;
+
+		long rows = new SyntheticDistanceDataGenerator(seed).writeStore(
+				outputFolder, entries, entriesPerBlock);
+		System.out.println("Wrote " + rows + " rows for " + entries
+				+ " entries.");
+	}
+
+	/**
+	 * Writes a synthetic directory store, like
+	 * {@link DistanceDataTreeBuilderDriver} would for real data.
+	 * 
+	 * @param outputFolder
+	 *            the root of the directory structure, ending with a separator
+	 * @param entries
+	 *            the number of entries to generate
+	 * @param entriesPerBlock
+	 *            how many entries to keep in memory at once
+	 * @return the number of rows written
+	 */
+	public long writeStore(String outputFolder, long entries,
+			int entriesPerBlock) {
+		new File(outputFolder).mkdirs();
+		long rows = 0;
+
+		for (long first = 0; first < entries; first += entriesPerBlock) {
+			int count = (int) Math.min(entriesPerBlock, entries - first);
+
+			long start = System.currentTimeMillis();
+			DistanceDataTree dataTree = new DistanceDataTree();
+			for (int i = 0; i < count; i++)
+				rows += generateEntry(dataTree, first + i);
+
+			DistanceDataTreeBuilderDriver.buildDirFor(dataTree, outputFolder,
+					getPdbID(first));
+			long stop = System.currentTimeMillis();
+
+			System.out.println("Entries " + first + " to "
+					+ (first + count - 1) + " took " + (stop - start)
+					+ " ms (" + rows + " rows so far).");
+		}
+
+		return rows;
+	}
+
+	/**
+	 * Generates a DistanceDataTree holding a range of entries.
+	 * 
+	 * @param firstEntry
+	 *            the index of the first entry to generate
+	 * @param entries
+	 *            how many entries to generate
+	 * @return a new DistanceDataTree
+	 */
+	public DistanceDataTree generateTree(long firstEntry, int entries) {
+		DistanceDataTree dataTree = new DistanceDataTree();
+
+		for (int i = 0; i < entries; i++)
+			generateEntry(dataTree, firstEntry + i);
+
+		return dataTree;
+	}
+
+	/**
+	 * Generates the contacts of a single entry and adds them to a
+	 * DistanceDataTree. Calling this twice with the same index gives the same
+	 * contacts.
+	 * 
+	 * @param dataTree
+	 *            the DistanceDataTree to add to
+	 * @param entryIndex
+	 *            the index of the entry
+	 * @return the number of contacts added
+	 */
+	public int generateEntry(DistanceDataTree dataTree, long entryIndex) {
+		Random random = newEntryRandom(entryIndex);
+		String pdbID = getPdbID(entryIndex);
+		int ligandCount = pickLigandCount(random);
+		int proteinAtoms = 500 + random.nextInt(8000);
+		int nextLigandSerial = proteinAtoms + 1;
+		int rows = 0;
+
+		for (int l = 0; l < ligandCount; l++) {
+			Group ligand = ligands[ligandPicker.pick(random)];
+			int serial = nextLigandSerial;
+			nextLigandSerial += ligand.atomNames.length;
+
+			for (int a = 0; a < ligand.atomNames.length; a++) {
+				int neighbors = 8 + random.nextInt(17);
+
+				for (int n = 0; n < neighbors; n++) {
+					Group target = pickTarget(random);
+					int t = random.nextInt(target.atomNames.length);
+
+					dataTree.add(ligand.name, ligand.elements[a],
+							ligand.atomNames[a], target.name,
+							target.elements[t], target.atomNames[t],
+							new DistanceResult(pdbID, pickDistance(random),
+									serial + a, 1 + random
+											.nextInt(proteinAtoms)));
+					rows++;
+				}
+			}
+		}
+
+		return rows;
+	}
+
+	/**
+	 * Creates the random number generator an entry is generated from.
+	 * 
+	 * @param entryIndex
+	 *            the index of the entry
+	 * @return a new generator, always seeded the same way for the same entry
+	 */
+	Random newEntryRandom(long entryIndex) {
+		// the SplitMix64 finalizer: every bit of the seed depends on every
+		// bit of the entry index
+		long z = seed + (entryIndex + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return new Random(z ^ (z >>> 31));
+	}
+
+	/**
+	 * Picks how many ligands an entry has: geometric, with a mean of about
+	 * 2.9, but with a long tail.
+	 */
+	static int pickLigandCount(Random random) {
+		int ligandCount = 1;
+		while (ligandCount < 60 && random.nextDouble() < 0.65)
+			ligandCount++;
+		return ligandCount;
+	}
+
+	/**
+	 * Gets the PDB ID of the entry with a given index.
+	 * 
+	 * @param entryIndex
+	 *            the index of the entry
+	 * @return a four-character PDB ID, or an extended one past the first
+	 *         419,904 entries
+	 */
+	public static String getPdbID(long entryIndex) {
+		if (entryIndex >= FOUR_CHARACTER_IDS)
+			return String.format("pdb_%08d", entryIndex);
+
+		int i = (int) entryIndex;
+		char[] id = new char[4];
+		for (int c = 3; c >= 1; c--) {
+			id[c] = ID_CHARACTERS.charAt(i % 36);
+			i /= 36;
+		}
+		id[0] = ID_CHARACTERS.charAt(1 + i);
+
+		return new String(id);
+	}
+
+	private Group pickTarget(Random random) {
+		double u = random.nextDouble();
+
+		if (u < 0.88)
+			return aminoAcids[aminoAcidPicker.pick(random)];
+		if (u < 0.92)
+			return nucleotides[random.nextInt(nucleotides.length)];
+		return ligands[ligandPicker.pick(random)];
+	}
+
+	private static double pickDistance(Random random) {
+		double u = random.nextDouble();
+
+		// Metal coordination and covalent attachments.
+		if (u < 0.05)
+			return clamp(2.1 + 0.12 * random.nextGaussian());
+
+		// Hydrogen bonds.
+		if (u < 0.20)
+			return clamp(2.9 + 0.2 * random.nextGaussian());
+
+		// Van der Waals contacts: uniform in volume between 3.2 and the cutoff.
+		double min = 3.2, max = LigandDistanceDataTreeBuilder.MAX_DISTANCE;
+		double r3 = min * min * min + random.nextDouble()
+				* (max * max * max - min * min * min);
+		return clamp(Math.cbrt(r3));
+	}
+
+	private static double clamp(double distance) {
+		return Math.max(1.5, Math.min(distance,
+				LigandDistanceDataTreeBuilder.MAX_DISTANCE - 0.001));
+	}
+
+	private static Group makeTailLigand(int index, Random random,
+			Picker elementPicker) {
+		// X00, X01, ..., XZZ, Y00, ..., ZZZ never clash with the common
+		// ligands. Past those, five-character codes like X00AB are used, as
+		// the PDB itself does now.
+		String name;
+		if (index < 3 * 36 * 36) {
+			name = "" + (char) ('X' + index / 1296)
+					+ ID_CHARACTERS.charAt(index / 36 % 36)
+					+ ID_CHARACTERS.charAt(index % 36);
+		} else {
+			name = "X" + ID_CHARACTERS.charAt(index / 46656 % 36)
+					+ ID_CHARACTERS.charAt(index / 1296 % 36)
+					+ ID_CHARACTERS.charAt(index / 36 % 36)
+					+ ID_CHARACTERS.charAt(index % 36);
+		}
+
+		int atomCount = 6 + random.nextInt(35);
+		String[] atomNames = new String[atomCount];
+		Element[] elements = new Element[atomCount];
+		int[] perElement = new int[TAIL_ELEMENTS.length];
+
+		for (int a = 0; a < atomCount; a++) {
+			int e = elementPicker.pick(random);
+			elements[a] = TAIL_ELEMENTS[e];
+			atomNames[a] = TAIL_ELEMENTS[e].toString().toUpperCase()
+					+ (++perElement[e]);
+		}
+
+		return new Group(name, atomNames, elements);
+	}
+
+	/**
+	 * A group type: its name, and the names and elements of its atoms.
+	 */
+	private static class Group {
+		private final String name;
+		private final String[] atomNames;
+		private final Element[] elements;
+
+		public Group(String name, String[] atomNames, Element[] elements) {
+			this.name = name;
+			this.atomNames = atomNames;
+			this.elements = elements;
+		}
+
+		/**
+		 * Reads a group from its name followed by its atoms, as in
+		 * {@link SyntheticDistanceDataGenerator#COMMON_LIGANDS}.
+		 */
+		public Group(String[] spec) {
+			this.name = spec[0];
+			this.atomNames = new String[spec.length - 1];
+			this.elements = new Element[spec.length - 1];
+
+			for (int i = 1; i < spec.length; i++) {
+				String[] parts = spec[i].split("=");
+				atomNames[i - 1] = parts[0];
+				elements[i - 1] = parts.length > 1 ? Element.valueOf(parts[1])
+						: Element.valueOf(parts[0].substring(0, 1));
+			}
+		}
+	}
+
+	/**
+	 * Picks indexes at random, in proportion to a list of weights.
+	 */
+	private static class Picker {
+		private final double[] cumulative;
+
+		public Picker(double[] weights) {
+			cumulative = new double[weights.length];
+			double sum = 0;
+			for (int i = 0; i < weights.length; i++) {
+				sum += weights[i];
+				cumulative[i] = sum;
+			}
+		}
+
+		public int pick(Random random) {
+			double u = random.nextDouble() * cumulative[cumulative.length - 1];
+			int i = Arrays.binarySearch(cumulative, u);
+			return i >= 0 ? i : Math.min(-i - 1, cumulative.length - 1);
+		}
+	}
+}
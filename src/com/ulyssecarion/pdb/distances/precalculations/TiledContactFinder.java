@@ -0,0 +1,439 @@
+package com.ulyssecarion.pdb.distances.precalculations;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.biojava.bio.structure.Atom;
+import org.biojava.bio.structure.Element;
+import org.biojava.bio.structure.Group;
+
+import com.ulyssecarion.pdb.distances.DistanceDataTree;
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.metrics.EntryStatistics;
+import com.ulyssecarion.pdb.distances.serialization.NameInterners;
+import com.ulyssecarion.pdb.distances.serialization.StringDictionary;
+
+/**
+ * Finds the same contacts as
+ * {@link LigandDistanceDataTreeBuilder#addContacts(DistanceDataTree, String, List, List)}
+ * , but without ever holding more than one region of the structure in memory,
+ * for assemblies too large to handle all at once.
+ * <p>
+ * Space is cut into cubic tiles. Every atom that is added is written, as a
+ * small fixed-size record, to the file of each tile it is within
+ * {@link LigandDistanceDataTreeBuilder#MAX_DISTANCE} of, so a tile's file holds
+ * its own atoms plus a margin of its neighbors'. Records are buffered in
+ * memory up to a fixed budget, then appended to their files; a structure whose
+ * records all fit in the budget never touches the disk.
+ * <p>
+ * Contacts are then found one tile at a time. Each ligand atom belongs to
+ * exactly one tile (the one its coordinates fall in), and only that tile looks
+ * for its contacts; since all of the atom's neighbors are within the tile's
+ * margin, none are missed, and since no other tile looks, none are found
+ * twice.
+ * <p>
+ * Atoms can also be added at coordinates other than their own, tagged with
+ * the symmetry operator that put them there; see
+ * {@link LigandDistanceDataTreeBuilder#buildSymmetricTreeFor(DistanceDataTree, String, EntryStatistics)}
+ * . Contacts found between such atoms are tagged in turn.
+ * <p>
+ * The finder keeps its files in a temporary directory, which is deleted when
+ * it is closed.
+ */
+public class TiledContactFinder implements Closeable {
+	/**
+	 * The default length of a tile's side, in angstroms.
+	 */
+	public static final double DEFAULT_TILE_SIZE = 40.0;
+
+	/**
+	 * The default number of bytes of records to buffer before writing them to
+	 * tile files.
+	 */
+	public static final int DEFAULT_BUFFER_BYTES = 16 << 20;
+
+	private static final double OVERLAP = LigandDistanceDataTreeBuilder.MAX_DISTANCE;
+	private static final Element[] ELEMENTS = Element.values();
+
+	private static final int FLAG_WATER = 1;
+	private static final int FLAG_LIGAND = 2;
+
+	private File dir;
+	private final double tileSize;
+	private final int bufferBytes;
+
+	private final StringDictionary components = NameInterners
+			.getComponents();
+	private final StringDictionary atomNames = NameInterners
+			.getAtomNames();
+	private final StringDictionary operators = new StringDictionary();
+	private final Map<Long, ByteArrayOutputStream> buffers = new HashMap<>();
+	private final TreeSet<Long> tiles = new TreeSet<>();
+	private final ByteBuffer record = ByteBuffer.allocate(Record.BYTES);
+	private int buffered;
+	private int nextGroupID;
+	private int atomCount;
+	private int ligandCount;
+
+	/**
+	 * Makes a finder with the default tile size and buffer budget.
+	 */
+	public TiledContactFinder() {
+		this(DEFAULT_TILE_SIZE, DEFAULT_BUFFER_BYTES);
+	}
+
+	/**
+	 * @param tileSize
+	 *            the length of a tile's side, in angstroms; it must be larger
+	 *            than {@link LigandDistanceDataTreeBuilder#MAX_DISTANCE}
+	 * @param bufferBytes
+	 *            how many bytes of records to buffer before writing them out
+	 */
+	public TiledContactFinder(double tileSize, int bufferBytes) {
+		if (tileSize <= OVERLAP)
+			throw new IllegalArgumentException("Tiles must be larger than "
+					+ OVERLAP + " A.");
+
+		this.tileSize = tileSize;
+		this.bufferBytes = bufferBytes;
+	}
+
+	/**
+	 * Adds every atom of a group.
+	 *
+	 * @param group
+	 *            the group to add
+	 * @param ligand
+	 *            whether the group is a ligand, and so has its contacts found
+	 * @throws IOException
+	 *             if a tile file could not be written
+	 */
+	public void add(Group group, boolean ligand) throws IOException {
+		int groupID = nextGroupID(ligand);
+
+		for (Atom atom : group.getAtoms()) {
+			add(atom, groupID, group.isWater(), ligand, null, 1, atom.getX(),
+					atom.getY(), atom.getZ());
+		}
+	}
+
+	/**
+	 * Adds one atom, at the given coordinates rather than its own.
+	 *
+	 * @param groupID
+	 *            a number that is the same for every atom of the same group,
+	 *            and different for every other group
+	 * @param operator
+	 *            the ID of the symmetry operator that moved the atom to these
+	 *            coordinates, or null
+	 * @param multiplicity
+	 *            for ligand atoms, how many symmetry copies of the atom there
+	 *            are
+	 */
+	void add(Atom atom, int groupID, boolean water, boolean ligand,
+			String operator, int multiplicity, double x, double y, double z)
+			throws IOException {
+		record.clear();
+		record.putDouble(x).putDouble(y).putDouble(z);
+		record.putInt(atom.getPDBserial()).putInt(groupID);
+		record.putInt(components.getOrAdd(atom.getGroup().getPDBName().trim()));
+		record.putInt(atomNames.getOrAdd(atom.getName().trim()));
+		record.putInt(operator == null ? -1 : operators.getOrAdd(operator));
+		record.putInt(multiplicity);
+		record.put((byte) atom.getElement().ordinal());
+		record.put((byte) ((water ? FLAG_WATER : 0) | (ligand ? FLAG_LIGAND
+				: 0)));
+
+		int minX = tileOf(x - OVERLAP), maxX = tileOf(x + OVERLAP);
+		int minY = tileOf(y - OVERLAP), maxY = tileOf(y + OVERLAP);
+		int minZ = tileOf(z - OVERLAP), maxZ = tileOf(z + OVERLAP);
+
+		for (int tx = minX; tx <= maxX; tx++) {
+			for (int ty = minY; ty <= maxY; ty++) {
+				for (int tz = minZ; tz <= maxZ; tz++) {
+					Long tile = key(tx, ty, tz);
+					ByteArrayOutputStream buffer = buffers.get(tile);
+
+					if (buffer == null) {
+						buffer = new ByteArrayOutputStream();
+						buffers.put(tile, buffer);
+						tiles.add(tile);
+					}
+
+					buffer.write(record.array(), 0, Record.BYTES);
+					buffered += Record.BYTES;
+				}
+			}
+		}
+
+		atomCount++;
+
+		if (buffered > bufferBytes)
+			flush();
+	}
+
+	/**
+	 * Assigns a number to a new group, for atoms added with
+	 * {@link #add(Atom, int, boolean, boolean, String, int, double, double, double)}
+	 * .
+	 */
+	int nextGroupID(boolean ligand) {
+		if (ligand)
+			ligandCount++;
+		return nextGroupID++;
+	}
+
+	/**
+	 * @return the number of atoms added so far
+	 */
+	public int getAtomCount() {
+		return atomCount;
+	}
+
+	/**
+	 * @return the number of ligand groups added so far
+	 */
+	public int getLigandCount() {
+		return ligandCount;
+	}
+
+	/**
+	 * @return the number of tiles atoms have been added to
+	 */
+	public int getTileCount() {
+		return tiles.size();
+	}
+
+	/**
+	 * Finds the contacts of every ligand atom added, one tile at a time, and
+	 * adds them to a data tree.
+	 *
+	 * @param dataTree
+	 *            the DistanceDataTree to add to
+	 * @param pdbID
+	 *            the PDB ID of the structure the atoms are from
+	 * @param stats
+	 *            receives the pair and contact counts
+	 * @throws IOException
+	 *             if a tile file could not be read
+	 */
+	public void findContacts(DistanceDataTree dataTree, String pdbID,
+			EntryStatistics stats) throws IOException {
+		for (Long tile : tiles) {
+			findContacts(tile, dataTree, pdbID, stats);
+		}
+	}
+
+	private void findContacts(long tile, DistanceDataTree dataTree,
+			String pdbID, EntryStatistics stats) throws IOException {
+		List<Record> records = read(tile);
+		Map<Long, List<Record>> cells = new HashMap<>();
+
+		for (Record r : records) {
+			Long cell = key(cellOf(r.x), cellOf(r.y), cellOf(r.z));
+			List<Record> inCell = cells.get(cell);
+
+			if (inCell == null) {
+				inCell = new ArrayList<>();
+				cells.put(cell, inCell);
+			}
+
+			inCell.add(r);
+		}
+
+		for (Record a : records) {
+			if ((a.flags & FLAG_LIGAND) == 0
+					|| key(tileOf(a.x), tileOf(a.y), tileOf(a.z)) != tile)
+				continue;
+
+			int cx = cellOf(a.x), cy = cellOf(a.y), cz = cellOf(a.z);
+
+			for (int dx = -1; dx <= 1; dx++) {
+				for (int dy = -1; dy <= 1; dy++) {
+					for (int dz = -1; dz <= 1; dz++) {
+						List<Record> inCell = cells.get(key(cx + dx, cy + dy,
+								cz + dz));
+						if (inCell == null)
+							continue;
+
+						stats.addPairEvaluations(inCell.size());
+
+						for (Record b : inCell) {
+							double x = a.x - b.x;
+							double y = a.y - b.y;
+							double z = a.z - b.z;
+							double distance = Math.sqrt(x * x + y * y + z * z);
+
+							if (a.groupID != b.groupID
+									&& (b.flags & FLAG_WATER) == 0
+									&& distance < OVERLAP) {
+								dataTree.add(components.get(a.groupName),
+										ELEMENTS[a.element],
+										atomNames.get(a.atomName),
+										components.get(b.groupName),
+										ELEMENTS[b.element],
+										atomNames.get(b.atomName),
+										result(pdbID, distance, a, b));
+								stats.addContactEmitted();
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private DistanceResult result(String pdbID, double distance, Record a,
+			Record b) {
+		if (a.operator == -1 && b.operator == -1)
+			return new DistanceResult(pdbID, distance, a.serial, b.serial);
+
+		return new DistanceResult(pdbID, distance, a.serial, b.serial,
+				a.multiplicity, b.operator == -1 ? null : operators.get(b.operator));
+	}
+
+	/**
+	 * Reads the records of a tile, both those in its file and those still
+	 * buffered.
+	 */
+	private List<Record> read(long tile) throws IOException {
+		List<Record> records = new ArrayList<>();
+
+		if (dir != null && fileOf(tile).exists()) {
+			try (InputStream in = new BufferedInputStream(new FileInputStream(
+					fileOf(tile)), 1 << 16)) {
+				read(in, records);
+			}
+		}
+
+		ByteArrayOutputStream buffer = buffers.get(tile);
+		if (buffer != null)
+			read(new ByteArrayInputStream(buffer.toByteArray()), records);
+
+		return records;
+	}
+
+	private static void read(InputStream stream, List<Record> records)
+			throws IOException {
+		DataInputStream in = new DataInputStream(stream);
+
+		while (true) {
+			double x;
+			try {
+				x = in.readDouble();
+			} catch (EOFException e) {
+				break;
+			}
+
+			records.add(new Record(x, in.readDouble(), in.readDouble(), in
+					.readInt(), in.readInt(), in.readInt(), in.readInt(), in
+					.readInt(), in.readInt(), in.readByte(), in.readByte()));
+		}
+	}
+
+	/**
+	 * Appends every buffered record to its tile's file.
+	 */
+	private void flush() throws IOException {
+		if (dir == null)
+			dir = Files.createTempDirectory("tiles").toFile();
+
+		for (Map.Entry<Long, ByteArrayOutputStream> entry : buffers.entrySet()) {
+			try (OutputStream out = new BufferedOutputStream(
+					new FileOutputStream(fileOf(entry.getKey()), true))) {
+				entry.getValue().writeTo(out);
+			}
+		}
+
+		buffers.clear();
+		buffered = 0;
+	}
+
+	/**
+	 * Deletes every tile file.
+	 */
+	@Override
+	public void close() {
+		buffers.clear();
+
+		if (dir == null)
+			return;
+
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+
+		dir.delete();
+	}
+
+	private File fileOf(long tile) {
+		return new File(dir, Long.toHexString(tile) + ".tile");
+	}
+
+	private int tileOf(double coordinate) {
+		return (int) Math.floor(coordinate / tileSize);
+	}
+
+	private static int cellOf(double coordinate) {
+		return (int) Math.floor(coordinate / OVERLAP);
+	}
+
+	/**
+	 * Packs three signed 21-bit coordinates into one key.
+	 */
+	private static long key(int x, int y, int z) {
+		return ((x & 0x1fffffL) << 42) | ((y & 0x1fffffL) << 21)
+				| (z & 0x1fffffL);
+	}
+
+	private static class Record {
+		private static final int BYTES = 3 * 8 + 6 * 4 + 2;
+
+		private final double x;
+		private final double y;
+		private final double z;
+		private final int serial;
+		private final int groupID;
+		private final int groupName;
+		private final int atomName;
+		private final int operator;
+		private final int multiplicity;
+		private final byte element;
+		private final byte flags;
+
+		public Record(double x, double y, double z, int serial, int groupID,
+				int groupName, int atomName, int operator, int multiplicity,
+				byte element, byte flags) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.serial = serial;
+			this.groupID = groupID;
+			this.groupName = groupName;
+			this.atomName = atomName;
+			this.operator = operator;
+			this.multiplicity = multiplicity;
+			this.element = element;
+			this.flags = flags;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.ulyssecarion.pdb.distances.replay;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ulyssecarion.pdb.distances.DistanceQuery;
+
+/**
+ * A log of distance queries, one per line, as written by
+ * {@link DistanceQuery#toQueryString()}. Each line may be prefixed by the
+ * time the query was received, in milliseconds since the epoch, and a tab:
+ * 
+ * <pre>
+ * 1375315200000	originGroup=HEM&amp;targetGroup=HIS&amp;maxDistance=3.5
+ * </pre>
+ * 
+ * Blank lines and lines starting with <code>#</code> are ignored, so logs can
+ * also be written by hand.
+ * <p>
+ * Writing to a log is thread-safe. Every line is flushed as it is written.
+ */
+public class QueryLog {
+	private final PrintWriter out;
+
+	/**
+	 * Opens a query log for writing, appending to it if it already exists.
+	 * 
+	 * @param file
+	 *            the file to log to
+	 * @throws IOException
+	 */
+	public QueryLog(File file) throws IOException {
+		out = new PrintWriter(new BufferedWriter(new FileWriter(file, true)));
+	}
+
+	public synchronized void log(DistanceQuery q) {
+		out.println(System.currentTimeMillis() + "\t" + q.toQueryString());
+		out.flush();
+	}
+
+	public synchronized void close() {
+		out.close();
+	}
+
+	/**
+	 * Reads every query in a query log. Lines that cannot be parsed are
+	 * reported on standard error and skipped.
+	 * 
+	 * @param file
+	 *            the query log to read
+	 * @return the queries in the log, in order
+	 * @throws IOException
+	 */
+	public static List<DistanceQuery> read(File file) throws IOException {
+		List<DistanceQuery> queries = new ArrayList<>();
+
+		try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+			String line;
+			int lineNumber = 0;
+
+			while ((line = br.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+
+				int tab = line.indexOf('\t');
+				if (tab != -1)
+					line = line.substring(tab + 1);
+
+				try {
+					queries.add(DistanceQuery.fromQueryString(line));
+				} catch (IllegalArgumentException e) {
+					System.err.println("Skipping line " + lineNumber + " of "
+							+ file + ": " + e.getMessage());
+				}
+			}
+		}
+
+		return queries;
+	}
+}
@@ -0,0 +1,220 @@
+package com.ulyssecarion.pdb.distances.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.biojava.bio.structure.Element;
+
+import com.ulyssecarion.pdb.distances.DistanceQuery;
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.DistanceResultListener;
+import com.ulyssecarion.pdb.distances.metrics.QueryStatistics;
+import com.ulyssecarion.pdb.distances.serialization.LeafCache;
+import com.ulyssecarion.pdb.distances.store.DistanceStore;
+import com.ulyssecarion.pdb.distances.store.DistanceStores;
+import com.ulyssecarion.pdb.distances.store.QueryExecutor;
+
+/**
+ * Replays a {@link QueryLog} against a {@link DistanceStore}, to measure how a
+ * store format or cache setting holds up under a realistic mix of queries
+ * before it is rolled out. Everything runs locally, in this JVM.
+ * <p>
+ * There are two ways to drive the searchers:
+ * <ul>
+ * <li>Closed loop ({@link #runClosedLoop(int, int)}): a fixed number of
+ * threads each run one query after another as fast as they can. This measures
+ * the maximum throughput at a given concurrency.</li>
+ * <li>Open loop ({@link #runOpenLoop(double, int)}): queries are started at a
+ * fixed rate no matter how long earlier ones take, the way independent users
+ * would send them. This measures latency at a given load; if the store cannot
+ * keep up, latencies grow without bound instead of throughput quietly
+ * dropping.</li>
+ * </ul>
+ * The queries of the log are run in order, cycling through the log
+ * <code>passes</code> times.
+ */
+public class QueryReplayer {
+	private static final DistanceResultListener IGNORE_RESULTS = new DistanceResultListener() {
+		@Override
+		public void resultFound(String originGroup, Element originElement,
+				String originAtomName, String targetGroup,
+				Element targetElement, String targetAtomName, DistanceResult dr) {
+		}
+	};
+
+	private final DistanceStore store;
+	private final List<DistanceQuery> queries;
+
+	/**
+	 * @param store
+	 *            the store to search through
+	 * @param queries
+	 *            the queries to replay
+	 */
+	public QueryReplayer(DistanceStore store, List<DistanceQuery> queries) {
+		if (queries.isEmpty())
+			throw new IllegalArgumentException("There are no queries to replay.");
+
+		this.store = store;
+		this.queries = new ArrayList<>(queries);
+	}
+
+	/**
+	 * Replays the queries with a fixed number of threads, each starting a new
+	 * query as soon as its previous one is done.
+	 *
+	 * @param concurrency
+	 *            the number of queries to run at once
+	 * @param passes
+	 *            how many times to go through the queries
+	 * @return the results of the run
+	 * @throws InterruptedException
+	 */
+	public ReplayReport runClosedLoop(int concurrency, int passes)
+			throws InterruptedException {
+		final ReplayReport report = new ReplayReport(String.format(
+				Locale.ROOT, "closed loop, %d threads, %d queries x %d passes",
+				concurrency, queries.size(), passes));
+		final long total = (long) queries.size() * passes;
+		final AtomicLong next = new AtomicLong();
+
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < concurrency; i++) {
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					long i;
+					while ((i = next.getAndIncrement()) < total) {
+						execute(queries.get((int) (i % queries.size())),
+								System.nanoTime(), report);
+					}
+				}
+			}, "replay-" + i));
+		}
+
+		long start = System.nanoTime();
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+		report.setElapsedNanos(System.nanoTime() - start);
+
+		return report;
+	}
+
+	/**
+	 * Replays the queries at a fixed arrival rate, starting each one on its
+	 * own schedule whether or not earlier ones have finished.
+	 *
+	 * @param queriesPerSecond
+	 *            the rate at which to start queries
+	 * @param passes
+	 *            how many times to go through the queries
+	 * @return the results of the run
+	 * @throws InterruptedException
+	 */
+	public ReplayReport runOpenLoop(double queriesPerSecond, int passes)
+			throws InterruptedException {
+		final ReplayReport report = new ReplayReport(String.format(
+				Locale.ROOT, "open loop, %.1f queries/s, %d queries x %d passes",
+				queriesPerSecond, queries.size(), passes));
+		long total = (long) queries.size() * passes;
+		double intervalNanos = 1_000_000_000.0 / queriesPerSecond;
+
+		ExecutorService executor = Executors.newCachedThreadPool();
+
+		long start = System.nanoTime();
+		for (long i = 0; i < total; i++) {
+			final long scheduled = start + (long) (i * intervalNanos);
+			final DistanceQuery q = queries.get((int) (i % queries.size()));
+
+			long wait;
+			while ((wait = scheduled - System.nanoTime()) > 0)
+				LockSupport.parkNanos(wait);
+
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					execute(q, scheduled, report);
+				}
+			});
+		}
+
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		report.setElapsedNanos(System.nanoTime() - start);
+
+		return report;
+	}
+
+	private void execute(DistanceQuery q, long start, ReplayReport report) {
+		QueryStatistics stats = new QueryStatistics();
+
+		try {
+			QueryExecutor.search(store, q, IGNORE_RESULTS, stats);
+			report.recordSuccess(System.nanoTime() - start, stats);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			report.recordError();
+		}
+	}
+
+	/**
+	 * Replays a query log. Arguments:
+	 * <ol>
+	 * <li>the store (see {@link DistanceStores#open(String)})</li>
+	 * <li>the query log</li>
+	 * <li>the load: <code>closed:N</code> for N threads, or
+	 * <code>open:R</code> for R queries per second</li>
+	 * <li>optionally, the number of passes through the log (1)</li>
+	 * <li>optionally, the capacity of the leaf cache in rows (no cache)</li>
+	 * </ol>
+	 * The report is printed both for people and as a JSON line.
+	 */
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		if (args.length < 3) {
+			System.err.println("Usage: QueryReplayer <store> "
+					+ "<query log> closed:<threads>|open:<queries per second> "
+					+ "[passes] [leaf cache rows]");
+			System.exit(1);
+		}
+
+		List<DistanceQuery> queries = QueryLog.read(new File(args[1]));
+		String load = args[2];
+		int passes = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+		if (args.length > 4)
+			DistanceStores.setLeafCache(new LeafCache(Long.parseLong(args[4])));
+
+		DistanceStore store = DistanceStores.open(args[0]);
+		QueryReplayer replayer = new QueryReplayer(store, queries);
+		ReplayReport report;
+
+		if (load.startsWith("closed:")) {
+			report = replayer.runClosedLoop(
+					Integer.parseInt(load.substring("closed:".length())),
+					passes);
+		} else if (load.startsWith("open:")) {
+			report = replayer.runOpenLoop(
+					Double.parseDouble(load.substring("open:".length())),
+					passes);
+		} else {
+			throw new IllegalArgumentException("Unknown load: " + load);
+		}
+
+		store.close();
+
+		System.out.println(store.getDescription());
+		System.out.println(report);
+		System.out.println(report.toJson());
+	}
+}
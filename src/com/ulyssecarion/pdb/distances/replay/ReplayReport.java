@@ -0,0 +1,160 @@
+package com.ulyssecarion.pdb.distances.replay;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ulyssecarion.pdb.distances.metrics.LatencyHistogram;
+import com.ulyssecarion.pdb.distances.metrics.QueryStatistics;
+
+/**
+ * The results of replaying a query log with a {@link QueryReplayer}:
+ * throughput, latency percentiles, errors, and how much of the store had to
+ * be read, including how often leaves came out of the leaf cache.
+ * <p>
+ * In open-loop runs, latencies are measured from the time each query was
+ * scheduled to start rather than from the time it actually started, so that
+ * queueing delays caused by slow queries are not hidden.
+ * <p>
+ * Recording is thread-safe.
+ */
+public class ReplayReport {
+	private final String mode;
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong rowsReturned = new AtomicLong();
+	private final AtomicLong leavesOpened = new AtomicLong();
+	private final AtomicLong leavesCached = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private long elapsedNanos;
+
+	/**
+	 * @param mode
+	 *            a description of how the queries were replayed
+	 */
+	public ReplayReport(String mode) {
+		this.mode = mode;
+	}
+
+	public void recordSuccess(long latencyNanos, QueryStatistics stats) {
+		latencies.record(latencyNanos);
+		rowsReturned.addAndGet(stats.getRowsReturned());
+		leavesOpened.addAndGet(stats.getLeavesOpened());
+		leavesCached.addAndGet(stats.getLeavesCached());
+		bytesRead.addAndGet(stats.getBytesRead());
+	}
+
+	public void recordError() {
+		errors.incrementAndGet();
+	}
+
+	public String getMode() {
+		return mode;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	public void setElapsedNanos(long elapsedNanos) {
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * @return the latencies of the queries that succeeded
+	 */
+	public LatencyHistogram getLatencies() {
+		return latencies;
+	}
+
+	public long getCompleted() {
+		return latencies.getCount();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	/**
+	 * @return the fraction of queries that failed
+	 */
+	public double getErrorRate() {
+		long total = getCompleted() + getErrors();
+		return total == 0 ? 0 : (double) getErrors() / total;
+	}
+
+	/**
+	 * @return queries completed per second
+	 */
+	public double getThroughput() {
+		return elapsedNanos == 0 ? 0 : getCompleted()
+				/ (elapsedNanos / 1_000_000_000.0);
+	}
+
+	public long getRowsReturned() {
+		return rowsReturned.get();
+	}
+
+	public long getLeavesOpened() {
+		return leavesOpened.get();
+	}
+
+	public long getLeavesCached() {
+		return leavesCached.get();
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * @return the fraction of leaves that came from the leaf cache, or 0 if
+	 *         no leaves were needed
+	 */
+	public double getCacheHitRatio() {
+		long total = getLeavesOpened() + getLeavesCached();
+		return total == 0 ? 0 : (double) getLeavesCached() / total;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "%s%n"
+				+ "  completed: %d in %.3f s (%.1f queries/s)%n"
+				+ "  errors: %d (%.2f%%)%n"
+				+ "  latency ms: mean %.3f, p50 %.3f, p90 %.3f, p99 %.3f, "
+				+ "p999 %.3f, max %.3f%n"
+				+ "  rows returned: %d%n"
+				+ "  leaves: %d read (%d bytes), %d cached (hit ratio %.3f)",
+				mode, getCompleted(), elapsedNanos / 1_000_000_000.0,
+				getThroughput(), getErrors(), getErrorRate() * 100,
+				latencies.getMean() / 1_000_000.0,
+				latencies.getPercentile(0.50) / 1_000_000.0,
+				latencies.getPercentile(0.90) / 1_000_000.0,
+				latencies.getPercentile(0.99) / 1_000_000.0,
+				latencies.getPercentile(0.999) / 1_000_000.0,
+				latencies.getMax() / 1_000_000.0, getRowsReturned(),
+				getLeavesOpened(), getBytesRead(), getLeavesCached(),
+				getCacheHitRatio());
+	}
+
+	/**
+	 * @return this report as a JSON object
+	 */
+	public String toJson() {
+		return String.format(Locale.ROOT, "{\"mode\":\"%s\",\"completed\":%d,"
+				+ "\"errors\":%d,\"elapsedSeconds\":%.3f,"
+				+ "\"queriesPerSecond\":%.3f,\"latencyMillis\":{\"mean\":%.3f,"
+				+ "\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"p999\":%.3f,"
+				+ "\"max\":%.3f},\"rowsReturned\":%d,\"leavesOpened\":%d,"
+				+ "\"leavesCached\":%d,\"bytesRead\":%d,"
+				+ "\"cacheHitRatio\":%.4f}", mode, getCompleted(), getErrors(),
+				elapsedNanos / 1_000_000_000.0, getThroughput(),
+				latencies.getMean() / 1_000_000.0,
+				latencies.getPercentile(0.50) / 1_000_000.0,
+				latencies.getPercentile(0.90) / 1_000_000.0,
+				latencies.getPercentile(0.99) / 1_000_000.0,
+				latencies.getPercentile(0.999) / 1_000_000.0,
+				latencies.getMax() / 1_000_000.0, getRowsReturned(),
+				getLeavesOpened(), getLeavesCached(), getBytesRead(),
+				getCacheHitRatio());
+	}
+}
@@ -0,0 +1,464 @@
+package com.ulyssecarion.pdb.distances.serialization;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.store.DistanceStores;
+
+/**
+ * Reads and writes leaves of a directory structure in a compressed binary
+ * format, which takes several times less room than the text format written
+ * by {@link DistanceDataTreeSerializer#serializeOneResult(DistanceResult, String)}
+ * . A compressed leaf keeps its usual <code>.ser</code> name; it is told apart
+ * from a text one by its first byte, which is never 0 in a text leaf.
+ * <p>
+ * Rows are sorted by PDB ID, then by origin and target serial, and split into
+ * blocks of {@link #BLOCK_ROWS} rows. A leaf looks like this:
+ *
+ * <pre>
+ * 	int magic, byte version
+ * 	until the end of the file, blocks:
+ * 		row count, raw length, stored length, int CRC32 of the raw bytes,
+ * 		byte method (0 if stored as is, 1 if compressed with {@link LzCompressor}),
+ * 		the stored bytes
+ * </pre>
+ *
+ * The raw bytes of a block are runs of rows from the same entry:
+ *
+ * <pre>
+ * 	PDB ID (UTF), row count, then for each row:
+ * 		origin and target serial, minus those of the row before in the run
+ * 		distance in tenths of an Angstrom, shifted left once, plus 1 if tagged
+ * 		multiplicity and operator ID (UTF, empty if none), if tagged
+ * </pre>
+ *
+ * where every number not said to be an int or a byte is written with
+ * {@link Varints}, the serials as signed ones. Leaves are read a block at a
+ * time, and each block is checked against its CRC32 before it is decoded.
+ * <p>
+ * Compressed leaves are meant for directory structures that are done being
+ * built; {@link #compressDirectory(File)} converts every text leaf under a
+ * directory. Leaves with only a handful of rows are smaller as text, and are
+ * kept that way. Rows added to a compressed leaf later on are appended to it
+ * as blocks of their own (see {@link #append(File, List)}), sorted among
+ * themselves, so the rows of a leaf are only sorted within each append.
+ * Version 1 leaves, which had a block count after their version, are still
+ * read.
+ * <p>
+ * A leaf is never left half-written: whole leaves are written to a temporary
+ * file that is then renamed over the leaf, and a failed append is cut off
+ * again.
+ */
+public class CompressedLeaves {
+	public static final int MAGIC = 0x004c5a4c;
+	public static final int VERSION = 2;
+	public static final int BLOCK_ROWS = 4096;
+
+	private static final int STORED = 0;
+	private static final int COMPRESSED = 1;
+
+	private static final Comparator<DistanceResult> BY_ENTRY = new Comparator<DistanceResult>() {
+		@Override
+		public int compare(DistanceResult a, DistanceResult b) {
+			int c = a.getPdbID().compareTo(b.getPdbID());
+			if (c == 0)
+				c = Integer.compare(a.getOrigin(), b.getOrigin());
+			if (c == 0)
+				c = Integer.compare(a.getTarget(), b.getTarget());
+			return c;
+		}
+	};
+
+	/**
+	 * Checks whether a leaf is compressed.
+	 *
+	 * @param leaf
+	 *            the leaf file
+	 * @return true if the leaf exists and is compressed
+	 */
+	public static boolean isCompressed(File leaf) {
+		if (leaf.length() < 4)
+			return false;
+
+		try (DataInputStream in = new DataInputStream(new FileInputStream(leaf))) {
+			return in.readInt() == MAGIC;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Writes a compressed leaf, replacing the file if it exists. The leaf is
+	 * written to a temporary file first, so if writing fails, the leaf is left
+	 * as it was.
+	 *
+	 * @param leaf
+	 *            the leaf file
+	 * @param results
+	 *            the rows of the leaf, in any order
+	 * @throws IOException
+	 */
+	public static void write(File leaf, List<DistanceResult> results)
+			throws IOException {
+		File temp = getTempFile(leaf);
+
+		try {
+			writeFile(temp, results);
+			replace(temp, leaf);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Adds rows to the end of a compressed leaf, as blocks of their own, so
+	 * none of the leaf's existing rows are read or rewritten. If appending
+	 * fails, the leaf is cut back to the length it had before.
+	 *
+	 * @param leaf
+	 *            a compressed leaf
+	 * @param results
+	 *            the rows to add, in any order
+	 * @throws IOException
+	 *             if the rows could not be appended; the leaf then holds the
+	 *             same rows as before
+	 */
+	public static void append(File leaf, List<DistanceResult> results)
+			throws IOException {
+		if (getVersion(leaf) != VERSION) {
+			// older leaves keep a block count up front, so they're upgraded
+			List<DistanceResult> rows = new ArrayList<>();
+			read(leaf, rows);
+			rows.addAll(results);
+			write(leaf, rows);
+			return;
+		}
+
+		long length = leaf.length();
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(leaf, true)))) {
+			writeBlocks(out, results);
+		} catch (IOException e) {
+			try (RandomAccessFile raf = new RandomAccessFile(leaf, "rw")) {
+				raf.setLength(length);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the rows of a compressed leaf, a block at a time.
+	 *
+	 * @param leaf
+	 *            the leaf file
+	 * @param results
+	 *            the list to add rows to; if a block turns out to be
+	 *            corrupt, the rows of the blocks before it are still added
+	 * @throws IOException
+	 *             if the leaf could not be read, is not compressed, or a
+	 *             block does not match its checksum
+	 */
+	public static void read(File leaf, List<DistanceResult> results)
+			throws IOException {
+		read(leaf, results, null);
+	}
+
+	/**
+	 * Works like {@link #read(File, List)}, but gives rows a dictionary's
+	 * instance of their PDB ID when it has one.
+	 *
+	 * @param leaf
+	 *            the leaf file
+	 * @param results
+	 *            the list to add rows to
+	 * @param pdbIDs
+	 *            the PDB ID dictionary of the directory structure the leaf is
+	 *            in, which is left alone; or null
+	 * @throws IOException
+	 */
+	public static void read(File leaf, List<DistanceResult> results,
+			StringDictionary pdbIDs) throws IOException {
+		CRC32 crc = new CRC32();
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(leaf)))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException(leaf + " is not a compressed leaf.");
+
+			int version = in.readByte();
+			if (version != 1 && version != VERSION)
+				throw new IOException(leaf + " has an unknown version.");
+
+			// version 1 leaves say how many blocks they have
+			int blocks = version == 1 ? Varints.read(in) : Integer.MAX_VALUE;
+			byte[] stored = new byte[0];
+			byte[] raw = new byte[0];
+
+			for (int b = 0; b < blocks; b++) {
+				if (version != 1 && atEnd(in))
+					break;
+
+				int rowCount = Varints.read(in);
+				int rawLength = Varints.read(in);
+				int storedLength = Varints.read(in);
+				int checksum = in.readInt();
+				int method = in.readByte();
+
+				if (stored.length < storedLength)
+					stored = new byte[storedLength];
+				in.readFully(stored, 0, storedLength);
+
+				byte[] bytes = stored;
+				if (method == COMPRESSED) {
+					if (raw.length < rawLength)
+						raw = new byte[rawLength];
+					LzCompressor.decompress(stored, storedLength, raw,
+							rawLength);
+					bytes = raw;
+				}
+
+				crc.reset();
+				crc.update(bytes, 0, rawLength);
+				if ((int) crc.getValue() != checksum)
+					throw new IOException("Block " + b + " of " + leaf
+							+ " does not match its checksum.");
+
+				decodeBlock(new DataInputStream(new ByteArrayInputStream(
+						bytes, 0, rawLength)), rowCount, results, pdbIDs);
+			}
+		}
+	}
+
+	/**
+	 * Compresses every text leaf under a directory, in place. Leaves that are
+	 * already compressed, or that would not get any smaller, are left alone.
+	 *
+	 * @param root
+	 *            the root of a directory structure
+	 * @return the number of bytes saved
+	 */
+	public static long compressDirectory(File root) {
+		long saved = 0;
+		File[] files = root.listFiles();
+
+		if (files == null)
+			return 0;
+
+		for (File file : files) {
+			if (file.getName().startsWith("."))
+				continue;
+
+			if (file.isDirectory()) {
+				saved += compressDirectory(file);
+			} else if (file.getName().endsWith(
+					DistanceDataTreeSerializer.EXTENSION)
+					&& !isCompressed(file)) {
+				saved += compress(file);
+			}
+		}
+
+		return saved;
+	}
+
+	private static long compress(File leaf) {
+		long before = leaf.length();
+		List<DistanceResult> results = DistanceDataTreeSerializer
+				.deserializeResults(leaf);
+		File temp = getTempFile(leaf);
+
+		try {
+			writeFile(temp, results);
+
+			if (temp.length() >= before)
+				return 0;
+
+			replace(temp, leaf);
+			return before - leaf.length();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		} finally {
+			temp.delete();
+		}
+	}
+
+	private static File getTempFile(File leaf) {
+		return new File(leaf.getParentFile(), "." + leaf.getName() + ".tmp");
+	}
+
+	private static void replace(File temp, File leaf) throws IOException {
+		if (!temp.renameTo(leaf)) {
+			leaf.delete();
+			if (!temp.renameTo(leaf))
+				throw new IOException("Could not replace " + leaf);
+		}
+	}
+
+	private static int getVersion(File leaf) throws IOException {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(leaf))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException(leaf + " is not a compressed leaf.");
+			return in.readByte();
+		}
+	}
+
+	private static void writeFile(File file, List<DistanceResult> results)
+			throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			writeBlocks(out, results);
+		}
+	}
+
+	private static void writeBlocks(DataOutputStream out,
+			List<DistanceResult> results) throws IOException {
+		List<DistanceResult> rows = new ArrayList<>(results);
+		Collections.sort(rows, BY_ENTRY);
+
+		ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		CRC32 crc = new CRC32();
+
+		for (int start = 0; start < rows.size(); start += BLOCK_ROWS) {
+			List<DistanceResult> block = rows.subList(start,
+					Math.min(start + BLOCK_ROWS, rows.size()));
+
+			raw.reset();
+			encodeBlock(new DataOutputStream(raw), block);
+			byte[] bytes = raw.toByteArray();
+			byte[] compressed = LzCompressor.compress(bytes, bytes.length);
+			boolean useCompressed = compressed.length < bytes.length;
+			byte[] stored = useCompressed ? compressed : bytes;
+
+			crc.reset();
+			crc.update(bytes, 0, bytes.length);
+
+			Varints.write(out, block.size());
+			Varints.write(out, bytes.length);
+			Varints.write(out, stored.length);
+			out.writeInt((int) crc.getValue());
+			out.writeByte(useCompressed ? COMPRESSED : STORED);
+			out.write(stored);
+		}
+	}
+
+	/**
+	 * Checks whether a stream has nothing left to read, without reading
+	 * anything from it.
+	 */
+	private static boolean atEnd(InputStream in) throws IOException {
+		in.mark(1);
+		int next = in.read();
+		in.reset();
+		return next == -1;
+	}
+
+	private static void encodeBlock(DataOutputStream out,
+			List<DistanceResult> block) throws IOException {
+		int start = 0;
+
+		while (start < block.size()) {
+			String pdbID = block.get(start).getPdbID();
+			int end = start + 1;
+			while (end < block.size()
+					&& block.get(end).getPdbID().equals(pdbID))
+				end++;
+
+			out.writeUTF(pdbID);
+			Varints.write(out, end - start);
+
+			int origin = 0;
+			int target = 0;
+			for (DistanceResult dr : block.subList(start, end)) {
+				Varints.writeSigned(out, dr.getOrigin() - origin);
+				Varints.writeSigned(out, dr.getTarget() - target);
+				origin = dr.getOrigin();
+				target = dr.getTarget();
+
+				int tenths = (int) (dr.getDistance() * 10);
+				Varints.write(out, tenths << 1 | (dr.isTagged() ? 1 : 0));
+
+				if (dr.isTagged()) {
+					Varints.write(out, dr.getMultiplicity());
+					out.writeUTF(dr.getOperator() == null ? "" : dr
+							.getOperator());
+				}
+			}
+
+			start = end;
+		}
+	}
+
+	private static void decodeBlock(DataInputStream in, int rowCount,
+			List<DistanceResult> results, StringDictionary pdbIDs)
+			throws IOException {
+		int read = 0;
+
+		while (read < rowCount) {
+			String pdbID = in.readUTF();
+			if (pdbIDs != null)
+				pdbID = pdbIDs.canonical(pdbID);
+			int runLength = Varints.read(in);
+
+			int origin = 0;
+			int target = 0;
+			for (int i = 0; i < runLength; i++) {
+				origin += Varints.readSigned(in);
+				target += Varints.readSigned(in);
+
+				int distance = Varints.read(in);
+				double tenths = (distance >>> 1) / 10.0;
+
+				if ((distance & 1) == 0) {
+					results.add(new DistanceResult(pdbID, tenths, origin,
+							target));
+				} else {
+					int multiplicity = Varints.read(in);
+					String operator = in.readUTF();
+
+					results.add(new DistanceResult(pdbID, tenths, origin,
+							target, multiplicity, operator.isEmpty() ? null
+									: operator));
+				}
+			}
+
+			read += runLength;
+		}
+	}
+
+	/**
+	 * Compresses every text leaf of a directory structure. Argument: the root
+	 * of the directory structure (by default,
+	 * {@link DistanceStores#getDefaultRoot()}).
+	 */
+	public static void main(String[] args) {
+		File root = args.length > 0 ? new File(args[0]) : DistanceStores
+				.getDefaultRoot();
+
+		long start = System.currentTimeMillis();
+		long saved = compressDirectory(root);
+		long stop = System.currentTimeMillis();
+
+		System.out.println("Compressed the leaves of " + root + ", saving "
+				+ saved + " bytes, in " + (stop - start) + " ms.");
+	}
+}
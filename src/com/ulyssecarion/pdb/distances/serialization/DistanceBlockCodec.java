@@ -0,0 +1,275 @@
+package com.ulyssecarion.pdb.distances.serialization;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.biojava.bio.structure.Element;
+
+import com.ulyssecarion.pdb.distances.DistanceDataTree;
+import com.ulyssecarion.pdb.distances.DistanceDataTree.OriginAtomNameTree;
+import com.ulyssecarion.pdb.distances.DistanceDataTree.OriginElementTree;
+import com.ulyssecarion.pdb.distances.DistanceDataTree.OriginGroupTree;
+import com.ulyssecarion.pdb.distances.DistanceDataTree.TargetElementTree;
+import com.ulyssecarion.pdb.distances.DistanceDataTree.TargetGroupTree;
+import com.ulyssecarion.pdb.distances.DistanceResult;
+
+/**
+ * Saves DistanceDataTrees in a compact binary format that is much quicker to
+ * write and read than Java serialization, and can be read a leaf at a time
+ * without rebuilding the tree in memory. A block looks like this:
+ *
+ * <pre>
+ * 	int magic, int version
+ * 	key count, then each key (UTF)
+ * 	PDB ID count, then each PDB ID (UTF)
+ * 	operator count, then each operator ID (UTF)
+ * 	leaf count, then for each leaf:
+ * 		byte number of keys shared with the leaf before
+ * 		index of each key that is not shared
+ * 		row count, then for each row:
+ * 			PDB ID index, double distance, origin serial, target serial,
+ * 			multiplicity, operator index + 1 (0 if none)
+ * </pre>
+ *
+ * Every number other than the magic, version and distances is written with
+ * {@link Varints}. Keys are the group, element and atom names of all six
+ * levels, in one dictionary; since leaves are written depth-first, most of
+ * them only differ from the one before in their target atom name.
+ */
+public class DistanceBlockCodec {
+	public static final int MAGIC = 0x50444442;
+	public static final int VERSION = 1;
+
+	/**
+	 * Is given the leaves of a tree or block one at a time.
+	 */
+	public interface LeafVisitor {
+		/**
+		 * @param keys
+		 *            the six keys of the leaf
+		 * @param results
+		 *            the rows of the leaf
+		 */
+		void visitLeaf(String[] keys, List<DistanceResult> results)
+				throws IOException;
+	}
+
+	/**
+	 * Writes a tree to a block file.
+	 *
+	 * @param dataTree
+	 *            the tree to write
+	 * @param file
+	 *            the file to write to; it is overwritten
+	 * @throws IOException
+	 */
+	public static void write(DistanceDataTree dataTree, File file)
+			throws IOException {
+		final StringDictionary keys = new StringDictionary();
+		final StringDictionary pdbIDs = new StringDictionary();
+		final StringDictionary operators = new StringDictionary();
+		final int[] leafCount = new int[1];
+
+		visit(dataTree, new LeafVisitor() {
+			@Override
+			public void visitLeaf(String[] leaf, List<DistanceResult> results) {
+				for (String key : leaf)
+					keys.getOrAdd(key);
+
+				for (DistanceResult dr : results) {
+					pdbIDs.getOrAdd(dr.getPdbID());
+					if (dr.getOperator() != null)
+						operators.getOrAdd(dr.getOperator());
+				}
+
+				leafCount[0]++;
+			}
+		});
+
+		try (final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeDictionary(out, keys);
+			writeDictionary(out, pdbIDs);
+			writeDictionary(out, operators);
+			Varints.write(out, leafCount[0]);
+
+			visit(dataTree, new LeafVisitor() {
+				private String[] previous;
+
+				@Override
+				public void visitLeaf(String[] leaf, List<DistanceResult> results)
+						throws IOException {
+					int shared = 0;
+					if (previous != null) {
+						while (shared < leaf.length
+								&& previous[shared].equals(leaf[shared]))
+							shared++;
+					}
+
+					out.writeByte(shared);
+					for (int i = shared; i < leaf.length; i++)
+						Varints.write(out, keys.indexOf(leaf[i]));
+
+					Varints.write(out, results.size());
+					for (DistanceResult dr : results) {
+						Varints.write(out, pdbIDs.indexOf(dr.getPdbID()));
+						out.writeDouble(dr.getDistance());
+						Varints.write(out, dr.getOrigin());
+						Varints.write(out, dr.getTarget());
+						Varints.write(out, dr.getMultiplicity());
+						Varints.write(out, dr.getOperator() == null ? 0
+								: operators.indexOf(dr.getOperator()) + 1);
+					}
+
+					previous = leaf;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Reads a block file back into a tree.
+	 *
+	 * @param file
+	 *            the file to read
+	 * @return the tree
+	 * @throws IOException
+	 */
+	public static DistanceDataTree read(File file) throws IOException {
+		final DistanceDataTree dataTree = new DistanceDataTree();
+
+		visit(file, new LeafVisitor() {
+			@Override
+			public void visitLeaf(String[] leaf, List<DistanceResult> results) {
+				Element originElement = Element.valueOf(leaf[1]);
+				Element targetElement = Element.valueOf(leaf[4]);
+
+				for (DistanceResult dr : results) {
+					dataTree.add(leaf[0], originElement, leaf[2], leaf[3],
+							targetElement, leaf[5], dr);
+				}
+			}
+		});
+
+		return dataTree;
+	}
+
+	/**
+	 * Reads a block file one leaf at a time, giving each to a visitor. Only
+	 * the leaf being visited is ever in memory.
+	 *
+	 * @param file
+	 *            the file to read
+	 * @param visitor
+	 *            what to give each leaf to
+	 * @throws IOException
+	 *             if the file could not be read or is not a block file
+	 */
+	public static void visit(File file, LeafVisitor visitor)
+			throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException(file + " is not a block file.");
+			if (in.readInt() != VERSION)
+				throw new IOException(file + " has an unknown version.");
+
+			String[] keys = readDictionary(in);
+			String[] pdbIDs = readDictionary(in);
+			String[] operators = readDictionary(in);
+			int leafCount = Varints.read(in);
+
+			String[] leaf = new String[6];
+			for (int l = 0; l < leafCount; l++) {
+				leaf = leaf.clone();
+
+				int shared = in.readByte();
+				for (int i = shared; i < leaf.length; i++)
+					leaf[i] = keys[Varints.read(in)];
+
+				int rowCount = Varints.read(in);
+				List<DistanceResult> results = new ArrayList<>(rowCount);
+				for (int r = 0; r < rowCount; r++) {
+					String pdbID = pdbIDs[Varints.read(in)];
+					double distance = in.readDouble();
+					int origin = Varints.read(in);
+					int target = Varints.read(in);
+					int multiplicity = Varints.read(in);
+					int operator = Varints.read(in);
+
+					results.add(new DistanceResult(pdbID, distance, origin,
+							target, multiplicity, operator == 0 ? null
+									: operators[operator - 1]));
+				}
+
+				visitor.visitLeaf(leaf, results);
+			}
+		}
+	}
+
+	/**
+	 * Gives every leaf of a tree to a visitor, depth-first.
+	 *
+	 * @param dataTree
+	 *            the tree to go through
+	 * @param visitor
+	 *            what to give each leaf to
+	 * @throws IOException
+	 *             if the visitor throws one
+	 */
+	public static void visit(DistanceDataTree dataTree, LeafVisitor visitor)
+			throws IOException {
+		for (String originGroup : dataTree.getOriginGroupNames()) {
+			OriginGroupTree ogt = dataTree.get(originGroup).get(0);
+
+			for (Element originElement : ogt.getKeys()) {
+				OriginElementTree oet = ogt.get(originElement).get(0);
+
+				for (String originAtom : oet.getKeys()) {
+					OriginAtomNameTree oat = oet.get(originAtom).get(0);
+
+					for (String targetGroup : oat.getKeys()) {
+						TargetGroupTree tgt = oat.get(targetGroup).get(0);
+
+						for (Element targetElement : tgt.getKeys()) {
+							TargetElementTree tet = tgt.get(targetElement)
+									.get(0);
+
+							for (String targetAtom : tet.getKeys()) {
+								visitor.visitLeaf(new String[] { originGroup,
+										originElement.toString(), originAtom,
+										targetGroup, targetElement.toString(),
+										targetAtom }, tet.get(targetAtom));
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static void writeDictionary(DataOutputStream out,
+			StringDictionary dictionary) throws IOException {
+		Varints.write(out, dictionary.size());
+		for (int i = 0; i < dictionary.size(); i++)
+			out.writeUTF(dictionary.get(i));
+	}
+
+	private static String[] readDictionary(DataInputStream in)
+			throws IOException {
+		String[] strings = new String[Varints.read(in)];
+		for (int i = 0; i < strings.length; i++)
+			strings[i] = in.readUTF();
+		return strings;
+	}
+}
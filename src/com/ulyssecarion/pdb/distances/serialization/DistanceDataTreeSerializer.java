@@ -4,18 +4,17 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 import com.ulyssecarion.pdb.distances.DistanceDataTree;
 import com.ulyssecarion.pdb.distances.DistanceResult;
 import com.ulyssecarion.pdb.distances.precalculations.LigandDistanceDataTreeBuilder;
+import com.ulyssecarion.pdb.distances.serialization.DistanceBlockCodec.LeafVisitor;
 
 public class DistanceDataTreeSerializer {
 	/**
@@ -39,27 +38,66 @@ public class DistanceDataTreeSerializer {
 	public static final String EXTENSION = ".ser";
 
 	/**
-	 * Serializes an entire DistanceDataTree; you must specify the name of the
-	 * file you want to save to and use this same name to get the
-	 * DistanceDataTree back.
+	 * The extension used on DistanceDataTrees saved by
+	 * {@link DistanceBlockCodec}.
+	 */
+	public static final String BLOCK_EXTENSION = ".ddt";
+
+	/**
+	 * Saves an entire DistanceDataTree with {@link DistanceBlockCodec}; you
+	 * must specify the name of the file you want to save to and use this same
+	 * name to get the DistanceDataTree back.
 	 * 
 	 * @param dataTree
 	 *            the DistanceDataTree to save
 	 * @param name
 	 *            the name of the file to save to
 	 * @see #deserializeDataTree(String)
+	 * @see #visitDataTree(String, LeafVisitor)
 	 */
 	public static void serializeDataTree(DistanceDataTree dataTree, String name) {
 		try {
-			ObjectOutputStream out = new ObjectOutputStream(
-					new FileOutputStream(DDT_OUTPUT_FILE + name + EXTENSION));
-			out.writeObject(dataTree);
-			out.close();
+			DistanceBlockCodec.write(dataTree, getBlockFile(name));
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Goes through a DistanceDataTree saved by
+	 * {@link #serializeDataTree(DistanceDataTree, String)} one leaf at a time,
+	 * without reading the whole tree into memory.
+	 * 
+	 * @param name
+	 *            the name the DistanceDataTree was saved under
+	 * @param visitor
+	 *            what to give each leaf to
+	 * @return false if an error occurred
+	 */
+	public static boolean visitDataTree(String name, LeafVisitor visitor) {
+		try {
+			DistanceBlockCodec.visit(getBlockFile(name), visitor);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * @param name
+	 *            the name a DistanceDataTree was saved under, with or without
+	 *            its extension
+	 * @return the file it was saved to by
+	 *         {@link #serializeDataTree(DistanceDataTree, String)}
+	 */
+	public static File getBlockFile(String name) {
+		if (name.endsWith(BLOCK_EXTENSION))
+			name = name.substring(0, name.length() - BLOCK_EXTENSION.length());
+
+		return new File(DDT_OUTPUT_FILE + name + BLOCK_EXTENSION);
+	}
+
 	/**
 	 * Outputs to a file a distance result in the format:
 	 * 
@@ -88,24 +126,46 @@ public class DistanceDataTreeSerializer {
 
 	/**
 	 * Read in a list of distance results stored at a given path. Results are
-	 * assumed to have been serialized by this class.
+	 * assumed to have been serialized by this class, or compressed by
+	 * {@link CompressedLeaves}.
 	 * 
 	 * @param path
 	 *            the name of the file where the distance results are stored
 	 * @return the list of distance results stored at the passed path.
 	 */
 	public static List<DistanceResult> deserializeResults(String path) {
-		List<DistanceResult> results = new ArrayList<>();
+		return deserializeResults(new File(path));
+	}
 
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(path));
-			String line;
+	/**
+	 * Equivalent to {@link #deserializeResults(String)}, but takes a File
+	 * instead.
+	 * 
+	 * @param file
+	 *            the file where the distance results are stored
+	 * @return the list of distance results stored at the passed file
+	 */
+	public static List<DistanceResult> deserializeResults(File file) {
+		return deserializeResults(file, null);
+	}
 
-			while ((line = br.readLine()) != null) {
-				results.add(DistanceResult.parseSerializedResult(line));
-			}
+	/**
+	 * Works like {@link #deserializeResults(File)}, but gives results a
+	 * dictionary's instance of their PDB ID when it has one.
+	 * 
+	 * @param file
+	 *            the file where the distance results are stored
+	 * @param pdbIDs
+	 *            the PDB ID dictionary of the directory structure the file is
+	 *            in (see {@link LeafBitmaps#getDictionary(File)}), or null
+	 * @return the list of distance results stored at the passed file
+	 */
+	public static List<DistanceResult> deserializeResults(File file,
+			StringDictionary pdbIDs) {
+		List<DistanceResult> results = new ArrayList<>();
 
-			br.close();
+		try {
+			readResults(file, results, pdbIDs);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -114,34 +174,40 @@ public class DistanceDataTreeSerializer {
 	}
 
 	/**
-	 * Equivalent to {@link #deserializeResults(String)}, but takes a File
-	 * instead.
+	 * Works like {@link #deserializeResults(File, StringDictionary)}, but
+	 * lets the caller know if the file could not be read in full.
 	 * 
 	 * @param file
 	 *            the file where the distance results are stored
-	 * @return the list of distance results stored at the passed file
+	 * @param results
+	 *            the list to add the results to
+	 * @param pdbIDs
+	 *            the PDB ID dictionary of the directory structure the file is
+	 *            in, or null
+	 * @throws IOException
+	 *             if the file could not be read; the results read before
+	 *             then have been added
 	 */
-	public static List<DistanceResult> deserializeResults(File file) {
-		List<DistanceResult> results = new ArrayList<>();
+	public static void readResults(File file, List<DistanceResult> results,
+			StringDictionary pdbIDs) throws IOException {
+		if (CompressedLeaves.isCompressed(file)) {
+			CompressedLeaves.read(file, results, pdbIDs);
+			return;
+		}
 
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(file));
+		try (BufferedReader br = new BufferedReader(new FileReader(file))) {
 			String line;
 
 			while ((line = br.readLine()) != null) {
-				results.add(DistanceResult.parseSerializedResult(line));
+				results.add(DistanceResult.parseSerializedResult(line, pdbIDs));
 			}
-
-			br.close();
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
-
-		return results;
 	}
 
 	/**
-	 * Deserializes a DistanceDataTree saved at the file whose name is specified
+	 * Deserializes a DistanceDataTree saved at the file whose name is
+	 * specified. Trees saved with Java serialization by earlier versions of
+	 * this class are still read if there is no block file under that name.
 	 * 
 	 * @param name
 	 *            the location of the DistanceDataTree (this was the argument
@@ -152,6 +218,10 @@ public class DistanceDataTreeSerializer {
 	 */
 	public static DistanceDataTree deserializeDataTree(String name) {
 		try {
+			File block = getBlockFile(name);
+			if (block.exists())
+				return DistanceBlockCodec.read(block);
+
 			if (name.endsWith(EXTENSION))
 				name = name.substring(0, 4);
 
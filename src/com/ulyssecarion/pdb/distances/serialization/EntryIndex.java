@@ -0,0 +1,141 @@
+package com.ulyssecarion.pdb.distances.serialization;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads and writes the per-entry index of a directory structure. For every PDB
+ * entry, the index lists the leaf files (relative to the root of the directory
+ * structure) that contain at least one distance result from that entry. This
+ * makes it possible to answer "every contact in 1STP" by reading a handful of
+ * leaves instead of the whole directory structure.
+ * <p>
+ * The index lives in a hidden folder inside the root of the directory
+ * structure, with one file per entry. Like the PDB's own file layout, entries
+ * are split into subfolders by the middle two characters of their ID:
+ * 
+ * <pre>
+ * 	.entries /
+ * 		ST /
+ * 			1STP.idx
+ * </pre>
+ * 
+ * Each line of an index file is a relative leaf path such as
+ * <code>BTN/O/O11/SER/O/OG.ser</code>.
+ */
+public class EntryIndex {
+	/**
+	 * The name of the folder, inside the root of a directory structure, where
+	 * the index is kept. It starts with a dot so that searches listing group
+	 * folders skip it.
+	 */
+	public static final String FOLDER = ".entries";
+
+	/**
+	 * The extension used on index files.
+	 */
+	public static final String EXTENSION = ".idx";
+
+	/**
+	 * Does this directory structure have a per-entry index at all? Directory
+	 * structures built before the index existed do not.
+	 * 
+	 * @param root
+	 *            the root of the directory structure
+	 * @return true if the index folder exists
+	 */
+	public static boolean exists(File root) {
+		return new File(root, FOLDER).isDirectory();
+	}
+
+	/**
+	 * Gets the file the index of a particular entry is stored in.
+	 * 
+	 * @param root
+	 *            the root of the directory structure
+	 * @param pdbID
+	 *            the PDB ID of the entry
+	 * @return the index file for that entry (it may not exist)
+	 */
+	public static File getIndexFile(File root, String pdbID) {
+		String id = pdbID.toUpperCase();
+		String shard = id.length() >= 3 ? id.substring(1, 3) : id;
+
+		return new File(root, FOLDER + File.separator + shard + File.separator
+				+ id + EXTENSION);
+	}
+
+	/**
+	 * Gets the relative paths of the leaves holding results from an entry.
+	 * 
+	 * @param root
+	 *            the root of the directory structure
+	 * @param pdbID
+	 *            the PDB ID of the entry
+	 * @return the relative leaf paths; empty if the entry has no results
+	 */
+	public static List<String> getLeafPaths(File root, String pdbID) {
+		List<String> paths = new ArrayList<>();
+		File indexFile = getIndexFile(root, pdbID);
+
+		if (!indexFile.exists())
+			return paths;
+
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(indexFile));
+			String line;
+
+			while ((line = br.readLine()) != null) {
+				if (!line.isEmpty())
+					paths.add(line);
+			}
+
+			br.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return paths;
+	}
+
+	/**
+	 * Appends leaf paths to the index. Every entry is normally added only once
+	 * (when the block of entries it is in gets written out), so no attempt is
+	 * made to remove duplicates from what is already on disk.
+	 * 
+	 * @param root
+	 *            the root of the directory structure
+	 * @param leavesByEntry
+	 *            for every PDB ID, the relative paths of the leaves it has
+	 *            results in
+	 */
+	public static void addLeafPaths(File root,
+			Map<String, Set<String>> leavesByEntry) {
+		for (Map.Entry<String, Set<String>> entry : leavesByEntry.entrySet()) {
+			File indexFile = getIndexFile(root, entry.getKey());
+			indexFile.getParentFile().mkdirs();
+
+			try {
+				BufferedWriter out = new BufferedWriter(new FileWriter(
+						indexFile, true));
+
+				for (String leafPath : entry.getValue()) {
+					out.write(leafPath);
+					out.newLine();
+				}
+
+				out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
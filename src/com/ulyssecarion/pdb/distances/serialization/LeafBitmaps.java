@@ -0,0 +1,127 @@
+package com.ulyssecarion.pdb.distances.serialization;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.ulyssecarion.pdb.distances.bitmap.EntryBitmap;
+
+/**
+ * Reads and writes the entry bitmaps kept next to every leaf of a directory
+ * structure. The bitmap of a leaf holds the dictionary index (see
+ * {@link StringDictionary}) of every PDB entry that has at least one result in
+ * that leaf, which lets searches restricted to a set of entries skip leaves
+ * without opening them, and lets "which entries have this contact" be answered
+ * without parsing any results.
+ * <p>
+ * The bitmaps of the leaves in a folder are stored together with their
+ * summaries, in the hidden file {@value LeafSidecars#FILE_NAME} of that folder
+ * (see {@link LeafSidecars}), and the PDB ID dictionary is stored in the root
+ * of the directory structure:
+ * 
+ * <pre>
+ * 	.dictionaries /
+ * 		pdbids.txt
+ * </pre>
+ */
+public class LeafBitmaps {
+	/**
+	 * The name of the folder, inside the root of a directory structure, where
+	 * dictionaries are kept.
+	 */
+	public static final String DICTIONARY_FOLDER = ".dictionaries";
+
+	/**
+	 * The name of the PDB ID dictionary file.
+	 */
+	public static final String PDB_ID_DICTIONARY = "pdbids.txt";
+
+	private static final ConcurrentHashMap<File, LoadedDictionary> dictionaries = new ConcurrentHashMap<>();
+
+	/**
+	 * Gets the file the PDB ID dictionary of a directory structure is kept in.
+	 * 
+	 * @param root
+	 *            the root of the directory structure
+	 * @return the dictionary file (it may not exist)
+	 */
+	public static File getDictionaryFile(File root) {
+		return new File(root, DICTIONARY_FOLDER + File.separator
+				+ PDB_ID_DICTIONARY);
+	}
+
+	/**
+	 * Gets the PDB ID dictionary of a directory structure. The dictionary is
+	 * read from disk the first time it is asked for and kept in memory after
+	 * that. Every later call checks whether the file has changed since
+	 * (because a later build added entries to it) and, if so, reads the new
+	 * entries into the same dictionary, so long-running searchers see every
+	 * index their bitmaps can hold and always get the same object back.
+	 * <p>
+	 * Checking the file takes a couple of system calls, so callers on hot
+	 * paths should hold on to the dictionary rather than ask for it again
+	 * for every leaf.
+	 * 
+	 * @param root
+	 *            the root of the directory structure
+	 * @return the PDB ID dictionary, which is empty if the directory structure
+	 *         has none
+	 */
+	public static StringDictionary getDictionary(File root) {
+		File file = getDictionaryFile(root).getAbsoluteFile();
+		LoadedDictionary loaded = dictionaries.get(file);
+
+		if (loaded == null) {
+			loaded = new LoadedDictionary();
+			LoadedDictionary existing = dictionaries.putIfAbsent(file, loaded);
+			if (existing != null)
+				loaded = existing;
+		}
+
+		loaded.update(file);
+		return loaded.dictionary;
+	}
+
+	/**
+	 * Reads in the bitmap of a leaf.
+	 * 
+	 * @param leaf
+	 *            the leaf file
+	 * @return the bitmap of the leaf, or null if it has none (or it could not
+	 *         be read); it is shared, so it must not be changed
+	 */
+	public static EntryBitmap read(File leaf) {
+		return LeafSidecars.get(leaf.getParentFile()).getBitmap(
+				LeafSidecars.getLeafName(leaf));
+	}
+
+	/**
+	 * A dictionary along with the length and modification time its file had
+	 * when it was last read.
+	 */
+	private static class LoadedDictionary {
+		private final StringDictionary dictionary = new StringDictionary();
+		private volatile long length = -1;
+		private volatile long modified = -1;
+
+		/**
+		 * Reads in what the file has gained, if it has changed since it was
+		 * last read.
+		 */
+		public void update(File file) {
+			long length = file.length();
+			long modified = file.lastModified();
+
+			if (this.length == length && this.modified == modified)
+				return;
+
+			synchronized (this) {
+				if (this.length == length && this.modified == modified)
+					return;
+
+				dictionary.reload(file);
+				this.length = length;
+				this.modified = modified;
+			}
+		}
+	}
+}
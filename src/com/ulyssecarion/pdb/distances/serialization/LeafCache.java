@@ -0,0 +1,162 @@
+package com.ulyssecarion.pdb.distances.serialization;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ulyssecarion.pdb.distances.DistanceResult;
+
+/**
+ * A least-recently-used cache of parsed leaf files, bounded by the total
+ * number of rows it holds rather than by the number of leaves, since leaves
+ * vary in size by orders of magnitude.
+ * <p>
+ * A cached leaf is only returned if the file's length and modification time
+ * have not changed since it was read, so appending to a store while it is
+ * being searched does not serve stale results. Cached lists are unmodifiable.
+ * <p>
+ * All methods are thread-safe.
+ */
+public class LeafCache {
+	private final long capacity;
+	private final LinkedHashMap<File, CachedLeaf> leaves;
+	private long rows;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param capacity
+	 *            the maximum number of rows, across all leaves, to keep
+	 */
+	public LeafCache(long capacity) {
+		this.capacity = capacity;
+		this.leaves = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	/**
+	 * Gets the rows of a leaf, if they are cached and still up to date.
+	 *
+	 * @param leaf
+	 *            the leaf file
+	 * @return the rows of the leaf, or null if it has to be read
+	 */
+	public List<DistanceResult> get(File leaf) {
+		long length = leaf.length();
+		long modified = leaf.lastModified();
+
+		synchronized (this) {
+			CachedLeaf cached = leaves.get(leaf);
+
+			if (cached != null && cached.length == length
+					&& cached.modified == modified) {
+				hits.incrementAndGet();
+				return cached.results;
+			}
+		}
+
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Caches the rows of a leaf, evicting the least recently used leaves if
+	 * needed. Leaves larger than the whole cache are not kept.
+	 *
+	 * @param leaf
+	 *            the leaf file
+	 * @param length
+	 *            the length of the file when it was read
+	 * @param modified
+	 *            the modification time of the file when it was read
+	 * @param results
+	 *            the rows of the leaf
+	 * @return an unmodifiable view of <code>results</code>
+	 */
+	public List<DistanceResult> put(File leaf, long length, long modified,
+			List<DistanceResult> results) {
+		List<DistanceResult> view = Collections.unmodifiableList(results);
+
+		if (results.size() > capacity)
+			return view;
+
+		synchronized (this) {
+			CachedLeaf previous = leaves.put(leaf, new CachedLeaf(length,
+					modified, view));
+			if (previous != null)
+				rows -= previous.results.size();
+			rows += view.size();
+
+			Iterator<Map.Entry<File, CachedLeaf>> eldest = leaves.entrySet()
+					.iterator();
+			while (rows > capacity && eldest.hasNext()) {
+				rows -= eldest.next().getValue().results.size();
+				eldest.remove();
+				evictions.incrementAndGet();
+			}
+		}
+
+		return view;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of rows currently cached
+	 */
+	public synchronized long getRows() {
+		return rows;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return the fraction of lookups that were hits, or 0 if there were none
+	 */
+	public double getHitRatio() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/**
+	 * Empties the cache and resets its counters.
+	 */
+	public synchronized void clear() {
+		leaves.clear();
+		rows = 0;
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+	}
+
+	private static class CachedLeaf {
+		private final long length;
+		private final long modified;
+		private final List<DistanceResult> results;
+
+		public CachedLeaf(long length, long modified,
+				List<DistanceResult> results) {
+			this.length = length;
+			this.modified = modified;
+			this.results = results;
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package com.ulyssecarion.pdb.distances.serialization;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.ulyssecarion.pdb.distances.bitmap.EntryBitmap;
+import com.ulyssecarion.pdb.distances.summary.LeafSummary;
+
+/**
+ * The entry bitmaps (see {@link LeafBitmaps}) and summaries (see
+ * {@link LeafSummaries}) of every leaf in one folder of a directory structure,
+ * which are all kept together in the hidden file {@value #FILE_NAME} of that
+ * folder rather than in two files per leaf. Leaves are named as in the
+ * directory structure, without their extension: the bitmap of
+ * <code>OG.ser</code> is under <code>OG</code>.
+ * <p>
+ * The file starts with {@link #MAGIC} and a version byte, then the number of
+ * leaves, then for each leaf its name, whether it has a bitmap and the bitmap
+ * if so, and whether it has a summary and the summary if so.
+ * <p>
+ * Searches go through {@link #get(File)}, which keeps the most recently used
+ * folders in memory; they must not change what it returns. Builders read a
+ * folder with {@link #read(File)}, update it, and {@link #write(File)} it
+ * back once they are done with every leaf in it.
+ */
+public class LeafSidecars {
+	/**
+	 * The name of the file, in every folder that has leaves, that their
+	 * bitmaps and summaries are kept in.
+	 */
+	public static final String FILE_NAME = ".leaves";
+
+	/**
+	 * The first four bytes of every sidecar file.
+	 */
+	public static final int MAGIC = 0x4c534331; // "LSC1"
+
+	private static final byte VERSION = 1;
+
+	/**
+	 * How many folders {@link #get(File)} keeps in memory.
+	 */
+	private static final int CACHED_FOLDERS = 1024;
+
+	private static final Map<File, LeafSidecars> cache = new LinkedHashMap<File, LeafSidecars>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<File, LeafSidecars> eldest) {
+			return size() > CACHED_FOLDERS;
+		}
+	};
+
+	private final Map<String, EntryBitmap> bitmaps = new TreeMap<>();
+	private final Map<String, LeafSummary> summaries = new TreeMap<>();
+	private long length = -1;
+	private long modified = -1;
+
+	/**
+	 * Gets the file the sidecars of a folder are kept in.
+	 *
+	 * @param folder
+	 *            the folder the leaves are in
+	 * @return the sidecar file (it may not exist)
+	 */
+	public static File getFile(File folder) {
+		return new File(folder, FILE_NAME);
+	}
+
+	/**
+	 * Gets the name a leaf is kept under in the sidecar file of its folder.
+	 *
+	 * @param leaf
+	 *            the leaf file, like <code>.../OG.ser</code>
+	 * @return the name of the leaf, like <code>OG</code>
+	 */
+	public static String getLeafName(File leaf) {
+		String name = leaf.getName();
+		if (name.endsWith(DistanceDataTreeSerializer.EXTENSION))
+			name = name.substring(0, name.length()
+					- DistanceDataTreeSerializer.EXTENSION.length());
+		return name;
+	}
+
+	/**
+	 * Gets the sidecars of a folder, from memory if they were read before and
+	 * the file has not changed since. The result is shared, so it must not be
+	 * changed.
+	 *
+	 * @param folder
+	 *            the folder the leaves are in
+	 * @return the sidecars of the folder, which are empty if it has none (or
+	 *         they could not be read)
+	 */
+	public static LeafSidecars get(File folder) {
+		File file = getFile(folder).getAbsoluteFile();
+		long length = file.length();
+		long modified = file.lastModified();
+
+		synchronized (cache) {
+			LeafSidecars cached = cache.get(file);
+			if (cached != null && cached.length == length
+					&& cached.modified == modified)
+				return cached;
+		}
+
+		LeafSidecars sidecars = read(folder);
+
+		synchronized (cache) {
+			cache.put(file, sidecars);
+		}
+
+		return sidecars;
+	}
+
+	/**
+	 * Reads in the sidecars of a folder, bypassing the cache, so that they
+	 * can be updated.
+	 *
+	 * @param folder
+	 *            the folder the leaves are in
+	 * @return the sidecars of the folder, which are empty if it has none (or
+	 *         they could not be read)
+	 */
+	public static LeafSidecars read(File folder) {
+		File file = getFile(folder);
+		LeafSidecars sidecars = new LeafSidecars();
+		long length = file.length();
+		long modified = file.lastModified();
+
+		if (!file.exists()) {
+			sidecars.length = length;
+			sidecars.modified = modified;
+			return sidecars;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException(file + " is not a sidecar file.");
+			int version = in.readByte();
+			if (version != VERSION)
+				throw new IOException(file + " has unknown version " + version);
+
+			int leaves = in.readInt();
+			for (int i = 0; i < leaves; i++) {
+				String name = in.readUTF();
+				if (in.readBoolean())
+					sidecars.bitmaps.put(name, EntryBitmap.read(in));
+				if (in.readBoolean())
+					sidecars.summaries.put(name, LeafSummary.read(in));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new LeafSidecars();
+		}
+
+		sidecars.length = length;
+		sidecars.modified = modified;
+		return sidecars;
+	}
+
+	/**
+	 * Writes out the sidecars of a folder, replacing its sidecar file. The
+	 * new file is written next to the old one and then moved over it, so
+	 * searches running meanwhile read either one or the other.
+	 *
+	 * @param folder
+	 *            the folder the leaves are in
+	 */
+	public void write(File folder) {
+		File file = getFile(folder);
+		File temp = new File(folder, FILE_NAME + ".tmp");
+
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temp)))) {
+				out.writeInt(MAGIC);
+				out.writeByte(VERSION);
+
+				Set<String> names = new TreeSet<>(bitmaps.keySet());
+				names.addAll(summaries.keySet());
+
+				out.writeInt(names.size());
+				for (String name : names) {
+					out.writeUTF(name);
+
+					EntryBitmap bitmap = bitmaps.get(name);
+					out.writeBoolean(bitmap != null);
+					if (bitmap != null)
+						bitmap.write(out);
+
+					LeafSummary summary = summaries.get(name);
+					out.writeBoolean(summary != null);
+					if (summary != null)
+						summary.write(out);
+				}
+			}
+
+			if (!temp.renameTo(file)) {
+				file.delete();
+				if (!temp.renameTo(file))
+					throw new IOException("Could not replace " + file);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * @param leaf
+	 *            the name of a leaf (see {@link #getLeafName(File)})
+	 * @return the bitmap of the leaf, or null if it has none
+	 */
+	public EntryBitmap getBitmap(String leaf) {
+		return bitmaps.get(leaf);
+	}
+
+	public void setBitmap(String leaf, EntryBitmap bitmap) {
+		bitmaps.put(leaf, bitmap);
+	}
+
+	/**
+	 * @param leaf
+	 *            the name of a leaf (see {@link #getLeafName(File)})
+	 * @return the summary of the leaf, or null if it has none
+	 */
+	public LeafSummary getSummary(String leaf) {
+		return summaries.get(leaf);
+	}
+
+	public void setSummary(String leaf, LeafSummary summary) {
+		summaries.put(leaf, summary);
+	}
+}
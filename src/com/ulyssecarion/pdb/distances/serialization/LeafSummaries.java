@@ -0,0 +1,126 @@
+package com.ulyssecarion.pdb.distances.serialization;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.ulyssecarion.pdb.distances.store.DistanceStores;
+import com.ulyssecarion.pdb.distances.summary.LeafSummary;
+
+/**
+ * Reads the summaries (see {@link LeafSummary}) kept next to every leaf of a
+ * directory structure, the same way as {@link LeafBitmaps}: the summaries of
+ * the leaves in a folder are stored in its {@value LeafSidecars#FILE_NAME}
+ * file, along with their bitmaps (see {@link LeafSidecars}).
+ * <p>
+ * A directory structure whose leaves have summaries has an empty
+ * {@value #MARKER} file at its root. The builder keeps summaries up to date
+ * as it appends to leaves; {@link #summarizeDirectory(File)} writes them for
+ * a directory structure built before summaries existed.
+ */
+public class LeafSummaries {
+	/**
+	 * The name of the file, at the root of a directory structure, that says
+	 * its leaves have summaries.
+	 */
+	public static final String MARKER = ".summaries";
+
+	/**
+	 * Checks whether the leaves of a directory structure have summaries.
+	 *
+	 * @param root
+	 *            the root of the directory structure
+	 */
+	public static boolean exists(File root) {
+		return new File(root, MARKER).exists();
+	}
+
+	/**
+	 * Marks the leaves of a directory structure as having summaries.
+	 *
+	 * @param root
+	 *            the root of the directory structure
+	 */
+	public static void markSummarized(File root) {
+		try {
+			new File(root, MARKER).createNewFile();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads in the summary of a leaf.
+	 *
+	 * @param leaf
+	 *            the leaf file
+	 * @return the summary of the leaf, or null if it has none (or it could
+	 *         not be read); it is shared, so it must not be changed
+	 */
+	public static LeafSummary read(File leaf) {
+		return LeafSidecars.get(leaf.getParentFile()).getSummary(
+				LeafSidecars.getLeafName(leaf));
+	}
+
+	/**
+	 * Writes the summary of every leaf under a directory structure, replacing
+	 * any existing ones, and marks it as summarized.
+	 *
+	 * @param root
+	 *            the root of the directory structure
+	 * @return the number of leaves summarized
+	 */
+	public static int summarizeDirectory(File root) {
+		int leaves = summarize(root);
+		markSummarized(root);
+		return leaves;
+	}
+
+	private static int summarize(File directory) {
+		int leaves = 0;
+		File[] files = directory.listFiles();
+
+		if (files == null)
+			return 0;
+
+		LeafSidecars sidecars = null;
+
+		for (File file : files) {
+			if (file.getName().startsWith("."))
+				continue;
+
+			if (file.isDirectory()) {
+				leaves += summarize(file);
+			} else if (file.getName().endsWith(
+					DistanceDataTreeSerializer.EXTENSION)) {
+				if (sidecars == null)
+					sidecars = LeafSidecars.read(directory);
+
+				sidecars.setSummary(LeafSidecars.getLeafName(file), LeafSummary
+						.of(DistanceDataTreeSerializer.deserializeResults(file)));
+				leaves++;
+			}
+		}
+
+		if (sidecars != null)
+			sidecars.write(directory);
+
+		return leaves;
+	}
+
+	/**
+	 * Summarizes every leaf of a directory structure. Argument: the root of
+	 * the directory structure (by default,
+	 * {@link DistanceStores#getDefaultRoot()}).
+	 */
+	public static void main(String[] args) {
+		File root = args.length > 0 ? new File(args[0]) : DistanceStores
+				.getDefaultRoot();
+
+		long start = System.currentTimeMillis();
+		int leaves = summarizeDirectory(root);
+		long stop = System.currentTimeMillis();
+
+		System.out.println("Summarized " + leaves + " leaves of " + root
+				+ " in " + (stop - start) + " ms.");
+	}
+}
@@ -0,0 +1,187 @@
+package com.ulyssecarion.pdb.distances.serialization;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A small, fast LZ77 compressor, in the spirit of LZ4. It favors speed over
+ * ratio: repeats are found with a single hash table lookup per position, and
+ * nothing is entropy-coded.
+ * <p>
+ * Compressed data is a list of sequences, each made of:
+ *
+ * <pre>
+ * 	a token byte: literal count (high four bits), match length - 4 (low four bits)
+ * 	more literal count bytes, if the count is 15 or more
+ * 	the literals
+ * 	the offset of the match, as two bytes (little-endian)
+ * 	more match length bytes, if the length - 4 is 15 or more
+ * </pre>
+ *
+ * where a count that does not fit in four bits is continued in bytes of 255
+ * until one is smaller. The last sequence only has literals.
+ */
+public class LzCompressor {
+	private static final int MIN_MATCH = 4;
+	private static final int LAST_LITERALS = 5;
+	private static final int MATCH_LIMIT = 12;
+	private static final int MAX_OFFSET = 0xffff;
+	private static final int HASH_BITS = 12;
+
+	/**
+	 * @return the most bytes compressing this many bytes can take
+	 */
+	public static int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	/**
+	 * Compresses the start of an array.
+	 *
+	 * @param src
+	 *            the bytes to compress
+	 * @param length
+	 *            how many bytes of src to compress
+	 * @return the compressed bytes
+	 */
+	public static byte[] compress(byte[] src, int length) {
+		byte[] dst = new byte[maxCompressedLength(length)];
+		int[] table = new int[1 << HASH_BITS];
+
+		int ip = 0;
+		int anchor = 0;
+		int op = 0;
+
+		while (ip < length - MATCH_LIMIT) {
+			int sequence = readInt(src, ip);
+			int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+			int ref = table[hash] - 1;
+			table[hash] = ip + 1;
+
+			if (ref < 0 || ip - ref > MAX_OFFSET
+					|| readInt(src, ref) != sequence) {
+				ip++;
+				continue;
+			}
+
+			int matchLength = MIN_MATCH;
+			while (ip + matchLength < length - LAST_LITERALS
+					&& src[ref + matchLength] == src[ip + matchLength])
+				matchLength++;
+
+			int literals = ip - anchor;
+			int token = Math.min(literals, 15) << 4
+					| Math.min(matchLength - MIN_MATCH, 15);
+			dst[op++] = (byte) token;
+			op = writeLength(dst, op, literals);
+			System.arraycopy(src, anchor, dst, op, literals);
+			op += literals;
+
+			int offset = ip - ref;
+			dst[op++] = (byte) offset;
+			dst[op++] = (byte) (offset >>> 8);
+			op = writeLength(dst, op, matchLength - MIN_MATCH);
+
+			ip += matchLength;
+			anchor = ip;
+		}
+
+		int literals = length - anchor;
+		dst[op++] = (byte) (Math.min(literals, 15) << 4);
+		op = writeLength(dst, op, literals);
+		System.arraycopy(src, anchor, dst, op, literals);
+		op += literals;
+
+		return Arrays.copyOf(dst, op);
+	}
+
+	/**
+	 * Decompresses bytes written by {@link #compress(byte[], int)}.
+	 *
+	 * @param src
+	 *            the compressed bytes
+	 * @param length
+	 *            how many bytes of src to decompress
+	 * @param dst
+	 *            where to decompress to
+	 * @param rawLength
+	 *            how many bytes the data decompresses to
+	 * @throws IOException
+	 *             if the data is not valid, or does not decompress to exactly
+	 *             rawLength bytes
+	 */
+	public static void decompress(byte[] src, int length, byte[] dst,
+			int rawLength) throws IOException {
+		int ip = 0;
+		int op = 0;
+
+		try {
+			while (true) {
+				int token = src[ip++] & 0xff;
+
+				int literals = token >>> 4;
+				if (literals == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xff;
+						literals += b;
+					} while (b == 255);
+				}
+
+				if (ip + literals > length || op + literals > rawLength)
+					throw new IOException("Literals run past the end.");
+				System.arraycopy(src, ip, dst, op, literals);
+				ip += literals;
+				op += literals;
+
+				if (ip == length)
+					break;
+
+				int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+				ip += 2;
+
+				int matchLength = token & 0xf;
+				if (matchLength == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xff;
+						matchLength += b;
+					} while (b == 255);
+				}
+				matchLength += MIN_MATCH;
+
+				if (offset == 0 || offset > op || op + matchLength > rawLength)
+					throw new IOException("Match runs out of bounds.");
+
+				// matches may overlap what they copy, so go a byte at a time
+				for (int i = 0; i < matchLength; i++, op++)
+					dst[op] = dst[op - offset];
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Compressed data is truncated.");
+		}
+
+		if (op != rawLength)
+			throw new IOException("Decompressed " + op + " bytes instead of "
+					+ rawLength + ".");
+	}
+
+	private static int writeLength(byte[] dst, int op, int length) {
+		if (length < 15)
+			return op;
+
+		length -= 15;
+		while (length >= 255) {
+			dst[op++] = (byte) 255;
+			length -= 255;
+		}
+		dst[op++] = (byte) length;
+
+		return op;
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16
+				| (b[i + 3] & 0xff) << 24;
+	}
+}
@@ -0,0 +1,32 @@
+package com.ulyssecarion.pdb.distances.serialization;
+
+/**
+ * The dictionaries (see {@link StringDictionary}) the builder interns PDB IDs,
+ * component names and atom names in while it finds contacts, so that the
+ * trees and results it keeps in memory share a single instance of each
+ * string, whose hash code is only ever computed once. The contact finders
+ * also use the ints these dictionaries give out to look up each atom's names
+ * only once per structure.
+ * <p>
+ * These dictionaries only live in memory and start out empty every run: the
+ * ints they give out mean nothing outside of the running program, and the
+ * trees still key on strings. The PDB ID dictionaries that are saved belong
+ * to each store (see {@link LeafBitmaps#getDictionary(java.io.File)}).
+ */
+public class NameInterners {
+	private static final StringDictionary PDB_IDS = new StringDictionary();
+	private static final StringDictionary COMPONENTS = new StringDictionary();
+	private static final StringDictionary ATOM_NAMES = new StringDictionary();
+
+	public static StringDictionary getPdbIDs() {
+		return PDB_IDS;
+	}
+
+	public static StringDictionary getComponents() {
+		return COMPONENTS;
+	}
+
+	public static StringDictionary getAtomNames() {
+		return ATOM_NAMES;
+	}
+}
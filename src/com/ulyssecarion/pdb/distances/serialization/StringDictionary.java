@@ -0,0 +1,204 @@
+package com.ulyssecarion.pdb.distances.serialization;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An append-only dictionary that gives every distinct string a dense int, in
+ * the order they were first seen. Indexes never change once given out, so they
+ * can be stored on disk (in bitmaps, for instance) and stay valid as more
+ * strings are added later.
+ * <p>
+ * A dictionary is saved as a plain text file with one string per line; the
+ * index of a string is its line number, starting at 0. Saving only appends the
+ * strings added since the last save.
+ * <p>
+ * All methods are thread-safe. Looking strings and indexes up never takes a
+ * lock, so dictionaries can be shared by many threads on hot paths; only
+ * adding a string does.
+ */
+public class StringDictionary {
+	private final Map<String, Integer> indexes;
+	private volatile String[] strings;
+	private volatile int size;
+	private int savedCount;
+
+	public StringDictionary() {
+		indexes = new ConcurrentHashMap<>();
+		strings = new String[16];
+		size = 0;
+		savedCount = 0;
+	}
+
+	/**
+	 * Reads in a dictionary saved with {@link #save(File)}.
+	 * 
+	 * @param file
+	 *            the file to read from
+	 * @return the dictionary saved in that file, or an empty dictionary if the
+	 *         file does not exist
+	 */
+	public static StringDictionary load(File file) {
+		StringDictionary dictionary = new StringDictionary();
+		dictionary.reload(file);
+		return dictionary;
+	}
+
+	/**
+	 * Reads in the strings a file has gained since this dictionary was loaded
+	 * from it or last saved to it, such as those another process has saved
+	 * there since. The dictionary stays the same object, and every index it
+	 * has given out stays valid.
+	 * 
+	 * @param file
+	 *            the file the dictionary was loaded from; nothing happens if it
+	 *            does not exist
+	 */
+	public synchronized void reload(File file) {
+		if (!file.exists())
+			return;
+
+		try {
+			BufferedReader br = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), StandardCharsets.UTF_8));
+			String line;
+			int lines = 0;
+
+			while ((line = br.readLine()) != null) {
+				if (lines++ >= savedCount)
+					getOrAdd(line);
+			}
+
+			br.close();
+			savedCount = Math.max(savedCount, Math.min(lines, size));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Gets the index of a string, adding it to the dictionary first if it is
+	 * not there yet.
+	 * 
+	 * @param s
+	 *            the string to look up
+	 * @return the index of the string
+	 */
+	public int getOrAdd(String s) {
+		Integer index = indexes.get(s);
+		if (index != null)
+			return index;
+
+		synchronized (this) {
+			index = indexes.get(s);
+
+			if (index == null) {
+				index = size;
+
+				String[] array = strings;
+				if (index == array.length)
+					array = Arrays.copyOf(array, array.length * 2);
+				array[index] = s;
+				strings = array;
+				size = index + 1;
+
+				// only hand the index out once its string can be read
+				indexes.put(s, index);
+			}
+
+			return index;
+		}
+	}
+
+	/**
+	 * Gets the one instance of a string kept by the dictionary, adding it
+	 * first if it is not there yet. Strings that are equal all become the same
+	 * object, whose hash code is only ever computed once.
+	 * 
+	 * @param s
+	 *            the string to look up
+	 * @return the dictionary's instance of the string
+	 */
+	public String intern(String s) {
+		return get(getOrAdd(s));
+	}
+
+	/**
+	 * Works like {@link #intern(String)}, but leaves the dictionary alone if
+	 * the string is not in it.
+	 * 
+	 * @param s
+	 *            the string to look up
+	 * @return the dictionary's instance of the string, or s itself if the
+	 *         dictionary does not have it
+	 */
+	public String canonical(String s) {
+		Integer index = indexes.get(s);
+		return index == null ? s : get(index);
+	}
+
+	/**
+	 * @param s
+	 *            the string to look up
+	 * @return the index of the string, or -1 if it is not in the dictionary
+	 */
+	public int indexOf(String s) {
+		Integer index = indexes.get(s);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * @param index
+	 *            an index given out by this dictionary
+	 * @return the string with that index
+	 */
+	public String get(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("No string at index " + index);
+		return strings[index];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Appends the strings added since the last save (or load) to a file.
+	 * 
+	 * @param file
+	 *            the file to save to; this should be the file the dictionary
+	 *            was loaded from, if any
+	 */
+	public synchronized void save(File file) {
+		if (savedCount == size)
+			return;
+
+		if (file.getParentFile() != null)
+			file.getParentFile().mkdirs();
+
+		try {
+			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(file, true), StandardCharsets.UTF_8));
+
+			for (int i = savedCount; i < size; i++) {
+				out.write(strings[i]);
+				out.newLine();
+			}
+
+			out.close();
+			savedCount = size;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.ulyssecarion.pdb.distances.serialization;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Reads and writes variable-length integers: seven bits per byte, lowest bits
+ * first, with the high bit of each byte set if more bytes follow. Small
+ * numbers, which are most of the ones this project writes, take a single
+ * byte. Numbers that may be negative, like the difference between two
+ * others, are zigzag-encoded first so that small negative numbers stay small.
+ */
+public class Varints {
+	/**
+	 * Writes a non-negative number.
+	 */
+	public static void write(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+
+		out.writeByte(value);
+	}
+
+	/**
+	 * Reads a number written by {@link #write(DataOutput, int)}.
+	 */
+	public static int read(DataInput in) throws IOException {
+		int value = 0;
+
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readByte();
+			value |= (b & 0x7f) << shift;
+
+			if ((b & 0x80) == 0)
+				return value;
+		}
+
+		throw new IOException("Malformed variable-length integer.");
+	}
+
+	/**
+	 * Writes a number that may be negative.
+	 */
+	public static void writeSigned(DataOutput out, int value)
+			throws IOException {
+		write(out, (value << 1) ^ (value >> 31));
+	}
+
+	/**
+	 * Reads a number written by {@link #writeSigned(DataOutput, int)}.
+	 */
+	public static int readSigned(DataInput in) throws IOException {
+		int value = read(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -0,0 +1,603 @@
+package com.ulyssecarion.pdb.distances.server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.biojava.bio.structure.Element;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.ulyssecarion.pdb.distances.DistanceQuery;
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.DistanceResultListener;
+import com.ulyssecarion.pdb.distances.metrics.QueryStatistics;
+import com.ulyssecarion.pdb.distances.replay.QueryLog;
+import com.ulyssecarion.pdb.distances.serialization.LeafCache;
+import com.ulyssecarion.pdb.distances.store.DirectoryStore;
+import com.ulyssecarion.pdb.distances.store.DistanceStore;
+import com.ulyssecarion.pdb.distances.store.DistanceStores;
+import com.ulyssecarion.pdb.distances.store.QueryExecutor;
+import com.ulyssecarion.pdb.distances.store.StoreException;
+import com.ulyssecarion.pdb.distances.summary.ApproximateAnswer;
+
+/**
+ * A small HTTP server, built on the JDK's own <code>HttpServer</code>, that
+ * answers distance queries against a {@link DistanceStore}, usually a
+ * directory structure made by
+ * {@link com.ulyssecarion.pdb.distances.precalculations.DistanceDataTreeBuilderDriver}.
+ * <p>
+ * The server understands these requests:
+ * <ul>
+ * <li><code>GET /search?...</code>: runs a distance query and returns its
+ * results as newline-delimited JSON, one result per line.</li>
+ * <li><code>GET /search.csv?...</code>: the same, but as CSV with a header
+ * line.</li>
+ * <li><code>GET /approximate?...</code>: works out about how many results a
+ * distance query has, from how many entries, and how their distances are
+ * spread out, from leaf summaries alone, and returns that as a JSON object
+ * (see {@link ApproximateAnswer#toJson()}).</li>
+ * <li><code>GET /stats</code>: returns request counts, throughput and latency
+ * percentiles as a JSON object, along with the latencies of each query shape
+ * (see {@link com.ulyssecarion.pdb.distances.metrics.QueryMetrics}).</li>
+ * </ul>
+ * The query parameters of a search are the ones understood by
+ * {@link DistanceQuery#fromQueryString(String)}, e.g.
+ * <code>/search?originGroup=IOD&amp;targetGroup=ALA&amp;maxDistance=4</code>.
+ * Adding <code>stats=true</code> to a JSON search appends one last line,
+ * <code>{"stats":{...}}</code>, describing how much the query had to read
+ * (see {@link QueryStatistics}).
+ * <p>
+ * Results are never collected into a list: they are written out with chunked
+ * transfer encoding as each leaf file is read, so even queries with millions
+ * of results run in constant memory. Connections are kept alive between
+ * requests. Requests are served by a fixed pool of worker threads with a
+ * bounded queue; once the queue is full, searches are turned away straight
+ * away with a <code>503 Service Unavailable</code> (counted in
+ * {@link ServerStatistics#getRejectedRequests()}) instead of piling up in
+ * memory, while <code>/stats</code> keeps answering. Any other path gets a
+ * <code>404 Not Found</code>.
+ * <p>
+ * A request whose store cannot be read (see {@link StoreException}) is
+ * answered with a <code>500 Internal Server Error</code>. If a search has
+ * already sent some results by then, its response instead ends with a last
+ * line, <code>{"error":"..."}</code> (or <code>#error: ...</code> in CSV),
+ * so that it is never taken for a complete answer.
+ */
+public class DistanceQueryServer {
+	private static final String NDJSON_TYPE = "application/x-ndjson; charset=utf-8";
+	private static final String CSV_TYPE = "text/csv; charset=utf-8";
+	private static final String JSON_TYPE = "application/json; charset=utf-8";
+
+	private static final String CSV_HEADER = "originGroup,originElement,originAtom,"
+			+ "targetGroup,targetElement,targetAtom,pdbId,distance,origin,target,"
+			+ "multiplicity,operator";
+
+	private final DistanceStore store;
+	private final HttpServer server;
+	private final ThreadPoolExecutor workers;
+	private final ThreadPoolExecutor rejecter;
+	private final ServerStatistics statistics;
+	private volatile QueryLog queryLog;
+
+	/**
+	 * Set on the thread that answers requests the workers had no room for.
+	 */
+	private static final ThreadLocal<Boolean> overloaded = new ThreadLocal<>();
+
+	/**
+	 * Creates a server for a directory structure; call {@link #start()} to
+	 * have it accept requests.
+	 * 
+	 * @param root
+	 *            the root of the directory structure to search through
+	 * @param port
+	 *            the port to listen on
+	 * @param workerCount
+	 *            the number of requests that can be served at once
+	 * @param queueSize
+	 *            the number of requests that can wait for a worker
+	 * @throws IOException
+	 *             if the server could not bind to the port
+	 */
+	public DistanceQueryServer(File root, int port, int workerCount,
+			int queueSize) throws IOException {
+		this(new DirectoryStore(root, DistanceStores.getLeafCache()), port,
+				workerCount, queueSize);
+	}
+
+	/**
+	 * Creates a server; call {@link #start()} to have it accept requests.
+	 * 
+	 * @param store
+	 *            the store to search through; the server does not close it
+	 * @param port
+	 *            the port to listen on
+	 * @param workerCount
+	 *            the number of requests that can be served at once
+	 * @param queueSize
+	 *            the number of requests that can wait for a worker
+	 * @throws IOException
+	 *             if the server could not bind to the port
+	 */
+	public DistanceQueryServer(DistanceStore store, int port, int workerCount,
+			int queueSize) throws IOException {
+		this.store = store;
+		this.statistics = new ServerStatistics();
+
+		// requests turned away are only read and answered with a 503, so one
+		// thread is enough; the dispatcher thread must never run a search
+		rejecter = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize),
+				new WorkerThreadFactory("distance-query-rejecter-"),
+				new AnswerInlinePolicy());
+		workers = new ThreadPoolExecutor(workerCount, workerCount, 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+				new WorkerThreadFactory("distance-query-worker-"),
+				new ServiceUnavailablePolicy());
+
+		server = HttpServer.create(new InetSocketAddress(port), queueSize);
+		server.setExecutor(workers);
+		server.createContext("/search", new SearchHandler());
+		server.createContext("/approximate", new ApproximateHandler());
+		server.createContext("/stats", new StatsHandler());
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stops accepting requests, waits up to <code>delaySeconds</code> for
+	 * running requests to finish, and shuts the worker pool down.
+	 * 
+	 * @param delaySeconds
+	 *            how long to wait for running requests
+	 */
+	public void stop(int delaySeconds) {
+		server.stop(delaySeconds);
+		workers.shutdown();
+		rejecter.shutdown();
+	}
+
+	public ServerStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Starts writing every valid search query to a query log, for replaying
+	 * later with a {@link com.ulyssecarion.pdb.distances.replay.QueryReplayer}.
+	 * 
+	 * @param queryLog
+	 *            the log to write to, or null to stop logging
+	 */
+	public void setQueryLog(QueryLog queryLog) {
+		this.queryLog = queryLog;
+	}
+
+	public static void main(String[] args) throws IOException {
+		String spec = args.length > 0 ? args[0] : DistanceStores
+				.getDefaultRoot().getPath();
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+		int workerCount = args.length > 2 ? Integer.parseInt(args[2]) : Runtime
+				.getRuntime().availableProcessors();
+
+		if (args.length > 4)
+			DistanceStores.setLeafCache(new LeafCache(Long.parseLong(args[4])));
+
+		DistanceStore store = DistanceStores.open(spec);
+		DistanceQueryServer server = new DistanceQueryServer(store, port,
+				workerCount, workerCount * 4);
+		if (args.length > 3)
+			server.setQueryLog(new QueryLog(new File(args[3])));
+		server.start();
+
+		System.out.println("Serving " + store.getDescription() + " on port "
+				+ port + " with " + workerCount + " workers.");
+	}
+
+	private class SearchHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			if (rejectIfOverloaded(exchange))
+				return;
+
+			long start = System.nanoTime();
+			statistics.requestStarted();
+
+			RowWriter rowWriter = null;
+			boolean failed = true;
+
+			try {
+				if (!hasPath(exchange, "/search", "/search.csv"))
+					return;
+
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					sendError(exchange, 405, "Only GET is supported.");
+					return;
+				}
+
+				String rawQuery = exchange.getRequestURI().getRawQuery();
+				QueryStatistics queryStats = null;
+
+				if (rawQuery != null
+						&& rawQuery.matches("(.*&)?stats=true(&.*)?")) {
+					rawQuery = rawQuery.replaceAll("(^|&)stats=true", "");
+					queryStats = new QueryStatistics();
+				}
+
+				DistanceQuery query;
+				try {
+					query = DistanceQuery.fromQueryString(rawQuery);
+				} catch (IllegalArgumentException e) {
+					sendError(exchange, 400, e.getMessage());
+					return;
+				}
+
+				QueryLog log = queryLog;
+				if (log != null)
+					log.log(query);
+
+				boolean csv = exchange.getRequestURI().getPath()
+						.endsWith(".csv");
+				rowWriter = new RowWriter(exchange, csv);
+
+				try {
+					QueryExecutor.search(store, query, rowWriter, queryStats);
+				} catch (ClientAbortException e) {
+					throw e.getCause();
+				} catch (StoreException e) {
+					e.printStackTrace();
+					sendStoreError(rowWriter, exchange, e);
+					return;
+				}
+
+				Writer out = rowWriter.start();
+				if (queryStats != null && !csv)
+					out.write("{\"stats\":" + queryStats.toJson() + "}\n");
+
+				out.flush();
+				failed = false;
+			} finally {
+				exchange.close();
+				statistics.requestFinished(System.nanoTime() - start,
+						rowWriter == null ? 0 : rowWriter.rows, failed);
+			}
+		}
+	}
+
+	private class ApproximateHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			if (rejectIfOverloaded(exchange))
+				return;
+
+			long start = System.nanoTime();
+			statistics.requestStarted();
+
+			boolean failed = true;
+
+			try {
+				if (!hasPath(exchange, "/approximate"))
+					return;
+
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					sendError(exchange, 405, "Only GET is supported.");
+					return;
+				}
+
+				DistanceQuery query;
+				try {
+					query = DistanceQuery.fromQueryString(exchange
+							.getRequestURI().getRawQuery());
+				} catch (IllegalArgumentException e) {
+					sendError(exchange, 400, e.getMessage());
+					return;
+				}
+
+				byte[] body;
+				try {
+					body = QueryExecutor.approximate(store, query, null)
+							.toJson().getBytes(StandardCharsets.UTF_8);
+				} catch (StoreException e) {
+					e.printStackTrace();
+					sendError(exchange, 500, e.getMessage());
+					return;
+				}
+
+				exchange.getResponseHeaders().set("Content-Type", JSON_TYPE);
+				exchange.sendResponseHeaders(200, body.length);
+				exchange.getResponseBody().write(body);
+				failed = false;
+			} finally {
+				exchange.close();
+				statistics.requestFinished(System.nanoTime() - start, 0,
+						failed);
+			}
+		}
+	}
+
+	private class StatsHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!hasPath(exchange, "/stats"))
+					return;
+
+				byte[] body = statistics.toJson().getBytes(
+						StandardCharsets.UTF_8);
+
+				exchange.getResponseHeaders().set("Content-Type", JSON_TYPE);
+				exchange.sendResponseHeaders(200, body.length);
+
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	/**
+	 * Answers a request with a 503 if it is being handled by the rejecter
+	 * thread, because the workers and their queue were full when it came in.
+	 * 
+	 * @return whether the request was turned away
+	 */
+	private boolean rejectIfOverloaded(HttpExchange exchange)
+			throws IOException {
+		if (overloaded.get() == null)
+			return false;
+
+		statistics.requestRejected();
+
+		try {
+			exchange.getResponseHeaders().set("Retry-After", "1");
+			sendError(exchange, 503, "The server is busy; try again later.");
+		} finally {
+			exchange.close();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Answers a search whose store could not be read with a 500. If some
+	 * results have already been sent, it is too late for that, so the
+	 * response ends with a line saying it is incomplete instead.
+	 */
+	private static void sendStoreError(RowWriter rowWriter,
+			HttpExchange exchange, StoreException e) throws IOException {
+		if (!rowWriter.isStarted()) {
+			sendError(exchange, 500, e.getMessage());
+			return;
+		}
+
+		Writer out = rowWriter.start();
+		if (rowWriter.csv)
+			out.write("#error: " + e.getMessage() + "\n");
+		else
+			out.write("{\"error\":\"" + escapeJson(e.getMessage()) + "\"}\n");
+		out.flush();
+	}
+
+	/**
+	 * Answers a request with a 404 unless its path is exactly one of those
+	 * given; the <code>HttpServer</code> hands a handler every path that
+	 * starts with its own.
+	 * 
+	 * @return whether the request is for one of the paths
+	 */
+	private static boolean hasPath(HttpExchange exchange, String... paths)
+			throws IOException {
+		String path = exchange.getRequestURI().getPath();
+
+		for (String p : paths)
+			if (p.equals(path))
+				return true;
+
+		sendError(exchange, 404, "No such path: " + path);
+		return false;
+	}
+
+	private static void sendError(HttpExchange exchange, int status,
+			String message) throws IOException {
+		byte[] body = ("{\"error\":\"" + escapeJson(message) + "\"}")
+				.getBytes(StandardCharsets.UTF_8);
+
+		exchange.getResponseHeaders().set("Content-Type", JSON_TYPE);
+		exchange.sendResponseHeaders(status, body.length);
+		exchange.getResponseBody().write(body);
+	}
+
+	/**
+	 * Writes out each result it is given as a line of NDJSON or CSV. The
+	 * response headers are only sent with the first result (or by
+	 * {@link #start()}), so a search that fails before finding any can still
+	 * be answered with an error status.
+	 */
+	private static class RowWriter implements DistanceResultListener {
+		private final HttpExchange exchange;
+		private final boolean csv;
+		private Writer out;
+		private long rows;
+
+		public RowWriter(HttpExchange exchange, boolean csv) {
+			this.exchange = exchange;
+			this.csv = csv;
+		}
+
+		/**
+		 * Sends the response headers (and the CSV header line) if they have
+		 * not been sent yet.
+		 * 
+		 * @return the writer for the response body
+		 */
+		public Writer start() throws IOException {
+			if (out == null) {
+				exchange.getResponseHeaders().set("Content-Type",
+						csv ? CSV_TYPE : NDJSON_TYPE);
+				exchange.sendResponseHeaders(200, 0);
+
+				out = new BufferedWriter(new OutputStreamWriter(
+						exchange.getResponseBody(), StandardCharsets.UTF_8));
+
+				if (csv)
+					out.write(CSV_HEADER + "\n");
+			}
+
+			return out;
+		}
+
+		public boolean isStarted() {
+			return out != null;
+		}
+
+		@Override
+		public void resultFound(String originGroup, Element originElement,
+				String originAtomName, String targetGroup,
+				Element targetElement, String targetAtomName, DistanceResult dr) {
+			try {
+				Writer out = start();
+
+				if (csv) {
+					out.write(escapeCsv(originGroup) + "," + originElement
+							+ "," + escapeCsv(originAtomName) + ","
+							+ escapeCsv(targetGroup) + "," + targetElement
+							+ "," + escapeCsv(targetAtomName) + ","
+							+ dr.getPdbID() + "," + dr.getDistance() + ","
+							+ dr.getOrigin() + "," + dr.getTarget() + ","
+							+ dr.getMultiplicity() + ","
+							+ (dr.getOperator() == null ? "" : escapeCsv(dr
+									.getOperator())) + "\n");
+				} else {
+					out.write("{\"originGroup\":\"" + escapeJson(originGroup)
+							+ "\",\"originElement\":\"" + originElement
+							+ "\",\"originAtom\":\""
+							+ escapeJson(originAtomName)
+							+ "\",\"targetGroup\":\"" + escapeJson(targetGroup)
+							+ "\",\"targetElement\":\"" + targetElement
+							+ "\",\"targetAtom\":\""
+							+ escapeJson(targetAtomName) + "\",\"pdbId\":\""
+							+ dr.getPdbID() + "\",\"distance\":"
+							+ dr.getDistance() + ",\"origin\":"
+							+ dr.getOrigin() + ",\"target\":" + dr.getTarget()
+							+ ",\"multiplicity\":" + dr.getMultiplicity()
+							+ (dr.getOperator() == null ? "" : ",\"operator\":\""
+									+ escapeJson(dr.getOperator()) + "\"")
+							+ "}\n");
+				}
+			} catch (IOException e) {
+				throw new ClientAbortException(e);
+			}
+
+			rows++;
+		}
+	}
+
+	/**
+	 * Thrown out of a search when the client goes away mid-response, so that
+	 * the search stops instead of reading the rest of the store for nobody.
+	 */
+	private static class ClientAbortException extends RuntimeException {
+		private static final long serialVersionUID = -3512318541470964402L;
+
+		public ClientAbortException(IOException cause) {
+			super(cause);
+		}
+
+		@Override
+		public synchronized IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+
+	/**
+	 * Hands requests the workers have no room for to the rejecter thread,
+	 * which answers them with a 503 without running them. The
+	 * <code>HttpServer</code> only gives its executor opaque tasks, so the
+	 * handlers themselves check whether they are running as such a task.
+	 */
+	private class ServiceUnavailablePolicy implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(final Runnable r,
+				ThreadPoolExecutor executor) {
+			rejecter.execute(new Runnable() {
+				@Override
+				public void run() {
+					overloaded.set(Boolean.TRUE);
+					try {
+						r.run();
+					} finally {
+						overloaded.remove();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Answers the requests the rejecter itself has no room for (or gets after
+	 * it was shut down) with their 503 on the dispatcher thread, so that every
+	 * request turned away is still answered and closed.
+	 */
+	private static class AnswerInlinePolicy implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			r.run();
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		public WorkerThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(false);
+			return t;
+		}
+	}
+
+	private static String escapeJson(String s) {
+		if (s == null)
+			return "";
+
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20)
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+
+		return sb.toString();
+	}
+
+	private static String escapeCsv(String s) {
+		if (s.indexOf(',') == -1 && s.indexOf('"') == -1)
+			return s;
+
+		return "\"" + s.replace("\"", "\"\"") + "\"";
+	}
+}
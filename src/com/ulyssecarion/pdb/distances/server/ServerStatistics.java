@@ -0,0 +1,124 @@
+package com.ulyssecarion.pdb.distances.server;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ulyssecarion.pdb.distances.metrics.LatencyHistogram;
+import com.ulyssecarion.pdb.distances.metrics.QueryMetrics;
+import com.ulyssecarion.pdb.distances.metrics.QueryShapeMetrics;
+
+/**
+ * Keeps track of how many requests a {@link DistanceQueryServer} has served
+ * and how long they took. All methods are thread-safe.
+ */
+public class ServerStatistics {
+	private final long startTime;
+
+	private final AtomicLong requests;
+	private final AtomicLong activeRequests;
+	private final AtomicLong failedRequests;
+	private final AtomicLong rejectedRequests;
+	private final AtomicLong rowsReturned;
+
+	private final LatencyHistogram latencies;
+
+	public ServerStatistics() {
+		startTime = System.nanoTime();
+		requests = new AtomicLong();
+		activeRequests = new AtomicLong();
+		failedRequests = new AtomicLong();
+		rejectedRequests = new AtomicLong();
+		rowsReturned = new AtomicLong();
+		latencies = new LatencyHistogram();
+	}
+
+	/**
+	 * Call this when a request starts being served.
+	 */
+	public void requestStarted() {
+		requests.incrementAndGet();
+		activeRequests.incrementAndGet();
+	}
+
+	/**
+	 * Call this once a request has been served completely.
+	 * 
+	 * @param nanos
+	 *            how long the request took, from start to last byte
+	 * @param rows
+	 *            how many distance results were sent back
+	 * @param failed
+	 *            whether the request ended in an error
+	 */
+	public void requestFinished(long nanos, long rows, boolean failed) {
+		activeRequests.decrementAndGet();
+		rowsReturned.addAndGet(rows);
+		latencies.record(nanos);
+
+		if (failed)
+			failedRequests.incrementAndGet();
+	}
+
+	/**
+	 * Call this when a request is turned away because the server is too busy
+	 * to serve it. Such requests are not counted in {@link #getRequests()}.
+	 */
+	public void requestRejected() {
+		rejectedRequests.incrementAndGet();
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getActiveRequests() {
+		return activeRequests.get();
+	}
+
+	public long getFailedRequests() {
+		return failedRequests.get();
+	}
+
+	public long getRejectedRequests() {
+		return rejectedRequests.get();
+	}
+
+	public long getRowsReturned() {
+		return rowsReturned.get();
+	}
+
+	public LatencyHistogram getLatencies() {
+		return latencies;
+	}
+
+	/**
+	 * @return these statistics as a single JSON object
+	 */
+	public String toJson() {
+		double uptime = (System.nanoTime() - startTime) / 1_000_000_000.0;
+
+		StringBuilder shapes = new StringBuilder();
+		for (QueryShapeMetrics shape : QueryMetrics.getInstance().getShapes()) {
+			if (shapes.length() > 0)
+				shapes.append(',');
+			shapes.append(shape.toJson());
+		}
+
+		return String.format(Locale.ROOT, "{\"uptimeSeconds\":%.3f,"
+				+ "\"requests\":%d,\"activeRequests\":%d,"
+				+ "\"failedRequests\":%d,\"rejectedRequests\":%d,"
+				+ "\"rowsReturned\":%d,\"requestsPerSecond\":%.3f,"
+				+ "\"rowsPerSecond\":%.3f,"
+				+ "\"latencyMillis\":{\"mean\":%.3f,\"p50\":%.3f,"
+				+ "\"p99\":%.3f,\"p999\":%.3f,\"max\":%.3f},"
+				+ "\"queryShapes\":[%s]}", uptime,
+				getRequests(), getActiveRequests(), getFailedRequests(),
+				getRejectedRequests(), getRowsReturned(), getRequests()
+						/ uptime, getRowsReturned() / uptime,
+				latencies.getMean() / 1_000_000.0,
+				latencies.getPercentile(0.50) / 1_000_000.0,
+				latencies.getPercentile(0.99) / 1_000_000.0,
+				latencies.getPercentile(0.999) / 1_000_000.0,
+				latencies.getMax() / 1_000_000.0, shapes);
+	}
+}
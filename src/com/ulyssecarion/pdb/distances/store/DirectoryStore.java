@@ -0,0 +1,234 @@
+package com.ulyssecarion.pdb.distances.store;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.bitmap.EntryBitmap;
+import com.ulyssecarion.pdb.distances.metrics.QueryStatistics;
+import com.ulyssecarion.pdb.distances.serialization.DistanceDataTreeSerializer;
+import com.ulyssecarion.pdb.distances.serialization.EntryIndex;
+import com.ulyssecarion.pdb.distances.serialization.LeafBitmaps;
+import com.ulyssecarion.pdb.distances.serialization.LeafCache;
+import com.ulyssecarion.pdb.distances.serialization.LeafSummaries;
+import com.ulyssecarion.pdb.distances.serialization.StringDictionary;
+import com.ulyssecarion.pdb.distances.summary.LeafSummary;
+
+/**
+ * A store kept as a directory structure, as written by
+ * {@link com.ulyssecarion.pdb.distances.precalculations.DistanceDataTreeBuilderDriver}
+ * :
+ *
+ * <pre>
+ * 	LigandGroup /
+ * 		LigandElement /
+ * 			LigandAtomName /
+ * 				TargetGroup /
+ * 					TargetElement /
+ * 						TargetAtomName.ser
+ * </pre>
+ *
+ * The store has a {@link StoreCapability#REVERSE_INDEX} if the directory has
+ * a per-entry index (see {@link EntryIndex}), the
+ * {@link StoreCapability#ENTRY_BITMAPS} if it has leaf bitmaps (see
+ * {@link LeafBitmaps}), the {@link StoreCapability#LEAF_SUMMARIES} if it has
+ * leaf summaries (see {@link LeafSummaries}), and the
+ * {@link StoreCapability#DISTANCE_INDEX} if a {@link DistanceIndex} has been
+ * written at its root. Leaves are appended to as data comes in, so they are
+ * not sorted. A leaf that cannot be read throws a {@link StoreException}.
+ * <p>
+ * Parsed leaves can be kept in a {@link LeafCache} between searches.
+ */
+public class DirectoryStore implements DistanceStore {
+	private static final FileFilter VISIBLE_FILES = new FileFilter() {
+		@Override
+		public boolean accept(File file) {
+			return !file.getName().startsWith(".");
+		}
+	};
+
+	private final File root;
+	private final LeafCache cache;
+	private final Set<StoreCapability> capabilities;
+	private final StringDictionary pdbIDs;
+
+	/**
+	 * @param root
+	 *            the root of the directory structure
+	 * @param cache
+	 *            the cache to keep parsed leaves in, or null to always read
+	 *            leaves from disk
+	 */
+	public DirectoryStore(File root, LeafCache cache) {
+		this.root = root;
+		this.cache = cache;
+		this.capabilities = EnumSet.noneOf(StoreCapability.class);
+
+		if (EntryIndex.exists(root))
+			capabilities.add(StoreCapability.REVERSE_INDEX);
+		if (LeafBitmaps.getDictionaryFile(root).exists())
+			capabilities.add(StoreCapability.ENTRY_BITMAPS);
+		if (DistanceIndex.getFile(root).exists())
+			capabilities.add(StoreCapability.DISTANCE_INDEX);
+		if (LeafSummaries.exists(root))
+			capabilities.add(StoreCapability.LEAF_SUMMARIES);
+
+		this.pdbIDs = LeafBitmaps.getDictionary(root);
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return the cache parsed leaves are kept in, or null if there is none
+	 */
+	public LeafCache getLeafCache() {
+		return cache;
+	}
+
+	@Override
+	public String getDescription() {
+		return "directory " + root;
+	}
+
+	@Override
+	public Set<StoreCapability> getCapabilities() {
+		return Collections.unmodifiableSet(capabilities);
+	}
+
+	@Override
+	public List<String> getKeys(String[] path) {
+		File[] files = getFile(path).listFiles(VISIBLE_FILES);
+		List<String> keys = new ArrayList<>();
+
+		if (files != null) {
+			for (File file : files)
+				keys.add(path.length == 5 ? getAtomName(file) : file.getName());
+		}
+
+		return keys;
+	}
+
+	@Override
+	public boolean hasKey(String[] path, String key) {
+		return new File(getFile(path), path.length == 5 ? getLeafName(key)
+				: key).exists();
+	}
+
+	@Override
+	public List<DistanceResult> getResults(String[] leaf, QueryStatistics stats) {
+		File file = getFile(leaf);
+
+		if (cache != null) {
+			List<DistanceResult> cached = cache.get(file);
+			if (cached != null) {
+				stats.addLeafCached(cached.size());
+				return cached;
+			}
+		}
+
+		long length = file.length();
+		long modified = file.lastModified();
+		List<DistanceResult> rows = new ArrayList<>();
+
+		if (!file.exists())
+			return rows;
+
+		try {
+			DistanceDataTreeSerializer.readResults(file, rows, pdbIDs);
+		} catch (IOException e) {
+			throw new StoreException("Could not read " + file, e);
+		}
+
+		stats.addLeafOpened(length, rows.size());
+
+		return cache == null ? rows : cache.put(file, length, modified, rows);
+	}
+
+	@Override
+	public EntryBitmap getLeafEntries(String[] leaf) {
+		if (!capabilities.contains(StoreCapability.ENTRY_BITMAPS))
+			return null;
+		return LeafBitmaps.read(getFile(leaf));
+	}
+
+	@Override
+	public List<String[]> getLeavesOfEntry(String pdbID) {
+		if (!capabilities.contains(StoreCapability.REVERSE_INDEX))
+			return null;
+
+		List<String[]> leaves = new ArrayList<>();
+
+		for (String leafPath : EntryIndex.getLeafPaths(root, pdbID)) {
+			String[] keys = leafPath.split(Pattern.quote(File.separator));
+
+			if (keys.length == 6) {
+				keys[5] = getAtomName(new File(keys[5]));
+				leaves.add(keys);
+			}
+		}
+
+		return leaves;
+	}
+
+	@Override
+	public LeafSummary getLeafSummary(String[] leaf) {
+		if (!capabilities.contains(StoreCapability.LEAF_SUMMARIES))
+			return null;
+		return LeafSummaries.read(getFile(leaf));
+	}
+
+	@Override
+	public DistanceIndex getDistanceIndex() {
+		if (!capabilities.contains(StoreCapability.DISTANCE_INDEX))
+			return null;
+		return DistanceIndex.get(root);
+	}
+
+	/**
+	 * Reads in the entries added to the dictionary file since the last call,
+	 * if any. Leaves are read with the same dictionary, but without checking
+	 * the file again.
+	 */
+	@Override
+	public StringDictionary getPdbIDs() {
+		return LeafBitmaps.getDictionary(root);
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Gets the directory at a path, or the leaf file if the path has all six
+	 * keys.
+	 */
+	private File getFile(String[] path) {
+		File file = root;
+
+		for (int i = 0; i < path.length; i++)
+			file = new File(file, i == 5 ? getLeafName(path[i]) : path[i]);
+
+		return file;
+	}
+
+	private static String getLeafName(String targetAtomName) {
+		return targetAtomName + DistanceDataTreeSerializer.EXTENSION;
+	}
+
+	private static String getAtomName(File leaf) {
+		String name = leaf.getName();
+		if (name.endsWith(DistanceDataTreeSerializer.EXTENSION))
+			return name.substring(0, name.length()
+					- DistanceDataTreeSerializer.EXTENSION.length());
+		return name;
+	}
+}
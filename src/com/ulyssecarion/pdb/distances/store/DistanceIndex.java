@@ -0,0 +1,326 @@
+package com.ulyssecarion.pdb.distances.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.biojava.bio.structure.Element;
+
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.DistanceResultListener;
+import com.ulyssecarion.pdb.distances.metrics.QueryStatistics;
+
+/**
+ * Every short row of a store, across all of its leaves, in a single list
+ * sorted by distance. Queries that bind none of the six levels, like "every
+ * contact under 2 Angstroms", would otherwise have to read every leaf of the
+ * store to keep a handful of rows; with the index, they are a binary search
+ * followed by a read of exactly the records in range.
+ * <p>
+ * Each record holds the index of the leaf its row is in along with the row
+ * itself, so rows never have to be looked up in their leaves. Only rows up to
+ * {@link #getMaxDistance()} are indexed.
+ * <p>
+ * Indexes are written by {@link DistanceIndexWriter}, once a store is done
+ * being built, and are not updated when the store changes: the builder
+ * deletes the index of a directory structure as soon as it appends to any of
+ * its leaves, and it has to be written again. The index of a directory
+ * structure is kept at its root, in {@value #FILE_NAME}; that of a segment is
+ * kept next to it, with {@value #EXTENSION} added to its name.
+ * <p>
+ * Only the footer of an index is kept in memory. Indexes are opened once per
+ * file with {@link #get(File)} and shared between all the stores that use
+ * them; reading records is thread-safe. When an index file is rewritten or
+ * deleted, the instance that had it open is closed once the searches running
+ * on it are done.
+ */
+public class DistanceIndex implements Closeable {
+	public static final String FILE_NAME = ".distances.idx";
+	public static final String EXTENSION = ".idx";
+
+	private static final ConcurrentMap<File, DistanceIndex> indexes = new ConcurrentHashMap<>();
+
+	private final File file;
+	private final long length;
+	private final long modified;
+	private final AtomicInteger searches = new AtomicInteger();
+	private volatile boolean retired;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private double maxDistance;
+	private long recordCount;
+	private String[][] leaves;
+	private String[] pdbIDs;
+	private String[] operators;
+
+	/**
+	 * Opens an index file.
+	 *
+	 * @param file
+	 *            an index written by {@link DistanceIndexWriter}
+	 * @throws IOException
+	 *             if the file cannot be read or is not an index
+	 */
+	public DistanceIndex(File file) throws IOException {
+		this.file = file;
+		this.length = file.length();
+		this.modified = file.lastModified();
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+
+		try {
+			readFooter();
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gets the file the index of a store is kept in.
+	 *
+	 * @param store
+	 *            the root of a directory structure, or a segment file
+	 * @return the index file (it may not exist)
+	 */
+	public static File getFile(File store) {
+		if (store.isDirectory())
+			return new File(store, FILE_NAME);
+		return new File(store.getPath() + EXTENSION);
+	}
+
+	/**
+	 * Gets the index of a store, opening it the first time it is asked for or
+	 * if it has been rewritten since.
+	 *
+	 * @param store
+	 *            the root of a directory structure, or a segment file
+	 * @return the index, or null if the store has none
+	 */
+	public static DistanceIndex get(File store) {
+		File file = getFile(store).getAbsoluteFile();
+		DistanceIndex index = indexes.get(file);
+
+		if (index != null && index.length == file.length()
+				&& index.modified == file.lastModified())
+			return index;
+
+		if (!file.exists()) {
+			if (index != null && indexes.remove(file, index))
+				index.retire();
+			return null;
+		}
+
+		try {
+			DistanceIndex opened = new DistanceIndex(file);
+
+			if (index == null ? indexes.putIfAbsent(file, opened) != null
+					: !indexes.replace(file, index, opened)) {
+				opened.close();
+				return indexes.get(file);
+			}
+
+			if (index != null)
+				index.retire();
+
+			return opened;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the largest distance indexed; rows further apart than this are
+	 *         not in the index
+	 */
+	public double getMaxDistance() {
+		return maxDistance;
+	}
+
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * Passes every indexed row within a distance range to a listener, in
+	 * order of increasing distance.
+	 *
+	 * @param minDistance
+	 *            the smallest distance wanted
+	 * @param maxDistance
+	 *            the largest distance wanted; only rows up to
+	 *            {@link #getMaxDistance()} are found
+	 * @param listener
+	 *            receives every row in range
+	 * @param stats
+	 *            receives how much was read
+	 * @throws IOException
+	 */
+	public void search(double minDistance, double maxDistance,
+			DistanceResultListener listener, QueryStatistics stats)
+			throws IOException {
+		searches.incrementAndGet();
+		long first = 0;
+		long end = 0;
+		long bytes = 0;
+		int batch = 1 << 12;
+
+		try {
+			first = firstPast(minDistance, false);
+			end = firstPast(maxDistance, true);
+
+			for (long start = first; start < end; start += batch) {
+				int count = (int) Math.min(batch, end - start);
+				ByteBuffer buffer = read(recordOffset(start), count
+						* DistanceIndexWriter.RECORD_BYTES);
+				bytes += buffer.remaining();
+
+				for (int i = 0; i < count; i++) {
+					double distance = buffer.getDouble();
+					String[] keys = leaves[buffer.getInt()];
+					String pdbID = pdbIDs[buffer.getInt()];
+					int origin = buffer.getInt();
+					int target = buffer.getInt();
+					int multiplicity = buffer.getShort() & 0xffff;
+					int operator = buffer.getShort() & 0xffff;
+
+					DistanceResult dr;
+					if (multiplicity == 1 && operator == 0) {
+						dr = new DistanceResult(pdbID, distance, origin, target);
+					} else {
+						dr = new DistanceResult(pdbID, distance, origin,
+								target, multiplicity, operator == 0 ? null
+										: operators[operator - 1]);
+					}
+
+					listener.resultFound(keys[0], Element.valueOf(keys[1]),
+							keys[2], keys[3], Element.valueOf(keys[4]),
+							keys[5], dr);
+				}
+			}
+		} finally {
+			stats.addRangeScanned(bytes, Math.max(0, end - first));
+
+			if (searches.decrementAndGet() == 0 && retired)
+				closeQuietly();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	/**
+	 * Closes this index once no search is running on it any more, because
+	 * its file has been rewritten or deleted.
+	 */
+	private void retire() {
+		retired = true;
+		if (searches.get() == 0)
+			closeQuietly();
+	}
+
+	private void closeQuietly() {
+		try {
+			close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Finds the first record whose distance is at least
+	 * <code>distance</code>, or greater than it if <code>strictly</code> is
+	 * true.
+	 */
+	private long firstPast(double distance, boolean strictly)
+			throws IOException {
+		long low = 0;
+		long high = recordCount;
+
+		while (low < high) {
+			long mid = (low + high) >>> 1;
+			double d = read(recordOffset(mid), 8).getDouble();
+
+			if (d < distance || (strictly && d == distance))
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+
+	private static long recordOffset(long record) {
+		return DistanceIndexWriter.HEADER_BYTES + record
+				* DistanceIndexWriter.RECORD_BYTES;
+	}
+
+	private void readFooter() throws IOException {
+		long fileLength = channel.size();
+		ByteBuffer header = read(0, DistanceIndexWriter.HEADER_BYTES);
+		if (header.getInt() != DistanceIndexWriter.MAGIC)
+			throw new IOException(file + " is not a distance index.");
+		if (header.getInt() != DistanceIndexWriter.VERSION)
+			throw new IOException(file + " has an unsupported version.");
+
+		long footerOffset = read(fileLength - 8, 8).getLong();
+		long footerLength = fileLength - 8 - footerOffset;
+		if (footerLength > Integer.MAX_VALUE)
+			throw new IOException(file + " has a footer too large to read.");
+
+		ByteBuffer footer = read(footerOffset, (int) footerLength);
+		byte[] bytes = new byte[footer.remaining()];
+		footer.get(bytes);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				bytes));
+
+		maxDistance = in.readDouble();
+		recordCount = in.readLong();
+
+		leaves = new String[in.readInt()][];
+		for (int i = 0; i < leaves.length; i++) {
+			leaves[i] = new String[6];
+			for (int j = 0; j < leaves[i].length; j++)
+				leaves[i][j] = in.readUTF();
+		}
+
+		pdbIDs = readDictionary(in);
+
+		operators = readDictionary(in);
+	}
+
+	private static String[] readDictionary(DataInputStream in)
+			throws IOException {
+		String[] strings = new String[in.readInt()];
+		for (int i = 0; i < strings.length; i++)
+			strings[i] = in.readUTF();
+		return strings;
+	}
+
+	private ByteBuffer read(long offset, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) == -1)
+				throw new IOException("Unexpected end of " + file);
+		}
+
+		buffer.flip();
+		return buffer;
+	}
+}
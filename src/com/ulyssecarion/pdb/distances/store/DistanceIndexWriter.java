@@ -0,0 +1,355 @@
+package com.ulyssecarion.pdb.distances.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.metrics.QueryStatistics;
+import com.ulyssecarion.pdb.distances.serialization.StringDictionary;
+
+/**
+ * Writes the distance index (see {@link DistanceIndex}) of a store. An index
+ * file looks like this:
+ *
+ * <pre>
+ * 	int magic, int version
+ * 	records, sorted by distance:
+ * 		double distance, int leaf index, int PDB ID index,
+ * 		int origin serial, int target serial,
+ * 		unsigned short multiplicity, unsigned short operator index + 1 (0 if none)
+ * 	footer:
+ * 		double largest distance indexed
+ * 		long record count
+ * 		int leaf count, then the six keys (UTF) of each leaf
+ * 		int PDB ID count, then each PDB ID (UTF)
+ * 		int operator count, then each operator ID (UTF)
+ * 	long offset of the footer
+ * </pre>
+ *
+ * Records are sorted on disk: every row of the store up to the largest
+ * distance is buffered, and whenever the buffer fills up it is sorted and
+ * spilled to a temporary run of records, which are then all merged into the
+ * index. Only the footer and one buffer of rows are ever in memory.
+ */
+public class DistanceIndexWriter {
+	public static final int MAGIC = 0x50444958;
+	public static final int VERSION = 1;
+	public static final int HEADER_BYTES = 8;
+	public static final int RECORD_BYTES = 28;
+
+	/**
+	 * The largest distance indexed by default, in Angstroms. Queries for
+	 * anything further than this are not tight enough for the index to be
+	 * worth using.
+	 */
+	public static final double DEFAULT_MAX_DISTANCE = 3.0;
+
+	public static final int DEFAULT_RUN_RECORDS = 1 << 21;
+
+	private static final Comparator<Record> RECORD_ORDER = new Comparator<Record>() {
+		@Override
+		public int compare(Record a, Record b) {
+			int c = Double.compare(a.distance, b.distance);
+			if (c == 0)
+				c = Integer.compare(a.leaf, b.leaf);
+			if (c == 0)
+				c = Integer.compare(a.pdbID, b.pdbID);
+			if (c == 0)
+				c = Integer.compare(a.origin, b.origin);
+			if (c == 0)
+				c = Integer.compare(a.target, b.target);
+			return c;
+		}
+	};
+
+	/**
+	 * Writes the index of every row of a store up to
+	 * {@link #DEFAULT_MAX_DISTANCE}, spilling runs to the default temporary
+	 * directory.
+	 *
+	 * @param source
+	 *            the store to index
+	 * @param index
+	 *            the file to write to, usually
+	 *            {@link DistanceIndex#getFile(File)}; it is overwritten
+	 * @return the number of records written
+	 * @throws IOException
+	 */
+	public static long write(DistanceStore source, File index)
+			throws IOException {
+		return write(source, index, DEFAULT_MAX_DISTANCE, new File(
+				System.getProperty("java.io.tmpdir")), DEFAULT_RUN_RECORDS);
+	}
+
+	/**
+	 * Writes the index of every row of a store up to some distance.
+	 *
+	 * @param source
+	 *            the store to index
+	 * @param index
+	 *            the file to write to; it is overwritten
+	 * @param maxDistance
+	 *            the largest distance to index
+	 * @param directory
+	 *            where to write runs
+	 * @param runRecords
+	 *            how many records to buffer before spilling them to a run
+	 * @return the number of records written
+	 * @throws IOException
+	 */
+	public static long write(DistanceStore source, File index,
+			double maxDistance, File directory, int runRecords)
+			throws IOException {
+		QueryStatistics stats = new QueryStatistics();
+		boolean sorted = source.getCapabilities().contains(
+				StoreCapability.SORTED_LEAVES);
+
+		StringDictionary pdbIDs = new StringDictionary();
+		StringDictionary operators = new StringDictionary();
+		List<String[]> leaves = new ArrayList<>();
+		List<Record> buffer = new ArrayList<>();
+		List<File> runs = new ArrayList<>();
+
+		try {
+			for (String[] leaf : DistanceStores.getLeaves(source)) {
+				int leafIndex = leaves.size();
+				boolean indexed = false;
+
+				for (DistanceResult dr : source.getResults(leaf, stats)) {
+					if (dr.getDistance() > maxDistance) {
+						if (sorted)
+							break;
+						continue;
+					}
+
+					buffer.add(new Record(dr.getDistance(), leafIndex, pdbIDs
+							.getOrAdd(dr.getPdbID()), dr.getOrigin(), dr
+							.getTarget(), dr.getMultiplicity(),
+							dr.getOperator() == null ? 0 : operators
+									.getOrAdd(dr.getOperator()) + 1));
+					indexed = true;
+				}
+
+				if (indexed)
+					leaves.add(leaf);
+
+				if (buffer.size() >= runRecords)
+					runs.add(spill(buffer, directory));
+			}
+
+			if (!buffer.isEmpty())
+				runs.add(spill(buffer, directory));
+
+			File temp = new File(index.getAbsoluteFile().getParentFile(), "."
+					+ index.getName() + ".tmp");
+
+			try {
+				long written = merge(runs, temp, maxDistance, leaves, pdbIDs,
+						operators);
+				replace(temp, index);
+				return written;
+			} finally {
+				temp.delete();
+			}
+		} finally {
+			for (File run : runs)
+				run.delete();
+		}
+	}
+
+	/**
+	 * Writes the distance index of a store that is already built. Argument:
+	 * the root of a directory structure or a segment file (by default,
+	 * {@link DistanceStores#getDefaultRoot()}).
+	 */
+	public static void main(String[] args) throws IOException {
+		File path = args.length > 0 ? new File(args[0]) : DistanceStores
+				.getDefaultRoot();
+		File index = DistanceIndex.getFile(path);
+
+		try (DistanceStore store = path.isDirectory() ? new DirectoryStore(
+				path, null) : new PackedSegmentStore(path)) {
+			long start = System.currentTimeMillis();
+			long records = write(store, index);
+			long stop = System.currentTimeMillis();
+
+			System.out.println("Indexed " + records + " rows of "
+					+ store.getDescription() + " in " + index + ", in "
+					+ (stop - start) + " ms.");
+		}
+	}
+
+	/**
+	 * Moves a fully written index into place, so that a store being searched
+	 * never sees half of one.
+	 */
+	private static void replace(File temp, File index) throws IOException {
+		if (!temp.renameTo(index)) {
+			index.delete();
+			if (!temp.renameTo(index))
+				throw new IOException("Could not replace " + index);
+		}
+	}
+
+	private static File spill(List<Record> buffer, File directory)
+			throws IOException {
+		Collections.sort(buffer, RECORD_ORDER);
+
+		File run = File.createTempFile("distances", ".run", directory);
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+			for (Record record : buffer)
+				record.write(out);
+		}
+
+		buffer.clear();
+		return run;
+	}
+
+	private static long merge(List<File> runs, File index, double maxDistance,
+			List<String[]> leaves, StringDictionary pdbIDs,
+			StringDictionary operators) throws IOException {
+		PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1,
+				runs.size()), new Comparator<RunReader>() {
+			@Override
+			public int compare(RunReader a, RunReader b) {
+				return RECORD_ORDER.compare(a.record, b.record);
+			}
+		});
+
+		List<RunReader> readers = new ArrayList<>();
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(index), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			for (File run : runs) {
+				RunReader reader = new RunReader(run);
+				readers.add(reader);
+
+				if (reader.next())
+					queue.add(reader);
+			}
+
+			long written = 0;
+			while (!queue.isEmpty()) {
+				RunReader reader = queue.poll();
+				reader.record.write(out);
+				written++;
+
+				if (reader.next())
+					queue.add(reader);
+			}
+
+			out.writeDouble(maxDistance);
+			out.writeLong(written);
+
+			out.writeInt(leaves.size());
+			for (String[] leaf : leaves) {
+				for (String key : leaf)
+					out.writeUTF(key);
+			}
+
+			writeDictionary(out, pdbIDs);
+			writeDictionary(out, operators);
+
+			out.writeLong(HEADER_BYTES + written * RECORD_BYTES);
+			return written;
+		} finally {
+			for (RunReader reader : readers)
+				reader.close();
+		}
+	}
+
+	private static void writeDictionary(DataOutputStream out,
+			StringDictionary dictionary) throws IOException {
+		out.writeInt(dictionary.size());
+		for (int i = 0; i < dictionary.size(); i++)
+			out.writeUTF(dictionary.get(i));
+	}
+
+	/**
+	 * A row as it is written in the index.
+	 */
+	private static class Record {
+		private final double distance;
+		private final int leaf;
+		private final int pdbID;
+		private final int origin;
+		private final int target;
+		private final int multiplicity;
+		private final int operator;
+
+		public Record(double distance, int leaf, int pdbID, int origin,
+				int target, int multiplicity, int operator) {
+			this.distance = distance;
+			this.leaf = leaf;
+			this.pdbID = pdbID;
+			this.origin = origin;
+			this.target = target;
+			this.multiplicity = multiplicity;
+			this.operator = operator;
+		}
+
+		public void write(DataOutputStream out) throws IOException {
+			out.writeDouble(distance);
+			out.writeInt(leaf);
+			out.writeInt(pdbID);
+			out.writeInt(origin);
+			out.writeInt(target);
+			out.writeShort(multiplicity);
+			out.writeShort(operator);
+		}
+
+		public static Record read(DataInputStream in) throws IOException {
+			return new Record(in.readDouble(), in.readInt(), in.readInt(),
+					in.readInt(), in.readInt(), in.readUnsignedShort(),
+					in.readUnsignedShort());
+		}
+	}
+
+	/**
+	 * Reads the records of a run one at a time.
+	 */
+	private static class RunReader implements Closeable {
+		private final DataInputStream in;
+		private Record record;
+
+		public RunReader(File run) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(run), 1 << 16));
+		}
+
+		/**
+		 * Moves on to the next record.
+		 *
+		 * @return false if there are no records left
+		 */
+		public boolean next() throws IOException {
+			try {
+				record = Record.read(in);
+				return true;
+			} catch (EOFException e) {
+				return false;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
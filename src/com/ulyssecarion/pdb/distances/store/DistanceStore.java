@@ -0,0 +1,122 @@
+package com.ulyssecarion.pdb.distances.store;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Set;
+
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.bitmap.EntryBitmap;
+import com.ulyssecarion.pdb.distances.metrics.QueryStatistics;
+import com.ulyssecarion.pdb.distances.serialization.StringDictionary;
+import com.ulyssecarion.pdb.distances.summary.LeafSummary;
+
+/**
+ * Somewhere precalculated distance results are kept. A store is a tree with
+ * the same six levels as a
+ * {@link com.ulyssecarion.pdb.distances.DistanceDataTree} (origin group,
+ * element and atom name, then target group, element and atom name), whose
+ * leaves hold distance results. Elements are named by their
+ * <code>toString()</code>.
+ * <p>
+ * Paths into the tree are given as arrays of keys, from the origin group
+ * down; an empty array is the root and an array of six keys is a leaf.
+ * <p>
+ * Stores only have to know how to navigate their tree and read leaves; the
+ * actual searching is done by {@link QueryExecutor}, the same way for every
+ * store. What else a store can do is described by its
+ * {@link StoreCapability capabilities}.
+ * <p>
+ * Stores must be safe to search from several threads at once.
+ */
+public interface DistanceStore extends Closeable {
+	/**
+	 * @return a short description of this store and where it is, for logs
+	 */
+	public String getDescription();
+
+	public Set<StoreCapability> getCapabilities();
+
+	/**
+	 * Lists the keys one level below a path.
+	 * 
+	 * @param path
+	 *            between zero and five keys
+	 * @return the keys under that path, or an empty list if there is no such
+	 *         path
+	 */
+	public List<String> getKeys(String[] path);
+
+	/**
+	 * Checks whether a key exists one level below a path, without listing all
+	 * of them.
+	 * 
+	 * @param path
+	 *            between zero and five keys
+	 * @param key
+	 *            the key to look for
+	 * @return whether the path followed by the key exists
+	 */
+	public boolean hasKey(String[] path, String key);
+
+	/**
+	 * Reads the rows of a leaf. If the store has
+	 * {@link StoreCapability#SORTED_LEAVES}, they are sorted by increasing
+	 * distance. The list returned may be shared and must not be modified.
+	 * 
+	 * @param leaf
+	 *            the six keys of the leaf
+	 * @param stats
+	 *            receives how much was read
+	 * @return the rows of the leaf, or an empty list if there is no such leaf
+	 * @throws StoreException
+	 *             if the leaf exists but cannot be read
+	 */
+	public List<DistanceResult> getResults(String[] leaf, QueryStatistics stats);
+
+	/**
+	 * Gets the PDB entries that have rows in a leaf, as indexes in
+	 * {@link #getPdbIDs()}.
+	 * 
+	 * @param leaf
+	 *            the six keys of the leaf
+	 * @return the entries of the leaf, or null if this store has no
+	 *         {@link StoreCapability#ENTRY_BITMAPS} or no bitmap for this leaf
+	 */
+	public EntryBitmap getLeafEntries(String[] leaf);
+
+	/**
+	 * Gets the leaves that have rows for a PDB entry.
+	 * 
+	 * @param pdbID
+	 *            the PDB ID of the entry
+	 * @return the six keys of every leaf with rows for the entry, or null if
+	 *         this store has no {@link StoreCapability#REVERSE_INDEX}
+	 */
+	public List<String[]> getLeavesOfEntry(String pdbID);
+
+	/**
+	 * Gets the summary of a leaf: its row count, distance range and
+	 * histogram, and a sketch of its entries.
+	 * 
+	 * @param leaf
+	 *            the six keys of the leaf
+	 * @return the summary of the leaf, or null if this store has no
+	 *         {@link StoreCapability#LEAF_SUMMARIES} or no summary for this
+	 *         leaf
+	 */
+	public LeafSummary getLeafSummary(String[] leaf);
+
+	/**
+	 * Gets the index of the shortest rows of the whole store, sorted by
+	 * distance.
+	 * 
+	 * @return the index, or null if this store has no
+	 *         {@link StoreCapability#DISTANCE_INDEX}
+	 */
+	public DistanceIndex getDistanceIndex();
+
+	/**
+	 * @return the dictionary that entry bitmaps of this store index into
+	 */
+	public StringDictionary getPdbIDs();
+}
@@ -0,0 +1,114 @@
+package com.ulyssecarion.pdb.distances.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.ulyssecarion.pdb.distances.serialization.DistanceDataTreeSerializer;
+import com.ulyssecarion.pdb.distances.serialization.LeafCache;
+
+/**
+ * Opens {@link DistanceStore}s from short string specifications, so that the
+ * backend a program searches can be picked on its command line:
+ * <ul>
+ * <li><code>dir:PATH</code>, or just <code>PATH</code>: a
+ * {@link DirectoryStore}, using the default leaf cache.</li>
+ * <li><code>packed:FILE</code>: a {@link PackedSegmentStore}.</li>
+ * <li><code>mmap:FILE</code>: a {@link MappedSegmentStore}.</li>
+ * <li><code>memory:SPEC</code>: an {@link InMemoryStore} copied from the
+ * store <code>SPEC</code>, e.g. <code>memory:mmap:/data/all.seg</code>.</li>
+ * </ul>
+ * The default store is the directory named by the
+ * <code>pdb.distances.root</code> system property, or
+ * {@link DistanceDataTreeSerializer#DIR_OUTPUT_FOLDER} if it is not set.
+ */
+public class DistanceStores {
+	public static final String ROOT_PROPERTY = "pdb.distances.root";
+
+	private static volatile LeafCache leafCache;
+
+	/**
+	 * @return the root of the default directory store
+	 */
+	public static File getDefaultRoot() {
+		return new File(System.getProperty(ROOT_PROPERTY,
+				DistanceDataTreeSerializer.DIR_OUTPUT_FOLDER));
+	}
+
+	/**
+	 * Sets the cache that directory stores opened from now on keep parsed
+	 * leaves in. There is no cache by default.
+	 *
+	 * @param cache
+	 *            the cache to use, or null to always read leaves from disk
+	 */
+	public static void setLeafCache(LeafCache cache) {
+		leafCache = cache;
+	}
+
+	public static LeafCache getLeafCache() {
+		return leafCache;
+	}
+
+	/**
+	 * @return a store for the default root
+	 */
+	public static DistanceStore openDefault() {
+		return new DirectoryStore(getDefaultRoot(), leafCache);
+	}
+
+	/**
+	 * Opens a store from its specification.
+	 *
+	 * @param spec
+	 *            the kind of store and where it is, as described above
+	 * @return the opened store, which should be closed when no longer needed
+	 * @throws IOException
+	 *             if the store could not be opened
+	 */
+	public static DistanceStore open(String spec) throws IOException {
+		if (spec.startsWith("dir:"))
+			return new DirectoryStore(new File(spec.substring(4)), leafCache);
+		if (spec.startsWith("packed:"))
+			return new PackedSegmentStore(new File(spec.substring(7)));
+		if (spec.startsWith("mmap:"))
+			return new MappedSegmentStore(new File(spec.substring(5)));
+
+		if (spec.startsWith("memory:")) {
+			try (DistanceStore source = open(spec.substring(7))) {
+				return InMemoryStore.copyOf(source);
+			}
+		}
+
+		return new DirectoryStore(new File(spec), leafCache);
+	}
+
+	/**
+	 * Lists the six keys of every leaf of a store, depth-first.
+	 *
+	 * @param store
+	 *            the store to list the leaves of
+	 * @return the keys of every leaf
+	 */
+	public static List<String[]> getLeaves(DistanceStore store) {
+		List<String[]> leaves = new ArrayList<>();
+		addLeaves(store, new String[0], leaves);
+		return leaves;
+	}
+
+	private static void addLeaves(DistanceStore store, String[] path,
+			List<String[]> leaves) {
+		if (path.length == 6) {
+			leaves.add(path);
+			return;
+		}
+
+		for (String key : store.getKeys(path)) {
+			String[] childPath = Arrays.copyOf(path, path.length + 1);
+			childPath[path.length] = key;
+			addLeaves(store, childPath, leaves);
+		}
+	}
+}
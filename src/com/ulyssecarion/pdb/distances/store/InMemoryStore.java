@@ -0,0 +1,248 @@
+package com.ulyssecarion.pdb.distances.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.biojava.bio.structure.Element;
+
+import com.ulyssecarion.pdb.distances.DistanceDataTree;
+import com.ulyssecarion.pdb.distances.DistanceDataTree.OriginAtomNameTree;
+import com.ulyssecarion.pdb.distances.DistanceDataTree.OriginElementTree;
+import com.ulyssecarion.pdb.distances.DistanceDataTree.OriginGroupTree;
+import com.ulyssecarion.pdb.distances.DistanceDataTree.TargetElementTree;
+import com.ulyssecarion.pdb.distances.DistanceDataTree.TargetGroupTree;
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.bitmap.EntryBitmap;
+import com.ulyssecarion.pdb.distances.metrics.QueryStatistics;
+import com.ulyssecarion.pdb.distances.serialization.StringDictionary;
+import com.ulyssecarion.pdb.distances.summary.LeafSummary;
+
+/**
+ * A store backed by a {@link DistanceDataTree} in memory.
+ * <p>
+ * Wrapping an existing tree costs nothing, but its leaves are in whatever
+ * order they were added in. {@link #copyOf(DistanceStore)} loads another
+ * store into a new tree and sorts its leaves by distance, which is the
+ * fastest thing to search if it fits in memory.
+ */
+public class InMemoryStore implements DistanceStore {
+	private static final Comparator<DistanceResult> BY_DISTANCE = new Comparator<DistanceResult>() {
+		@Override
+		public int compare(DistanceResult a, DistanceResult b) {
+			return Double.compare(a.getDistance(), b.getDistance());
+		}
+	};
+
+	private final DistanceDataTree tree;
+	private final Set<StoreCapability> capabilities;
+	private StringDictionary pdbIDs;
+
+	/**
+	 * Wraps a tree. It must not be added to while it is being searched.
+	 *
+	 * @param tree
+	 *            the tree to search through
+	 */
+	public InMemoryStore(DistanceDataTree tree) {
+		this(tree, EnumSet.noneOf(StoreCapability.class), null);
+	}
+
+	private InMemoryStore(DistanceDataTree tree,
+			Set<StoreCapability> capabilities, StringDictionary pdbIDs) {
+		this.tree = tree;
+		this.capabilities = Collections.unmodifiableSet(capabilities);
+		this.pdbIDs = pdbIDs;
+	}
+
+	/**
+	 * Loads every row of a store into memory, with every leaf sorted by
+	 * distance.
+	 *
+	 * @param source
+	 *            the store to copy
+	 * @return an in-memory copy of the store
+	 */
+	public static InMemoryStore copyOf(DistanceStore source) {
+		DistanceDataTree tree = new DistanceDataTree();
+		QueryStatistics stats = new QueryStatistics();
+
+		for (String[] leaf : DistanceStores.getLeaves(source)) {
+			for (DistanceResult dr : source.getResults(leaf, stats)) {
+				tree.add(leaf[0], Element.valueOf(leaf[1]), leaf[2], leaf[3],
+						Element.valueOf(leaf[4]), leaf[5], dr);
+			}
+		}
+
+		InMemoryStore copy = new InMemoryStore(tree,
+				EnumSet.of(StoreCapability.SORTED_LEAVES), source.getPdbIDs());
+
+		for (String[] leaf : DistanceStores.getLeaves(copy)) {
+			TargetElementTree parent = (TargetElementTree) copy.getNode(Arrays
+					.copyOf(leaf, 5));
+			Collections.sort(parent.get(leaf[5]), BY_DISTANCE);
+		}
+
+		return copy;
+	}
+
+	public DistanceDataTree getTree() {
+		return tree;
+	}
+
+	@Override
+	public String getDescription() {
+		return "memory"
+				+ (capabilities.contains(StoreCapability.SORTED_LEAVES) ? " (sorted)"
+						: "");
+	}
+
+	@Override
+	public Set<StoreCapability> getCapabilities() {
+		return capabilities;
+	}
+
+	@Override
+	public List<String> getKeys(String[] path) {
+		Object node = getNode(path);
+		List<String> keys = new ArrayList<>();
+
+		if (node instanceof DistanceDataTree) {
+			keys.addAll(((DistanceDataTree) node).getOriginGroupNames());
+		} else if (node instanceof OriginGroupTree) {
+			for (Element e : ((OriginGroupTree) node).getKeys())
+				keys.add(e.toString());
+		} else if (node instanceof OriginElementTree) {
+			keys.addAll(((OriginElementTree) node).getKeys());
+		} else if (node instanceof OriginAtomNameTree) {
+			keys.addAll(((OriginAtomNameTree) node).getKeys());
+		} else if (node instanceof TargetGroupTree) {
+			for (Element e : ((TargetGroupTree) node).getKeys())
+				keys.add(e.toString());
+		} else if (node instanceof TargetElementTree) {
+			keys.addAll(((TargetElementTree) node).getKeys());
+		}
+
+		return keys;
+	}
+
+	@Override
+	public boolean hasKey(String[] path, String key) {
+		String[] childPath = Arrays.copyOf(path, path.length + 1);
+		childPath[path.length] = key;
+		return getNode(childPath) != null;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<DistanceResult> getResults(String[] leaf, QueryStatistics stats) {
+		Object node = getNode(leaf);
+		if (node == null)
+			return Collections.emptyList();
+
+		List<DistanceResult> rows = (List<DistanceResult>) node;
+		stats.addLeafOpened(0, rows.size());
+		return Collections.unmodifiableList(rows);
+	}
+
+	@Override
+	public EntryBitmap getLeafEntries(String[] leaf) {
+		return null;
+	}
+
+	@Override
+	public List<String[]> getLeavesOfEntry(String pdbID) {
+		return null;
+	}
+
+	@Override
+	public LeafSummary getLeafSummary(String[] leaf) {
+		return null;
+	}
+
+	@Override
+	public DistanceIndex getDistanceIndex() {
+		return null;
+	}
+
+	/**
+	 * Gets the dictionary of PDB IDs of the store this was copied from, or one
+	 * made from every PDB ID in the tree the first time it is asked for.
+	 */
+	@Override
+	public synchronized StringDictionary getPdbIDs() {
+		if (pdbIDs == null) {
+			pdbIDs = new StringDictionary();
+			QueryStatistics stats = new QueryStatistics();
+
+			for (String[] leaf : DistanceStores.getLeaves(this))
+				for (DistanceResult dr : getResults(leaf, stats))
+					pdbIDs.getOrAdd(dr.getPdbID());
+		}
+
+		return pdbIDs;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Follows a path down the tree. A path of six keys leads to the list of
+	 * results of a leaf.
+	 *
+	 * @return the node at the end of the path, or null if there is none
+	 */
+	private Object getNode(String[] path) {
+		Object node = tree;
+
+		for (String key : path) {
+			node = getChild(node, key);
+			if (node == null)
+				return null;
+		}
+
+		return node;
+	}
+
+	private static Object getChild(Object node, String key) {
+		if (node instanceof DistanceDataTree) {
+			DistanceDataTree t = (DistanceDataTree) node;
+			return t.getOriginGroupNames().contains(key) ? t.get(key).get(0)
+					: null;
+		} else if (node instanceof OriginGroupTree) {
+			OriginGroupTree t = (OriginGroupTree) node;
+			Element e = toElement(key);
+			return e != null && t.getKeys().contains(e) ? t.get(e).get(0)
+					: null;
+		} else if (node instanceof OriginElementTree) {
+			OriginElementTree t = (OriginElementTree) node;
+			return t.getKeys().contains(key) ? t.get(key).get(0) : null;
+		} else if (node instanceof OriginAtomNameTree) {
+			OriginAtomNameTree t = (OriginAtomNameTree) node;
+			return t.getKeys().contains(key) ? t.get(key).get(0) : null;
+		} else if (node instanceof TargetGroupTree) {
+			TargetGroupTree t = (TargetGroupTree) node;
+			Element e = toElement(key);
+			return e != null && t.getKeys().contains(e) ? t.get(e).get(0)
+					: null;
+		} else if (node instanceof TargetElementTree) {
+			TargetElementTree t = (TargetElementTree) node;
+			return t.getKeys().contains(key) ? t.get(key) : null;
+		}
+
+		return null;
+	}
+
+	private static Element toElement(String key) {
+		try {
+			return Element.valueOf(key);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+}
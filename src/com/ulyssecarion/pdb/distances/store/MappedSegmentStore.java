@@ -0,0 +1,58 @@
+package com.ulyssecarion.pdb.distances.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link SegmentStore} that maps its whole segment file into memory, so
+ * that reading a leaf is a copy out of the page cache rather than a system
+ * call. Segments must be smaller than 2 GB.
+ */
+public class MappedSegmentStore extends SegmentStore {
+	private final MappedByteBuffer buffer;
+
+	/**
+	 * Opens and maps a segment file.
+	 * 
+	 * @param file
+	 *            a segment written by {@link PackedSegmentWriter}
+	 * @throws IOException
+	 *             if the file cannot be read, is too large to map, or is not
+	 *             a segment
+	 */
+	public MappedSegmentStore(File file) throws IOException {
+		super(file);
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException(file + " is too large to map.");
+
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		}
+
+		readFooter(buffer.capacity());
+	}
+
+	@Override
+	public String getDescription() {
+		return "mapped segment " + getFile();
+	}
+
+	@Override
+	protected ByteBuffer read(long offset, int length) {
+		ByteBuffer view = buffer.duplicate();
+		view.position((int) offset);
+		view.limit((int) offset + length);
+		return view.slice();
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,61 @@
+package com.ulyssecarion.pdb.distances.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link SegmentStore} that reads each leaf from its segment file with a
+ * positioned read when it is searched. Only the footer is kept in memory, so
+ * this works for segments of any size.
+ */
+public class PackedSegmentStore extends SegmentStore {
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+
+	/**
+	 * Opens a segment file.
+	 * 
+	 * @param file
+	 *            a segment written by {@link PackedSegmentWriter}
+	 * @throws IOException
+	 *             if the file cannot be read or is not a segment
+	 */
+	public PackedSegmentStore(File file) throws IOException {
+		super(file);
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+
+		try {
+			readFooter(channel.size());
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public String getDescription() {
+		return "packed segment " + getFile();
+	}
+
+	@Override
+	protected ByteBuffer read(long offset, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) == -1)
+				throw new IOException("Unexpected end of " + getFile());
+		}
+
+		buffer.flip();
+		return buffer;
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+}
@@ -0,0 +1,251 @@
+package com.ulyssecarion.pdb.distances.store;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.bitmap.EntryBitmap;
+import com.ulyssecarion.pdb.distances.metrics.QueryStatistics;
+import com.ulyssecarion.pdb.distances.serialization.StringDictionary;
+import com.ulyssecarion.pdb.distances.summary.LeafSummary;
+
+/**
+ * Packs any {@link DistanceStore} into a single segment file, to be read by a
+ * {@link PackedSegmentStore} or a {@link MappedSegmentStore}. A segment looks
+ * like this:
+ *
+ * <pre>
+ * 	int magic, int version
+ * 	rows, leaf after leaf, each sorted by distance:
+ * 		int PDB ID index, double distance, int origin serial, int target serial,
+ * 		unsigned short multiplicity, unsigned short operator index + 1 (0 if none)
+ * 	footer:
+ * 		int PDB ID count, then each PDB ID (UTF)
+ * 		int leaf count, then for each leaf:
+ * 			its six keys (UTF), long offset of its rows, int row count,
+ * 			bitmap of its entries, summary of its rows
+ * 		int entry count, then for each entry:
+ * 			int leaf count, then the index of each leaf
+ * 		int operator count, then each operator ID (UTF)
+ * 	long offset of the footer
+ * </pre>
+ *
+ * Leaves are written depth-first, so that all leaves under a given path are
+ * next to each other in the file.
+ * <p>
+ * Segments can be packed from a whole store at once with
+ * {@link #write(DistanceStore, File)}, or streamed a leaf at a time by
+ * creating a writer, giving it each leaf in turn with
+ * {@link #writeLeaf(String[], List)}, and closing it to write the footer.
+ * Only the footer is kept in memory until then.
+ */
+public class PackedSegmentWriter implements Closeable {
+	public static final int MAGIC = 0x50445347;
+	public static final int VERSION = 3;
+	public static final int HEADER_BYTES = 8;
+	public static final int ROW_BYTES = 24;
+
+	private static final Comparator<DistanceResult> BY_DISTANCE = new Comparator<DistanceResult>() {
+		@Override
+		public int compare(DistanceResult a, DistanceResult b) {
+			return Double.compare(a.getDistance(), b.getDistance());
+		}
+	};
+
+	private final DataOutputStream out;
+	private final StringDictionary pdbIDs = new StringDictionary();
+	private final StringDictionary operators = new StringDictionary();
+	private final List<String[]> leaves = new ArrayList<>();
+	private final List<Long> offsets = new ArrayList<>();
+	private final List<Integer> counts = new ArrayList<>();
+	private final List<EntryBitmap> bitmaps = new ArrayList<>();
+	private final List<LeafSummary> summaries = new ArrayList<>();
+	private long offset = HEADER_BYTES;
+	private long rowCount;
+
+	/**
+	 * Starts a new segment file.
+	 *
+	 * @param segment
+	 *            the file to write to; it is overwritten
+	 * @throws IOException
+	 */
+	public PackedSegmentWriter(File segment) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(segment), 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+	}
+
+	/**
+	 * Writes every row of a store to a new segment file.
+	 *
+	 * @param source
+	 *            the store to pack
+	 * @param segment
+	 *            the file to write to; it is overwritten
+	 * @return the number of rows written
+	 * @throws IOException
+	 */
+	public static long write(DistanceStore source, File segment)
+			throws IOException {
+		QueryStatistics stats = new QueryStatistics();
+
+		try (PackedSegmentWriter writer = new PackedSegmentWriter(segment)) {
+			for (String[] leaf : DistanceStores.getLeaves(source)) {
+				List<DistanceResult> rows = new ArrayList<>(source.getResults(
+						leaf, stats));
+				Collections.sort(rows, BY_DISTANCE);
+
+				writer.writeLeaf(leaf, rows);
+			}
+
+			return writer.getRowCount();
+		}
+	}
+
+	/**
+	 * Writes the rows of one leaf. Leaves must be given depth-first: once a
+	 * leaf under a path has been written, every other leaf under that path
+	 * must be written before any leaf that is not.
+	 *
+	 * @param keys
+	 *            the six keys of the leaf
+	 * @param rows
+	 *            the rows of the leaf, already sorted by distance
+	 * @throws IOException
+	 *             if a row does not fit in a segment, in which case nothing
+	 *             of the leaf has been written
+	 */
+	public void writeLeaf(String[] keys, List<DistanceResult> rows)
+			throws IOException {
+		checkRows(rows);
+
+		EntryBitmap bitmap = new EntryBitmap();
+		LeafSummary summary = new LeafSummary();
+
+		for (DistanceResult dr : rows) {
+			int index = pdbIDs.getOrAdd(dr.getPdbID());
+			bitmap.add(index);
+			summary.add(dr);
+
+			out.writeInt(index);
+			out.writeDouble(dr.getDistance());
+			out.writeInt(dr.getOrigin());
+			out.writeInt(dr.getTarget());
+			out.writeShort(dr.getMultiplicity());
+			out.writeShort(dr.getOperator() == null ? 0 : operators
+					.getOrAdd(dr.getOperator()) + 1);
+		}
+
+		leaves.add(keys.clone());
+		offsets.add(offset);
+		counts.add(rows.size());
+		bitmaps.add(bitmap);
+		summaries.add(summary);
+
+		offset += (long) rows.size() * ROW_BYTES;
+		rowCount += rows.size();
+	}
+
+	/**
+	 * Checks that every row of a leaf fits in the unsigned shorts a segment
+	 * keeps multiplicities and operator indexes in.
+	 */
+	private void checkRows(List<DistanceResult> rows) throws IOException {
+		Set<String> newOperators = new HashSet<>();
+
+		for (DistanceResult dr : rows) {
+			if (dr.getMultiplicity() < 0 || dr.getMultiplicity() > 0xffff)
+				throw new IOException("Multiplicity " + dr.getMultiplicity()
+						+ " does not fit in a segment.");
+
+			if (dr.getOperator() != null
+					&& operators.indexOf(dr.getOperator()) == -1)
+				newOperators.add(dr.getOperator());
+		}
+
+		// operator indexes are stored plus one, so 0 can mean none
+		if (operators.size() + newOperators.size() > 0xffff)
+			throw new IOException("Too many operators for a segment.");
+	}
+
+	/**
+	 * @return the number of rows written so far
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Writes the footer and closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			long footerOffset = offset;
+
+			out.writeInt(pdbIDs.size());
+			for (int i = 0; i < pdbIDs.size(); i++)
+				out.writeUTF(pdbIDs.get(i));
+
+			List<List<Integer>> leavesOfEntries = new ArrayList<>();
+			for (int i = 0; i < pdbIDs.size(); i++)
+				leavesOfEntries.add(new ArrayList<Integer>());
+
+			out.writeInt(leaves.size());
+			for (int i = 0; i < leaves.size(); i++) {
+				for (String key : leaves.get(i))
+					out.writeUTF(key);
+				out.writeLong(offsets.get(i));
+				out.writeInt(counts.get(i));
+				bitmaps.get(i).write(out);
+				summaries.get(i).write(out);
+
+				for (int entry : bitmaps.get(i).toArray())
+					leavesOfEntries.get(entry).add(i);
+			}
+
+			out.writeInt(leavesOfEntries.size());
+			for (List<Integer> entryLeaves : leavesOfEntries) {
+				out.writeInt(entryLeaves.size());
+				for (int leaf : entryLeaves)
+					out.writeInt(leaf);
+			}
+
+			out.writeInt(operators.size());
+			for (int i = 0; i < operators.size(); i++)
+				out.writeUTF(operators.get(i));
+
+			out.writeLong(footerOffset);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Packs a store into a segment. Arguments: the store to pack (see
+	 * {@link DistanceStores#open(String)}), then the segment file to write.
+	 */
+	public static void main(String[] args) throws IOException {
+		try (DistanceStore source = DistanceStores.open(args[0])) {
+			long start = System.currentTimeMillis();
+			long rows = write(source, new File(args[1]));
+			long stop = System.currentTimeMillis();
+
+			System.out.println("Packed " + rows + " rows from "
+					+ source.getDescription() + " into " + args[1] + " in "
+					+ (stop - start) + " ms.");
+		}
+	}
+}
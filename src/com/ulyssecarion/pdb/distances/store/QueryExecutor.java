@@ -0,0 +1,486 @@
+package com.ulyssecarion.pdb.distances.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.biojava.bio.structure.Element;
+
+import com.ulyssecarion.pdb.distances.DistanceQuery;
+import com.ulyssecarion.pdb.distances.DistanceQuery.DistanceQueryBuilder;
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.DistanceResultListener;
+import com.ulyssecarion.pdb.distances.bitmap.EntryBitmap;
+import com.ulyssecarion.pdb.distances.metrics.QueryMetrics;
+import com.ulyssecarion.pdb.distances.metrics.QueryStatistics;
+import com.ulyssecarion.pdb.distances.precalculations.LigandDistanceDataTreeBuilder;
+import com.ulyssecarion.pdb.distances.serialization.StringDictionary;
+import com.ulyssecarion.pdb.distances.summary.ApproximateAnswer;
+import com.ulyssecarion.pdb.distances.summary.LeafSummary;
+
+/**
+ * Answers distance queries against any {@link DistanceStore}.
+ * <p>
+ * The six levels of the store are walked from the origin group down. A level
+ * the query binds is checked with {@link DistanceStore#hasKey(String[], String)}
+ * ; a level it leaves as a wildcard is listed with
+ * {@link DistanceStore#getKeys(String[])}. Every leaf reached this way is read
+ * and its rows are filtered by distance and entry.
+ * <p>
+ * What the store can do beyond that is used when it helps:
+ * <ul>
+ * <li>With {@link StoreCapability#REVERSE_INDEX}, queries restricted to one
+ * PDB entry go straight to that entry's leaves.</li>
+ * <li>With {@link StoreCapability#ENTRY_BITMAPS}, queries restricted to a set
+ * of entries (first translated into the store's own dictionary, see
+ * {@link EntryBitmap#translate(StringDictionary)}) skip leaves that have none
+ * of them, and {@link #searchEntries(DistanceStore, DistanceQuery)} can often
+ * be answered without reading any rows.</li>
+ * <li>With {@link StoreCapability#SORTED_LEAVES}, only the rows within the
+ * distance range are looked at.</li>
+ * <li>With {@link StoreCapability#DISTANCE_INDEX}, queries that bind none of
+ * the six levels and only want distances the index covers are answered by
+ * reading the range of the index they want, and no leaf at all.</li>
+ * <li>With {@link StoreCapability#LEAF_SUMMARIES},
+ * {@link #approximate(DistanceStore, DistanceQuery, QueryStatistics)} answers
+ * "about how many" questions without reading any row.</li>
+ * </ul>
+ * Every search is recorded in the JVM-wide {@link QueryMetrics}. A search
+ * that cannot read part of its store throws a {@link StoreException} instead
+ * of giving back the rows it could read.
+ */
+public class QueryExecutor {
+	private static final int LEVELS = 6;
+
+	/**
+	 * Finds every distance result in a store matching a distance query.
+	 *
+	 * @param store
+	 *            the store to search through
+	 * @param q
+	 *            the distance query to find matches for
+	 * @return a list of all matching distance results
+	 */
+	public static List<DistanceResult> search(DistanceStore store,
+			DistanceQuery q) {
+		return search(store, q, (QueryStatistics) null);
+	}
+
+	/**
+	 * Works like {@link #search(DistanceStore, DistanceQuery)}, but also fills
+	 * in execution statistics for the query.
+	 *
+	 * @param store
+	 *            the store to search through
+	 * @param q
+	 *            the distance query to find matches for
+	 * @param stats
+	 *            filled in with what the query had to read, or null
+	 * @return a list of all matching distance results
+	 */
+	public static List<DistanceResult> search(DistanceStore store,
+			DistanceQuery q, QueryStatistics stats) {
+		final List<DistanceResult> results = new ArrayList<>();
+
+		search(store, q, new DistanceResultListener() {
+			@Override
+			public void resultFound(String originGroup, Element originElement,
+					String originAtomName, String targetGroup,
+					Element targetElement, String targetAtomName,
+					DistanceResult dr) {
+				results.add(dr);
+			}
+		}, stats);
+
+		return results;
+	}
+
+	/**
+	 * Passes every distance result in a store matching a distance query to
+	 * <code>listener</code> as soon as the leaf it is in has been read.
+	 * Nothing is collected in memory, so this is the method to use for
+	 * queries with very many results.
+	 *
+	 * @param store
+	 *            the store to search through
+	 * @param q
+	 *            the distance query to find matches for
+	 * @param listener
+	 *            receives every matching distance result
+	 * @param stats
+	 *            filled in with what the query had to read, or null
+	 */
+	public static void search(final DistanceStore store, final DistanceQuery q,
+			final DistanceResultListener listener, QueryStatistics stats) {
+		final QueryStatistics s = stats == null ? new QueryStatistics()
+				: stats;
+		final StringDictionary pdbIDs = q.getEntries() == null ? null : store
+				.getPdbIDs();
+		final EntryBitmap entries = getEntries(q, pdbIDs);
+		final boolean sorted = store.getCapabilities().contains(
+				StoreCapability.SORTED_LEAVES);
+
+		s.setShape(q.getShape());
+		long start = System.nanoTime();
+
+		try {
+			DistanceIndex index = getDistanceIndex(store, q);
+			if (index != null) {
+				searchIndex(index, q, entries, listener, pdbIDs, s);
+				return;
+			}
+
+			forEachLeaf(store, q, s, new LeafVisitor() {
+				@Override
+				public void visit(String[] keys) {
+					if (!mayHaveEntries(store, keys, entries)) {
+						s.addLeafSkipped();
+						return;
+					}
+
+					List<DistanceResult> rows = store.getResults(keys, s);
+					int first = sorted ? firstAtLeast(rows, q.getMinDistance())
+							: 0;
+
+					for (int i = first; i < rows.size(); i++) {
+						DistanceResult dr = rows.get(i);
+
+						if (sorted && dr.getDistance() > q.getMaxDistance())
+							break;
+
+						if (matches(q, entries, dr, pdbIDs)) {
+							s.addRowReturned();
+							listener.resultFound(keys[0],
+									Element.valueOf(keys[1]), keys[2],
+									keys[3], Element.valueOf(keys[4]),
+									keys[5], dr);
+						}
+					}
+				}
+			});
+		} finally {
+			s.setElapsedNanos(System.nanoTime() - start);
+			QueryMetrics.getInstance().record(s);
+		}
+	}
+
+	/**
+	 * Finds the PDB entries that have at least one distance result matching a
+	 * distance query, as a bitmap of indexes in the store's
+	 * {@link DistanceStore#getPdbIDs() dictionary}. Entry sets found this way
+	 * can be combined with {@link EntryBitmap#and(EntryBitmap)},
+	 * {@link EntryBitmap#or(EntryBitmap)} and
+	 * {@link EntryBitmap#andNot(EntryBitmap)} to answer questions like
+	 * "entries with contact A but not contact B", and passed back into
+	 * {@link DistanceQueryBuilder#entries(EntryBitmap)}. The bitmap is tied
+	 * to the store's dictionary, so searching another store with it
+	 * translates it to that store's dictionary first.
+	 * <p>
+	 * If the store has {@link StoreCapability#ENTRY_BITMAPS} and the query
+	 * does not restrict distances any more than the builder did, this is
+	 * answered from the leaf bitmaps alone without reading a single distance
+	 * result. Otherwise, matching leaves are read as usual.
+	 *
+	 * @param store
+	 *            the store to search through
+	 * @param q
+	 *            the distance query to find matching entries for
+	 * @return the dictionary indexes of the matching entries
+	 */
+	public static EntryBitmap searchEntries(final DistanceStore store,
+			DistanceQuery q) {
+		final StringDictionary pdbIDs = store.getPdbIDs();
+		final EntryBitmap[] entries = { new EntryBitmap()
+				.withDictionary(pdbIDs) };
+
+		if (store.getCapabilities().contains(StoreCapability.ENTRY_BITMAPS)
+				&& q.getMinDistance() <= 0
+				&& q.getMaxDistance() >= LigandDistanceDataTreeBuilder.MAX_DISTANCE
+				&& q.getPdbID() == null) {
+			forEachLeaf(store, q, new QueryStatistics(), new LeafVisitor() {
+				@Override
+				public void visit(String[] keys) {
+					EntryBitmap bitmap = store.getLeafEntries(keys);
+					if (bitmap != null)
+						entries[0] = entries[0].or(bitmap);
+				}
+			});
+
+			return q.getEntries() == null ? entries[0] : entries[0]
+					.and(getEntries(q, pdbIDs));
+		}
+
+		search(store, q, new DistanceResultListener() {
+			@Override
+			public void resultFound(String originGroup, Element originElement,
+					String originAtomName, String targetGroup,
+					Element targetElement, String targetAtomName,
+					DistanceResult dr) {
+				int index = pdbIDs.indexOf(dr.getPdbID());
+				if (index != -1)
+					entries[0].add(index);
+			}
+		}, null);
+
+		return entries[0];
+	}
+
+	/**
+	 * Works out about how many rows match a distance query, about how many
+	 * distinct entries they come from and how their distances are spread
+	 * out, with bounds on each (see {@link ApproximateAnswer}).
+	 * <p>
+	 * Leaves are answered from their {@link LeafSummary summaries} when the
+	 * store has them. Leaves without a summary are read, and so are all the
+	 * leaves of queries restricted to some entries, since summaries do not
+	 * say which entries each row is from; leaves read this way count
+	 * exactly.
+	 *
+	 * @param store
+	 *            the store to search through
+	 * @param q
+	 *            the distance query to answer
+	 * @param stats
+	 *            filled in with what the query had to read, or null
+	 * @return the approximate answer
+	 */
+	public static ApproximateAnswer approximate(final DistanceStore store,
+			final DistanceQuery q, QueryStatistics stats) {
+		final QueryStatistics s = stats == null ? new QueryStatistics()
+				: stats;
+		final StringDictionary pdbIDs = q.getEntries() == null ? null : store
+				.getPdbIDs();
+		final EntryBitmap entries = getEntries(q, pdbIDs);
+		final boolean restricted = q.getPdbID() != null
+				|| q.getEntries() != null;
+		final ApproximateAnswer answer = new ApproximateAnswer(
+				q.getMinDistance(), q.getMaxDistance());
+
+		s.setShape(q.getShape());
+		long start = System.nanoTime();
+
+		try {
+			forEachLeaf(store, q, s, new LeafVisitor() {
+				@Override
+				public void visit(String[] keys) {
+					if (!mayHaveEntries(store, keys, entries)) {
+						s.addLeafSkipped();
+						return;
+					}
+
+					LeafSummary summary = restricted ? null : store
+							.getLeafSummary(keys);
+					if (summary != null) {
+						answer.addLeaf(summary, false);
+						return;
+					}
+
+					summary = new LeafSummary();
+					for (DistanceResult dr : store.getResults(keys, s)) {
+						if (matches(q, entries, dr, pdbIDs))
+							summary.add(dr);
+					}
+
+					answer.addLeaf(summary, true);
+				}
+			});
+		} finally {
+			s.setElapsedNanos(System.nanoTime() - start);
+		}
+
+		return answer;
+	}
+
+	/**
+	 * Gets the distance index of a store if a query can be answered from it
+	 * alone: it must bind none of the six levels, and want no distance the
+	 * index does not cover. Queries for a single entry are better off with
+	 * the reverse index, if there is one.
+	 *
+	 * @return the index to use, or null if the leaves must be searched
+	 */
+	private static DistanceIndex getDistanceIndex(DistanceStore store,
+			DistanceQuery q) {
+		Set<StoreCapability> capabilities = store.getCapabilities();
+
+		if (!capabilities.contains(StoreCapability.DISTANCE_INDEX)
+				|| !Arrays.equals(getBoundKeys(q), new String[LEVELS])
+				|| (q.getPdbID() != null && capabilities
+						.contains(StoreCapability.REVERSE_INDEX)))
+			return null;
+
+		DistanceIndex index = store.getDistanceIndex();
+		if (index == null || q.getMaxDistance() > index.getMaxDistance())
+			return null;
+
+		return index;
+	}
+
+	private static void searchIndex(DistanceIndex index, final DistanceQuery q,
+			final EntryBitmap entries, final DistanceResultListener listener,
+			final StringDictionary pdbIDs, final QueryStatistics stats) {
+		stats.addFileProbed();
+
+		try {
+			index.search(q.getMinDistance(), q.getMaxDistance(),
+					new DistanceResultListener() {
+						@Override
+						public void resultFound(String originGroup,
+								Element originElement, String originAtomName,
+								String targetGroup, Element targetElement,
+								String targetAtomName, DistanceResult dr) {
+							if (matches(q, entries, dr, pdbIDs)) {
+								stats.addRowReturned();
+								listener.resultFound(originGroup,
+										originElement, originAtomName,
+										targetGroup, targetElement,
+										targetAtomName, dr);
+							}
+						}
+					}, stats);
+		} catch (IOException e) {
+			throw new StoreException("Could not read the distance index", e);
+		}
+	}
+
+	/**
+	 * Gets called with every leaf whose path matches a distance query.
+	 */
+	private interface LeafVisitor {
+		public void visit(String[] keys);
+	}
+
+	private static void forEachLeaf(DistanceStore store, DistanceQuery q,
+			QueryStatistics stats, LeafVisitor visitor) {
+		String[] bound = getBoundKeys(q);
+
+		if (q.getPdbID() != null
+				&& store.getCapabilities().contains(
+						StoreCapability.REVERSE_INDEX)) {
+			stats.addFileProbed();
+
+			for (String[] leaf : store.getLeavesOfEntry(q.getPdbID())) {
+				if (isUnder(leaf, bound))
+					visitor.visit(leaf);
+			}
+
+			return;
+		}
+
+		walk(store, bound, new String[0], stats, visitor);
+	}
+
+	private static void walk(DistanceStore store, String[] bound,
+			String[] path, QueryStatistics stats, LeafVisitor visitor) {
+		if (path.length == LEVELS) {
+			visitor.visit(path);
+			return;
+		}
+
+		String key = bound[path.length];
+		List<String> keys;
+
+		if (key == null) {
+			stats.addDirectoryListed();
+			keys = store.getKeys(path);
+		} else {
+			stats.addFileProbed();
+			keys = store.hasKey(path, key) ? Collections.singletonList(key)
+					: Collections.<String> emptyList();
+		}
+
+		for (String child : keys) {
+			String[] childPath = Arrays.copyOf(path, path.length + 1);
+			childPath[path.length] = child;
+			walk(store, bound, childPath, stats, visitor);
+		}
+	}
+
+	/**
+	 * Gets the keys a query binds at each of the six levels, with null for
+	 * wildcards.
+	 */
+	private static String[] getBoundKeys(DistanceQuery q) {
+		return new String[] { q.getOriginGroupName(),
+				toKey(q.getOriginElement()), q.getOriginAtomName(),
+				q.getTargetGroupName(), toKey(q.getTargetElement()),
+				q.getTargetAtomName() };
+	}
+
+	private static String toKey(Element element) {
+		return element == null ? null : element.toString();
+	}
+
+	private static boolean isUnder(String[] leaf, String[] bound) {
+		if (leaf.length != bound.length)
+			return false;
+
+		for (int i = 0; i < bound.length; i++) {
+			if (bound[i] != null && !bound[i].equals(leaf[i]))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Gets the entries a query is restricted to as indexes in a store's
+	 * dictionary.
+	 *
+	 * @return the entries, or null if the query is not restricted to any
+	 */
+	private static EntryBitmap getEntries(DistanceQuery q,
+			StringDictionary pdbIDs) {
+		return q.getEntries() == null ? null : q.getEntries().translate(
+				pdbIDs);
+	}
+
+	/**
+	 * If the query is restricted to a set of entries, checks the leaf's bitmap
+	 * to see if it is worth reading at all.
+	 */
+	private static boolean mayHaveEntries(DistanceStore store, String[] leaf,
+			EntryBitmap entries) {
+		if (entries == null
+				|| !store.getCapabilities().contains(
+						StoreCapability.ENTRY_BITMAPS))
+			return true;
+
+		EntryBitmap bitmap = store.getLeafEntries(leaf);
+		return bitmap == null || bitmap.intersects(entries);
+	}
+
+	private static boolean matches(DistanceQuery q, EntryBitmap entries,
+			DistanceResult dr, StringDictionary pdbIDs) {
+		return dr.getDistance() >= q.getMinDistance()
+				&& dr.getDistance() <= q.getMaxDistance()
+				&& (q.getPdbID() == null || q.getPdbID().equalsIgnoreCase(
+						dr.getPdbID()))
+				&& (entries == null || entries.contains(pdbIDs.indexOf(dr
+						.getPdbID())));
+	}
+
+	/**
+	 * Finds the index of the first row of a leaf sorted by distance whose
+	 * distance is at least <code>minDistance</code>.
+	 */
+	private static int firstAtLeast(List<DistanceResult> rows,
+			double minDistance) {
+		int low = 0;
+		int high = rows.size();
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+
+			if (rows.get(mid).getDistance() < minDistance)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+}
@@ -0,0 +1,283 @@
+package com.ulyssecarion.pdb.distances.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.bitmap.EntryBitmap;
+import com.ulyssecarion.pdb.distances.metrics.QueryStatistics;
+import com.ulyssecarion.pdb.distances.serialization.StringDictionary;
+import com.ulyssecarion.pdb.distances.summary.LeafSummary;
+
+/**
+ * A store kept in a single segment file written by {@link PackedSegmentWriter}
+ * . The segment's footer (the dictionary, the leaf table and the reverse
+ * index) is read into memory when the store is opened; rows are read from the
+ * file as leaves are searched.
+ * <p>
+ * Segments have nearly every capability: their leaves are sorted by
+ * distance, and they carry entry bitmaps, a reverse index and, from version 3
+ * on, leaf summaries. They also have a {@link StoreCapability#DISTANCE_INDEX}
+ * if a {@link DistanceIndex} has been written next to them.
+ * <p>
+ * Subclasses only decide how bytes are read from the file.
+ */
+public abstract class SegmentStore implements DistanceStore {
+	private final File file;
+	private Set<StoreCapability> capabilities;
+	private StringDictionary pdbIDs;
+	private StringDictionary operators;
+	private List<Leaf> leaves;
+	private Map<String, Leaf> leavesByPath;
+	private Map<String, List<String>> children;
+	private Set<String> paths;
+	private int[][] leavesOfEntries;
+
+	protected SegmentStore(File file) {
+		this.file = file;
+
+		Set<StoreCapability> capabilities = EnumSet
+				.allOf(StoreCapability.class);
+		if (!DistanceIndex.getFile(file).exists())
+			capabilities.remove(StoreCapability.DISTANCE_INDEX);
+		this.capabilities = Collections.unmodifiableSet(capabilities);
+	}
+
+	/**
+	 * Reads a range of bytes from the segment file.
+	 *
+	 * @param offset
+	 *            where the range starts
+	 * @param length
+	 *            how many bytes to read
+	 * @return a buffer positioned at the start of the range, with exactly
+	 *         <code>length</code> bytes remaining
+	 * @throws IOException
+	 */
+	protected abstract ByteBuffer read(long offset, int length)
+			throws IOException;
+
+	/**
+	 * Reads the footer of the segment. Subclasses must call this once they are
+	 * ready to {@link #read(long, int)}.
+	 *
+	 * @param fileLength
+	 *            the length of the segment file
+	 * @throws IOException
+	 *             if the file is not a segment
+	 */
+	protected void readFooter(long fileLength) throws IOException {
+		ByteBuffer header = read(0, PackedSegmentWriter.HEADER_BYTES);
+		if (header.getInt() != PackedSegmentWriter.MAGIC)
+			throw new IOException(file + " is not a segment file.");
+		int version = header.getInt();
+		if (version < 2 || version > PackedSegmentWriter.VERSION)
+			throw new IOException(file + " has an unsupported version.");
+
+		// leaves only have summaries from version 3 on
+		boolean summarized = version >= 3;
+		if (!summarized) {
+			Set<StoreCapability> withoutSummaries = EnumSet
+					.copyOf(capabilities);
+			withoutSummaries.remove(StoreCapability.LEAF_SUMMARIES);
+			capabilities = Collections.unmodifiableSet(withoutSummaries);
+		}
+
+		long footerOffset = read(fileLength - 8, 8).getLong();
+		long footerLength = fileLength - 8 - footerOffset;
+		if (footerLength > Integer.MAX_VALUE)
+			throw new IOException(file + " has a footer too large to read.");
+
+		ByteBuffer footer = read(footerOffset, (int) footerLength);
+		byte[] bytes = new byte[footer.remaining()];
+		footer.get(bytes);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				bytes));
+
+		pdbIDs = new StringDictionary();
+		int dictionarySize = in.readInt();
+		for (int i = 0; i < dictionarySize; i++)
+			pdbIDs.getOrAdd(in.readUTF());
+
+		int leafCount = in.readInt();
+		leaves = new ArrayList<>(leafCount);
+		leavesByPath = new HashMap<>();
+		children = new HashMap<>();
+		paths = new HashSet<>();
+
+		for (int i = 0; i < leafCount; i++) {
+			String[] keys = new String[6];
+			for (int j = 0; j < keys.length; j++)
+				keys[j] = in.readUTF();
+
+			Leaf leaf = new Leaf(keys, in.readLong(), in.readInt(),
+					EntryBitmap.read(in), summarized ? LeafSummary.read(in)
+							: null);
+			leaves.add(leaf);
+			leavesByPath.put(join(keys, keys.length), leaf);
+
+			for (int depth = 0; depth < keys.length; depth++) {
+				String parent = join(keys, depth);
+				List<String> siblings = children.get(parent);
+
+				if (siblings == null) {
+					siblings = new ArrayList<>();
+					children.put(parent, siblings);
+				}
+
+				// leaves are written depth-first, so a key is always either
+				// the last one added to its parent or a new one
+				if (siblings.isEmpty()
+						|| !siblings.get(siblings.size() - 1).equals(keys[depth]))
+					siblings.add(keys[depth]);
+
+				paths.add(join(keys, depth + 1));
+			}
+		}
+
+		int entryCount = in.readInt();
+		leavesOfEntries = new int[entryCount][];
+		for (int i = 0; i < entryCount; i++) {
+			leavesOfEntries[i] = new int[in.readInt()];
+			for (int j = 0; j < leavesOfEntries[i].length; j++)
+				leavesOfEntries[i][j] = in.readInt();
+		}
+
+		operators = new StringDictionary();
+		int operatorCount = in.readInt();
+		for (int i = 0; i < operatorCount; i++)
+			operators.getOrAdd(in.readUTF());
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public Set<StoreCapability> getCapabilities() {
+		return capabilities;
+	}
+
+	@Override
+	public List<String> getKeys(String[] path) {
+		List<String> keys = children.get(join(path, path.length));
+		return keys == null ? Collections.<String> emptyList() : Collections
+				.unmodifiableList(keys);
+	}
+
+	@Override
+	public boolean hasKey(String[] path, String key) {
+		return paths.contains(join(path, path.length) + key + '/');
+	}
+
+	@Override
+	public List<DistanceResult> getResults(String[] keys, QueryStatistics stats) {
+		Leaf leaf = leavesByPath.get(join(keys, keys.length));
+		if (leaf == null)
+			return Collections.emptyList();
+
+		int length = leaf.rows * PackedSegmentWriter.ROW_BYTES;
+		ByteBuffer buffer;
+		try {
+			buffer = read(leaf.offset, length);
+		} catch (IOException e) {
+			throw new StoreException("Could not read leaf " + join(keys,
+					keys.length) + " of " + getDescription(), e);
+		}
+
+		List<DistanceResult> results = new ArrayList<>(leaf.rows);
+		for (int i = 0; i < leaf.rows; i++) {
+			String pdbID = pdbIDs.get(buffer.getInt());
+			double distance = buffer.getDouble();
+			int origin = buffer.getInt();
+			int target = buffer.getInt();
+			int multiplicity = buffer.getShort() & 0xffff;
+			int operator = buffer.getShort() & 0xffff;
+
+			if (multiplicity == 1 && operator == 0) {
+				results.add(new DistanceResult(pdbID, distance, origin, target));
+			} else {
+				results.add(new DistanceResult(pdbID, distance, origin, target,
+						multiplicity, operator == 0 ? null : operators
+								.get(operator - 1)));
+			}
+		}
+
+		stats.addLeafOpened(length, leaf.rows);
+		return results;
+	}
+
+	@Override
+	public EntryBitmap getLeafEntries(String[] keys) {
+		Leaf leaf = leavesByPath.get(join(keys, keys.length));
+		return leaf == null ? null : leaf.entries;
+	}
+
+	@Override
+	public List<String[]> getLeavesOfEntry(String pdbID) {
+		List<String[]> result = new ArrayList<>();
+		int index = pdbIDs.indexOf(pdbID);
+		if (index == -1)
+			index = pdbIDs.indexOf(pdbID.toUpperCase());
+
+		if (index != -1 && index < leavesOfEntries.length) {
+			for (int ordinal : leavesOfEntries[index])
+				result.add(leaves.get(ordinal).keys.clone());
+		}
+
+		return result;
+	}
+
+	@Override
+	public LeafSummary getLeafSummary(String[] keys) {
+		Leaf leaf = leavesByPath.get(join(keys, keys.length));
+		return leaf == null ? null : leaf.summary;
+	}
+
+	@Override
+	public DistanceIndex getDistanceIndex() {
+		if (!capabilities.contains(StoreCapability.DISTANCE_INDEX))
+			return null;
+		return DistanceIndex.get(file);
+	}
+
+	@Override
+	public StringDictionary getPdbIDs() {
+		return pdbIDs;
+	}
+
+	private static String join(String[] keys, int length) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < length; i++)
+			sb.append(keys[i]).append('/');
+		return sb.toString();
+	}
+
+	private static class Leaf {
+		private final String[] keys;
+		private final long offset;
+		private final int rows;
+		private final EntryBitmap entries;
+		private final LeafSummary summary;
+
+		public Leaf(String[] keys, long offset, int rows, EntryBitmap entries,
+				LeafSummary summary) {
+			this.keys = keys;
+			this.offset = offset;
+			this.rows = rows;
+			this.entries = entries;
+			this.summary = summary;
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package com.ulyssecarion.pdb.distances.store;
+
+/**
+ * Optional features of a {@link DistanceStore} that the {@link QueryExecutor}
+ * can take advantage of. A store without any of them can still answer every
+ * query, just more slowly.
+ */
+public enum StoreCapability {
+	/**
+	 * The rows of every leaf are sorted by increasing distance, so a distance
+	 * range can be found with a binary search instead of a full scan.
+	 */
+	SORTED_LEAVES,
+
+	/**
+	 * The store knows which leaves each PDB entry has rows in (see
+	 * {@link DistanceStore#getLeavesOfEntry(String)}), so queries restricted
+	 * to one entry do not have to walk the whole tree.
+	 */
+	REVERSE_INDEX,
+
+	/**
+	 * The store has a bitmap of the entries in each leaf (see
+	 * {@link DistanceStore#getLeafEntries(String[])}), so leaves without any
+	 * wanted entry can be skipped without being read.
+	 */
+	ENTRY_BITMAPS,
+
+	/**
+	 * The store has an index of its shortest rows sorted by distance (see
+	 * {@link DistanceStore#getDistanceIndex()}), so queries that bind none of
+	 * the six levels do not have to read every leaf.
+	 */
+	DISTANCE_INDEX,
+
+	/**
+	 * The store has a summary of each leaf (see
+	 * {@link DistanceStore#getLeafSummary(String[])}), so approximate answers
+	 * can be worked out without reading any row.
+	 */
+	LEAF_SUMMARIES
+}
@@ -0,0 +1,20 @@
+package com.ulyssecarion.pdb.distances.store;
+
+import java.io.IOException;
+
+/**
+ * Thrown out of a search when a store cannot be read, so that an answer
+ * missing the rows that could not be read is never taken for a whole one.
+ */
+public class StoreException extends RuntimeException {
+	private static final long serialVersionUID = 4207311530916223786L;
+
+	public StoreException(String message, IOException cause) {
+		super(message, cause);
+	}
+
+	@Override
+	public synchronized IOException getCause() {
+		return (IOException) super.getCause();
+	}
+}
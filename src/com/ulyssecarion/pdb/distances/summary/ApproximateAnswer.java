@@ -0,0 +1,277 @@
+package com.ulyssecarion.pdb.distances.summary;
+
+import java.util.Locale;
+
+/**
+ * An approximate answer to a distance query, worked out from the
+ * {@link LeafSummary summaries} of the leaves it matches instead of their
+ * rows: about how many rows match, about how many distinct PDB entries they
+ * come from, and how their distances are spread out.
+ * <p>
+ * A leaf whose distances all fall inside the query's range counts in full. A
+ * leaf that straddles one end of the range only counts for the bins of its
+ * histogram that do. Leaves keep their distances in whole tenths of an
+ * Angstrom, so every row of a bin is at the bin's start, and a bin counts in
+ * full when its start is in the range, ends included. Only a bin whose rows
+ * are spread out (the last one, or any bin of a leaf with distances that are
+ * not whole tenths) can straddle the range; it is counted in proportion to how
+ * much of it is in range. So the row count comes with hard bounds, which are
+ * equal when no bin straddled the range.
+ * <p>
+ * Distinct entries are estimated by merging the {@link HyperLogLog} sketches
+ * of the leaves. The sketches of leaves that only partly match can only say
+ * how many entries the whole leaf has, so their entries are counted in the
+ * same proportion as their rows. The bounds on the number of entries are
+ * those of the leaves that fully match and of every leaf that matches at
+ * all, widened by two standard errors of the sketches, which makes them
+ * hold about 95% of the time.
+ */
+public class ApproximateAnswer {
+	// distances are usually whole tenths, which aren't exact in binary
+	private static final double EPSILON = 1e-6;
+
+	private final double minDistance;
+	private final double maxDistance;
+	private final double[] histogram = new double[LeafSummary.BINS];
+	private final HyperLogLog fullEntries = new HyperLogLog();
+	private final HyperLogLog allEntries = new HyperLogLog();
+	private long rowsLow;
+	private long rowsHigh;
+	private double rowEstimate;
+	private long partialLeafRows;
+	private double partialLeafEstimate;
+	private int leavesSummarized;
+	private int leavesRead;
+
+	/**
+	 * Starts an answer without any leaves.
+	 *
+	 * @param minDistance
+	 *            the smallest distance the query wants
+	 * @param maxDistance
+	 *            the largest distance the query wants
+	 */
+	public ApproximateAnswer(double minDistance, double maxDistance) {
+		this.minDistance = minDistance;
+		this.maxDistance = maxDistance;
+	}
+
+	/**
+	 * Adds a leaf matching the query.
+	 *
+	 * @param summary
+	 *            the summary of the leaf
+	 * @param read
+	 *            whether the summary was made from the rows of the leaf
+	 *            because the store had none
+	 */
+	public void addLeaf(LeafSummary summary, boolean read) {
+		if (read)
+			leavesRead++;
+		else
+			leavesSummarized++;
+
+		if (summary.getRowCount() == 0
+				|| summary.getMaxDistance() < minDistance - EPSILON
+				|| summary.getMinDistance() > maxDistance + EPSILON)
+			return;
+
+		allEntries.merge(summary.getEntries());
+
+		if (summary.getMinDistance() >= minDistance - EPSILON
+				&& summary.getMaxDistance() <= maxDistance + EPSILON) {
+			for (int bin = 0; bin < LeafSummary.BINS; bin++)
+				histogram[bin] += summary.getBinCount(bin);
+
+			rowsLow += summary.getRowCount();
+			rowsHigh += summary.getRowCount();
+			rowEstimate += summary.getRowCount();
+			fullEntries.merge(summary.getEntries());
+			return;
+		}
+
+		double estimate = 0;
+		boolean tenths = isWholeTenth(summary.getMinDistance())
+				&& isWholeTenth(summary.getMaxDistance());
+
+		for (int bin = 0; bin < LeafSummary.BINS; bin++) {
+			long count = summary.getBinCount(bin);
+			if (count == 0)
+				continue;
+
+			// no row of the bin is outside of the leaf's own range
+			double low = Math.max(LeafSummary.getBinStart(bin),
+					summary.getMinDistance());
+			double high = Math.min(LeafSummary.getBinEnd(bin),
+					summary.getMaxDistance());
+
+			// a bin of whole tenths only has rows at its start
+			if (tenths && bin < LeafSummary.BINS - 1)
+				high = low;
+
+			if (high < minDistance - EPSILON || low > maxDistance + EPSILON)
+				continue;
+
+			if (low >= minDistance - EPSILON && high <= maxDistance + EPSILON) {
+				rowsLow += count;
+				rowsHigh += count;
+				histogram[bin] += count;
+				estimate += count;
+				continue;
+			}
+
+			double fraction = high > low ? (Math.min(high, maxDistance) - Math
+					.max(low, minDistance)) / (high - low) : 1;
+			fraction = Math.max(0, Math.min(1, fraction));
+
+			rowsHigh += count;
+			histogram[bin] += count * fraction;
+			estimate += count * fraction;
+		}
+
+		rowEstimate += estimate;
+		partialLeafRows += summary.getRowCount();
+		partialLeafEstimate += estimate;
+	}
+
+	public double getMinDistance() {
+		return minDistance;
+	}
+
+	public double getMaxDistance() {
+		return maxDistance;
+	}
+
+	/**
+	 * @return the estimated number of matching rows
+	 */
+	public double getRowEstimate() {
+		return rowEstimate;
+	}
+
+	/**
+	 * @return the fewest rows that can match
+	 */
+	public long getRowLowerBound() {
+		return rowsLow;
+	}
+
+	/**
+	 * @return the most rows that can match
+	 */
+	public long getRowUpperBound() {
+		return rowsHigh;
+	}
+
+	/**
+	 * @return whether the row count is known exactly
+	 */
+	public boolean isRowCountExact() {
+		return rowsLow == rowsHigh;
+	}
+
+	/**
+	 * @return the estimated number of distinct entries with a matching row
+	 */
+	public double getDistinctEntryEstimate() {
+		double full = fullEntries.isEmpty() ? 0 : fullEntries.estimate();
+		double all = allEntries.isEmpty() ? 0 : allEntries.estimate();
+		double fraction = partialLeafRows == 0 ? 0 : partialLeafEstimate
+				/ partialLeafRows;
+
+		return clamp(full + (all - full) * fraction,
+				getDistinctEntryLowerBound(), getDistinctEntryUpperBound());
+	}
+
+	/**
+	 * @return the fewest distinct entries that are likely to match
+	 */
+	public double getDistinctEntryLowerBound() {
+		double full = fullEntries.isEmpty() ? 0 : fullEntries.estimate()
+				* (1 - 2 * fullEntries.getRelativeError());
+		return Math.max(rowsLow > 0 ? 1 : 0, full);
+	}
+
+	/**
+	 * @return the most distinct entries that are likely to match
+	 */
+	public double getDistinctEntryUpperBound() {
+		double all = allEntries.isEmpty() ? 0 : allEntries.estimate()
+				* (1 + 2 * allEntries.getRelativeError());
+		return Math.min(rowsHigh, all);
+	}
+
+	/**
+	 * @return the relative standard error of the sketches entries are
+	 *         estimated with
+	 */
+	public double getDistinctEntryRelativeError() {
+		return allEntries.getRelativeError();
+	}
+
+	/**
+	 * Gets the estimated number of matching rows in each bin of
+	 * {@link LeafSummary#BINS_PER_ANGSTROM} bins per Angstrom.
+	 *
+	 * @return the histogram, which may be changed
+	 */
+	public double[] getHistogram() {
+		return histogram.clone();
+	}
+
+	/**
+	 * @return how many leaves were answered from their summaries
+	 */
+	public int getLeavesSummarized() {
+		return leavesSummarized;
+	}
+
+	/**
+	 * @return how many leaves had to be read, because they had no summary or
+	 *         the query needed more than a summary could tell
+	 */
+	public int getLeavesRead() {
+		return leavesRead;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "~%.0f rows [%d, %d], "
+				+ "~%.0f entries [%.0f, %.0f], from %d summaries and "
+				+ "%d leaves read", rowEstimate, rowsLow, rowsHigh,
+				getDistinctEntryEstimate(), getDistinctEntryLowerBound(),
+				getDistinctEntryUpperBound(), leavesSummarized, leavesRead);
+	}
+
+	/**
+	 * @return this answer as a single JSON object
+	 */
+	public String toJson() {
+		StringBuilder bins = new StringBuilder();
+		for (int bin = 0; bin < histogram.length; bin++) {
+			if (bin > 0)
+				bins.append(',');
+			bins.append(String.format(Locale.ROOT, "%.1f", histogram[bin]));
+		}
+
+		return String.format(Locale.ROOT, "{\"rows\":{\"estimate\":%.1f,"
+				+ "\"low\":%d,\"high\":%d},\"entries\":{\"estimate\":%.1f,"
+				+ "\"low\":%.1f,\"high\":%.1f,\"relativeError\":%.4f},"
+				+ "\"binsPerAngstrom\":%d,\"histogram\":[%s],"
+				+ "\"leavesSummarized\":%d,\"leavesRead\":%d}", rowEstimate,
+				rowsLow, rowsHigh, getDistinctEntryEstimate(),
+				getDistinctEntryLowerBound(), getDistinctEntryUpperBound(),
+				getDistinctEntryRelativeError(),
+				LeafSummary.BINS_PER_ANGSTROM, bins, leavesSummarized,
+				leavesRead);
+	}
+
+	private static boolean isWholeTenth(double distance) {
+		double tenths = distance * LeafSummary.BINS_PER_ANGSTROM;
+		return Math.abs(tenths - Math.rint(tenths)) < EPSILON;
+	}
+
+	private static double clamp(double value, double low, double high) {
+		return Math.max(low, Math.min(high, value));
+	}
+}
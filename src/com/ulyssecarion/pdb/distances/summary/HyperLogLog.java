@@ -0,0 +1,235 @@
+package com.ulyssecarion.pdb.distances.summary;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.ulyssecarion.pdb.distances.serialization.Varints;
+
+/**
+ * A HyperLogLog sketch: estimates how many distinct strings have been added
+ * to it in a fixed, small amount of memory. With a precision of
+ * <code>p</code>, the sketch has <code>2^p</code> one-byte registers and its
+ * estimates have a relative standard error of about
+ * <code>1.04 / sqrt(2^p)</code>.
+ * <p>
+ * Sketches with the same precision can be merged with
+ * {@link #merge(HyperLogLog)}; the result is the sketch of everything added
+ * to either of them, so the distinct entries of several leaves can be
+ * estimated without ever seeing their rows. Sketches with few registers set,
+ * like those of leaves with a handful of entries, are written as a list of
+ * those registers instead of all of them.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class HyperLogLog {
+	/**
+	 * The precision used for leaf summaries: 256 registers, for a relative
+	 * standard error of about 6.5%.
+	 */
+	public static final int DEFAULT_PRECISION = 8;
+
+	private static final int SPARSE = 0;
+	private static final int DENSE = 1;
+
+	private final int precision;
+	private final byte[] registers;
+
+	public HyperLogLog() {
+		this(DEFAULT_PRECISION);
+	}
+
+	/**
+	 * @param precision
+	 *            the base-2 logarithm of the number of registers, between 4
+	 *            and 16
+	 */
+	public HyperLogLog(int precision) {
+		if (precision < 4 || precision > 16)
+			throw new IllegalArgumentException("Precision must be between 4 "
+					+ "and 16, not " + precision);
+
+		this.precision = precision;
+		this.registers = new byte[1 << precision];
+	}
+
+	public int getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * Adds a string to the sketch.
+	 */
+	public void add(String s) {
+		long hash = hash(s);
+		int index = (int) (hash >>> (64 - precision));
+		int rank = Math.min(Long.numberOfLeadingZeros(hash << precision),
+				64 - precision) + 1;
+
+		if (rank > registers[index])
+			registers[index] = (byte) rank;
+	}
+
+	/**
+	 * Adds everything in another sketch to this one.
+	 *
+	 * @param other
+	 *            a sketch with the same precision
+	 */
+	public void merge(HyperLogLog other) {
+		if (other.precision != precision)
+			throw new IllegalArgumentException("Cannot merge a sketch of "
+					+ "precision " + other.precision + " into one of precision "
+					+ precision);
+
+		for (int i = 0; i < registers.length; i++) {
+			if (other.registers[i] > registers[i])
+				registers[i] = other.registers[i];
+		}
+	}
+
+	/**
+	 * @return a sketch equal to this one, that can be changed independently
+	 */
+	public HyperLogLog copy() {
+		HyperLogLog copy = new HyperLogLog(precision);
+		System.arraycopy(registers, 0, copy.registers, 0, registers.length);
+		return copy;
+	}
+
+	/**
+	 * @return the estimated number of distinct strings added
+	 */
+	public double estimate() {
+		int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+
+		for (byte register : registers) {
+			sum += 1.0 / (1L << register);
+			if (register == 0)
+				zeros++;
+		}
+
+		double estimate = getAlpha(m) * m * m / sum;
+
+		// small cardinalities are better estimated by linear counting
+		if (estimate <= 2.5 * m && zeros > 0)
+			estimate = m * Math.log((double) m / zeros);
+
+		return estimate;
+	}
+
+	/**
+	 * @return the relative standard error of {@link #estimate()}
+	 */
+	public double getRelativeError() {
+		return 1.04 / Math.sqrt(registers.length);
+	}
+
+	/**
+	 * @return whether nothing has been added to this sketch
+	 */
+	public boolean isEmpty() {
+		for (byte register : registers) {
+			if (register != 0)
+				return false;
+		}
+
+		return true;
+	}
+
+	public void write(DataOutput out) throws IOException {
+		int set = 0;
+		for (byte register : registers) {
+			if (register != 0)
+				set++;
+		}
+
+		out.writeByte(precision);
+
+		if (set * 2 < registers.length) {
+			out.writeByte(SPARSE);
+			Varints.write(out, set);
+
+			int previous = 0;
+			for (int i = 0; i < registers.length; i++) {
+				if (registers[i] != 0) {
+					Varints.write(out, i - previous);
+					out.writeByte(registers[i]);
+					previous = i;
+				}
+			}
+		} else {
+			out.writeByte(DENSE);
+			out.write(registers);
+		}
+	}
+
+	public static HyperLogLog read(DataInput in) throws IOException {
+		HyperLogLog sketch = new HyperLogLog(in.readByte());
+		int form = in.readByte();
+
+		if (form == DENSE) {
+			in.readFully(sketch.registers);
+		} else if (form == SPARSE) {
+			int set = Varints.read(in);
+			int index = 0;
+
+			for (int i = 0; i < set; i++) {
+				index += Varints.read(in);
+				sketch.registers[index] = in.readByte();
+			}
+		} else {
+			throw new IOException("Unknown sketch form " + form);
+		}
+
+		return sketch;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof HyperLogLog))
+			return false;
+
+		return Arrays.equals(registers, ((HyperLogLog) o).registers);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(registers);
+	}
+
+	private static double getAlpha(int m) {
+		switch (m) {
+		case 16:
+			return 0.673;
+		case 32:
+			return 0.697;
+		case 64:
+			return 0.709;
+		default:
+			return 0.7213 / (1 + 1.079 / m);
+		}
+	}
+
+	/**
+	 * A 64-bit FNV-1a hash of the string's characters, mixed with the
+	 * finalizer of MurmurHash3 so that every bit depends on every character.
+	 */
+	private static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,221 @@
+package com.ulyssecarion.pdb.distances.summary;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.precalculations.LigandDistanceDataTreeBuilder;
+import com.ulyssecarion.pdb.distances.serialization.Varints;
+
+/**
+ * What a leaf holds, in a few hundred bytes at most: its row count, the
+ * smallest and largest distance in it, how many of its rows fall in each
+ * tenth of an Angstrom (its histogram), and a {@link HyperLogLog} sketch of
+ * its distinct PDB IDs. Summaries are written by the builder next to each
+ * leaf, and let questions like "about how many entries have this contact"
+ * be answered without reading any row (see {@link ApproximateAnswer}).
+ * <p>
+ * Summaries can be built a row at a time with {@link #add(DistanceResult)}
+ * (or {@link #add(String, int)}, for rows about to be written to a leaf),
+ * and the summaries of two sets of rows can be merged with
+ * {@link #merge(LeafSummary)}, so a leaf's summary can be kept up to date as
+ * rows are appended to it. This class is not thread-safe.
+ */
+public class LeafSummary {
+	/**
+	 * How many histogram bins there are in one Angstrom.
+	 */
+	public static final int BINS_PER_ANGSTROM = 10;
+
+	/**
+	 * How many bins a histogram has. The last one also holds any row at or
+	 * past {@link LigandDistanceDataTreeBuilder#MAX_DISTANCE}.
+	 */
+	public static final int BINS = (int) Math.round(LigandDistanceDataTreeBuilder.MAX_DISTANCE
+			* BINS_PER_ANGSTROM) + 1;
+
+	private long rowCount;
+	private double minDistance = Double.POSITIVE_INFINITY;
+	private double maxDistance = Double.NEGATIVE_INFINITY;
+	private final long[] histogram = new long[BINS];
+	private final HyperLogLog entries;
+
+	/**
+	 * Creates the summary of a leaf without any rows.
+	 */
+	public LeafSummary() {
+		this(new HyperLogLog());
+	}
+
+	private LeafSummary(HyperLogLog entries) {
+		this.entries = entries;
+	}
+
+	/**
+	 * Summarizes some rows.
+	 *
+	 * @param results
+	 *            the rows to summarize
+	 * @return a new summary
+	 */
+	public static LeafSummary of(Iterable<DistanceResult> results) {
+		LeafSummary summary = new LeafSummary();
+		for (DistanceResult dr : results)
+			summary.add(dr);
+		return summary;
+	}
+
+	public void add(DistanceResult dr) {
+		add(dr.getPdbID(), dr.getDistance());
+	}
+
+	/**
+	 * Adds a row the way a leaf stores it, with its distance in whole tenths
+	 * of an Angstrom, as if it had been read back from the leaf.
+	 *
+	 * @param pdbID
+	 *            the PDB ID of the row
+	 * @param tenths
+	 *            the distance of the row, in tenths of an Angstrom
+	 */
+	public void add(String pdbID, int tenths) {
+		add(pdbID, tenths / 10.0);
+	}
+
+	private void add(String pdbID, double distance) {
+		rowCount++;
+		minDistance = Math.min(minDistance, distance);
+		maxDistance = Math.max(maxDistance, distance);
+		histogram[getBin(distance)]++;
+		entries.add(pdbID);
+	}
+
+	/**
+	 * Adds the rows summarized by another summary to this one.
+	 */
+	public void merge(LeafSummary other) {
+		rowCount += other.rowCount;
+		minDistance = Math.min(minDistance, other.minDistance);
+		maxDistance = Math.max(maxDistance, other.maxDistance);
+		for (int i = 0; i < BINS; i++)
+			histogram[i] += other.histogram[i];
+		entries.merge(other.entries);
+	}
+
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * @return the smallest distance in the leaf, or positive infinity if it
+	 *         has no rows
+	 */
+	public double getMinDistance() {
+		return minDistance;
+	}
+
+	/**
+	 * @return the largest distance in the leaf, or negative infinity if it has
+	 *         no rows
+	 */
+	public double getMaxDistance() {
+		return maxDistance;
+	}
+
+	/**
+	 * @param bin
+	 *            a bin between 0 and {@link #BINS} - 1
+	 * @return how many rows have a distance in that bin
+	 */
+	public long getBinCount(int bin) {
+		return histogram[bin];
+	}
+
+	/**
+	 * @return the sketch of the leaf's distinct PDB IDs; it must not be
+	 *         changed
+	 */
+	public HyperLogLog getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return the bin a distance falls in
+	 */
+	public static int getBin(double distance) {
+		// distances are usually whole tenths, which aren't exact in binary
+		int bin = (int) Math.floor(distance * BINS_PER_ANGSTROM + 1e-6);
+		return Math.max(0, Math.min(BINS - 1, bin));
+	}
+
+	/**
+	 * @return the smallest distance in a bin
+	 */
+	public static double getBinStart(int bin) {
+		return (double) bin / BINS_PER_ANGSTROM;
+	}
+
+	/**
+	 * @return the distance every row of a bin is smaller than; infinite for
+	 *         the last bin
+	 */
+	public static double getBinEnd(int bin) {
+		return bin == BINS - 1 ? Double.POSITIVE_INFINITY : (double) (bin + 1)
+				/ BINS_PER_ANGSTROM;
+	}
+
+	/**
+	 * Writes this summary out. The histogram is written as the range of bins
+	 * that have rows, each count as a {@link Varints variable-length integer}
+	 * .
+	 */
+	public void write(DataOutput out) throws IOException {
+		Varints.write(out, (int) Math.min(rowCount, Integer.MAX_VALUE));
+
+		if (rowCount > 0) {
+			int first = getBin(minDistance);
+			int last = getBin(maxDistance);
+
+			out.writeDouble(minDistance);
+			out.writeDouble(maxDistance);
+			for (int i = first; i <= last; i++)
+				Varints.write(out, (int) histogram[i]);
+		}
+
+		entries.write(out);
+	}
+
+	public static LeafSummary read(DataInput in) throws IOException {
+		long rowCount = Varints.read(in);
+		double minDistance = Double.POSITIVE_INFINITY;
+		double maxDistance = Double.NEGATIVE_INFINITY;
+		long[] histogram = new long[BINS];
+
+		if (rowCount > 0) {
+			minDistance = in.readDouble();
+			maxDistance = in.readDouble();
+
+			int first = getBin(minDistance);
+			int last = getBin(maxDistance);
+			for (int i = first; i <= last; i++)
+				histogram[i] = Varints.read(in);
+		}
+
+		LeafSummary summary = new LeafSummary(HyperLogLog.read(in));
+		summary.rowCount = rowCount;
+		summary.minDistance = minDistance;
+		summary.maxDistance = maxDistance;
+		System.arraycopy(histogram, 0, summary.histogram, 0, BINS);
+
+		return summary;
+	}
+
+	@Override
+	public String toString() {
+		return rowCount + " rows in [" + minDistance + ", " + maxDistance
+				+ "], ~" + Math.round(entries.estimate()) + " entries, "
+				+ Arrays.toString(histogram);
+	}
+}
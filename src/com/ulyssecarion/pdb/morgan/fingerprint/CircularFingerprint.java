@@ -0,0 +1,187 @@
+package com.ulyssecarion.pdb.morgan.fingerprint;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.ulyssecarion.pdb.morgan.graph.GraphDriver.Atom;
+import com.ulyssecarion.pdb.morgan.graph.MorganGraph;
+import com.ulyssecarion.pdb.morgan.index.MorganIndex.Component;
+
+/**
+ * Makes ECFP-style circular fingerprints of molecules, packed into
+ * <code>long[]</code> bitsets, and compares them.
+ * <p>
+ * Like Morgan's algorithm, this starts each atom off with an identifier and
+ * then repeatedly combines every atom's identifier with those of its
+ * neighbors. Unlike Morgan's algorithm, it stops after a fixed number of
+ * iterations (the radius), and every identifier seen along the way is hashed
+ * into the bitset, so the fingerprint records every circular substructure of
+ * the molecule up to that radius.
+ * <p>
+ * An atom starts off with its Morgan hash value (atomic number and
+ * pi-centeredness) and its number of bonds. Bond orders are deliberately left
+ * out: the chemical component dictionary uses Kekul&eacute; structures where
+ * ChemAxon often has aromatic bonds, and the same molecule should get the
+ * same fingerprint from both.
+ */
+public class CircularFingerprint {
+	/**
+	 * The default radius. A radius of 2 corresponds to ECFP4.
+	 */
+	public static final int DEFAULT_RADIUS = 2;
+
+	/**
+	 * The default number of bits in a fingerprint.
+	 */
+	public static final int DEFAULT_BITS = 1024;
+
+	/**
+	 * Fingerprints a graph made by
+	 * {@link com.ulyssecarion.pdb.morgan.graph.ChemAxonGraphMaker} or
+	 * {@link com.ulyssecarion.pdb.morgan.graph.PDBGraphMaker}.
+	 */
+	public static long[] of(List<? extends Atom> graph, int radius, int bits) {
+		return of(MorganGraph.of(graph), radius, bits);
+	}
+
+	/**
+	 * Fingerprints a component of a Morgan index.
+	 */
+	public static long[] of(Component component, int radius, int bits) {
+		return of(component.toMorganGraph(), radius, bits);
+	}
+
+	/**
+	 * Fingerprints a graph.
+	 *
+	 * @param graph
+	 *            the molecule to fingerprint
+	 * @param radius
+	 *            how many bonds away from each atom to look
+	 * @param bits
+	 *            the size of the fingerprint; a multiple of 64
+	 * @return the fingerprint, as <code>bits / 64</code> words
+	 */
+	public static long[] of(MorganGraph graph, int radius, int bits) {
+		if (bits <= 0 || bits % 64 != 0)
+			throw new IllegalArgumentException(
+					"A fingerprint must have a positive multiple of 64 bits.");
+
+		int n = graph.size();
+		long[] fingerprint = new long[bits / 64];
+		int[] identifiers = new int[n];
+		int[] nextIdentifiers = new int[n];
+		int maxDegree = 0;
+
+		for (int i = 0; i < n; i++) {
+			identifiers[i] = mix(graph.getInitialValue(i), graph.getDegree(i));
+			setBit(fingerprint, identifiers[i], bits);
+			maxDegree = Math.max(maxDegree, graph.getDegree(i));
+		}
+
+		int[] neighborIdentifiers = new int[maxDegree];
+
+		for (int iteration = 1; iteration <= radius; iteration++) {
+			for (int i = 0; i < n; i++) {
+				int degree = graph.getDegree(i);
+				for (int k = 0; k < degree; k++) {
+					neighborIdentifiers[k] = identifiers[graph.getNeighbor(i, k)];
+				}
+
+				// sorted, so that the order bonds were listed in doesn't matter
+				Arrays.sort(neighborIdentifiers, 0, degree);
+
+				int identifier = mix(iteration, identifiers[i]);
+				for (int k = 0; k < degree; k++) {
+					identifier = mix(identifier, neighborIdentifiers[k]);
+				}
+
+				nextIdentifiers[i] = identifier;
+				setBit(fingerprint, identifier, bits);
+			}
+
+			int[] swap = identifiers;
+			identifiers = nextIdentifiers;
+			nextIdentifiers = swap;
+		}
+
+		return fingerprint;
+	}
+
+	/**
+	 * @return the number of bits set in a fingerprint
+	 */
+	public static int cardinality(long[] fingerprint) {
+		int count = 0;
+		for (long word : fingerprint) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the Tanimoto similarity of two fingerprints: the number of bits
+	 * they share over the number of bits either has.
+	 *
+	 * @return a similarity between 0 and 1; two empty fingerprints have a
+	 *         similarity of 0
+	 */
+	public static double tanimoto(long[] a, long[] b) {
+		return tanimoto(a, 0, b, 0, a.length);
+	}
+
+	/**
+	 * Gets the Tanimoto similarity of two fingerprints stored in larger
+	 * arrays.
+	 *
+	 * @param a
+	 *            the array of the first fingerprint
+	 * @param aOffset
+	 *            where the first fingerprint starts
+	 * @param b
+	 *            the array of the second fingerprint
+	 * @param bOffset
+	 *            where the second fingerprint starts
+	 * @param words
+	 *            the length of the fingerprints, in words
+	 */
+	public static double tanimoto(long[] a, int aOffset, long[] b,
+			int bOffset, int words) {
+		int both = 0;
+		int either = 0;
+
+		for (int i = 0; i < words; i++) {
+			long x = a[aOffset + i];
+			long y = b[bOffset + i];
+			both += Long.bitCount(x & y);
+			either += Long.bitCount(x | y);
+		}
+
+		return either == 0 ? 0 : (double) both / either;
+	}
+
+	private static void setBit(long[] fingerprint, int identifier, int bits) {
+		int bit = (identifier & Integer.MAX_VALUE) % bits;
+		fingerprint[bit >>> 6] |= 1L << bit;
+	}
+
+	/**
+	 * Combines two values into a well-spread hash (MurmurHash3's mixing
+	 * steps).
+	 */
+	private static int mix(int h, int value) {
+		int k = value * 0xcc9e2d51;
+		k = Integer.rotateLeft(k, 15) * 0x1b873593;
+
+		h ^= k;
+		h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+
+		return h;
+	}
+}
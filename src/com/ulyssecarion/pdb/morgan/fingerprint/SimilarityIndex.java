@@ -0,0 +1,322 @@
+package com.ulyssecarion.pdb.morgan.fingerprint;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.ulyssecarion.pdb.morgan.graph.ChemAxonGraphMaker;
+import com.ulyssecarion.pdb.morgan.index.MorganIndex;
+import com.ulyssecarion.pdb.morgan.index.MorganIndex.Component;
+
+/**
+ * Finds the components most similar to a molecule, by the Tanimoto similarity
+ * of their {@link CircularFingerprint}s.
+ * <p>
+ * All fingerprints are kept in one flat array, sorted by the number of bits
+ * they have set. Two fingerprints with <i>a</i> and <i>b</i> bits set can be
+ * no more similar than <i>min(a, b) / max(a, b)</i>, so a search for
+ * similarities of at least <i>t</i> only has to look at the fingerprints with
+ * between <i>t &middot; a</i> and <i>a / t</i> bits, which are next to each
+ * other in the array. If there are enough of them, that range is split
+ * between several threads.
+ * <p>
+ * An index is safe to search from several threads at once. It should be
+ * closed when no longer needed, to stop its threads.
+ */
+public class SimilarityIndex implements Closeable {
+	public static final int WORKERS = Runtime.getRuntime()
+			.availableProcessors();
+
+	/**
+	 * Searches with fewer candidates than this are done on the calling thread.
+	 */
+	private static final int MIN_CANDIDATES_PER_THREAD = 4096;
+
+	private static final Comparator<Hit> BY_SIMILARITY = new Comparator<Hit>() {
+		@Override
+		public int compare(Hit a, Hit b) {
+			int c = Double.compare(b.similarity, a.similarity);
+			return c != 0 ? c : a.id.compareTo(b.id);
+		}
+	};
+
+	private final int radius;
+	private final int bits;
+	private final int words;
+	private final String[] ids;
+	private final int[] cardinalities;
+	private final long[] fingerprints;
+
+	private final int workers;
+	private final ExecutorService pool;
+
+	/**
+	 * @param ids
+	 *            the IDs of the molecules to index
+	 * @param fingerprints
+	 *            the fingerprint of each molecule, all made with the same
+	 *            radius and size
+	 * @param radius
+	 *            the radius the fingerprints were made with
+	 * @param workers
+	 *            the number of threads to search with
+	 */
+	public SimilarityIndex(List<String> ids, List<long[]> fingerprints,
+			int radius, int workers) {
+		int n = ids.size();
+		this.radius = radius;
+		this.words = n == 0 ? CircularFingerprint.DEFAULT_BITS / 64
+				: fingerprints.get(0).length;
+		this.bits = words * 64;
+
+		final int[] counts = new int[n];
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			counts[i] = CircularFingerprint.cardinality(fingerprints.get(i));
+			order[i] = i;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(counts[a], counts[b]);
+			}
+		});
+
+		this.ids = new String[n];
+		this.cardinalities = new int[n];
+		this.fingerprints = new long[n * words];
+
+		for (int i = 0; i < n; i++) {
+			long[] fingerprint = fingerprints.get(order[i]);
+			if (fingerprint.length != words)
+				throw new IllegalArgumentException(
+						"Fingerprints must all be the same size.");
+
+			this.ids[i] = ids.get(order[i]);
+			this.cardinalities[i] = counts[order[i]];
+			System.arraycopy(fingerprint, 0, this.fingerprints, i * words,
+					words);
+		}
+
+		this.workers = workers;
+		this.pool = Executors.newFixedThreadPool(workers);
+	}
+
+	/**
+	 * Fingerprints every component of a Morgan index.
+	 *
+	 * @param index
+	 *            the components to index
+	 * @param radius
+	 *            the fingerprint radius
+	 * @param bits
+	 *            the fingerprint size, a multiple of 64
+	 * @param workers
+	 *            the number of threads to search with
+	 * @return a similarity index of the components
+	 */
+	public static SimilarityIndex of(MorganIndex index, int radius, int bits,
+			int workers) {
+		List<String> ids = new ArrayList<String>(index.size());
+		List<long[]> fingerprints = new ArrayList<long[]>(index.size());
+
+		for (Component component : index.getComponents()) {
+			ids.add(component.getId());
+			fingerprints.add(CircularFingerprint.of(component, radius, bits));
+		}
+
+		return new SimilarityIndex(ids, fingerprints, radius, workers);
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * Finds the components most similar to a SMILES string.
+	 *
+	 * @see #search(long[], double, int)
+	 * @throws IOException
+	 *             if the SMILES string could not be read
+	 */
+	public List<Hit> search(String smiles, double threshold, int limit)
+			throws IOException, InterruptedException {
+		return search(CircularFingerprint.of(
+				ChemAxonGraphMaker.readGraph(smiles), radius, bits), threshold,
+				limit);
+	}
+
+	/**
+	 * Finds the molecules most similar to a fingerprint.
+	 *
+	 * @param query
+	 *            a fingerprint made with this index's radius and size
+	 * @param threshold
+	 *            the lowest similarity to return, between 0 and 1
+	 * @param limit
+	 *            the most hits to return
+	 * @return the hits, most similar first
+	 * @throws InterruptedException
+	 */
+	public List<Hit> search(long[] query, final double threshold, int limit)
+			throws InterruptedException {
+		if (query.length != words)
+			throw new IllegalArgumentException("The query has " + query.length
+					* 64 + " bits, but this index has " + bits + ".");
+
+		int a = CircularFingerprint.cardinality(query);
+		int from = 0;
+		int to = ids.length;
+
+		if (threshold > 0) {
+			from = firstWithAtLeast((int) Math.ceil(threshold * a - 1e-9));
+			to = firstWithAtLeast((int) Math.floor(a / threshold + 1e-9) + 1);
+		}
+
+		List<Hit> hits;
+		int threads = Math.min(workers, (to - from)
+				/ MIN_CANDIDATES_PER_THREAD);
+
+		if (threads <= 1) {
+			hits = scan(query, threshold, from, to);
+		} else {
+			List<Future<List<Hit>>> futures = new ArrayList<Future<List<Hit>>>();
+			final long[] q = query;
+			int chunk = (to - from + threads - 1) / threads;
+
+			for (int start = from; start < to; start += chunk) {
+				final int chunkFrom = start;
+				final int chunkTo = Math.min(to, start + chunk);
+
+				futures.add(pool.submit(new Callable<List<Hit>>() {
+					@Override
+					public List<Hit> call() {
+						return scan(q, threshold, chunkFrom, chunkTo);
+					}
+				}));
+			}
+
+			hits = new ArrayList<Hit>();
+			for (Future<List<Hit>> future : futures) {
+				try {
+					hits.addAll(future.get());
+				} catch (ExecutionException e) {
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+		}
+
+		Collections.sort(hits, BY_SIMILARITY);
+		return hits.size() > limit ? new ArrayList<Hit>(hits.subList(0, limit))
+				: hits;
+	}
+
+	@Override
+	public void close() {
+		pool.shutdown();
+	}
+
+	private List<Hit> scan(long[] query, double threshold, int from, int to) {
+		List<Hit> hits = new ArrayList<Hit>();
+
+		for (int i = from; i < to; i++) {
+			double similarity = CircularFingerprint.tanimoto(query, 0,
+					fingerprints, i * words, words);
+
+			if (similarity >= threshold && similarity > 0) {
+				hits.add(new Hit(ids[i], similarity));
+			}
+		}
+
+		return hits;
+	}
+
+	/**
+	 * @return the index of the first fingerprint with at least
+	 *         <code>count</code> bits set
+	 */
+	private int firstWithAtLeast(int count) {
+		int lo = 0;
+		int hi = cardinalities.length;
+
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+
+			if (cardinalities[mid] < count) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+
+		return lo;
+	}
+
+	/**
+	 * Finds the components most similar to a SMILES string. Arguments: the
+	 * Morgan index file, the SMILES string, then optionally the lowest
+	 * similarity (0.5) and the most hits to print (20).
+	 */
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 0.5;
+		int limit = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+		long start = System.currentTimeMillis();
+		MorganIndex morganIndex = MorganIndex.read(new File(args[0]));
+
+		try (SimilarityIndex index = of(morganIndex,
+				CircularFingerprint.DEFAULT_RADIUS,
+				CircularFingerprint.DEFAULT_BITS, WORKERS)) {
+			long built = System.currentTimeMillis();
+			List<Hit> hits = index.search(args[1], threshold, limit);
+			long searched = System.currentTimeMillis();
+
+			for (Hit hit : hits) {
+				System.out.println(hit);
+			}
+
+			System.out.println("Indexed " + index.size() + " components in "
+					+ (built - start) + " ms; searched in "
+					+ (searched - built) + " ms.");
+		}
+	}
+
+	/**
+	 * A molecule found by a search, and how similar it is to the query.
+	 */
+	public static class Hit {
+		private final String id;
+		private final double similarity;
+
+		public Hit(String id, double similarity) {
+			this.id = id;
+			this.similarity = similarity;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public double getSimilarity() {
+			return similarity;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%s\t%.3f", id, similarity);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package com.ulyssecarion.pdb.morgan.graph;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ulyssecarion.pdb.morgan.graph.GraphDriver.ChemAxonAtom;
+import com.ulyssecarion.pdb.util.BlockWhenFull;
+
+/**
+ * Converts a stream of SMILES strings into graphs on a pool of threads, for
+ * running whole ligand catalogs through {@link ChemAxonGraphMaker}.
+ * <p>
+ * The ChemAxon license is set once, before any thread starts. Records are
+ * handed to the pool through a bounded queue, so a catalog of any size can be
+ * streamed through without being read into memory first. Every record is
+ * reported to a {@link GraphListener}, either with its graph or with the
+ * exception that kept it from being converted.
+ */
+public class BatchGraphConverter {
+	public static final int WORKERS = Runtime.getRuntime()
+			.availableProcessors();
+
+	/**
+	 * Is told about every record of a batch. Its methods are called from the
+	 * converter's worker threads, so they must be thread-safe.
+	 */
+	public static interface GraphListener {
+		/**
+		 * @param record
+		 *            the record's name, or its line number if it has none
+		 * @param smiles
+		 *            the record's SMILES string
+		 * @param graph
+		 *            the graph of the molecule
+		 */
+		public void graphConverted(String record, String smiles,
+				List<ChemAxonAtom> graph);
+
+		/**
+		 * @param record
+		 *            the record's name, or its line number if it has none
+		 * @param smiles
+		 *            the record's SMILES string
+		 * @param e
+		 *            why it could not be converted
+		 */
+		public void conversionFailed(String record, String smiles, Exception e);
+	}
+
+	private final int workers;
+
+	/**
+	 * @param workers
+	 *            the number of threads to convert SMILES strings with
+	 */
+	public BatchGraphConverter(int workers) {
+		this.workers = workers;
+	}
+
+	/**
+	 * Converts every record of a reader in the usual SMILES file format: a
+	 * SMILES string, optionally followed by whitespace and the record's name.
+	 * Blank lines and lines starting with <code>#</code> are skipped. Returns
+	 * once every record has been reported.
+	 * <p>
+	 * If a line cannot be read, or the calling thread is interrupted, the pool
+	 * is stopped before the exception is thrown: records that were waiting
+	 * for a thread are dropped without being reported.
+	 *
+	 * @param reader
+	 *            the lines to convert
+	 * @param listener
+	 *            the listener to report each record to
+	 * @return how the batch went
+	 * @throws IOException
+	 *             if a line could not be read
+	 * @throws InterruptedException
+	 */
+	public BatchReport convert(BufferedReader reader,
+			final GraphListener listener) throws IOException,
+			InterruptedException {
+		ChemAxonGraphMaker.initializeLicense();
+
+		final BatchReport report = new BatchReport();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						workers * 4), new BlockWhenFull());
+
+		long start = System.nanoTime();
+		long lineNumber = 0;
+
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				lineNumber++;
+
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+
+				String[] fields = line.split("\\s+", 2);
+				final String smiles = fields[0];
+				final String record = fields.length > 1 ? fields[1] : Long
+						.toString(lineNumber);
+
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						List<ChemAxonAtom> graph;
+
+						try {
+							graph = ChemAxonGraphMaker.readGraph(smiles);
+						} catch (IOException | RuntimeException e) {
+							report.failed.incrementAndGet();
+							listener.conversionFailed(record, smiles, e);
+							return;
+						}
+
+						report.converted.incrementAndGet();
+						report.atoms.addAndGet(graph.size());
+						listener.graphConverted(record, smiles, graph);
+					}
+				});
+			}
+
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			// only thrown by BlockWhenFull, which sets the interrupt status
+			// again; the exception thrown here stands for it instead
+			Thread.interrupted();
+			throw new InterruptedException();
+		} finally {
+			// does nothing if the batch finished
+			pool.shutdownNow();
+		}
+
+		report.elapsedNanos = System.nanoTime() - start;
+		return report;
+	}
+
+	/**
+	 * Converts a SMILES file and prints every failure. Arguments: the SMILES
+	 * file, then optionally the number of threads to use.
+	 */
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		int workers = args.length > 1 ? Integer.parseInt(args[1]) : WORKERS;
+
+		try (BufferedReader reader = new BufferedReader(new FileReader(args[0]))) {
+			BatchReport report = new BatchGraphConverter(workers).convert(
+					reader, new GraphListener() {
+						@Override
+						public void graphConverted(String record,
+								String smiles, List<ChemAxonAtom> graph) {
+						}
+
+						@Override
+						public void conversionFailed(String record,
+								String smiles, Exception e) {
+							System.err.println(record + "\t" + smiles + "\t"
+									+ e);
+						}
+					});
+
+			System.out.println(report);
+		}
+	}
+
+	/**
+	 * How many records of a batch were converted and how long it took.
+	 */
+	public static class BatchReport {
+		private final AtomicLong converted = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final AtomicLong atoms = new AtomicLong();
+		private long elapsedNanos;
+
+		public long getConverted() {
+			return converted.get();
+		}
+
+		public long getFailed() {
+			return failed.get();
+		}
+
+		/**
+		 * @return the number of heavy atoms in every converted graph
+		 */
+		public long getAtoms() {
+			return atoms.get();
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			double seconds = elapsedNanos / 1e9;
+			long records = getConverted() + getFailed();
+
+			return String.format(Locale.ROOT,
+					"%d records (%d converted, %d failed, %d atoms) in %.1f s, "
+							+ "%.0f records/s", records, getConverted(),
+					getFailed(), getAtoms(), seconds, seconds > 0 ? records
+							/ seconds : 0.0);
+		}
+	}
+}
@@ -1,7 +1,10 @@
 package com.ulyssecarion.pdb.morgan.graph;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.biojava.bio.structure.Element;
 
@@ -29,6 +32,36 @@ import com.ulyssecarion.pdb.morgan.graph.GraphDriver.ChemAxonAtom;
  * @author Ulysse Carion
  */
 public class ChemAxonGraphMaker {
+	public static final String LICENSE_PROPERTY = "chemaxon.license";
+	public static final String DEFAULT_LICENSE_FILE = "/Users/ulysse/Documents/workspace/pdbinabox/licences/chemaxon/license.cxl";
+
+	private static volatile boolean licenseInitialized;
+
+	/**
+	 * Sets the ChemAxon license file named by the <code>chemaxon.license</code>
+	 * system property (or {@link #DEFAULT_LICENSE_FILE} if it is not set). This
+	 * is only done the first time this is called; {@link #getGraph(Molecule)}
+	 * calls it for you.
+	 */
+	public static void initializeLicense() {
+		if (licenseInitialized)
+			return;
+
+		synchronized (ChemAxonGraphMaker.class) {
+			if (licenseInitialized)
+				return;
+
+			try {
+				LicenseManager.setLicenseFile(System.getProperty(
+						LICENSE_PROPERTY, DEFAULT_LICENSE_FILE));
+			} catch (LicenseProcessingException e) {
+				e.printStackTrace();
+			}
+
+			licenseInitialized = true;
+		}
+	}
+
 	/**
 	 * Works like {@link #getGraph(String)}, but takes a molecule directly
 	 * instead of using a SMILES string.
@@ -38,34 +71,26 @@ public class ChemAxonGraphMaker {
 	 * @return a graph for the passed molecule
 	 */
 	public static List<ChemAxonAtom> getGraph(Molecule m) {
-		try {
-			LicenseManager
-					.setLicenseFile("/Users/ulysse/Documents/workspace/pdbinabox/licences/chemaxon/license.cxl");
-		} catch (LicenseProcessingException e) {
-			e.printStackTrace();
-		}
+		initializeLicense();
 
 		List<ChemAxonAtom> atoms = new ArrayList<ChemAxonAtom>();
-		List<MolAtom> molAtoms = new ArrayList<MolAtom>();
+		Map<MolAtom, ChemAxonAtom> atomsByMolAtom = new IdentityHashMap<MolAtom, ChemAxonAtom>();
 
 		for (MolAtom atom : m.getAtomArray()) {
 			Element element = getElement(atom);
 
 			if (element.isHeavyAtom()) {
-				atoms.add(new ChemAxonAtom(element, atom));
-				molAtoms.add(atom);
+				ChemAxonAtom chemAxonAtom = new ChemAxonAtom(element, atom);
+				atoms.add(chemAxonAtom);
+				atomsByMolAtom.put(atom, chemAxonAtom);
 			}
 		}
 
 		for (MolBond bond : m.getBondArray()) {
-			MolAtom molAtom1 = bond.getAtom1();
-			MolAtom molAtom2 = bond.getAtom2();
-
-			if (getElement(molAtom1).isHeavyAtom()
-					&& getElement(molAtom2).isHeavyAtom()) {
-				Atom atom1 = atoms.get(molAtoms.indexOf(molAtom1));
-				Atom atom2 = atoms.get(molAtoms.indexOf(molAtom2));
+			Atom atom1 = atomsByMolAtom.get(bond.getAtom1());
+			Atom atom2 = atomsByMolAtom.get(bond.getAtom2());
 
+			if (atom1 != null && atom2 != null) {
 				new Bond(atom1, atom2, bond.getType()).addSelfToAtoms();
 			}
 		}
@@ -80,25 +105,45 @@ public class ChemAxonGraphMaker {
 	 * Note: this method has some hardcoded aspects to it. First of all, it
 	 * strictly uses SMILES strings, but this can easily be modified to use some
 	 * other format (MRV, or plain old ChemAxon Molecule if that's what you
-	 * have). Second, this method has hard-coded the location of the License
-	 * file for ChemAxon. You might want to get rid of that line or modify it
-	 * depending on where your license is / whether you've already set it or
-	 * not.
+	 * have). Second, the ChemAxon license is set as described in
+	 * {@link #initializeLicense()}.
 	 * 
+	 * @see #readGraph(String) to find out why a SMILES string failed
 	 * @param smiles
 	 *            the SMILES string of the molecule you want to import
 	 * @return a list of atoms, with bonds already formed that constitute the
-	 *         passed molecule.
+	 *         passed molecule, or null if it could not be read
 	 */
 	public static List<ChemAxonAtom> getGraph(String smiles) {
 		try {
-			Molecule m = MolImporter.importMol(smiles, "smiles");
-			return getGraph(m);
+			return readGraph(smiles);
 		} catch (Exception e) {
 			return null;
 		}
 	}
 
+	/**
+	 * Works like {@link #getGraph(String)}, but throws an exception instead of
+	 * returning null if the SMILES string could not be read.
+	 * 
+	 * @param smiles
+	 *            the SMILES string of the molecule you want to import
+	 * @return a list of atoms, with bonds already formed that constitute the
+	 *         passed molecule
+	 * @throws IOException
+	 *             if the SMILES string could not be parsed
+	 * @throws IllegalArgumentException
+	 *             if the molecule has an atom of no known element
+	 */
+	public static List<ChemAxonAtom> readGraph(String smiles)
+			throws IOException {
+		Molecule m = MolImporter.importMol(smiles, "smiles");
+		if (m == null)
+			throw new IOException("Could not read SMILES: " + smiles);
+
+		return getGraph(m);
+	}
+
 	private static Element getElement(MolAtom atom) {
 		return Element.valueOfIgnoreCase(atom.getSymbol());
 	}
@@ -100,6 +100,15 @@ public class GraphDriver {
 			nextConnectivity = -1;
 		}
 
+		/**
+		 * Sets both connectivity values at once, for copying back the results
+		 * of a {@link MorganGraph}.
+		 */
+		void setConnectivity(int currentConnectivity, int nextConnectivity) {
+			this.currentConnectivity = currentConnectivity;
+			this.nextConnectivity = nextConnectivity;
+		}
+
 		/**
 		 * Gets this atom's current connectivity
 		 * 
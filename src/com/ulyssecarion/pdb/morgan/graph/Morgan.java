@@ -1,9 +1,7 @@
 package com.ulyssecarion.pdb.morgan.graph;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 import chemaxon.struc.MolAtom;
 
@@ -54,26 +52,20 @@ public class Morgan {
 	 * Note: the connectivity values will not be unique. Symmetric molecules or
 	 * ones that have pi-centers in them will likely have multiple atoms with
 	 * the same connectivity values. This ambiguity is intentional.
+	 * <p>
+	 * The work is done on a {@link MorganGraph}, and the results are copied
+	 * back onto the atoms.
 	 * 
 	 * @param graph
 	 *            a list of atoms that constitute a molecule
 	 */
 	public static void morganify(List<? extends Atom> graph) {
-		for (Atom atom : graph) {
-			atom.initializeConnectivity();
-		}
-
-		int currentN = 0;
-		while (getNumUniqueValues(graph) > currentN) {
-			currentN = getNumUniqueValues(graph);
+		MorganGraph morganGraph = MorganGraph.of(graph);
+		morganGraph.morganify();
 
-			for (Atom atom : graph) {
-				atom.useNextConnectivity();
-			}
-
-			for (Atom atom : graph) {
-				atom.prepareNextConnectivity();
-			}
+		for (int i = 0; i < graph.size(); i++) {
+			graph.get(i).setConnectivity(morganGraph.getConnectivity(i),
+					morganGraph.getNextConnectivity(i));
 		}
 	}
 
@@ -81,6 +73,10 @@ public class Morgan {
 	 * This method is like {@link #getAtomNamesOfCMXAtom(Atom, List)}, but it
 	 * takes care of finding the ChemAxonAtom associated with the passed MolAtom
 	 * for you.
+	 * <p>
+	 * To name every atom of a molecule, use
+	 * {@link com.ulyssecarion.pdb.morgan.index.AtomNameMapper} instead, which
+	 * does it in one pass.
 	 */
 	public static List<String> getAtomNamesOfMolAtom(MolAtom molAtom,
 			List<ChemAxonAtom> cmxAtoms, List<PDBAtom> pdbGraph) {
@@ -123,14 +119,4 @@ public class Morgan {
 
 		return names;
 	}
-
-	private static int getNumUniqueValues(List<? extends Atom> atoms) {
-		Set<Integer> s = new HashSet<Integer>();
-
-		for (Atom atom : atoms) {
-			s.add(atom.getNextConnectivity());
-		}
-
-		return s.size();
-	}
 }
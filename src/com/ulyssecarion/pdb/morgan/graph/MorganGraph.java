@@ -0,0 +1,221 @@
+package com.ulyssecarion.pdb.morgan.graph;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ulyssecarion.pdb.morgan.graph.GraphDriver.Atom;
+import com.ulyssecarion.pdb.morgan.graph.GraphDriver.Bond;
+
+/**
+ * A molecule's graph flattened into arrays of ints, for running Morgan's
+ * algorithm without chasing {@link Atom} and {@link Bond} objects or boxing
+ * connectivity values.
+ * <p>
+ * Atoms are numbered from 0. The neighbors of atom <code>i</code> are
+ * <code>neighbors[offsets[i]]</code> to
+ * <code>neighbors[offsets[i + 1] - 1]</code> (the "compressed sparse row"
+ * layout), with an atom appearing once for every bond it is in.
+ * <p>
+ * Every array is allocated when the graph is made, so {@link #morganify()}
+ * allocates nothing and can be run any number of times. A graph is not safe to
+ * use from several threads at once.
+ */
+public class MorganGraph {
+	private final int[] initialValues;
+	private final int[] offsets;
+	private final int[] neighbors;
+
+	private int[] current;
+	private int[] next;
+	private final int[] scratch;
+
+	/**
+	 * Builds a graph from arrays.
+	 *
+	 * @param initialValues
+	 *            each atom's initial (aka "hash") value, as given by
+	 *            {@link Atom#getHashValue()}
+	 * @param offsets
+	 *            where each atom's neighbors start in <code>neighbors</code>,
+	 *            followed by the length of <code>neighbors</code>
+	 * @param neighbors
+	 *            the indices of each atom's neighbors
+	 */
+	public MorganGraph(int[] initialValues, int[] offsets, int[] neighbors) {
+		if (offsets.length != initialValues.length + 1
+				|| offsets[initialValues.length] != neighbors.length)
+			throw new IllegalArgumentException(
+					"Offsets do not match the atoms and neighbors.");
+
+		this.initialValues = initialValues;
+		this.offsets = offsets;
+		this.neighbors = neighbors;
+
+		current = new int[initialValues.length];
+		next = new int[initialValues.length];
+		scratch = new int[initialValues.length];
+		Arrays.fill(current, -1);
+		Arrays.fill(next, -1);
+	}
+
+	/**
+	 * Flattens a graph of atoms, such as one made by
+	 * {@link PDBGraphMaker#getGraph(String)} or
+	 * {@link ChemAxonGraphMaker#getGraph(String)}. Atom <code>i</code> of the
+	 * result is <code>graph.get(i)</code>.
+	 *
+	 * @param graph
+	 *            a list of atoms that constitute a molecule
+	 * @return the same molecule as arrays
+	 */
+	public static MorganGraph of(List<? extends Atom> graph) {
+		Map<Atom, Integer> indices = new IdentityHashMap<Atom, Integer>();
+		for (int i = 0; i < graph.size(); i++) {
+			indices.put(graph.get(i), i);
+		}
+
+		int[] initialValues = new int[graph.size()];
+		int[] offsets = new int[graph.size() + 1];
+
+		for (int i = 0; i < graph.size(); i++) {
+			Atom atom = graph.get(i);
+			initialValues[i] = atom.getHashValue();
+			offsets[i + 1] = offsets[i] + atom.getBonds().size();
+		}
+
+		int[] neighbors = new int[offsets[graph.size()]];
+
+		for (int i = 0; i < graph.size(); i++) {
+			int j = offsets[i];
+
+			for (Bond bond : graph.get(i).getBonds()) {
+				Integer neighbor = indices.get(bond.getOther(graph.get(i)));
+
+				if (neighbor == null)
+					throw new IllegalArgumentException(
+							"An atom is bonded to an atom outside of the graph.");
+
+				neighbors[j++] = neighbor;
+			}
+		}
+
+		return new MorganGraph(initialValues, offsets, neighbors);
+	}
+
+	/**
+	 * Runs Morgan's algorithm, exactly as {@link Morgan#morganify(List)} does
+	 * on the atoms this graph was made from. Afterwards,
+	 * {@link #getConnectivity(int)} is the same as each atom's
+	 * {@link Atom#getCurrentConnectivity()}.
+	 */
+	public void morganify() {
+		System.arraycopy(initialValues, 0, next, 0, next.length);
+
+		int currentN = 0;
+		int unique;
+		while ((unique = countUniqueValues(next)) > currentN) {
+			currentN = unique;
+
+			int[] swap = current;
+			current = next;
+			next = swap;
+
+			for (int i = 0; i < current.length; i++) {
+				int nextVal = 0;
+
+				for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+					nextVal += current[neighbors[j]];
+				}
+
+				next[i] = nextVal + current[i];
+			}
+		}
+	}
+
+	/**
+	 * @return the number of atoms in this graph
+	 */
+	public int size() {
+		return initialValues.length;
+	}
+
+	/**
+	 * @return an atom's initial (aka "hash") value
+	 */
+	public int getInitialValue(int atom) {
+		return initialValues[atom];
+	}
+
+	/**
+	 * @return the number of bonds an atom is in
+	 */
+	public int getDegree(int atom) {
+		return offsets[atom + 1] - offsets[atom];
+	}
+
+	/**
+	 * Gets one of an atom's neighbors, without copying them.
+	 *
+	 * @param atom
+	 *            the index of the atom
+	 * @param bond
+	 *            which of the atom's bonds to follow, from 0 to
+	 *            {@link #getDegree(int)} - 1
+	 * @return the index of the atom at the other end of the bond
+	 */
+	public int getNeighbor(int atom, int bond) {
+		return neighbors[offsets[atom] + bond];
+	}
+
+	/**
+	 * Gets an atom's connectivity after {@link #morganify()}.
+	 *
+	 * @param atom
+	 *            the index of the atom
+	 * @return the atom's current connectivity
+	 */
+	public int getConnectivity(int atom) {
+		return current[atom];
+	}
+
+	/**
+	 * Gets the connectivity an atom would have after one more iteration.
+	 *
+	 * @param atom
+	 *            the index of the atom
+	 * @return the atom's next connectivity
+	 */
+	public int getNextConnectivity(int atom) {
+		return next[atom];
+	}
+
+	/**
+	 * @return a copy of every atom's connectivity after {@link #morganify()}
+	 */
+	public int[] getConnectivities() {
+		return current.clone();
+	}
+
+	/**
+	 * Counts distinct values by sorting a copy of them into the scratch array.
+	 */
+	private int countUniqueValues(int[] values) {
+		if (values.length == 0) {
+			return 0;
+		}
+
+		System.arraycopy(values, 0, scratch, 0, values.length);
+		Arrays.sort(scratch);
+
+		int unique = 1;
+		for (int i = 1; i < scratch.length; i++) {
+			if (scratch[i] != scratch[i - 1]) {
+				unique++;
+			}
+		}
+
+		return unique;
+	}
+}
@@ -1,7 +1,9 @@
 package com.ulyssecarion.pdb.morgan.graph;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.biojava.bio.structure.Element;
 import org.biojava.bio.structure.io.mmcif.ChemCompGroupFactory;
@@ -31,31 +33,39 @@ public class PDBGraphMaker {
 	 * @return a list of PDBAtoms that make up a ChemComp
 	 */
 	public static List<PDBAtom> getGraph(String name) {
-		ChemComp cc = ChemCompGroupFactory.getChemComp(name);
+		return getGraph(ChemCompGroupFactory.getChemComp(name));
+	}
 
+	/**
+	 * Works like {@link #getGraph(String)}, but takes a ChemComp directly.
+	 * 
+	 * @param cc
+	 *            the ChemComp to create a graph for
+	 * @return a list of PDBAtoms that make up the ChemComp
+	 */
+	public static List<PDBAtom> getGraph(ChemComp cc) {
 		List<PDBAtom> atoms = new ArrayList<PDBAtom>();
-		List<String> atomNames = new ArrayList<String>();
+		Map<String, PDBAtom> atomsByName = new HashMap<String, PDBAtom>();
 
 		for (ChemCompAtom atom : cc.getAtoms()) {
 			Element element = getElement(atom);
 
 			if (element.isHeavyAtom()) {
-				atoms.add(new PDBAtom(element, atom.getAtom_id()));
-				atomNames.add(atom.getAtom_id());
+				PDBAtom pdbAtom = new PDBAtom(element, atom.getAtom_id());
+				atoms.add(pdbAtom);
+
+				// bonds go to the first atom with a given name
+				if (!atomsByName.containsKey(atom.getAtom_id())) {
+					atomsByName.put(atom.getAtom_id(), pdbAtom);
+				}
 			}
 		}
 
 		for (ChemCompBond bond : cc.getBonds()) {
-			String atomName1 = bond.getAtom_id_1();
-			String atomName2 = bond.getAtom_id_2();
-
-			int index1 = atomNames.indexOf(atomName1);
-			int index2 = atomNames.indexOf(atomName2);
-
-			if (index1 != -1 && index2 != -1) {
-				Atom atom1 = atoms.get(index1);
-				Atom atom2 = atoms.get(index2);
+			Atom atom1 = atomsByName.get(bond.getAtom_id_1());
+			Atom atom2 = atomsByName.get(bond.getAtom_id_2());
 
+			if (atom1 != null && atom2 != null) {
 				new Bond(atom1, atom2, bond.getNumericalBondOrder())
 						.addSelfToAtoms();
 			}
@@ -0,0 +1,109 @@
+package com.ulyssecarion.pdb.morgan.index;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import chemaxon.struc.MolAtom;
+import chemaxon.struc.Molecule;
+
+import com.ulyssecarion.pdb.morgan.graph.ChemAxonGraphMaker;
+import com.ulyssecarion.pdb.morgan.graph.GraphDriver.ChemAxonAtom;
+import com.ulyssecarion.pdb.morgan.graph.Morgan;
+import com.ulyssecarion.pdb.morgan.graph.MorganGraph;
+import com.ulyssecarion.pdb.morgan.graph.PDBGraphMaker;
+import com.ulyssecarion.pdb.morgan.index.MorganIndex.Component;
+
+/**
+ * Maps every atom of a ChemAxon molecule to its possible PDB atom names in one
+ * go. This gives the same names as calling
+ * {@link Morgan#getAtomNamesOfMolAtom} for each atom, but runs Morgan's
+ * algorithm on the molecule only once and looks each atom up in a hash of the
+ * component's connectivities, instead of scanning both graphs for every atom.
+ * <p>
+ * Components come from a {@link MorganIndex}. Components missing from it (or
+ * all of them, if there is no index) are read from the dictionary through
+ * {@link PDBGraphMaker} the first time they are asked for and kept.
+ * <p>
+ * A mapper is safe to use from several threads at once.
+ */
+public class AtomNameMapper {
+	private final MorganIndex index;
+	private final ConcurrentMap<String, Component> fromDictionary = new ConcurrentHashMap<String, Component>();
+
+	/**
+	 * @param index
+	 *            the index to look components up in, or null to always read
+	 *            them from the dictionary
+	 */
+	public AtomNameMapper(MorganIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Gets a component from the index, or from the dictionary if it is not
+	 * indexed.
+	 *
+	 * @param componentID
+	 *            the component's ID, like "ALA" or "HEM"
+	 * @return the component
+	 */
+	public Component getComponent(String componentID) {
+		Component component = index == null ? null : index.get(componentID);
+
+		if (component == null) {
+			component = fromDictionary.get(componentID);
+
+			if (component == null) {
+				component = Component.of(componentID,
+						PDBGraphMaker.getGraph(componentID));
+				fromDictionary.putIfAbsent(componentID, component);
+			}
+		}
+
+		return component;
+	}
+
+	/**
+	 * Maps a molecule's heavy atoms onto the atom names of a component.
+	 *
+	 * @param m
+	 *            the molecule, e.g. read from a SMILES string
+	 * @param componentID
+	 *            the ID of the component the molecule is a version of
+	 * @return each heavy atom of the molecule, with the names it might have in
+	 *         the component; atoms with no match map to an empty list
+	 */
+	public Map<MolAtom, List<String>> map(Molecule m, String componentID) {
+		return map(ChemAxonGraphMaker.getGraph(m), getComponent(componentID));
+	}
+
+	/**
+	 * Maps a graph made by {@link ChemAxonGraphMaker} onto the atom names of a
+	 * component. The graph is not modified.
+	 *
+	 * @param graph
+	 *            the molecule's atoms
+	 * @param component
+	 *            the component the molecule is a version of
+	 * @return each atom's {@link ChemAxonAtom#getMolAtom()}, with the names it
+	 *         might have in the component
+	 */
+	public static Map<MolAtom, List<String>> map(List<ChemAxonAtom> graph,
+			Component component) {
+		MorganGraph morganGraph = MorganGraph.of(graph);
+		morganGraph.morganify();
+
+		Map<MolAtom, List<String>> names = new IdentityHashMap<MolAtom, List<String>>(
+				graph.size());
+
+		for (int i = 0; i < graph.size(); i++) {
+			names.put(graph.get(i).getMolAtom(),
+					component.getAtomNames(morganGraph.getConnectivity(i)));
+		}
+
+		return names;
+	}
+}
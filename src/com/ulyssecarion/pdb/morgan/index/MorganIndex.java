@@ -0,0 +1,507 @@
+package com.ulyssecarion.pdb.morgan.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.biojava.bio.structure.Element;
+
+import com.ulyssecarion.pdb.morgan.graph.GraphDriver.Atom;
+import com.ulyssecarion.pdb.morgan.graph.GraphDriver.Bond;
+import com.ulyssecarion.pdb.morgan.graph.GraphDriver.PDBAtom;
+import com.ulyssecarion.pdb.morgan.graph.MorganGraph;
+
+/**
+ * The Morgan connectivities of every component of a chemical component
+ * dictionary, computed ahead of time by {@link MorganIndexBuilder} so that
+ * mapping a molecule onto PDB atom names does not need to fetch a
+ * {@link org.biojava.bio.structure.io.mmcif.model.ChemComp} or rerun Morgan's
+ * algorithm on it.
+ * <p>
+ * An index file looks like this:
+ *
+ * <pre>
+ * 	int magic, int version, int component count
+ * 	for each component, sorted by ID:
+ * 		its ID (UTF), int atom count
+ * 		for each atom: its name (UTF), its element (UTF), int connectivity,
+ * 			int bond count
+ * 		for each bond of each atom, in order:
+ * 			int index of the other atom, byte bond order
+ * </pre>
+ */
+public class MorganIndex {
+	public static final int MAGIC = 0x4d4f5247;
+	public static final int VERSION = 1;
+
+	public static final String INDEX_PROPERTY = "pdb.morgan.index";
+	public static final String DEFAULT_INDEX_FILE = "morgan.idx";
+
+	private static MorganIndex defaultIndex;
+
+	private final Map<String, Component> components;
+	private volatile Map<Signature, List<Component>> componentsBySignature;
+
+	/**
+	 * @param components
+	 *            the components to index
+	 */
+	public MorganIndex(Collection<Component> components) {
+		this.components = new TreeMap<String, Component>();
+
+		for (Component component : components) {
+			this.components.put(component.getId(), component);
+		}
+	}
+
+	/**
+	 * Gets the index named by the <code>pdb.morgan.index</code> system
+	 * property (or {@value #DEFAULT_INDEX_FILE} if it is not set), reading it
+	 * the first time it is asked for.
+	 *
+	 * @return the default index
+	 * @throws IOException
+	 *             if the index could not be read
+	 */
+	public static synchronized MorganIndex getDefault() throws IOException {
+		if (defaultIndex == null) {
+			defaultIndex = read(new File(System.getProperty(INDEX_PROPERTY,
+					DEFAULT_INDEX_FILE)));
+		}
+
+		return defaultIndex;
+	}
+
+	/**
+	 * Gets a component of the index.
+	 *
+	 * @param id
+	 *            the component's ID, like "ALA" or "HEM"
+	 * @return the component, or null if it is not in the index
+	 */
+	public Component get(String id) {
+		return components.get(id);
+	}
+
+	/**
+	 * Finds the components that are the same molecule as a graph, going by
+	 * the connectivities Morgan's algorithm gives their heavy atoms. This is a
+	 * hash lookup, so it only finds whole molecules: a graph of part of a
+	 * component does not match it.
+	 *
+	 * @param graph
+	 *            the molecule, after {@link MorganGraph#morganify()}
+	 * @return the components whose atoms have exactly the same
+	 *         connectivities, sorted by ID
+	 */
+	public List<Component> getComponentsLike(MorganGraph graph) {
+		int[] connectivities = new int[graph.size()];
+		for (int i = 0; i < connectivities.length; i++) {
+			connectivities[i] = graph.getConnectivity(i);
+		}
+
+		List<Component> result = getComponentsBySignature().get(
+				new Signature(connectivities));
+		return result == null ? Collections.<Component> emptyList() : result;
+	}
+
+	private Map<Signature, List<Component>> getComponentsBySignature() {
+		Map<Signature, List<Component>> result = componentsBySignature;
+
+		if (result == null) {
+			result = new HashMap<Signature, List<Component>>();
+
+			for (Component component : components.values()) {
+				Signature signature = new Signature(component.connectivities);
+				List<Component> same = result.get(signature);
+
+				if (same == null) {
+					same = new ArrayList<Component>(1);
+					result.put(signature, same);
+				}
+
+				same.add(component);
+			}
+
+			componentsBySignature = result;
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return every component in the index, sorted by ID
+	 */
+	public Collection<Component> getComponents() {
+		return Collections.unmodifiableCollection(components.values());
+	}
+
+	public int size() {
+		return components.size();
+	}
+
+	/**
+	 * Writes this index to a file.
+	 *
+	 * @param file
+	 *            the file to write to; it is overwritten
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(components.size());
+
+			for (Component component : components.values()) {
+				component.write(out);
+			}
+		}
+	}
+
+	/**
+	 * Reads an index written by {@link #write(File)}.
+	 *
+	 * @param file
+	 *            the index file
+	 * @return the index
+	 * @throws IOException
+	 *             if the file could not be read or is not an index
+	 */
+	public static MorganIndex read(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException(file + " is not a Morgan index.");
+			if (in.readInt() != VERSION)
+				throw new IOException(file + " has an unsupported version.");
+
+			int count = in.readInt();
+			List<Component> components = new ArrayList<Component>(count);
+
+			for (int i = 0; i < count; i++) {
+				components.add(Component.read(in));
+			}
+
+			return new MorganIndex(components);
+		}
+	}
+
+	/**
+	 * The sorted connectivities of a molecule's atoms, which are the same for
+	 * two graphs of the same molecule.
+	 */
+	private static class Signature {
+		private final int[] sorted;
+
+		public Signature(int[] connectivities) {
+			sorted = connectivities.clone();
+			Arrays.sort(sorted);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(sorted);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Signature
+					&& Arrays.equals(sorted, ((Signature) o).sorted);
+		}
+	}
+
+	/**
+	 * One component's heavy atoms, their bonds and their connectivities. Atoms
+	 * are numbered from 0, in the order the dictionary lists them; the bonds
+	 * of atom <code>i</code> are <code>offsets[i]</code> to
+	 * <code>offsets[i + 1] - 1</code> in <code>neighbors</code> and
+	 * <code>bondOrders</code>.
+	 */
+	public static class Component {
+		private final String id;
+		private final String[] atomNames;
+		private final Element[] elements;
+		private final int[] connectivities;
+		private final int[] offsets;
+		private final int[] neighbors;
+		private final byte[] bondOrders;
+
+		private volatile Map<Integer, List<String>> namesByConnectivity;
+
+		public Component(String id, String[] atomNames, Element[] elements,
+				int[] connectivities, int[] offsets, int[] neighbors,
+				byte[] bondOrders) {
+			this.id = id;
+			this.atomNames = atomNames;
+			this.elements = elements;
+			this.connectivities = connectivities;
+			this.offsets = offsets;
+			this.neighbors = neighbors;
+			this.bondOrders = bondOrders;
+		}
+
+		/**
+		 * Runs Morgan's algorithm on a graph made by
+		 * {@link com.ulyssecarion.pdb.morgan.graph.PDBGraphMaker#getGraph(String)}
+		 * and keeps the results.
+		 *
+		 * @param id
+		 *            the component's ID
+		 * @param graph
+		 *            the component's atoms
+		 * @return the component
+		 */
+		public static Component of(String id, List<PDBAtom> graph) {
+			int n = graph.size();
+			Map<Atom, Integer> indices = new IdentityHashMap<Atom, Integer>();
+			for (int i = 0; i < n; i++) {
+				indices.put(graph.get(i), i);
+			}
+
+			String[] atomNames = new String[n];
+			Element[] elements = new Element[n];
+			int[] hashValues = new int[n];
+			int[] offsets = new int[n + 1];
+
+			for (int i = 0; i < n; i++) {
+				PDBAtom atom = graph.get(i);
+				atomNames[i] = atom.getAtomName();
+				elements[i] = atom.getElement();
+				hashValues[i] = atom.getHashValue();
+				offsets[i + 1] = offsets[i] + atom.getBonds().size();
+			}
+
+			int[] neighbors = new int[offsets[n]];
+			byte[] bondOrders = new byte[offsets[n]];
+
+			for (int i = 0; i < n; i++) {
+				int j = offsets[i];
+
+				for (Bond bond : graph.get(i).getBonds()) {
+					neighbors[j] = indices.get(bond.getOther(graph.get(i)));
+					bondOrders[j] = (byte) bond.getOrder();
+					j++;
+				}
+			}
+
+			MorganGraph morganGraph = new MorganGraph(hashValues, offsets,
+					neighbors);
+			morganGraph.morganify();
+
+			return new Component(id, atomNames, elements,
+					morganGraph.getConnectivities(), offsets, neighbors,
+					bondOrders);
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public int getAtomCount() {
+			return atomNames.length;
+		}
+
+		public String getAtomName(int atom) {
+			return atomNames[atom];
+		}
+
+		public Element getElement(int atom) {
+			return elements[atom];
+		}
+
+		public int getConnectivity(int atom) {
+			return connectivities[atom];
+		}
+
+		/**
+		 * Gets an atom's initial value for Morgan's algorithm. This is the same
+		 * as {@link Atom#getHashValue()} on the atom this was built from.
+		 *
+		 * @param atom
+		 *            the index of the atom
+		 * @return the atom's initial value
+		 */
+		public int getHashValue(int atom) {
+			int piCenterScore = isPiCenter(atom) ? 1 : 0;
+			return 10 * elements[atom].getAtomicNumber() + piCenterScore;
+		}
+
+		/**
+		 * @return this component's graph, ready for
+		 *         {@link MorganGraph#morganify()}
+		 */
+		public MorganGraph toMorganGraph() {
+			int[] hashValues = new int[atomNames.length];
+			for (int i = 0; i < hashValues.length; i++) {
+				hashValues[i] = getHashValue(i);
+			}
+
+			return new MorganGraph(hashValues, offsets, neighbors);
+		}
+
+		/**
+		 * Follows {@link Atom#isPiCenter()}, with the bonds of this
+		 * component's arrays.
+		 */
+		private boolean isPiCenter(int atom) {
+			for (int j = offsets[atom]; j < offsets[atom + 1]; j++) {
+				if (bondOrders[j] > 1) {
+					return true;
+				}
+			}
+
+			if (!isElectronegative(atom)) {
+				return false;
+			}
+
+			for (int j = offsets[atom]; j < offsets[atom + 1]; j++) {
+				if (bondOrders[j] == 1) {
+					int center = neighbors[j];
+
+					for (int k = offsets[center]; k < offsets[center + 1]; k++) {
+						if (bondOrders[k] == 2 && isElectronegative(neighbors[k])) {
+							return true;
+						}
+					}
+				}
+			}
+
+			return false;
+		}
+
+		private boolean isElectronegative(int atom) {
+			int valence = elements[atom].getValenceElectronCount();
+			return valence >= 5 && valence <= 7;
+		}
+
+		/**
+		 * @return the indices of the atoms an atom is bonded to
+		 */
+		public int[] getNeighbors(int atom) {
+			int[] result = new int[offsets[atom + 1] - offsets[atom]];
+			System.arraycopy(neighbors, offsets[atom], result, 0, result.length);
+			return result;
+		}
+
+		/**
+		 * @return the order of each of an atom's bonds, in the same order as
+		 *         {@link #getNeighbors(int)}
+		 */
+		public int[] getBondOrders(int atom) {
+			int[] result = new int[offsets[atom + 1] - offsets[atom]];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = bondOrders[offsets[atom] + i];
+			}
+			return result;
+		}
+
+		/**
+		 * Gets the names of every atom with a given connectivity. This is the
+		 * same as
+		 * {@link com.ulyssecarion.pdb.morgan.graph.Morgan#getAtomNamesOfCMXAtom}
+		 * against this component's graph, but is a hash lookup instead of a
+		 * scan of every atom.
+		 *
+		 * @param connectivity
+		 *            a connectivity value from Morgan's algorithm
+		 * @return the names of the atoms with that connectivity, in the order
+		 *         the dictionary lists them; this list must not be modified
+		 */
+		public List<String> getAtomNames(int connectivity) {
+			List<String> names = getNamesByConnectivity().get(connectivity);
+			return names == null ? Collections.<String> emptyList() : names;
+		}
+
+		/**
+		 * Builds the map from connectivity to atom names the first time it is
+		 * needed. Two threads may both build it; they get equal maps.
+		 */
+		private Map<Integer, List<String>> getNamesByConnectivity() {
+			Map<Integer, List<String>> result = namesByConnectivity;
+
+			if (result == null) {
+				result = new HashMap<Integer, List<String>>();
+
+				for (int i = 0; i < connectivities.length; i++) {
+					List<String> names = result.get(connectivities[i]);
+
+					if (names == null) {
+						names = new ArrayList<String>(1);
+						result.put(connectivities[i], names);
+					}
+
+					names.add(atomNames[i]);
+				}
+
+				for (Map.Entry<Integer, List<String>> entry : result.entrySet()) {
+					entry.setValue(Collections.unmodifiableList(entry.getValue()));
+				}
+
+				namesByConnectivity = result;
+			}
+
+			return result;
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			out.writeUTF(id);
+			out.writeInt(atomNames.length);
+
+			for (int i = 0; i < atomNames.length; i++) {
+				out.writeUTF(atomNames[i]);
+				out.writeUTF(elements[i].toString());
+				out.writeInt(connectivities[i]);
+				out.writeInt(offsets[i + 1] - offsets[i]);
+			}
+
+			for (int j = 0; j < neighbors.length; j++) {
+				out.writeInt(neighbors[j]);
+				out.writeByte(bondOrders[j]);
+			}
+		}
+
+		private static Component read(DataInputStream in) throws IOException {
+			String id = in.readUTF();
+			int n = in.readInt();
+
+			String[] atomNames = new String[n];
+			Element[] elements = new Element[n];
+			int[] connectivities = new int[n];
+			int[] offsets = new int[n + 1];
+
+			for (int i = 0; i < n; i++) {
+				atomNames[i] = in.readUTF();
+				elements[i] = Element.valueOf(in.readUTF());
+				connectivities[i] = in.readInt();
+				offsets[i + 1] = offsets[i] + in.readInt();
+			}
+
+			int[] neighbors = new int[offsets[n]];
+			byte[] bondOrders = new byte[offsets[n]];
+
+			for (int j = 0; j < neighbors.length; j++) {
+				neighbors[j] = in.readInt();
+				bondOrders[j] = in.readByte();
+			}
+
+			return new Component(id, atomNames, elements, connectivities,
+					offsets, neighbors, bondOrders);
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package com.ulyssecarion.pdb.morgan.index;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.biojava.bio.structure.io.mmcif.ChemCompGroupFactory;
+import org.biojava.bio.structure.io.mmcif.model.ChemComp;
+
+import com.ulyssecarion.pdb.morgan.graph.PDBGraphMaker;
+import com.ulyssecarion.pdb.morgan.index.MorganIndex.Component;
+
+/**
+ * Builds a {@link MorganIndex} for every component of a local chemical
+ * component dictionary. This is meant to be run offline, once for each
+ * release of the dictionary.
+ * <p>
+ * Components are fetched through {@link ChemCompGroupFactory}, so it should be
+ * set up to read from the local copy of the dictionary. The factory caches
+ * what it reads in a plain map, so fetches are done one at a time; building
+ * the graphs and running Morgan's algorithm on them is done in parallel.
+ */
+public class MorganIndexBuilder {
+	public static final int WORKERS = Runtime.getRuntime()
+			.availableProcessors();
+
+	private static final Object FACTORY_LOCK = new Object();
+
+	/**
+	 * Indexes a list of components.
+	 *
+	 * @param ids
+	 *            the IDs of the components to index
+	 * @param workers
+	 *            how many threads to build graphs with
+	 * @return the index; components that could not be read are left out
+	 * @throws InterruptedException
+	 */
+	public static MorganIndex build(List<String> ids, int workers)
+			throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		List<Future<Component>> futures = new ArrayList<Future<Component>>();
+
+		for (final String id : ids) {
+			futures.add(executor.submit(new Callable<Component>() {
+				@Override
+				public Component call() {
+					ChemComp cc;
+					synchronized (FACTORY_LOCK) {
+						cc = ChemCompGroupFactory.getChemComp(id);
+					}
+
+					return Component.of(id, PDBGraphMaker.getGraph(cc));
+				}
+			}));
+		}
+
+		executor.shutdown();
+
+		List<Component> components = new ArrayList<Component>();
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				components.add(futures.get(i).get());
+			} catch (ExecutionException e) {
+				System.err.println("Could not index " + ids.get(i) + ":");
+				e.getCause().printStackTrace();
+			}
+		}
+
+		return new MorganIndex(components);
+	}
+
+	/**
+	 * Lists the components of a dictionary. If <code>source</code> is a
+	 * directory, its files named like <code>HEM.cif</code> or
+	 * <code>HEM.cif.gz</code> (in it or in its subdirectories) are taken to be
+	 * components; otherwise it is read as a list of IDs, one per line.
+	 *
+	 * @param source
+	 *            a directory of component files, or a file of IDs
+	 * @return the IDs of the components
+	 * @throws IOException
+	 */
+	public static List<String> listComponents(File source) throws IOException {
+		List<String> ids = new ArrayList<String>();
+
+		if (source.isDirectory()) {
+			addComponentFiles(source, ids);
+			return ids;
+		}
+
+		try (BufferedReader reader = new BufferedReader(new FileReader(source))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+
+				if (!line.isEmpty() && !line.startsWith("#")) {
+					ids.add(line);
+				}
+			}
+		}
+
+		return ids;
+	}
+
+	private static void addComponentFiles(File dir, List<String> ids) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+
+		for (File file : files) {
+			String name = file.getName();
+
+			if (file.isDirectory()) {
+				addComponentFiles(file, ids);
+			} else if (name.endsWith(".cif.gz")) {
+				ids.add(name.substring(0, name.length() - ".cif.gz".length()));
+			} else if (name.endsWith(".cif")) {
+				ids.add(name.substring(0, name.length() - ".cif".length()));
+			}
+		}
+	}
+
+	/**
+	 * Builds an index. Arguments: a directory of component files or a file of
+	 * component IDs (see {@link #listComponents(File)}), then the index file to
+	 * write, then optionally the number of threads to use.
+	 */
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		if (args.length < 2) {
+			System.err.println("Usage: MorganIndexBuilder "
+					+ "<component directory|component list> <index file> "
+					+ "[threads]");
+			System.exit(1);
+		}
+
+		List<String> ids = listComponents(new File(args[0]));
+		int workers = args.length > 2 ? Integer.parseInt(args[2]) : WORKERS;
+
+		long start = System.currentTimeMillis();
+		MorganIndex index = build(ids, workers);
+		index.write(new File(args[1]));
+		long stop = System.currentTimeMillis();
+
+		System.out.println("Indexed " + index.size() + " of " + ids.size()
+				+ " components into " + args[1] + " in " + (stop - start)
+				+ " ms.");
+	}
+}
@@ -0,0 +1,25 @@
+package com.ulyssecarion.pdb.util;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Makes whoever submits work to a full pool wait for room in its queue, so
+ * that the queue depth stays bounded. The pool needs a bounded queue for this
+ * to make any difference.
+ * <p>
+ * A submitter interrupted while it waits gets a
+ * {@link RejectedExecutionException}, with its interrupt status set again.
+ */
+public class BlockWhenFull implements RejectedExecutionHandler {
+	@Override
+	public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+		try {
+			executor.getQueue().put(r);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException(e);
+		}
+	}
+}
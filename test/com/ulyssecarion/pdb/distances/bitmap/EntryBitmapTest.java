@@ -0,0 +1,153 @@
+package com.ulyssecarion.pdb.distances.bitmap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import com.ulyssecarion.pdb.distances.serialization.StringDictionary;
+
+/**
+ * Checks {@link EntryBitmap} against a plain set of ints, with both sparse and
+ * dense containers in the same bitmap.
+ */
+public class EntryBitmapTest {
+	@Test
+	public void combinationsMatchSets() {
+		Random random = new Random(42);
+
+		for (int i = 0; i < 40; i++) {
+			Set<Integer> a = randomSet(random);
+			Set<Integer> b = randomSet(random);
+			EntryBitmap x = toBitmap(a);
+			EntryBitmap y = toBitmap(b);
+
+			Set<Integer> and = new TreeSet<>(a);
+			and.retainAll(b);
+			Set<Integer> or = new TreeSet<>(a);
+			or.addAll(b);
+			Set<Integer> andNot = new TreeSet<>(a);
+			andNot.removeAll(b);
+
+			assertArrayEquals("and " + i, toArray(and), x.and(y).toArray());
+			assertArrayEquals("or " + i, toArray(or), x.or(y).toArray());
+			assertArrayEquals("andNot " + i, toArray(andNot), x.andNot(y)
+					.toArray());
+			assertEquals("intersects " + i, !and.isEmpty(), x.intersects(y));
+			assertEquals("cardinality " + i, or.size(), x.or(y)
+					.getCardinality());
+
+			// the arguments are left alone
+			assertArrayEquals(toArray(a), x.toArray());
+			assertArrayEquals(toArray(b), y.toArray());
+		}
+	}
+
+	@Test
+	public void containsMatchesSets() {
+		Random random = new Random(7);
+		Set<Integer> set = randomSet(random);
+		EntryBitmap bitmap = toBitmap(set);
+
+		for (int i = 0; i < 400000; i += 3)
+			assertEquals("contains " + i, set.contains(i), bitmap.contains(i));
+	}
+
+	@Test
+	public void bitmapsCanBeReadBack() throws IOException {
+		Random random = new Random(3);
+
+		for (int i = 0; i < 20; i++) {
+			EntryBitmap bitmap = toBitmap(randomSet(random));
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			bitmap.write(new DataOutputStream(bytes));
+			EntryBitmap read = EntryBitmap.read(new DataInputStream(
+					new ByteArrayInputStream(bytes.toByteArray())));
+
+			assertArrayEquals(bitmap.toArray(), read.toArray());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void bitmapsOfDifferentDictionariesCannotBeCombined() {
+		EntryBitmap.of(1, 2).withDictionary(new StringDictionary())
+				.and(EntryBitmap.of(2).withDictionary(new StringDictionary()));
+	}
+
+	@Test
+	public void bitmapsCanBeTranslated() {
+		StringDictionary first = new StringDictionary();
+		StringDictionary second = new StringDictionary();
+		for (String pdbID : new String[] { "1ABC", "2ABC", "3ABC" })
+			first.getOrAdd(pdbID);
+		for (String pdbID : new String[] { "3ABC", "4ABC", "1ABC" })
+			second.getOrAdd(pdbID);
+
+		EntryBitmap bitmap = EntryBitmap.of(0, 1, 2).withDictionary(first);
+		EntryBitmap translated = bitmap.translate(second);
+
+		// 2ABC is not in the second dictionary
+		assertArrayEquals(new int[] { 0, 2 }, translated.toArray());
+		assertSame(second, translated.getDictionary());
+		assertSame(bitmap, bitmap.translate(first));
+		assertSame(second, bitmap.and(EntryBitmap.of(0)).translate(second)
+				.getDictionary());
+	}
+
+	/**
+	 * Makes a set spread over a few containers, each of which is empty,
+	 * sparse or dense.
+	 */
+	private static Set<Integer> randomSet(Random random) {
+		Set<Integer> set = new TreeSet<>();
+
+		for (int high = 0; high < 5; high++) {
+			int count;
+			switch (random.nextInt(4)) {
+			case 0:
+				count = 0;
+				break;
+			case 1:
+				count = 1 + random.nextInt(100);
+				break;
+			case 2:
+				count = 3000 + random.nextInt(2000);
+				break;
+			default:
+				count = 8000 + random.nextInt(20000);
+				break;
+			}
+
+			for (int i = 0; i < count; i++)
+				set.add((high << 16) | random.nextInt(1 << 16));
+		}
+
+		return set;
+	}
+
+	private static EntryBitmap toBitmap(Set<Integer> set) {
+		EntryBitmap bitmap = new EntryBitmap();
+		for (int value : set)
+			bitmap.add(value);
+		return bitmap;
+	}
+
+	private static int[] toArray(Set<Integer> set) {
+		int[] array = new int[set.size()];
+		int i = 0;
+		for (int value : set)
+			array[i++] = value;
+		return array;
+	}
+}
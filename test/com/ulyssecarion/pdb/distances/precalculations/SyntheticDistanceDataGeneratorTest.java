@@ -0,0 +1,74 @@
+package com.ulyssecarion.pdb.distances.precalculations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that the entries made by {@link SyntheticDistanceDataGenerator}
+ * really are independent of each other.
+ */
+public class SyntheticDistanceDataGeneratorTest {
+	private static final int ENTRIES = 100000;
+
+	@Test
+	public void ligandCountsFollowTheirDistribution() {
+		SyntheticDistanceDataGenerator generator = newGenerator(0);
+		long total = 0;
+		int single = 0;
+
+		for (int i = 0; i < ENTRIES; i++) {
+			int count = SyntheticDistanceDataGenerator.pickLigandCount(generator
+					.newEntryRandom(i));
+			total += count;
+			if (count == 1)
+				single++;
+		}
+
+		// geometric with p = 0.35: a mean of 1 / 0.35, and 35% of entries
+		// with a single ligand
+		assertEquals(1 / 0.35, (double) total / ENTRIES, 0.05);
+		assertEquals(0.35, (double) single / ENTRIES, 0.01);
+	}
+
+	@Test
+	public void neighbouringEntriesAreIndependent() {
+		for (long seed : new long[] { 0, 1, 42 }) {
+			SyntheticDistanceDataGenerator generator = newGenerator(seed);
+			int previous = -1;
+			int changes = 0;
+
+			for (int i = 0; i < ENTRIES; i++) {
+				int count = SyntheticDistanceDataGenerator
+						.pickLigandCount(generator.newEntryRandom(i));
+				if (count != previous)
+					changes++;
+				previous = count;
+			}
+
+			// two independent counts differ with a probability of
+			// 1 - sum(p_k^2) = 1 - 0.35^2 / (1 - 0.65^2), about 79%
+			assertTrue("Ligand counts changed between only " + changes
+					+ " of " + ENTRIES + " neighbouring entries with seed "
+					+ seed, changes > ENTRIES * 0.75);
+		}
+	}
+
+	@Test
+	public void entriesCanBeRegenerated() {
+		SyntheticDistanceDataGenerator generator = newGenerator(7);
+
+		for (int i = 0; i < 100; i++) {
+			assertEquals(generator.newEntryRandom(i).nextLong(), generator
+					.newEntryRandom(i).nextLong());
+		}
+	}
+
+	/**
+	 * Creates a generator with only the common ligands, which is quicker.
+	 */
+	private static SyntheticDistanceDataGenerator newGenerator(long seed) {
+		return new SyntheticDistanceDataGenerator(seed, 0);
+	}
+}
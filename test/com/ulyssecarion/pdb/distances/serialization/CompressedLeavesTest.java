@@ -0,0 +1,177 @@
+package com.ulyssecarion.pdb.distances.serialization;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.ulyssecarion.pdb.distances.DistanceResult;
+
+/**
+ * Checks that leaves written by {@link CompressedLeaves} read back as the same
+ * rows, and that corrupt leaves are refused.
+ */
+public class CompressedLeavesTest {
+	@Test
+	public void leavesCanBeReadBack() throws IOException {
+		// enough rows for several blocks
+		List<DistanceResult> rows = randomRows(new Random(42),
+				CompressedLeaves.BLOCK_ROWS * 2 + 100);
+
+		File leaf = File.createTempFile("leaf",
+				DistanceDataTreeSerializer.EXTENSION);
+		try {
+			CompressedLeaves.write(leaf, rows);
+			assertTrue(CompressedLeaves.isCompressed(leaf));
+			assertEquals(sorted(rows), sorted(read(leaf)));
+		} finally {
+			leaf.delete();
+		}
+	}
+
+	@Test
+	public void appendedRowsCanBeReadBack() throws IOException {
+		Random random = new Random(7);
+		List<DistanceResult> rows = randomRows(random, 500);
+		List<DistanceResult> more = randomRows(random,
+				CompressedLeaves.BLOCK_ROWS + 10);
+
+		File leaf = File.createTempFile("leaf",
+				DistanceDataTreeSerializer.EXTENSION);
+		try {
+			CompressedLeaves.write(leaf, rows);
+			CompressedLeaves.append(leaf, more);
+
+			List<DistanceResult> all = new ArrayList<>(rows);
+			all.addAll(more);
+			assertEquals(sorted(all), sorted(read(leaf)));
+		} finally {
+			leaf.delete();
+		}
+	}
+
+	@Test
+	public void textLeavesAreCompressedInPlace() throws IOException {
+		File root = File.createTempFile("store", "");
+		root.delete();
+		File folder = new File(root, "HEM");
+		folder.mkdirs();
+		File small = new File(folder, "small"
+				+ DistanceDataTreeSerializer.EXTENSION);
+		File large = new File(folder, "large"
+				+ DistanceDataTreeSerializer.EXTENSION);
+
+		try {
+			Random random = new Random(3);
+			List<DistanceResult> rows = randomRows(random, 2000);
+			for (DistanceResult dr : rows)
+				DistanceDataTreeSerializer.serializeOneResult(dr,
+						large.getPath());
+			DistanceDataTreeSerializer.serializeOneResult(
+					new DistanceResult("1ABC", 2.5, 10, 20), small.getPath());
+
+			assertTrue(CompressedLeaves.compressDirectory(root) > 0);
+
+			// a one-row leaf is smaller as text
+			assertFalse(CompressedLeaves.isCompressed(small));
+			assertTrue(CompressedLeaves.isCompressed(large));
+			assertEquals(sorted(rows), sorted(DistanceDataTreeSerializer
+					.deserializeResults(large)));
+			assertEquals(0, CompressedLeaves.compressDirectory(root));
+		} finally {
+			small.delete();
+			large.delete();
+			folder.delete();
+			root.delete();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void corruptLeavesAreRefused() throws IOException {
+		File leaf = File.createTempFile("leaf",
+				DistanceDataTreeSerializer.EXTENSION);
+		try {
+			CompressedLeaves.write(leaf, randomRows(new Random(5), 1000));
+
+			try (RandomAccessFile raf = new RandomAccessFile(leaf, "rw")) {
+				raf.seek(raf.length() - 10);
+				int b = raf.read();
+				raf.seek(raf.length() - 10);
+				raf.write(b ^ 0x5a);
+			}
+
+			read(leaf);
+		} finally {
+			leaf.delete();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void textLeavesAreNotReadAsCompressed() throws IOException {
+		File leaf = File.createTempFile("leaf",
+				DistanceDataTreeSerializer.EXTENSION);
+		try {
+			DistanceDataTreeSerializer.serializeOneResult(new DistanceResult(
+					"1ABC", 2.5, 10, 20), leaf.getPath());
+			assertFalse(CompressedLeaves.isCompressed(leaf));
+			read(leaf);
+		} finally {
+			leaf.delete();
+		}
+	}
+
+	/**
+	 * Makes rows spread over a few entries, with distances in tenths of an
+	 * Angstrom, as they are stored; some of them are tagged.
+	 */
+	private static List<DistanceResult> randomRows(Random random, int count) {
+		List<DistanceResult> rows = new ArrayList<>();
+
+		for (int i = 0; i < count; i++) {
+			String pdbID = (1 + random.nextInt(9)) + "AB"
+					+ (char) ('A' + random.nextInt(26));
+			double distance = random.nextInt(80) / 10.0;
+			int origin = 1 + random.nextInt(20000);
+			int target = 1 + random.nextInt(20000);
+
+			switch (random.nextInt(5)) {
+			case 0:
+				rows.add(new DistanceResult(pdbID, distance, origin, target, 2
+						+ random.nextInt(3), random.nextInt(4) + "_555"));
+				break;
+			case 1:
+				rows.add(new DistanceResult(pdbID, distance, origin, target, 3,
+						null));
+				break;
+			default:
+				rows.add(new DistanceResult(pdbID, distance, origin, target));
+				break;
+			}
+		}
+
+		return rows;
+	}
+
+	private static List<DistanceResult> read(File leaf) throws IOException {
+		List<DistanceResult> rows = new ArrayList<>();
+		CompressedLeaves.read(leaf, rows);
+		return rows;
+	}
+
+	private static List<String> sorted(List<DistanceResult> rows) {
+		List<String> strings = new ArrayList<>();
+		for (DistanceResult dr : rows)
+			strings.add(dr.toString());
+		Collections.sort(strings);
+		return strings;
+	}
+}
@@ -0,0 +1,108 @@
+package com.ulyssecarion.pdb.distances.serialization;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.biojava.bio.structure.Element;
+import org.junit.Test;
+
+import com.ulyssecarion.pdb.distances.DistanceDataTree;
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.precalculations.SyntheticDistanceDataGenerator;
+import com.ulyssecarion.pdb.distances.serialization.DistanceBlockCodec.LeafVisitor;
+
+/**
+ * Checks that block files written by {@link DistanceBlockCodec} read back as
+ * the same tree, whether they are read whole or a leaf at a time.
+ */
+public class DistanceBlockCodecTest {
+	@Test
+	public void treesCanBeReadBack() throws IOException {
+		DistanceDataTree tree = new SyntheticDistanceDataGenerator(7)
+				.generateTree(0, 30);
+		tree.add("HEM", Element.Fe, "FE", "HIS", Element.N, "NE2",
+				new DistanceResult("1ABC", 2.1, 10, 20, 2, "2_555"));
+		tree.add("HEM", Element.Fe, "FE", "HIS", Element.N, "NE2",
+				new DistanceResult("1ABC", 2.1, 10, 21, 3, null));
+
+		File file = File.createTempFile("block", ".bin");
+		try {
+			DistanceBlockCodec.write(tree, file);
+
+			// a tree keeps its keys in hash maps, so only the leaves of a file
+			// are in a set order
+			List<String> expected = flatten(tree);
+			assertEquals(sorted(expected),
+					sorted(flatten(DistanceBlockCodec.read(file))));
+
+			final List<String> visited = new ArrayList<>();
+			DistanceBlockCodec.visit(file, new LeafVisitor() {
+				@Override
+				public void visitLeaf(String[] keys, List<DistanceResult> results) {
+					add(visited, keys, results);
+				}
+			});
+			assertEquals(expected, visited);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void emptyTreesCanBeReadBack() throws IOException {
+		File file = File.createTempFile("block", ".bin");
+		try {
+			DistanceBlockCodec.write(new DistanceDataTree(), file);
+			assertEquals(0, flatten(DistanceBlockCodec.read(file)).size());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void otherFilesAreRefused() throws IOException {
+		File file = File.createTempFile("block", ".bin");
+		try {
+			try (FileOutputStream out = new FileOutputStream(file)) {
+				out.write("1ABC 2.5 10 20\n".getBytes("UTF-8"));
+			}
+			DistanceBlockCodec.read(file);
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Lists every row of a tree with the keys of its leaf, depth-first.
+	 */
+	private static List<String> flatten(DistanceDataTree tree)
+			throws IOException {
+		final List<String> rows = new ArrayList<>();
+		DistanceBlockCodec.visit(tree, new LeafVisitor() {
+			@Override
+			public void visitLeaf(String[] keys, List<DistanceResult> results) {
+				add(rows, keys, results);
+			}
+		});
+		return rows;
+	}
+
+	private static List<String> sorted(List<String> rows) {
+		List<String> copy = new ArrayList<>(rows);
+		Collections.sort(copy);
+		return copy;
+	}
+
+	private static void add(List<String> rows, String[] keys,
+			List<DistanceResult> results) {
+		for (DistanceResult dr : results)
+			rows.add(Arrays.toString(keys) + " " + dr);
+	}
+}
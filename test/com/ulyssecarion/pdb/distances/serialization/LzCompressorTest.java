@@ -0,0 +1,111 @@
+package com.ulyssecarion.pdb.distances.serialization;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that whatever {@link LzCompressor} compresses decompresses to the
+ * same bytes, and that it does compress repetitive data.
+ */
+public class LzCompressorTest {
+	@Test
+	public void shortInputsCanBeReadBack() throws IOException {
+		Random random = new Random(42);
+
+		for (int length = 0; length < 40; length++) {
+			byte[] bytes = new byte[length];
+			random.nextBytes(bytes);
+			assertRoundTrip(bytes);
+
+			Arrays.fill(bytes, (byte) 'a');
+			assertRoundTrip(bytes);
+		}
+	}
+
+	@Test
+	public void randomInputsCanBeReadBack() throws IOException {
+		Random random = new Random(7);
+
+		for (int i = 0; i < 20; i++) {
+			byte[] bytes = new byte[random.nextInt(200000)];
+			random.nextBytes(bytes);
+			assertRoundTrip(bytes);
+		}
+	}
+
+	@Test
+	public void repetitiveInputsShrink() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		Random random = new Random(3);
+		for (int i = 0; i < 5000; i++)
+			sb.append("1ABC ").append(random.nextInt(50) / 10.0).append(' ')
+					.append(100 + random.nextInt(20)).append('\n');
+		byte[] text = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+		assertTrue(assertRoundTrip(text) < text.length / 2);
+		assertTrue(assertRoundTrip(new byte[100000]) < 1000);
+	}
+
+	@Test
+	public void longLiteralsAndMatchesCanBeReadBack() throws IOException {
+		Random random = new Random(11);
+
+		// runs of random bytes followed by repeats of earlier ones, some of
+		// them nearly as far back as an offset can reach
+		byte[] bytes = new byte[300000];
+		int length = 0;
+		while (length < bytes.length - 70000) {
+			int literals = random.nextInt(2000);
+			for (int i = 0; i < literals; i++)
+				bytes[length++] = (byte) random.nextInt();
+
+			int offset = 1 + random.nextInt(Math.min(length, 65535));
+			int match = 4 + random.nextInt(random.nextBoolean() ? 20 : 3000);
+			for (int i = 0; i < match; i++, length++)
+				bytes[length] = bytes[length - offset];
+		}
+
+		assertRoundTrip(Arrays.copyOf(bytes, length));
+	}
+
+	@Test(expected = IOException.class)
+	public void theWrongLengthIsRefused() throws IOException {
+		byte[] bytes = "abcdabcdabcdabcdabcdabcdabcdabcd".getBytes(
+				StandardCharsets.UTF_8);
+		byte[] compressed = LzCompressor.compress(bytes, bytes.length);
+		LzCompressor.decompress(compressed, compressed.length,
+				new byte[bytes.length + 1], bytes.length + 1);
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedDataIsRefused() throws IOException {
+		byte[] bytes = new byte[1000];
+		new Random(5).nextBytes(bytes);
+		byte[] compressed = LzCompressor.compress(bytes, bytes.length);
+		LzCompressor.decompress(compressed, compressed.length / 2,
+				new byte[bytes.length], bytes.length);
+	}
+
+	/**
+	 * @return the compressed length
+	 */
+	private static int assertRoundTrip(byte[] bytes) throws IOException {
+		byte[] compressed = LzCompressor.compress(bytes, bytes.length);
+		assertTrue(compressed.length <= LzCompressor
+				.maxCompressedLength(bytes.length));
+
+		byte[] decompressed = new byte[bytes.length];
+		LzCompressor.decompress(compressed, compressed.length, decompressed,
+				bytes.length);
+		assertArrayEquals(bytes, decompressed);
+
+		return compressed.length;
+	}
+}
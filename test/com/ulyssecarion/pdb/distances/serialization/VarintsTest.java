@@ -0,0 +1,78 @@
+package com.ulyssecarion.pdb.distances.serialization;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link Varints} reads back what it writes, in as few bytes as
+ * it promises.
+ */
+public class VarintsTest {
+	private static final int[] EDGES = { 0, 1, 63, 64, 127, 128, 255, 16383,
+			16384, 2097151, 2097152, 268435455, 268435456, Integer.MAX_VALUE,
+			-1, -63, -64, -65, Integer.MIN_VALUE };
+
+	@Test
+	public void numbersCanBeReadBack() throws IOException {
+		Random random = new Random(42);
+		int[] values = new int[EDGES.length + 10000];
+		System.arraycopy(EDGES, 0, values, 0, EDGES.length);
+		for (int i = EDGES.length; i < values.length; i++)
+			values[i] = random.nextInt() >> random.nextInt(32);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (int value : values) {
+			Varints.write(out, value);
+			Varints.writeSigned(out, value);
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				bytes.toByteArray()));
+		for (int value : values) {
+			assertEquals(value, Varints.read(in));
+			assertEquals(value, Varints.readSigned(in));
+		}
+		assertEquals(0, in.available());
+	}
+
+	@Test
+	public void smallNumbersTakeOneByte() throws IOException {
+		assertEquals(1, length(0, false));
+		assertEquals(1, length(127, false));
+		assertEquals(2, length(128, false));
+		assertEquals(5, length(Integer.MAX_VALUE, false));
+		assertEquals(5, length(-1, false));
+
+		assertEquals(1, length(63, true));
+		assertEquals(1, length(-64, true));
+		assertEquals(2, length(64, true));
+		assertEquals(2, length(-65, true));
+		assertEquals(5, length(Integer.MIN_VALUE, true));
+	}
+
+	@Test(expected = IOException.class)
+	public void overlongNumbersAreRefused() throws IOException {
+		byte[] bytes = { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+				(byte) 0x80, 0 };
+		Varints.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	private static int length(int value, boolean signed) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		if (signed)
+			Varints.writeSigned(out, value);
+		else
+			Varints.write(out, value);
+		return bytes.size();
+	}
+}
@@ -0,0 +1,205 @@
+package com.ulyssecarion.pdb.distances.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.biojava.bio.structure.Element;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.ulyssecarion.pdb.distances.DistanceQuery;
+import com.ulyssecarion.pdb.distances.DistanceQuery.DistanceQueryBuilder;
+import com.ulyssecarion.pdb.distances.DistanceResult;
+import com.ulyssecarion.pdb.distances.bitmap.EntryBitmap;
+import com.ulyssecarion.pdb.distances.metrics.QueryStatistics;
+import com.ulyssecarion.pdb.distances.precalculations.SyntheticDistanceDataGenerator;
+import com.ulyssecarion.pdb.distances.serialization.StringDictionary;
+
+/**
+ * Checks that a synthetic directory store, the segments packed from it and
+ * an in-memory copy of it all hold the same leaves and answer queries the
+ * same way.
+ */
+public class DistanceStoreEquivalenceTest {
+	private static File root;
+	private static File segment;
+	private static List<DistanceStore> stores;
+
+	@BeforeClass
+	public static void buildStores() throws IOException {
+		root = File.createTempFile("store", "");
+		root.delete();
+		segment = File.createTempFile("store", ".seg");
+
+		new SyntheticDistanceDataGenerator(11, 0).writeStore(root.getPath()
+				+ File.separator, 60, 25);
+
+		DirectoryStore directory = new DirectoryStore(root, null);
+		PackedSegmentWriter.write(directory, segment);
+
+		stores = new ArrayList<>();
+		stores.add(directory);
+		stores.add(new PackedSegmentStore(segment));
+		stores.add(new MappedSegmentStore(segment));
+		stores.add(InMemoryStore.copyOf(directory));
+	}
+
+	@AfterClass
+	public static void deleteStores() throws IOException {
+		for (DistanceStore store : stores)
+			store.close();
+
+		segment.delete();
+		delete(root);
+	}
+
+	@Test
+	public void storesHoldTheSameLeaves() {
+		List<String> expected = getLeafNames(stores.get(0));
+		assertFalse(expected.isEmpty());
+
+		for (DistanceStore store : stores)
+			assertEquals(store.getDescription(), expected, getLeafNames(store));
+	}
+
+	@Test
+	public void leavesHoldTheSameRows() {
+		for (String[] leaf : DistanceStores.getLeaves(stores.get(0))) {
+			List<String> expected = toStrings(stores.get(0).getResults(leaf,
+					new QueryStatistics()));
+
+			for (DistanceStore store : stores) {
+				assertEquals(store.getDescription() + " "
+						+ Arrays.toString(leaf), expected,
+						toStrings(store.getResults(leaf, new QueryStatistics())));
+			}
+		}
+	}
+
+	@Test
+	public void leavesHaveTheSameEntries() {
+		for (String[] leaf : DistanceStores.getLeaves(stores.get(0))) {
+			List<String> expected = getPdbIDs(stores.get(0), stores.get(0)
+					.getLeafEntries(leaf));
+
+			for (DistanceStore store : stores) {
+				if (!store.getCapabilities().contains(
+						StoreCapability.ENTRY_BITMAPS))
+					continue;
+
+				assertEquals(store.getDescription() + " "
+						+ Arrays.toString(leaf), expected,
+						getPdbIDs(store, store.getLeafEntries(leaf)));
+			}
+		}
+	}
+
+	@Test
+	public void queriesHaveTheSameResults() {
+		for (DistanceQuery q : getQueries()) {
+			List<String> expected = toStrings(QueryExecutor.search(
+					stores.get(0), q));
+
+			for (DistanceStore store : stores) {
+				assertEquals(store.getDescription() + " " + q, expected,
+						toStrings(QueryExecutor.search(store, q)));
+			}
+		}
+	}
+
+	@Test
+	public void queriesMatchTheSameEntries() {
+		for (DistanceQuery q : getQueries()) {
+			List<String> expected = getPdbIDs(stores.get(0),
+					QueryExecutor.searchEntries(stores.get(0), q));
+
+			for (DistanceStore store : stores) {
+				assertEquals(store.getDescription() + " " + q, expected,
+						getPdbIDs(store, QueryExecutor.searchEntries(store, q)));
+			}
+		}
+	}
+
+	/**
+	 * Makes queries for the first leaf of the store, from only its origin
+	 * group down to all six keys, with and without distance bounds, and
+	 * restricted to a single entry or to a few.
+	 */
+	private static List<DistanceQuery> getQueries() {
+		String[] leaf = DistanceStores.getLeaves(stores.get(0)).get(0);
+		DistanceResult row = stores.get(0)
+				.getResults(leaf, new QueryStatistics()).get(0);
+		StringDictionary pdbIDs = stores.get(0).getPdbIDs();
+
+		EntryBitmap entries = new EntryBitmap().withDictionary(pdbIDs);
+		for (int i = 0; i < pdbIDs.size(); i += 3)
+			entries.add(i);
+
+		List<DistanceQuery> queries = new ArrayList<>();
+		queries.add(new DistanceQueryBuilder().originGroup(leaf[0]).build());
+		queries.add(new DistanceQueryBuilder().originGroup(leaf[0])
+				.originElement(Element.valueOf(leaf[1])).maxDistance(3.0)
+				.build());
+		queries.add(new DistanceQueryBuilder().originGroup(leaf[0])
+				.originElement(Element.valueOf(leaf[1])).originAtom(leaf[2])
+				.targetGroup(leaf[3]).targetElement(Element.valueOf(leaf[4]))
+				.targetAtom(leaf[5]).minDistance(2.0).maxDistance(4.5).build());
+		queries.add(new DistanceQueryBuilder().originGroup(leaf[0])
+				.pdbID(row.getPdbID()).build());
+		queries.add(new DistanceQueryBuilder().originGroup(leaf[0])
+				.entries(entries).build());
+		queries.add(new DistanceQueryBuilder().targetGroup(leaf[3])
+				.maxDistance(2.5).build());
+		return queries;
+	}
+
+	private static List<String> getLeafNames(DistanceStore store) {
+		List<String> names = new ArrayList<>();
+		for (String[] leaf : DistanceStores.getLeaves(store))
+			names.add(Arrays.toString(leaf));
+		Collections.sort(names);
+		return names;
+	}
+
+	/**
+	 * Lists the PDB IDs of a bitmap, since every store numbers them its own
+	 * way.
+	 */
+	private static List<String> getPdbIDs(DistanceStore store,
+			EntryBitmap bitmap) {
+		assertNotNull(store.getDescription(), bitmap);
+
+		StringDictionary pdbIDs = store.getPdbIDs();
+		List<String> names = new ArrayList<>();
+		for (int index : bitmap.toArray())
+			names.add(pdbIDs.get(index));
+		Collections.sort(names);
+		return names;
+	}
+
+	private static List<String> toStrings(List<DistanceResult> rows) {
+		List<String> strings = new ArrayList<>();
+		for (DistanceResult dr : rows)
+			strings.add(dr.toString());
+		Collections.sort(strings);
+		return strings;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
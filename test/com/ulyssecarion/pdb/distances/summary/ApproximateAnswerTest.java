@@ -0,0 +1,52 @@
+package com.ulyssecarion.pdb.distances.summary;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link ApproximateAnswer} counts rows the same way a search
+ * would, with both ends of the query's range included.
+ */
+public class ApproximateAnswerTest {
+	@Test
+	public void rowsAtTheEndsOfTheRangeCount() {
+		LeafSummary summary = new LeafSummary();
+		for (int i = 0; i < 100; i++)
+			summary.add("1ABC", 40);
+		summary.add("2ABC", 35);
+		summary.add("3ABC", 45);
+
+		ApproximateAnswer below = answer(summary, 0, 4.0);
+		assertEquals(101, below.getRowEstimate(), 0);
+		assertEquals(101, below.getRowLowerBound());
+		assertEquals(101, below.getRowUpperBound());
+
+		ApproximateAnswer above = answer(summary, 4.0, 10.0);
+		assertEquals(101, above.getRowEstimate(), 0);
+		assertEquals(101, above.getRowLowerBound());
+		assertEquals(101, above.getRowUpperBound());
+	}
+
+	@Test
+	public void rowsOutsideOfTheRangeDoNot() {
+		LeafSummary summary = new LeafSummary();
+		summary.add("1ABC", 35);
+		summary.add("2ABC", 40);
+		summary.add("3ABC", 45);
+
+		ApproximateAnswer answer = answer(summary, 3.6, 4.4);
+		assertEquals(1, answer.getRowEstimate(), 0);
+		assertEquals(1, answer.getRowLowerBound());
+		assertEquals(1, answer.getRowUpperBound());
+		assertEquals(1, answer.getHistogram()[40], 0);
+	}
+
+	private static ApproximateAnswer answer(LeafSummary summary,
+			double minDistance, double maxDistance) {
+		ApproximateAnswer answer = new ApproximateAnswer(minDistance,
+				maxDistance);
+		answer.addLeaf(summary, false);
+		return answer;
+	}
+}
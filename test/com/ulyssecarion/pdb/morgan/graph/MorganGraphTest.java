@@ -0,0 +1,144 @@
+package com.ulyssecarion.pdb.morgan.graph;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.biojava.bio.structure.Element;
+import org.junit.Test;
+
+import com.ulyssecarion.pdb.morgan.graph.GraphDriver.Atom;
+import com.ulyssecarion.pdb.morgan.graph.GraphDriver.Bond;
+
+/**
+ * Checks that {@link MorganGraph} gives every atom the same connectivities as
+ * Morgan's algorithm run on the {@link Atom} objects themselves, the way
+ * {@link Morgan#morganify(List)} used to run it.
+ */
+public class MorganGraphTest {
+	private static final Element[] ELEMENTS = { Element.C, Element.C,
+			Element.C, Element.N, Element.O, Element.S };
+
+	@Test
+	public void connectivitiesMatchTheAtomAlgorithm() {
+		Random random = new Random(42);
+
+		for (int i = 0; i < 500; i++) {
+			long seed = random.nextLong();
+			int atoms = 1 + random.nextInt(60);
+
+			List<Atom> expected = makeMolecule(new Random(seed), atoms);
+			morganifyAtoms(expected);
+
+			List<Atom> graph = makeMolecule(new Random(seed), atoms);
+			MorganGraph morganGraph = MorganGraph.of(graph);
+			morganGraph.morganify();
+
+			for (int j = 0; j < atoms; j++) {
+				assertEquals("Atom " + j + " of molecule " + i, expected.get(j)
+						.getCurrentConnectivity(), morganGraph
+						.getConnectivity(j));
+				assertEquals("Atom " + j + " of molecule " + i, expected.get(j)
+						.getNextConnectivity(), morganGraph
+						.getNextConnectivity(j));
+			}
+		}
+	}
+
+	@Test
+	public void morganifyCanBeRunAgain() {
+		List<Atom> molecule = makeMolecule(new Random(7), 30);
+		MorganGraph morganGraph = MorganGraph.of(molecule);
+
+		morganGraph.morganify();
+		int[] first = morganGraph.getConnectivities();
+		morganGraph.morganify();
+		int[] second = morganGraph.getConnectivities();
+
+		assertEquals(first.length, second.length);
+		for (int i = 0; i < first.length; i++)
+			assertEquals(first[i], second[i]);
+	}
+
+	@Test
+	public void morganCopiesTheResultsBackOntoTheAtoms() {
+		List<Atom> expected = makeMolecule(new Random(3), 25);
+		morganifyAtoms(expected);
+
+		List<Atom> molecule = makeMolecule(new Random(3), 25);
+		Morgan.morganify(molecule);
+
+		for (int i = 0; i < molecule.size(); i++) {
+			assertEquals(expected.get(i).getCurrentConnectivity(), molecule
+					.get(i).getCurrentConnectivity());
+			assertEquals(expected.get(i).getNextConnectivity(), molecule.get(i)
+					.getNextConnectivity());
+		}
+	}
+
+	/**
+	 * Makes a random connected molecule: a tree, with a few extra bonds to
+	 * close rings, and some double bonds.
+	 */
+	private static List<Atom> makeMolecule(Random random, int atoms) {
+		List<Atom> molecule = new ArrayList<>();
+
+		for (int i = 0; i < atoms; i++) {
+			Atom atom = new Atom(ELEMENTS[random.nextInt(ELEMENTS.length)]);
+			molecule.add(atom);
+
+			if (i > 0)
+				bond(molecule.get(random.nextInt(i)), atom, random);
+		}
+
+		for (int i = 0; i < atoms / 8; i++) {
+			Atom a = molecule.get(random.nextInt(atoms));
+			Atom b = molecule.get(random.nextInt(atoms));
+			if (a != b)
+				bond(a, b, random);
+		}
+
+		return molecule;
+	}
+
+	private static void bond(Atom a, Atom b, Random random) {
+		new Bond(a, b, random.nextInt(5) == 0 ? 2 : 1).addSelfToAtoms();
+	}
+
+	/**
+	 * Morgan's algorithm as it was run before {@link MorganGraph}, on the
+	 * atoms directly.
+	 */
+	private static void morganifyAtoms(List<Atom> graph) {
+		for (Atom atom : graph) {
+			atom.initializeConnectivity();
+		}
+
+		int currentN = 0;
+		while (getNumUniqueValues(graph) > currentN) {
+			currentN = getNumUniqueValues(graph);
+
+			for (Atom atom : graph) {
+				atom.useNextConnectivity();
+			}
+
+			for (Atom atom : graph) {
+				atom.prepareNextConnectivity();
+			}
+		}
+	}
+
+	private static int getNumUniqueValues(List<Atom> atoms) {
+		Set<Integer> s = new HashSet<Integer>();
+
+		for (Atom atom : atoms) {
+			s.add(atom.getNextConnectivity());
+		}
+
+		return s.size();
+	}
+}